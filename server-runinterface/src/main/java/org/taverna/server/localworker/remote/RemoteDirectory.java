@@ -8,6 +8,7 @@ package org.taverna.server.localworker.remote;
 import java.io.IOException;
 import java.rmi.RemoteException;
 import java.util.Collection;
+import java.util.List;
 
 import javax.annotation.Nonnull;
 
@@ -30,6 +31,41 @@ public interface RemoteDirectory extends RemoteDirectoryEntry {
 	public Collection<RemoteDirectoryEntry> getContents()
 			throws RemoteException, IOException;
 
+	/**
+	 * Lists the contents of the directory along with the attributes of each
+	 * entry, so that describing the directory takes a single call.
+	 * 
+	 * @return A description of each file and sub-directory in the directory.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If anything goes wrong with listing the directory.
+	 */
+	@Nonnull
+	public List<RemoteEntryAttributes> listWithAttributes()
+			throws RemoteException, IOException;
+
+	/**
+	 * Looks up an entry in this directory or one of its sub-directories.
+	 * 
+	 * @param path
+	 *            The path to the entry relative to this directory, with its
+	 *            parts separated by "<tt>/</tt>". Parts that could refer
+	 *            outside this directory are rejected.
+	 * @return A description of the entry, including its handle.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws java.nio.file.NoSuchFileException
+	 *             If there is no such entry.
+	 * @throws java.nio.file.NotDirectoryException
+	 *             If the path tries to go through a file.
+	 * @throws IOException
+	 *             If anything else goes wrong with looking up the entry.
+	 */
+	@Nonnull
+	public RemoteEntryAttributes resolve(@Nonnull String path)
+			throws RemoteException, IOException;
+
 	/**
 	 * Creates a sub-directory of this directory.
 	 * 
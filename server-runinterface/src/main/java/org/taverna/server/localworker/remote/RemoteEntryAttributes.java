@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.remote;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The attributes of an entry in a {@link RemoteDirectory}, as listed by
+ * {@link RemoteDirectory#listWithAttributes()} or described by a
+ * {@link RemoteFilesystem}. This is passed by value, not by reference, so
+ * reading the attributes does not need any further calls; when it comes from a
+ * {@link RemoteDirectory}, it also carries a handle to the entry for when the
+ * entry must be worked with.
+ * 
+ * @author Donal Fellows
+ */
+public final class RemoteEntryAttributes implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The kinds of directory entry.
+	 * 
+	 * @author Donal Fellows
+	 */
+	public enum Type {
+		/** The entry is a {@link RemoteDirectory}. */
+		DIRECTORY,
+		/** The entry is a {@link RemoteFile}. */
+		FILE
+	}
+
+	private final RemoteDirectoryEntry entry;
+	private final String name;
+	private final String fullName;
+	private final Type type;
+	private final long size;
+	private final long modified;
+
+	/**
+	 * @param entry
+	 *            The handle to the entry, or <tt>null</tt> if the entry is
+	 *            addressed by path.
+	 * @param name
+	 *            The local name of the entry.
+	 * @param fullName
+	 *            The name of the entry relative to the working directory of
+	 *            the workflow run, with a leading "<tt>/</tt>".
+	 * @param type
+	 *            What kind of entry this is.
+	 * @param size
+	 *            The length of the entry, in bytes.
+	 * @param modified
+	 *            When the entry was last modified, in milliseconds since the
+	 *            epoch.
+	 */
+	public RemoteEntryAttributes(@Nullable RemoteDirectoryEntry entry,
+			@Nonnull String name, @Nonnull String fullName,
+			@Nonnull Type type, long size, long modified) {
+		this.entry = entry;
+		this.name = name;
+		this.fullName = fullName;
+		this.type = type;
+		this.size = size;
+		this.modified = modified;
+	}
+
+	/**
+	 * @return The handle to the entry. It is a {@link RemoteDirectory} or a
+	 *         {@link RemoteFile}, according to the {@linkplain #getType() type}
+	 *         of the entry, or <tt>null</tt> if the entry came from a
+	 *         {@link RemoteFilesystem}.
+	 */
+	@Nullable
+	public RemoteDirectoryEntry getEntry() {
+		return entry;
+	}
+
+	/**
+	 * @return The local name of the entry.
+	 */
+	@Nonnull
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The name of the entry relative to the working directory of the
+	 *         workflow run, with a leading "<tt>/</tt>".
+	 */
+	@Nonnull
+	public String getFullName() {
+		return fullName;
+	}
+
+	/**
+	 * @return What kind of entry this is.
+	 */
+	@Nonnull
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return The length of the entry in bytes, when it was listed.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return When the entry was last modified, when it was listed.
+	 */
+	@Nonnull
+	public Date getModificationDate() {
+		return new Date(modified);
+	}
+}
@@ -32,9 +32,28 @@ public interface RemoteFile extends RemoteDirectoryEntry {
 	 *             If things go wrong reading the file.
 	 */
 	@Nonnull
-	byte[] getContents(int offset, int length) throws RemoteException,
+	byte[] getContents(long offset, int length) throws RemoteException,
 			IOException;
 
+	/**
+	 * Arrange for a section of the file to be read over a dedicated socket
+	 * instead of by repeated calls to {@link #getContents(long, int)}, which is
+	 * much faster for large files.
+	 * 
+	 * @param offset
+	 *            Where in the file to start reading.
+	 * @param length
+	 *            How much of the file to read; -1 for "to the end".
+	 * @return How to fetch the data.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If the file can't be read or the transfer can't be set up.
+	 */
+	@Nonnull
+	RemoteStreamTicket openStream(long offset, long length)
+			throws RemoteException, IOException;
+
 	/**
 	 * Write the data to the file, totally replacing what was there before.
 	 * 
@@ -60,6 +79,25 @@ public interface RemoteFile extends RemoteDirectoryEntry {
 	void appendContents(@Nonnull byte[] data) throws RemoteException,
 			IOException;
 
+	/**
+	 * Start writing a large amount of data to the file. This is much faster
+	 * than repeated calls to {@link #appendContents(byte[])}, as the file is
+	 * only opened once and the pieces of data can be sent without waiting for
+	 * each other.
+	 * 
+	 * @param append
+	 *            Whether to add the data to the end of the file instead of
+	 *            replacing its contents.
+	 * @return The upload, which must be committed or aborted.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If the file can't be opened for writing.
+	 */
+	@Nonnull
+	RemoteUpload openUpload(boolean append) throws RemoteException,
+			IOException;
+
 	/**
 	 * @return The length of the file, in bytes.
 	 * @throws RemoteException
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.remote;
+
+import java.io.IOException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The working directory of a workflow run and everything in it, with entries
+ * addressed by path. Unlike {@link RemoteDirectory} and {@link RemoteFile},
+ * there is only one remote object for the whole run, so working with a large
+ * tree of files does not need a remote object for each of them.
+ * <p>
+ * Paths are relative to the working directory, with their parts separated by
+ * "<tt>/</tt>"; the empty path is the working directory itself. Paths that
+ * could refer outside the working directory are rejected. The
+ * {@linkplain RemoteEntryAttributes#getEntry() handles} in the descriptions
+ * returned are always <tt>null</tt>; use the
+ * {@linkplain RemoteEntryAttributes#getFullName() full name} (without its
+ * leading "<tt>/</tt>") to refer to the entry.
+ * 
+ * @author Donal Fellows
+ */
+public interface RemoteFilesystem extends Remote {
+	/**
+	 * Describe an entry.
+	 * 
+	 * @param path
+	 *            The path to the entry.
+	 * @return The description of the entry.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws java.nio.file.NoSuchFileException
+	 *             If there is no such entry.
+	 * @throws java.nio.file.NotDirectoryException
+	 *             If the path tries to go through a file.
+	 * @throws IOException
+	 *             If anything else goes wrong with looking up the entry.
+	 */
+	@Nonnull
+	RemoteEntryAttributes stat(@Nonnull String path) throws RemoteException,
+			IOException;
+
+	/**
+	 * List the contents of a directory.
+	 * 
+	 * @param path
+	 *            The path to the directory.
+	 * @return A description of each file and sub-directory in the directory.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If the directory doesn't exist or can't be listed.
+	 */
+	@Nonnull
+	List<RemoteEntryAttributes> list(@Nonnull String path)
+			throws RemoteException, IOException;
+
+	/**
+	 * Read from a file.
+	 * 
+	 * @param path
+	 *            The path to the file.
+	 * @param offset
+	 *            Where in the file to read the bytes from.
+	 * @param length
+	 *            How much of the file to read; -1 for "to the end". At most
+	 *            64kB will be read.
+	 * @return The literal byte contents of the given section of the file.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If things go wrong reading the file.
+	 */
+	@Nonnull
+	byte[] read(@Nonnull String path, long offset, int length)
+			throws RemoteException, IOException;
+
+	/**
+	 * Arrange for a section of a file to be read over a dedicated socket.
+	 * 
+	 * @param path
+	 *            The path to the file.
+	 * @param offset
+	 *            Where in the file to start reading.
+	 * @param length
+	 *            How much of the file to read; -1 for "to the end".
+	 * @return How to fetch the data.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If the file can't be read or the transfer can't be set up.
+	 * @see RemoteFile#openStream(long, long)
+	 */
+	@Nonnull
+	RemoteStreamTicket openStream(@Nonnull String path, long offset,
+			long length) throws RemoteException, IOException;
+
+	/**
+	 * Arrange for the contents of a directory to be sent, as a ZIP archive,
+	 * over a dedicated socket. The archive is built by the worker as it is
+	 * sent; its length is not known in advance, so the
+	 * {@linkplain RemoteStreamTicket#getLength() length} in the ticket is -1
+	 * and the archive ends when the worker closes the connection.
+	 * 
+	 * @param path
+	 *            The path to the directory.
+	 * @return How to fetch the archive.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If the directory doesn't exist or the transfer can't be set
+	 *             up.
+	 */
+	@Nonnull
+	RemoteStreamTicket openZipStream(@Nonnull String path)
+			throws RemoteException, IOException;
+
+	/**
+	 * Write to a file.
+	 * 
+	 * @param path
+	 *            The path to the file, which must exist.
+	 * @param data
+	 *            The literal bytes to write.
+	 * @param append
+	 *            Whether to add the data to the end of the file instead of
+	 *            replacing its contents.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If things go wrong writing the file.
+	 */
+	void write(@Nonnull String path, @Nonnull byte[] data, boolean append)
+			throws RemoteException, IOException;
+
+	/**
+	 * Start writing a large amount of data to a file.
+	 * 
+	 * @param path
+	 *            The path to the file, which must exist.
+	 * @param append
+	 *            Whether to add the data to the end of the file instead of
+	 *            replacing its contents.
+	 * @return The upload, which must be committed or aborted.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If the file can't be opened for writing.
+	 * @see RemoteFile#openUpload(boolean)
+	 */
+	@Nonnull
+	RemoteUpload openUpload(@Nonnull String path, boolean append)
+			throws RemoteException, IOException;
+
+	/**
+	 * Create a directory.
+	 * 
+	 * @param path
+	 *            The path to the directory to create; its parent must exist.
+	 * @return The description of the new directory.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If things go wrong with creating the directory.
+	 */
+	@Nonnull
+	RemoteEntryAttributes makeDirectory(@Nonnull String path)
+			throws RemoteException, IOException;
+
+	/**
+	 * Create an empty file.
+	 * 
+	 * @param path
+	 *            The path to the file to create; its parent must exist.
+	 * @return The description of the new file.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If things go wrong with creating the file.
+	 */
+	@Nonnull
+	RemoteEntryAttributes makeEmptyFile(@Nonnull String path)
+			throws RemoteException, IOException;
+
+	/**
+	 * Delete a file, or a directory and everything in it. The working
+	 * directory itself can't be deleted.
+	 * 
+	 * @param path
+	 *            The path to the entry.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If things go wrong with the deletion.
+	 */
+	void delete(@Nonnull String path) throws RemoteException, IOException;
+
+	/**
+	 * Copy one file over another.
+	 * 
+	 * @param source
+	 *            The filesystem holding the file to copy from, which may be
+	 *            this one.
+	 * @param sourcePath
+	 *            The path to the file to copy from.
+	 * @param path
+	 *            The path to the file to copy to, which must exist.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If things go wrong during the copy.
+	 */
+	void copy(@Nonnull RemoteFilesystem source, @Nonnull String sourcePath,
+			@Nonnull String path) throws RemoteException, IOException;
+
+	/**
+	 * @param path
+	 *            The path to an entry.
+	 * @return The full native OS name for the entry.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If there is no such entry.
+	 */
+	@Nonnull
+	String getNativeName(@Nonnull String path) throws RemoteException,
+			IOException;
+
+	/**
+	 * @return The host holding the files.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 */
+	@Nonnull
+	String getNativeHost() throws RemoteException;
+}
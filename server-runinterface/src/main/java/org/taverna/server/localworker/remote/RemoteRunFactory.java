@@ -7,8 +7,11 @@ package org.taverna.server.localworker.remote;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.Map;
 import java.util.UUID;
 
+import org.taverna.server.localworker.server.RunStatusListener;
 import org.taverna.server.localworker.server.UsageRecordReceiver;
 
 import javax.annotation.Nonnull;
@@ -71,6 +74,36 @@ public interface RemoteRunFactory extends Remote {
 			@Nonnull String port, @Nonnull String webdavPath,
 			@Nonnull String feedPath) throws RemoteException;
 
+	/**
+	 * Configures how ZIP archives of run directories are compressed. Affects
+	 * archives requested after this call, from all runs created by this
+	 * factory.
+	 * 
+	 * @param threads
+	 *            How many threads to use to compress the contents of archives.
+	 *            If 1, each archive is compressed by a single thread.
+	 * @param level
+	 *            The level of compression, from 0 (none) to 9 (best), or -1
+	 *            for the default.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 */
+	void setArchiveCompression(int threads, int level) throws RemoteException;
+
+	/**
+	 * Configures where to report workflow runs created by this factory
+	 * finishing of their own accord. Only affects runs created after this
+	 * call.
+	 * 
+	 * @param listener
+	 *            The listener to report to, or <tt>null</tt> to stop reporting
+	 *            (in which case the server will need to poll the runs).
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 */
+	void setStatusListener(@Nullable RunStatusListener listener)
+			throws RemoteException;
+
 	/**
 	 * Gets a count of the number of {@linkplain RemoteSingleRun workflow runs}
 	 * that this factor knows about that are in the
@@ -81,4 +114,21 @@ public interface RemoteRunFactory extends Remote {
 	 *             If anything goes wrong with the communication.
 	 */
 	int countOperatingRuns() throws RemoteException;
+
+	/**
+	 * Gets the state of many workflow runs at once, so that the server does
+	 * not need to make a call to each run to find out how it is doing.
+	 * 
+	 * @param ids
+	 *            The identities of the runs of interest, as given to the
+	 *            factory when the runs were created.
+	 * @return The state of each of those runs that this factory knows about,
+	 *         keyed by run identity. Runs that this factory did not create, or
+	 *         that have been destroyed, are omitted.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 */
+	@Nonnull
+	Map<String, RemoteRunStatus> getRunStatuses(@Nonnull Collection<String> ids)
+			throws RemoteException;
 }
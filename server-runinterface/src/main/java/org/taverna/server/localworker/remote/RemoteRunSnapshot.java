@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.remote;
+
+import static java.util.Collections.unmodifiableList;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A snapshot of the descriptive state of a workflow run, as returned by
+ * {@link RemoteSingleRun#getSnapshot()}. It lets the server describe a run
+ * with one call instead of one call per property. This is passed by value, not
+ * by reference, and does not change when the run does.
+ * 
+ * @author Donal Fellows
+ */
+public final class RemoteRunSnapshot implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private final RemoteStatus status;
+	private final Long start;
+	private final Long finish;
+	private final String inputBaclavaFile;
+	private final String outputBaclavaFile;
+	private final ArrayList<InputState> inputs;
+	private final ArrayList<ListenerState> listeners;
+
+	/**
+	 * @param status
+	 *            The state of the run.
+	 * @param start
+	 *            When the run started, or <tt>null</tt> if it has not.
+	 * @param finish
+	 *            When the run finished, or <tt>null</tt> if it has not.
+	 * @param inputBaclavaFile
+	 *            The name of the input Baclava document, or <tt>null</tt>.
+	 * @param outputBaclavaFile
+	 *            The name of the output Baclava document, or <tt>null</tt>.
+	 * @param inputs
+	 *            The state of the inputs of the run.
+	 * @param listeners
+	 *            The listeners attached to the run.
+	 */
+	public RemoteRunSnapshot(@Nonnull RemoteStatus status,
+			@Nullable Date start, @Nullable Date finish,
+			@Nullable String inputBaclavaFile,
+			@Nullable String outputBaclavaFile,
+			@Nonnull List<InputState> inputs,
+			@Nonnull List<ListenerState> listeners) {
+		this.status = status;
+		this.start = (start == null ? null : start.getTime());
+		this.finish = (finish == null ? null : finish.getTime());
+		this.inputBaclavaFile = inputBaclavaFile;
+		this.outputBaclavaFile = outputBaclavaFile;
+		this.inputs = new ArrayList<>(inputs);
+		this.listeners = new ArrayList<>(listeners);
+	}
+
+	/**
+	 * @return The state of the run.
+	 */
+	@Nonnull
+	public RemoteStatus getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return When the run started, or <tt>null</tt> if it has not.
+	 */
+	@Nullable
+	public Date getStartTimestamp() {
+		return start == null ? null : new Date(start);
+	}
+
+	/**
+	 * @return When the run finished, or <tt>null</tt> if it has not.
+	 */
+	@Nullable
+	public Date getFinishTimestamp() {
+		return finish == null ? null : new Date(finish);
+	}
+
+	/**
+	 * @return The name of the input Baclava document, or <tt>null</tt> if
+	 *         inputs are not being supplied that way.
+	 */
+	@Nullable
+	public String getInputBaclavaFile() {
+		return inputBaclavaFile;
+	}
+
+	/**
+	 * @return The name of the output Baclava document, or <tt>null</tt> if
+	 *         outputs are not being collected that way.
+	 */
+	@Nullable
+	public String getOutputBaclavaFile() {
+		return outputBaclavaFile;
+	}
+
+	/**
+	 * @return The state of the inputs of the run.
+	 */
+	@Nonnull
+	public List<InputState> getInputs() {
+		return unmodifiableList(inputs);
+	}
+
+	/**
+	 * @return The listeners attached to the run.
+	 */
+	@Nonnull
+	public List<ListenerState> getListeners() {
+		return unmodifiableList(listeners);
+	}
+
+	/**
+	 * The state of one input to a workflow run. To change the input, get a
+	 * handle to it with {@link RemoteSingleRun#makeInput(String)}.
+	 * 
+	 * @author Donal Fellows
+	 */
+	public static final class InputState implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final String name;
+		private final String file;
+		private final String value;
+		private final String delimiter;
+
+		/**
+		 * @param name
+		 *            The name of the input.
+		 * @param file
+		 *            The file the input is read from, or <tt>null</tt>.
+		 * @param value
+		 *            The value of the input, or <tt>null</tt>.
+		 * @param delimiter
+		 *            The delimiter used to split the input, or <tt>null</tt>.
+		 */
+		public InputState(@Nonnull String name, @Nullable String file,
+				@Nullable String value, @Nullable String delimiter) {
+			this.name = name;
+			this.file = file;
+			this.value = value;
+			this.delimiter = delimiter;
+		}
+
+		/**
+		 * @return The name of the input.
+		 */
+		@Nonnull
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The file the input is read from, or <tt>null</tt> if it is
+		 *         not read from a file.
+		 */
+		@Nullable
+		public String getFile() {
+			return file;
+		}
+
+		/**
+		 * @return The value of the input, or <tt>null</tt> if it is not
+		 *         supplied directly.
+		 */
+		@Nullable
+		public String getValue() {
+			return value;
+		}
+
+		/**
+		 * @return The delimiter used to split the input into a list, or
+		 *         <tt>null</tt> if it is not split.
+		 */
+		@Nullable
+		public String getDelimiter() {
+			return delimiter;
+		}
+	}
+
+	/**
+	 * A listener attached to a workflow run, with its fixed properties.
+	 * 
+	 * @author Donal Fellows
+	 */
+	public static final class ListenerState implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final RemoteListener listener;
+		private final String name;
+		private final String configuration;
+
+		/**
+		 * @param listener
+		 *            The handle to the listener.
+		 * @param name
+		 *            The name of the listener.
+		 * @param configuration
+		 *            The configuration of the listener.
+		 */
+		public ListenerState(@Nonnull RemoteListener listener,
+				@Nonnull String name, @Nullable String configuration) {
+			this.listener = listener;
+			this.name = name;
+			this.configuration = configuration;
+		}
+
+		/**
+		 * @return The handle to the listener.
+		 */
+		@Nonnull
+		public RemoteListener getListener() {
+			return listener;
+		}
+
+		/**
+		 * @return The name of the listener.
+		 */
+		@Nonnull
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The configuration of the listener.
+		 */
+		@Nullable
+		public String getConfiguration() {
+			return configuration;
+		}
+	}
+}
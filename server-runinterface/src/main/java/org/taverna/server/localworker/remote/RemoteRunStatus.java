@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.remote;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A snapshot of the state of a workflow run, as reported in bulk by
+ * {@link RemoteRunFactory#getRunStatuses(java.util.Collection)}. This is passed
+ * by value, not by reference.
+ * 
+ * @author Donal Fellows
+ */
+public final class RemoteRunStatus implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private final String id;
+	private final RemoteStatus status;
+	private final Long start;
+	private final Long finish;
+	private final Integer exitCode;
+
+	/**
+	 * @param id
+	 *            The identity of the run.
+	 * @param status
+	 *            The state of the run.
+	 * @param start
+	 *            When the run started, or <tt>null</tt> if it has not.
+	 * @param finish
+	 *            When the run finished, or <tt>null</tt> if it has not.
+	 * @param exitCode
+	 *            The exit code of the workflow engine, or <tt>null</tt> if it
+	 *            has not exited.
+	 */
+	public RemoteRunStatus(@Nonnull String id, @Nonnull RemoteStatus status,
+			@Nullable Date start, @Nullable Date finish,
+			@Nullable Integer exitCode) {
+		this.id = id;
+		this.status = status;
+		this.start = (start == null ? null : start.getTime());
+		this.finish = (finish == null ? null : finish.getTime());
+		this.exitCode = exitCode;
+	}
+
+	/**
+	 * @return The identity of the run, as given to the factory when the run
+	 *         was created.
+	 */
+	@Nonnull
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return The state of the run.
+	 */
+	@Nonnull
+	public RemoteStatus getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return When the run started, or <tt>null</tt> if it has not.
+	 */
+	@Nullable
+	public Date getStartTimestamp() {
+		return start == null ? null : new Date(start);
+	}
+
+	/**
+	 * @return When the run finished, or <tt>null</tt> if it has not.
+	 */
+	@Nullable
+	public Date getFinishTimestamp() {
+		return finish == null ? null : new Date(finish);
+	}
+
+	/**
+	 * @return The exit code of the workflow engine, or <tt>null</tt> if it has
+	 *         not exited.
+	 */
+	@Nullable
+	public Integer getExitCode() {
+		return exitCode;
+	}
+
+	@Override
+	public String toString() {
+		return id + ":" + status;
+	}
+}
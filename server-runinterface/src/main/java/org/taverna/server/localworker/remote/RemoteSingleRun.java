@@ -133,6 +133,17 @@ public interface RemoteSingleRun extends Remote {
 	@Nullable
 	public Date getStartTimestamp() throws RemoteException;
 
+	/**
+	 * Gets the status, timestamps, Baclava file names, inputs and listeners of
+	 * this workflow run in one call.
+	 * 
+	 * @return A snapshot of the state of this workflow run.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 */
+	@Nonnull
+	public RemoteRunSnapshot getSnapshot() throws RemoteException;
+
 	/**
 	 * @return Handle to the main working directory of the run.
 	 * @throws RemoteException
@@ -141,6 +152,15 @@ public interface RemoteSingleRun extends Remote {
 	@Nonnull
 	public RemoteDirectory getWorkingDirectory() throws RemoteException;
 
+	/**
+	 * @return The working directory of the run and its contents, addressed by
+	 *         path through a single remote object.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 */
+	@Nonnull
+	public RemoteFilesystem getFilesystem() throws RemoteException;
+
 	/**
 	 * @return The list of listener instances attached to the run.
 	 * @throws RemoteException
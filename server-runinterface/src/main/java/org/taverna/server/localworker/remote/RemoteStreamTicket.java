@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.remote;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Where and how to fetch a section of a file over a dedicated socket, as
+ * arranged by {@link RemoteFile#openStream(long, long)}. To use it, connect to
+ * the given host and port, write the two halves of the token (most significant
+ * first, as with {@link java.io.DataOutput#writeLong(long)}), and then read
+ * exactly {@linkplain #getLength() the given number} of bytes. A ticket may
+ * only be used once, and only for a short time after it was issued. This is
+ * passed by value, not by reference.
+ * <p>
+ * The data of a ticket for a ZIP archive is instead preceded by a
+ * {@link #ARCHIVE_WAITING} byte every so often while the archive waits to be
+ * built, and then by one {@link #ARCHIVE_STARTING} byte; the archive follows,
+ * and ends when the connection is closed. An archive that does not end with
+ * an end-of-central-directory record was cut short by a failure.
+ * 
+ * @author Donal Fellows
+ */
+public final class RemoteStreamTicket implements Serializable {
+	private static final long serialVersionUID = 1L;
+	/** Sent while an archive waits to be built, to show the worker is alive. */
+	public static final int ARCHIVE_WAITING = 0;
+	/** Sent just before the archive itself. */
+	public static final int ARCHIVE_STARTING = 1;
+	private final String host;
+	private final int port;
+	private final UUID token;
+	private final long length;
+
+	/**
+	 * @param host
+	 *            The host to connect to.
+	 * @param port
+	 *            The port to connect to.
+	 * @param token
+	 *            The secret that identifies the transfer to the worker.
+	 * @param length
+	 *            How many bytes will be sent.
+	 */
+	public RemoteStreamTicket(@Nonnull String host, int port,
+			@Nonnull UUID token, long length) {
+		this.host = host;
+		this.port = port;
+		this.token = token;
+		this.length = length;
+	}
+
+	/**
+	 * @return The host to connect to.
+	 */
+	@Nonnull
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * @return The port to connect to.
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return The secret that identifies the transfer to the worker.
+	 */
+	@Nonnull
+	public UUID getToken() {
+		return token;
+	}
+
+	/**
+	 * @return How many bytes will be sent, or -1 if that is not known in
+	 *         advance (as for an archive, in which case the data ends when
+	 *         the connection is closed). If fewer arrive, the file was
+	 *         truncated during the transfer.
+	 */
+	public long getLength() {
+		return length;
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.remote;
+
+import java.io.IOException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A write to a file that is made in many steps, as opened by
+ * {@link RemoteFile#openUpload(boolean)} or
+ * {@link RemoteFilesystem#openUpload(String, boolean)}. The file is opened
+ * once for the whole upload instead of once for each piece of data, and each
+ * piece says where it goes, so several calls to {@link #write(long, byte[])}
+ * may be in progress at once and may complete in any order; there is no need
+ * to wait for one to finish before sending the next.
+ * <p>
+ * The data is only flushed to disk when the upload is
+ * {@linkplain #commit() committed}; when the contents of the file are being
+ * replaced, that is also when the new contents appear. If the upload is
+ * {@linkplain #abort() aborted}, or is abandoned by its client, the file is
+ * left as it was before the upload was opened.
+ * 
+ * @author Donal Fellows
+ */
+public interface RemoteUpload extends Remote {
+	/**
+	 * Write some of the data being uploaded.
+	 * 
+	 * @param offset
+	 *            Where the data goes, relative to the start of the upload (not
+	 *            to the start of the file, when appending).
+	 * @param data
+	 *            The literal bytes to write.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If things go wrong writing the data, or if the upload has
+	 *             already been committed or aborted.
+	 */
+	void write(long offset, @Nonnull byte[] data) throws RemoteException,
+			IOException;
+
+	/**
+	 * Finish the upload, making the data written part of the file. Must only
+	 * be called once all calls to {@link #write(long, byte[])} have completed.
+	 * 
+	 * @return The length of the file after the upload.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If the data can't be flushed to disk or put in place, in
+	 *             which case the upload is aborted.
+	 */
+	long commit() throws RemoteException, IOException;
+
+	/**
+	 * Abandon the upload, leaving the file as it was before. Does nothing if
+	 * the upload has already been committed or aborted.
+	 * 
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 */
+	void abort() throws RemoteException;
+}
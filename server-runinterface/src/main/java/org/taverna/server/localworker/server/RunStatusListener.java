@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.server;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+import javax.annotation.Nonnull;
+
+import org.taverna.server.localworker.remote.RemoteStatus;
+
+/**
+ * Interface exported by (part of) the webapp to allow processes it creates to
+ * tell it when the workflow runs they manage change state, so that it does not
+ * need to poll for the completion of runs.
+ * 
+ * @author Donal Fellows
+ */
+public interface RunStatusListener extends Remote {
+	/**
+	 * Called to report that a workflow run has changed state. Calls should be
+	 * cheap; the receiver is expected to do any expensive processing of the
+	 * change later, and to tolerate duplicate notifications.
+	 * 
+	 * @param runId
+	 *            The identity of the run, as given to the factory when the run
+	 *            was created.
+	 * @param status
+	 *            The state that the run has entered.
+	 * @throws RemoteException
+	 *             if anything goes wrong.
+	 */
+	void statusChanged(@Nonnull String runId, @Nonnull RemoteStatus status)
+			throws RemoteException;
+}
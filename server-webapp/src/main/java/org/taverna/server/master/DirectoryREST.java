@@ -261,16 +261,11 @@ class DirectoryREST implements TavernaServerDirectoryREST, DirectoryBean {
 
 		// Make or set the contents of a file
 
-		File f = null;
-		for (DirectoryEntry e : d.getContents()) {
-			if (e.getName().equals(op.name)) {
-				if (e instanceof Directory)
-					throw new FilesystemAccessException(
-							"You may not overwrite a directory with a file.");
-				f = (File) e;
-				break;
-			}
-		}
+		DirectoryEntry e = lookup(d, op.name);
+		if (e instanceof Directory)
+			throw new FilesystemAccessException(
+					"You may not overwrite a directory with a file.");
+		File f = (File) e;
 		if (f == null) {
 			f = d.makeEmptyFile(support.getPrincipal(), op.name);
 			f.setContents(op.contents);
@@ -280,6 +275,20 @@ class DirectoryREST implements TavernaServerDirectoryREST, DirectoryBean {
 		return seeOther(ub.build(f.getName())).build();
 	}
 
+	/**
+	 * Look up an entry of a directory by name, without listing the directory.
+	 * 
+	 * @return The entry, or <tt>null</tt> if there is none.
+	 */
+	private DirectoryEntry lookup(Directory d, String name)
+			throws FilesystemAccessException {
+		try {
+			return d.resolve(name);
+		} catch (NoDirectoryEntryException e) {
+			return null;
+		}
+	}
+
 	private File getFileForWrite(List<PathSegment> filePath,
 			Holder<Boolean> isNew) throws FilesystemAccessException,
 			NoDirectoryEntryException, NoUpdateException {
@@ -297,23 +306,16 @@ class DirectoryREST implements TavernaServerDirectoryREST, DirectoryBean {
 		}
 		Directory d = (Directory) de;
 
-		File f = null;
+		DirectoryEntry e = lookup(d, name);
+		if (e instanceof Directory)
+			throw new FilesystemAccessException(
+					"Cannot create a file that is not in a directory.");
+		File f = (File) e;
 		isNew.value = false;
-		for (DirectoryEntry e : d.getContents())
-			if (e.getName().equals(name)) {
-				if (e instanceof File) {
-					f = (File) e;
-					break;
-				}
-				throw new FilesystemAccessException(
-						"Cannot create a file that is not in a directory.");
-			}
-
 		if (f == null) {
 			f = d.makeEmptyFile(support.getPrincipal(), name);
 			isNew.value = true;
-		} else
-			f.setContents(new byte[0]);
+		}
 		return f;
 	}
 
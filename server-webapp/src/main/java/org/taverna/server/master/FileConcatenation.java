@@ -54,7 +54,7 @@ public class FileConcatenation implements Iterable<File> {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		for (File f : files)
 			try {
-				baos.write(f.getContents(0, -1));
+				f.writeContentsTo(baos, 0, -1, 64 * 1024);
 			} catch (FilesystemAccessException | IOException e) {
 				continue;
 			}
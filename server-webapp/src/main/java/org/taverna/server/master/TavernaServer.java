@@ -13,7 +13,6 @@ import static javax.ws.rs.core.Response.created;
 import static javax.ws.rs.core.UriBuilder.fromUri;
 import static javax.xml.ws.handler.MessageContext.HTTP_REQUEST_HEADERS;
 import static javax.xml.ws.handler.MessageContext.PATH_INFO;
-import static org.apache.commons.io.IOUtils.toByteArray;
 import static org.apache.commons.logging.LogFactory.getLog;
 import static org.taverna.server.master.TavernaServerSupport.PROV_BUNDLE;
 import static org.taverna.server.master.common.DirEntryReference.newInstance;
@@ -36,6 +35,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
+import javax.activation.DataHandler;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.PreDestroy;
@@ -853,16 +853,11 @@ public abstract class TavernaServer implements TavernaServerSOAP,
 	@CallCounted
 	@PerfLogged
 	@RolesAllowed(USER)
-	public byte[] getRunDirectoryAsZip(String runName, DirEntry d)
+	public DataHandler getRunDirectoryAsZip(String runName, DirEntry d)
 			throws UnknownRunException, FilesystemAccessException,
 			NoDirectoryEntryException {
-		try {
-			return toByteArray(fileUtils.getDirectory(support.getRun(runName),
-					convert(d)).getContentsAsZip());
-		} catch (IOException e) {
-			throw new FilesystemAccessException("problem serializing ZIP data",
-					e);
-		}
+		return new ZippedDirectory(fileUtils.getDirectory(
+				support.getRun(runName), convert(d))).fileData;
 	}
 
 	@Override
@@ -920,11 +915,13 @@ public abstract class TavernaServer implements TavernaServerSOAP,
 	@CallCounted
 	@PerfLogged
 	@RolesAllowed(USER)
-	public byte[] getRunFileContents(String runName, DirEntry d)
+	public DataHandler getRunFileContents(String runName, DirEntry d)
 			throws UnknownRunException, FilesystemAccessException,
 			NoDirectoryEntryException {
 		File f = fileUtils.getFile(support.getRun(runName), convert(d));
-		return f.getContents(0, -1);
+		FileContents fc = new FileContents();
+		fc.setFile(f, support.getEstimatedContentType(f));
+		return fc.fileData;
 	}
 
 	@Override
@@ -932,11 +929,13 @@ public abstract class TavernaServer implements TavernaServerSOAP,
 	@PerfLogged
 	@RolesAllowed(USER)
 	public void setRunFileContents(String runName, DirEntry d,
-			byte[] newContents) throws UnknownRunException, NoUpdateException,
-			FilesystemAccessException, NoDirectoryEntryException {
+			DataHandler newContents) throws UnknownRunException,
+			NoUpdateException, FilesystemAccessException,
+			NoDirectoryEntryException {
 		TavernaRun w = support.getRun(runName);
 		support.permitUpdate(w);
-		fileUtils.getFile(w, convert(d)).setContents(newContents);
+		File f = fileUtils.getFile(w, convert(d));
+		support.copyDataToFile(newContents, f);
 	}
 
 	@Override
@@ -962,7 +961,6 @@ public abstract class TavernaServer implements TavernaServerSOAP,
 		TavernaRun run = support.getRun(runName);
 		support.permitUpdate(run);
 		File f = fileUtils.getFile(run, newContents.name);
-		f.setContents(new byte[0]);
 		support.copyDataToFile(newContents.fileData, f);
 	}
 
@@ -118,8 +118,6 @@ public class TavernaServerSupport {
 	private Map<String, String> contentTypeMap;
 	/** Number of bytes to read when guessing the MIME type. */
 	private static final int SAMPLE_SIZE = 1024;
-	/** Number of bytes to ask for when copying a stream to a file. */
-	private static final int TRANSFER_SIZE = 32768;
 
 	@PreDestroy
 	void closeLog() {
@@ -139,7 +137,7 @@ public class TavernaServerSupport {
 	 */
 	@ManagedMetric(description = "Current number of runs.", metricType = GAUGE, category = "utilization")
 	public int getCurrentRunCount() {
-		return runStore.listRuns(null, policy).size();
+		return runStore.countRuns();
 	}
 
 	/**
@@ -857,30 +855,13 @@ public class TavernaServerSupport {
 
 	public void copyStreamToFile(InputStream stream, File file)
 			throws FilesystemAccessException {
-		String name = file.getFullName();
-		long total = 0;
 		try {
-			byte[] buffer = new byte[TRANSFER_SIZE];
-			while (true) {
-				int len = stream.read(buffer);
-				if (len < 0)
-					break;
-				total += len;
-				if (log.isDebugEnabled())
-					log.debug("read " + len
-							+ " bytes from source stream (total: " + total
-							+ ") bound for " + name);
-				if (len == buffer.length)
-					file.appendContents(buffer);
-				else {
-					byte[] newBuf = new byte[len];
-					System.arraycopy(buffer, 0, newBuf, 0, len);
-					file.appendContents(newBuf);
-				}
-			}
+			file.setContents(stream);
 		} catch (IOException exn) {
 			throw new FilesystemAccessException("failed to transfer bytes", exn);
 		}
+		if (log.isDebugEnabled())
+			log.debug("copied source stream to " + file.getFullName());
 	}
 
 	public boolean getAllowStartWorkflowRuns() {
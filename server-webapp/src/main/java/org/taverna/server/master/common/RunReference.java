@@ -43,6 +43,12 @@ public class RunReference {
 	 */
 	@XmlValue
 	public String name;
+	/**
+	 * Whether the back end holding the run is not responding; absent if it
+	 * is working normally.
+	 */
+	@XmlAttribute(namespace = SERVER)
+	public Boolean degraded;
 
 	/**
 	 * Make a blank run reference.
@@ -74,6 +74,12 @@ public interface Default {
 	 */
 	static final int RUN_OPERATING_LIMIT = 10;
 
+	/**
+	 * How many threads compress the contents of a ZIP archive of a run
+	 * directory.
+	 */
+	static final int ARCHIVE_THREADS = 1;
+
 	/**
 	 * What fields of a certificate we look at when understanding who it is
 	 * talking about, in the order that we look.
@@ -130,4 +130,16 @@ public interface ConfigurableRunFactory extends RunFactory {
 	boolean getGenerateProvenance();
 
 	void setGenerateProvenance(boolean generateProvenance);
+
+	/** How many threads compress ZIP archives of run directories? Getter */
+	int getArchiveThreads();
+
+	/** How many threads compress ZIP archives of run directories? Setter */
+	void setArchiveThreads(int archiveThreads);
+
+	/** How much are ZIP archives of run directories compressed? Getter */
+	int getArchiveCompressionLevel();
+
+	/** How much are ZIP archives of run directories compressed? Setter */
+	void setArchiveCompressionLevel(int archiveCompressionLevel);
 }
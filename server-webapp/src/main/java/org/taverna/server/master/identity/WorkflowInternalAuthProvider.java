@@ -43,7 +43,7 @@ import org.taverna.server.master.interfaces.LocalIdentityMapper;
 import org.taverna.server.master.interfaces.RunStore;
 import org.taverna.server.master.utils.CallTimeLogger.PerfLogged;
 import org.taverna.server.master.utils.UsernamePrincipal;
-import org.taverna.server.master.worker.RunDatabaseDAO;
+import org.taverna.server.master.worker.RunRecordStore;
 
 /**
  * A special authentication provider that allows a workflow to authenticate to
@@ -57,11 +57,11 @@ public class WorkflowInternalAuthProvider extends
 	private static Log log = LogFactory.getLog("Taverna.Server.UserDB");
 	private static final boolean logDecisions = true;
 	public static final String PREFIX = "wfrun_";
-	private RunDatabaseDAO dao;
+	private RunRecordStore dao;
 	private Map<String, String> cache;
 
 	@Required
-	public void setDao(RunDatabaseDAO dao) {
+	public void setDao(RunRecordStore dao) {
 		this.dao = dao;
 	}
 
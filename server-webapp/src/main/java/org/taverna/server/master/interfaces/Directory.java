@@ -5,11 +5,13 @@
  */
 package org.taverna.server.master.interfaces;
 
-import java.io.PipedInputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
 import java.security.Principal;
 import java.util.Collection;
 
 import org.taverna.server.master.exceptions.FilesystemAccessException;
+import org.taverna.server.master.exceptions.NoDirectoryEntryException;
 
 /**
  * Represents a directory that is the working directory of a workflow run, or a
@@ -26,6 +28,22 @@ public interface Directory extends DirectoryEntry {
 	 */
 	Collection<DirectoryEntry> getContents() throws FilesystemAccessException;
 
+	/**
+	 * Look up an entry in this directory or one of its sub-directories.
+	 * 
+	 * @param path
+	 *            The path to the entry relative to this directory, with its
+	 *            parts separated by "<tt>/</tt>".
+	 * @return The entry.
+	 * @throws NoDirectoryEntryException
+	 *             If there is no such entry.
+	 * @throws FilesystemAccessException
+	 *             If the path goes through a file, or things otherwise go
+	 *             wrong.
+	 */
+	DirectoryEntry resolve(String path) throws FilesystemAccessException,
+			NoDirectoryEntryException;
+
 	/**
 	 * @return A list of the contents of the directory, in guaranteed date
 	 *         order.
@@ -73,10 +91,17 @@ public interface Directory extends DirectoryEntry {
 			throws FilesystemAccessException;
 
 	/**
-	 * A simple pipe that produces the zipped contents of a directory.
+	 * A stream that produces the zipped contents of a directory.
 	 * 
 	 * @author Donal Fellows
 	 */
-	public static class ZipStream extends PipedInputStream {
+	public static class ZipStream extends FilterInputStream {
+		/**
+		 * @param in
+		 *            Where the zipped contents come from.
+		 */
+		public ZipStream(InputStream in) {
+			super(in);
+		}
 	}
 }
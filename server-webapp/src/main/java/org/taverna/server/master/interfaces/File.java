@@ -5,6 +5,10 @@
  */
 package org.taverna.server.master.interfaces;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 import org.taverna.server.master.exceptions.FilesystemAccessException;
 
 /**
@@ -26,9 +30,31 @@ public interface File extends DirectoryEntry {
 	 * @throws FilesystemAccessException
 	 *             If the read of the file goes wrong.
 	 */
-	public byte[] getContents(int offset, int length)
+	public byte[] getContents(long offset, int length)
 			throws FilesystemAccessException;
 
+	/**
+	 * Copy a section of the file to a stream. This is much more efficient
+	 * than repeated calls to {@link #getContents(long, int)} when much of the
+	 * file is to be read.
+	 * 
+	 * @param out
+	 *            Where to write the contents of the file.
+	 * @param offset
+	 *            Where in the file to start reading.
+	 * @param length
+	 *            The length of file to read, or -1 to read to the end of the
+	 *            file.
+	 * @param chunkSize
+	 *            How much to read from the file at once.
+	 * @throws FilesystemAccessException
+	 *             If the read of the file goes wrong.
+	 * @throws IOException
+	 *             If the write to the stream goes wrong.
+	 */
+	public void writeContentsTo(OutputStream out, long offset, long length,
+			int chunkSize) throws FilesystemAccessException, IOException;
+
 	/**
 	 * Write the data to the file, totally replacing what was there before.
 	 * 
@@ -39,6 +65,25 @@ public interface File extends DirectoryEntry {
 	 */
 	public void setContents(byte[] data) throws FilesystemAccessException;
 
+	/**
+	 * Write the contents of a stream to the file, totally replacing what was
+	 * there before. This is much more efficient than a call to
+	 * {@link #setContents(byte[])} followed by repeated calls to
+	 * {@link #appendContents(byte[])} when there is much data to write, and
+	 * where the back end supports it, the file is only changed if all the
+	 * data is written successfully.
+	 * 
+	 * @param data
+	 *            Where to read the new contents of the file from. Not closed
+	 *            by this method.
+	 * @throws FilesystemAccessException
+	 *             If the write to the file goes wrong.
+	 * @throws IOException
+	 *             If the read from the stream goes wrong.
+	 */
+	public void setContents(InputStream data)
+			throws FilesystemAccessException, IOException;
+
 	/**
 	 * Append the data to the file.
 	 * 
@@ -60,6 +60,14 @@ public interface RunStore {
 	 */
 	Map<String, TavernaRun> listRuns(UsernamePrincipal user, Policy p);
 
+	/**
+	 * Count the runs in the store. Should be cheap; in particular, it should
+	 * not need to look at the runs themselves.
+	 * 
+	 * @return The number of runs.
+	 */
+	int countRuns();
+
 	/**
 	 * Adds a workflow instance run to the store. Note that this operation is
 	 * <i>not</i> expected to be security-checked; that is the callers'
@@ -206,6 +206,13 @@ public interface TavernaRun extends Serializable {
 	 */
 	void ping() throws UnknownRunException;
 
+	/**
+	 * @return Whether the back end holding this run is known to not be
+	 *         responding, so that most operations on the run will currently
+	 *         fail. Must be cheap to determine.
+	 */
+	boolean isDegraded();
+
 	/**
 	 * @return whether the run generates provenance data
 	 */
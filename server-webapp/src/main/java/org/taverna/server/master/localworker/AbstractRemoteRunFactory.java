@@ -12,6 +12,7 @@ import static java.rmi.registry.LocateRegistry.createRegistry;
 import static java.rmi.registry.LocateRegistry.getRegistry;
 import static java.rmi.registry.Registry.REGISTRY_PORT;
 import static java.util.UUID.randomUUID;
+import static org.taverna.server.localworker.remote.RemoteStatus.Finished;
 import static org.taverna.server.master.TavernaServer.JMX_ROOT;
 import static org.taverna.server.master.rest.TavernaServerRunREST.PathNames.DIR;
 
@@ -21,12 +22,18 @@ import java.net.URL;
 import java.rmi.MarshalledObject;
 import java.rmi.RMISecurityManager;
 import java.rmi.RemoteException;
+import java.rmi.UnmarshalException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import javax.annotation.Resource;
@@ -39,7 +46,10 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.task.TaskExecutor;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.taverna.server.localworker.remote.RemoteRunFactory;
+import org.taverna.server.localworker.remote.RemoteRunStatus;
 import org.taverna.server.localworker.remote.RemoteSingleRun;
+import org.taverna.server.localworker.remote.RemoteStatus;
+import org.taverna.server.localworker.server.RunStatusListener;
 import org.taverna.server.localworker.server.UsageRecordReceiver;
 import org.taverna.server.master.common.Workflow;
 import org.taverna.server.master.exceptions.NoCreateException;
@@ -57,6 +67,7 @@ import org.taverna.server.master.utils.UsernamePrincipal;
 import org.taverna.server.master.worker.FactoryBean;
 import org.taverna.server.master.worker.RemoteRunDelegate;
 import org.taverna.server.master.worker.RunFactoryConfiguration;
+import org.taverna.server.master.worker.WorkerCalls;
 
 /**
  * Bridge to remote runs via RMI.
@@ -138,6 +149,22 @@ public abstract class AbstractRemoteRunFactory extends RunFactoryConfiguration
 			factory.setInteractionServiceDetails(interhost, interport, webdav,
 					feed);
 		}
+		RunStatusListener listener = getStatusListener();
+		if (listener != null)
+			factory.setStatusListener(listener);
+		factory.setArchiveCompression(state.getArchiveThreads(),
+				state.getArchiveCompressionLevel());
+	}
+
+	@Override
+	protected void reconfigureArchiving() {
+		for (RemoteRunFactory rrf : getLiveFactories().values())
+			try {
+				rrf.setArchiveCompression(state.getArchiveThreads(),
+						state.getArchiveCompressionLevel());
+			} catch (RemoteException e) {
+				log.warn("failed to configure archiving in factory", e);
+			}
 	}
 
 	private Registry makeRegistry(int port) throws RemoteException {
@@ -240,6 +267,13 @@ public abstract class AbstractRemoteRunFactory extends RunFactoryConfiguration
 	UsageRecordRecorder usageRecordSink;
 	TaskExecutor urProcessorPool;
 	private EventDAO masterEventFeed;
+	private RunStatusListener statusListener;
+	/**
+	 * The runs that workers have reported as finished but which have not yet
+	 * been processed. Also guards {@link #finishPassScheduled}.
+	 */
+	private final Set<String> reportedFinished = new LinkedHashSet<>();
+	private boolean finishPassScheduled;
 
 	@Autowired(required = true)
 	void setSecurityContextFactory(SecurityContextFactory factory) {
@@ -365,6 +399,50 @@ public abstract class AbstractRemoteRunFactory extends RunFactoryConfiguration
 	protected abstract RemoteSingleRun getRealRun(UsernamePrincipal creator,
 			Workflow workflow, UUID id) throws Exception;
 
+	/**
+	 * Gets the connections to the factory subprocesses that may have created
+	 * runs.
+	 * 
+	 * @return The live factories, keyed by {@linkplain #getWorkerProcessKey
+	 *         worker process key}; may be empty.
+	 */
+	protected abstract Map<String, RemoteRunFactory> getLiveFactories();
+
+	@Override
+	public Map<String, RemoteRunStatus> getRunStatuses(Collection<String> ids) {
+		Map<String, RemoteRunStatus> result = new HashMap<>();
+		if (ids.isEmpty())
+			return result;
+		List<String> idList = new ArrayList<>(ids);
+		WorkerCalls calls = runDB.getWorkerCalls();
+		for (Map.Entry<String, RemoteRunFactory> f : getLiveFactories()
+				.entrySet()) {
+			String key = f.getKey();
+			RemoteRunFactory rrf = f.getValue();
+			if (calls != null)
+				rrf = calls.wrap(RemoteRunFactory.class, key, key, rrf);
+			try {
+				result.putAll(rrf.getRunStatuses(idList));
+			} catch (UnmarshalException e) {
+				// Factory predates bulk status queries
+				return null;
+			} catch (RemoteException e) {
+				log.warn("failed to get bulk run status from factory", e);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * By default, all runs are held by a single factory process.
+	 */
+	@Override
+	public String getWorkerProcessKey(String owner) {
+		return "factory";
+	}
+
 	/**
 	 * How to convert a wrapped workflow into XML.
 	 * 
@@ -403,12 +481,6 @@ public abstract class AbstractRemoteRunFactory extends RunFactoryConfiguration
 								usageRecordSink.storeUsageRecord(usageRecord);
 							}
 						});
-					urProcessorPool.execute(new Runnable() {
-						@Override
-						public void run() {
-							runDB.checkForFinishNow();
-						}
-					});
 				}
 			}
 			return new URReceiver();
@@ -418,6 +490,80 @@ public abstract class AbstractRemoteRunFactory extends RunFactoryConfiguration
 		}
 	}
 
+	/**
+	 * Get the Remote object that workers use to report that their runs have
+	 * changed state. There is only one, shared by all factories.
+	 * 
+	 * @return The listener, or <tt>null</tt> if the construction fails (in
+	 *         which case completion is only detected by polling).
+	 */
+	protected synchronized RunStatusListener getStatusListener() {
+		if (statusListener == null)
+			try {
+				@SuppressWarnings("serial")
+				class StatusReceiver extends UnicastRemoteObject implements
+						RunStatusListener {
+					public StatusReceiver() throws RemoteException {
+						super();
+					}
+
+					@Override
+					public void statusChanged(String runId, RemoteStatus status) {
+						runDB.runStatusChanged(runId);
+						if (status == Finished)
+							runReportedFinished(runId);
+					}
+				}
+				statusListener = new StatusReceiver();
+			} catch (RemoteException e) {
+				log.warn("failed to build run status listener", e);
+			}
+		return statusListener;
+	}
+
+	/**
+	 * Note that a worker has reported a run as finished. This is cheap; the
+	 * actual processing (checking the run, marking it as finished in the
+	 * database and sending notifications) is done later in a single pass over
+	 * all the runs that have been reported by then.
+	 * 
+	 * @param id
+	 *            The ID of the run.
+	 */
+	void runReportedFinished(String id) {
+		synchronized (reportedFinished) {
+			reportedFinished.add(id);
+			if (finishPassScheduled)
+				return;
+			finishPassScheduled = true;
+		}
+		Runnable pass = new Runnable() {
+			@Override
+			public void run() {
+				List<String> ids;
+				synchronized (reportedFinished) {
+					ids = new ArrayList<>(reportedFinished);
+					reportedFinished.clear();
+					finishPassScheduled = false;
+				}
+				try {
+					runDB.checkForFinish(ids);
+				} catch (RuntimeException e) {
+					log.warn("failed to process finished runs", e);
+				}
+			}
+		};
+		try {
+			if (urProcessorPool != null) {
+				urProcessorPool.execute(pass);
+				return;
+			}
+		} catch (RuntimeException e) {
+			log.warn("failed to schedule processing of finished runs", e);
+		}
+		pass.run();
+	}
+
 	@Override
 	public EventDAO getMasterEventFeed() {
 		return masterEventFeed;
@@ -9,6 +9,8 @@ import static java.lang.System.getProperty;
 import static java.lang.Thread.sleep;
 import static java.util.Arrays.asList;
 import static java.util.Calendar.SECOND;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonMap;
 import static java.util.UUID.randomUUID;
 import static org.apache.commons.logging.LogFactory.getLog;
 import static org.taverna.server.master.TavernaServer.JMX_ROOT;
@@ -22,6 +24,7 @@ import java.rmi.ConnectIOException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.util.Calendar;
+import java.util.Map;
 import java.util.UUID;
 
 import javax.annotation.Nonnull;
@@ -50,7 +53,7 @@ public class ForkRunFactory extends AbstractRemoteRunFactory implements
 	private Integer lastExitCode;
 	private RemoteRunFactory factory;
 	private Process factoryProcess;
-	private String factoryProcessName;
+	private volatile String factoryProcessName;
 
 	/**
 	 * Create a factory for remote runs that works by forking off a subprocess.
@@ -373,6 +376,19 @@ public class ForkRunFactory extends AbstractRemoteRunFactory implements
 				+ factoryProcessName + "despite attempting restart");
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * All runs are held by the one factory subprocess, which is identified by
+	 * the name it is registered as. A replacement subprocess has a new name,
+	 * so it does not inherit the health of the one it replaces.
+	 */
+	@Override
+	public String getWorkerProcessKey(String owner) {
+		String name = factoryProcessName;
+		return name == null ? super.getWorkerProcessKey(owner) : name;
+	}
+
 	@Override
 	public String[] getFactoryProcessMapping() {
 		return new String[0];
@@ -382,4 +398,12 @@ public class ForkRunFactory extends AbstractRemoteRunFactory implements
 	protected int operatingCount() throws Exception {
 		return getFactory().countOperatingRuns();
 	}
+
+	@Override
+	protected Map<String, RemoteRunFactory> getLiveFactories() {
+		RemoteRunFactory rrf = factory;
+		if (rrf == null)
+			return emptyMap();
+		return singletonMap(getWorkerProcessKey(null), rrf);
+	}
 }
@@ -326,6 +326,19 @@ public class IdAwareForkRunFactory extends AbstractRemoteRunFactory implements
 		return "<PROPERTY-NOT-SUPPORTED>";
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * There is a factory process for each local user account that runs are
+	 * executed as.
+	 */
+	@Override
+	public String getWorkerProcessKey(String owner) {
+		String username = mapper == null ? null : mapper
+				.getUsernameForPrincipal(new UsernamePrincipal(owner));
+		return username == null ? owner : username;
+	}
+
 	@Override
 	protected int operatingCount() throws Exception {
 		int total = 0;
@@ -333,6 +346,11 @@ public class IdAwareForkRunFactory extends AbstractRemoteRunFactory implements
 			total += rrf.countOperatingRuns();
 		return total;
 	}
+
+	@Override
+	protected Map<String, RemoteRunFactory> getLiveFactories() {
+		return new HashMap<>(factory);
+	}
 }
 
 abstract class StreamLogger {
@@ -11,6 +11,7 @@ import static java.rmi.registry.Registry.REGISTRY_PORT;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.unmodifiableList;
+import static org.taverna.server.master.defaults.Default.ARCHIVE_THREADS;
 import static org.taverna.server.master.defaults.Default.EXTRA_ARGUMENTS;
 import static org.taverna.server.master.defaults.Default.PASSWORD_FILE;
 import static org.taverna.server.master.defaults.Default.REGISTRY_JAR;
@@ -384,6 +385,41 @@ public class LocalWorkerState extends JDOSupport<PersistedState> implements
 			self.store();
 	}
 
+	/** How many threads compress the contents of ZIP archives. */
+	int archiveThreads;
+
+	@Override
+	public int getArchiveThreads() {
+		return archiveThreads < 1 ? ARCHIVE_THREADS : archiveThreads;
+	}
+
+	@Override
+	public void setArchiveThreads(int archiveThreads) {
+		this.archiveThreads = archiveThreads;
+		if (loadedState)
+			self.store();
+	}
+
+	/** The default level of compression of ZIP archives. */
+	public static final int DEFAULT_ARCHIVE_COMPRESSION_LEVEL = -1;
+	private Integer archiveCompressionLevel;
+
+	@Override
+	public int getArchiveCompressionLevel() {
+		Integer l = archiveCompressionLevel;
+		return l == null ? DEFAULT_ARCHIVE_COMPRESSION_LEVEL : (int) l;
+	}
+
+	@Override
+	public void setArchiveCompressionLevel(int archiveCompressionLevel) {
+		if (archiveCompressionLevel < -1 || archiveCompressionLevel > 9)
+			throw new IllegalArgumentException(
+					"compression level must be from -1 to 9");
+		this.archiveCompressionLevel = archiveCompressionLevel;
+		if (loadedState)
+			self.store();
+	}
+
 	// --------------------------------------------------------------
 
 	private boolean loadedState;
@@ -417,6 +453,8 @@ public class LocalWorkerState extends JDOSupport<PersistedState> implements
 		permittedWorkflows = (URI[]) pwu.toArray(new URI[pwu.size()]);
 		registryJar = state.getRegistryJar();
 		generateProvenance = state.getGenerateProvenance();
+		archiveThreads = state.getArchiveThreads();
+		archiveCompressionLevel = state.getArchiveCompressionLevel();
 
 		loadedState = true;
 	}
@@ -448,6 +486,9 @@ public class LocalWorkerState extends JDOSupport<PersistedState> implements
 		state.setRegistryJar(registryJar);
 		if (generateProvenance != null)
 			state.setGenerateProvenance(generateProvenance);
+		state.setArchiveThreads(archiveThreads);
+		if (archiveCompressionLevel != null)
+			state.setArchiveCompressionLevel(archiveCompressionLevel);
 
 		loadedState = true;
 	}
@@ -75,6 +75,10 @@ class PersistedState implements WorkerModel {
 	private String[] permittedWorkflows;
 	@Persistent
 	private int generateProvenance;
+	@Persistent
+	private int archiveThreads;
+	@Persistent
+	private Integer archiveCompressionLevel;
 
 	@Override
 	public void setDefaultLifetime(int defaultLifetime) {
@@ -254,4 +258,25 @@ class PersistedState implements WorkerModel {
 	public void setGenerateProvenance(boolean generateProvenance) {
 		this.generateProvenance = (generateProvenance ? 1 : 0);
 	}
+
+	@Override
+	public int getArchiveThreads() {
+		return archiveThreads;
+	}
+
+	@Override
+	public void setArchiveThreads(int archiveThreads) {
+		this.archiveThreads = archiveThreads;
+	}
+
+	@Override
+	public int getArchiveCompressionLevel() {
+		Integer level = archiveCompressionLevel;
+		return level == null ? -1 : level;
+	}
+
+	@Override
+	public void setArchiveCompressionLevel(int archiveCompressionLevel) {
+		this.archiveCompressionLevel = archiveCompressionLevel;
+	}
 }
\ No newline at end of file
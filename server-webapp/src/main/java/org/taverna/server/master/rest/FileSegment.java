@@ -5,8 +5,14 @@
  */
 package org.taverna.server.master.rest;
 
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.util.Collections.unmodifiableList;
+import static java.util.UUID.randomUUID;
 import static javax.ws.rs.core.Response.ok;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -17,21 +23,63 @@ import org.taverna.server.master.exceptions.FilesystemAccessException;
 import org.taverna.server.master.interfaces.File;
 
 /**
- * Representation of a segment of a file to be read by JAX-RS.
+ * Representation of one or more segments of a file to be read by JAX-RS. If
+ * there is more than one segment, they are delivered as a
+ * <tt>multipart/byteranges</tt> document.
  * 
  * @author Donal Fellows
  */
 public class FileSegment {
+	/** The most segments that may be asked for in one request. */
+	private static final int MAX_RANGES = 64;
+	private static final Pattern RANGES = Pattern
+			.compile("^\\s*bytes\\s*=(.*)$");
+	private static final Pattern RANGE = Pattern
+			.compile("^\\s*(\\d*)\\s*-\\s*(\\d*)\\s*$");
 	/** The file to read a segment of. */
 	public final File file;
-	/** The offset of the first byte of the segment to read. */
-	public Integer from;
-	/** The offset of the first byte after the segment to read. */
-	public Integer to;
+	/** The length of the file. */
+	public final long size;
+	/**
+	 * The segments to read, or <tt>null</tt> if the whole file is to be read.
+	 */
+	public final List<Range> ranges;
+	/** The type of the file's contents. */
+	public MediaType type;
+	/** The boundary between the parts of a multi-segment response. */
+	public final String boundary = randomUUID().toString();
 
 	/**
-	 * Parse the HTTP Range header and determine what exact range of the file to
-	 * read.
+	 * A single range of bytes in a file.
+	 * 
+	 * @author Donal Fellows
+	 */
+	public static class Range {
+		/** The offset of the first byte of the segment to read. */
+		public final long from;
+		/** The offset of the first byte after the segment to read. */
+		public final long to;
+
+		Range(long from, long to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * @param size
+		 *            The length of the whole file.
+		 * @return The value of the <tt>Content-Range</tt> header describing
+		 *         this segment.
+		 */
+		public String contentRange(long size) {
+			return "bytes " + from + "-" + (to - 1) + "/" + size;
+		}
+	}
+
+	/**
+	 * Parse the HTTP Range header and determine what exact ranges of the file
+	 * to read. Ranges that lie wholly beyond the end of the file are dropped;
+	 * if the header can't be understood, the whole file is to be read.
 	 * 
 	 * @param f
 	 *            The file this refers to
@@ -43,22 +91,47 @@ public class FileSegment {
 	 */
 	public FileSegment(File f, String range) throws FilesystemAccessException {
 		file = f;
-		Matcher m = Pattern.compile("^\\s*bytes=(\\d*)-(\\d*)\\s*$").matcher(
-				range);
-		if (m.matches()) {
-			if (!m.group(1).isEmpty())
-				from = Integer.valueOf(m.group(1));
-			if (!m.group(2).isEmpty())
-				to = Integer.valueOf(m.group(2)) + 1;
-			int size = (int) f.getSize();
-			if (from == null) {
-				from = size - to;
-				to = size;
-			} else if (to == null)
-				to = size;
-			else if (to > size)
-				to = size;
+		size = f.getSize();
+		ranges = parse(range, size);
+	}
+
+	private static List<Range> parse(String header, long size) {
+		Matcher m = RANGES.matcher(header);
+		if (!m.matches())
+			return null;
+		String[] specs = m.group(1).split(",");
+		if (specs.length > MAX_RANGES)
+			return null;
+		List<Range> result = new ArrayList<>();
+		try {
+			for (String spec : specs) {
+				m = RANGE.matcher(spec);
+				if (!m.matches())
+					return null;
+				String first = m.group(1), last = m.group(2);
+				long from, to;
+				if (first.isEmpty()) {
+					if (last.isEmpty())
+						return null;
+					from = max(size - Long.parseLong(last), 0);
+					to = size;
+				} else {
+					from = Long.parseLong(first);
+					to = size;
+					if (!last.isEmpty()) {
+						if (Long.parseLong(last) < from)
+							return null;
+						to = min(Long.parseLong(last) + 1, size);
+					}
+				}
+				if (from < to)
+					result.add(new Range(from, to));
+			}
+		} catch (NumberFormatException e) {
+			// Too large to be a sensible offset
+			return null;
 		}
+		return unmodifiableList(result);
 	}
 
 	/**
@@ -69,10 +142,17 @@ public class FileSegment {
 	 * @return A JAX-RS response.
 	 */
 	public Response toResponse(MediaType type) {
-		if (from == null && to == null)
+		this.type = type;
+		if (ranges == null)
 			return ok(file).type(type).build();
-		if (from >= to)
-			return ok("Requested range not satisfiable").status(416).build();
-		return ok(this).status(206).type(type).build();
+		if (ranges.isEmpty())
+			return ok("Requested range not satisfiable").status(416)
+					.header("Content-Range", "bytes */" + size).build();
+		if (ranges.size() == 1)
+			return ok(this).status(206).type(type)
+					.header("Content-Range", ranges.get(0).contentRange(size))
+					.build();
+		return ok(this).status(206)
+				.type("multipart/byteranges; boundary=" + boundary).build();
 	}
-}
\ No newline at end of file
+}
@@ -523,8 +523,12 @@ public interface TavernaServerREST {
 		 */
 		public RunList(Map<String, TavernaRun> runs, UriBuilder ub) {
 			run = new ArrayList<>(runs.size());
-			for (String name : runs.keySet())
-				run.add(new RunReference(name, ub));
+			for (Map.Entry<String, TavernaRun> entry : runs.entrySet()) {
+				RunReference ref = new RunReference(entry.getKey(), ub);
+				if (entry.getValue().isDegraded())
+					ref.degraded = true;
+				run.add(ref);
+			}
 		}
 	}
 
@@ -47,13 +47,7 @@ public class FileConcatenationHandler implements
 			OutputStream entityStream) throws IOException {
 		for (File f : fc)
 			try {
-				byte[] buffer;
-				for (int off = 0; true ; off += buffer.length) {
-					buffer = f.getContents(off, maxChunkSize);
-					if (buffer == null || buffer.length == 0)
-						break;
-					entityStream.write(buffer);
-				}
+				f.writeContentsTo(entityStream, 0, -1, maxChunkSize);
 			} catch (FilesystemAccessException e) {
 				// Ignore/skip to next file
 			}
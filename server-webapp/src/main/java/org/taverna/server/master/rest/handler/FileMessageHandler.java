@@ -63,14 +63,7 @@ public class FileMessageHandler implements MessageBodyWriter<File> {
 			OutputStream entityStream) throws IOException,
 			WebApplicationException {
 		try {
-			int off = 0;
-			while (true) {
-				byte[] buffer = t.getContents(off, maxChunkSize);
-				if (buffer == null || buffer.length == 0)
-					break;
-				entityStream.write(buffer);
-				off += buffer.length;
-			}
+			t.writeContentsTo(entityStream, 0, -1, maxChunkSize);
 		} catch (FilesystemAccessException e) {
 			throw new IOException("problem when reading file", e);
 		}
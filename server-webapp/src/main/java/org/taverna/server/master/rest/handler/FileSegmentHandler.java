@@ -5,8 +5,6 @@
  */
 package org.taverna.server.master.rest.handler;
 
-import static java.lang.Math.min;
-
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.annotation.Annotation;
@@ -20,14 +18,17 @@ import javax.ws.rs.ext.Provider;
 
 import org.taverna.server.master.exceptions.FilesystemAccessException;
 import org.taverna.server.master.rest.FileSegment;
+import org.taverna.server.master.rest.FileSegment.Range;
 
 /**
- * How to write out a segment of a file with JAX-RS.
+ * How to write out a segment of a file with JAX-RS. Several segments are
+ * written as a <tt>multipart/byteranges</tt> document.
  * 
  * @author Donal Fellows
  */
 @Provider
 public class FileSegmentHandler implements MessageBodyWriter<FileSegment> {
+	private static final String CRLF = "\r\n";
 	/** How much to pull from the worker in one read. */
 	private int maxChunkSize;
 
@@ -39,6 +40,11 @@ public class FileSegmentHandler implements MessageBodyWriter<FileSegment> {
 		this.maxChunkSize = maxChunkSize;
 	}
 
+	private static void write(OutputStream out, String header)
+			throws IOException {
+		out.write(header.getBytes("US-ASCII"));
+	}
+
 	@Override
 	public boolean isWriteable(Class<?> type, Type genericType,
 			Annotation[] annotations, MediaType mediaType) {
@@ -48,7 +54,9 @@ public class FileSegmentHandler implements MessageBodyWriter<FileSegment> {
 	@Override
 	public long getSize(FileSegment t, Class<?> type, Type genericType,
 			Annotation[] annotations, MediaType mediaType) {
-		return t.to - t.from;
+		if (t.ranges.size() != 1)
+			return -1;
+		return t.ranges.get(0).to - t.ranges.get(0).from;
 	}
 
 	@Override
@@ -58,15 +66,22 @@ public class FileSegmentHandler implements MessageBodyWriter<FileSegment> {
 			OutputStream entityStream) throws IOException,
 			WebApplicationException {
 		try {
-			int off = t.from;
-			while (off < t.to) {
-				byte[] buffer = t.file.getContents(off,
-						min(maxChunkSize, t.to - off));
-				if (buffer == null || buffer.length == 0)
-					break;
-				entityStream.write(buffer);
-				off += buffer.length;
+			if (t.ranges.size() == 1) {
+				Range r = t.ranges.get(0);
+				t.file.writeContentsTo(entityStream, r.from, r.to - r.from,
+						maxChunkSize);
+				return;
+			}
+			for (Range r : t.ranges) {
+				write(entityStream, "--" + t.boundary + CRLF);
+				write(entityStream, "Content-Type: " + t.type + CRLF);
+				write(entityStream, "Content-Range: " + r.contentRange(t.size)
+						+ CRLF + CRLF);
+				t.file.writeContentsTo(entityStream, r.from, r.to - r.from,
+						maxChunkSize);
+				write(entityStream, CRLF);
 			}
+			write(entityStream, "--" + t.boundary + "--" + CRLF);
 		} catch (FilesystemAccessException e) {
 			throw new IOException("problem when reading file", e);
 		}
@@ -6,12 +6,16 @@
 package org.taverna.server.master.rest.handler;
 
 import static javax.ws.rs.core.MediaType.TEXT_PLAIN_TYPE;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
 import static javax.ws.rs.core.Response.status;
 import static org.taverna.server.master.TavernaServer.log;
 
 import javax.ws.rs.core.Response;
 
 import org.taverna.server.master.api.ManagementModel;
+import org.taverna.server.master.worker.WorkerBusyException;
+import org.taverna.server.master.worker.WorkerTimeoutException;
+import org.taverna.server.master.worker.WorkerUnavailableException;
 
 /**
  * Base class for handlers that grants Spring-enabled access to the management
@@ -30,6 +34,22 @@ public class HandlerCore {
 		this.managementModel = managementModel;
 	}
 
+	/**
+	 * Failures caused by a back end not responding (in time), or by too many
+	 * calls to back ends waiting, are reported as the service being
+	 * unavailable, whatever they are otherwise reported as; the client may
+	 * sensibly try again later.
+	 */
+	private static Response.Status adjust(Response.Status status,
+			Throwable exception) {
+		for (Throwable t = exception; t != null; t = t.getCause())
+			if (t instanceof WorkerTimeoutException
+					|| t instanceof WorkerUnavailableException
+					|| t instanceof WorkerBusyException)
+				return SERVICE_UNAVAILABLE;
+		return status;
+	}
+
 	/**
 	 * Simplified interface for building responses.
 	 * 
@@ -40,6 +60,7 @@ public class HandlerCore {
 	 * @return The build response.
 	 */
 	protected Response respond(Response.Status status, Exception exception) {
+		status = adjust(status, exception);
 		if (managementModel.getLogOutgoingExceptions()
 				|| status.getStatusCode() >= 500)
 			log.info("converting exception to response", exception);
@@ -60,6 +81,7 @@ public class HandlerCore {
 	 */
 	protected Response respond(Response.Status status, String partialMessage,
 			Exception exception) {
+		status = adjust(status, exception);
 		if (managementModel.getLogOutgoingExceptions()
 				|| status.getStatusCode() >= 500)
 			log.info("converting exception to response", exception);
@@ -8,6 +8,7 @@ package org.taverna.server.master.soap;
 import static java.lang.Math.min;
 import static java.lang.System.arraycopy;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -48,7 +49,8 @@ public class FileContents {
 	}
 
 	/**
-	 * Write the content described by this class to the specified file.
+	 * Write the content described by this class to the specified file,
+	 * replacing what was there before.
 	 * @param file The file to write to; must already exist.
 	 * @throws IOException
 	 * @throws FilesystemAccessException
@@ -56,30 +58,25 @@ public class FileContents {
 	public void writeToFile(File file) throws IOException,
 			FilesystemAccessException {
 		try (InputStream is = fileData.getInputStream()) {
-			byte[] buf = new byte[65536];
-			file.setContents(new byte[0]);
-			while (true) {
-				int len = is.read(buf);
-				if (len <= 0)
-					return;
-				if (len == buf.length)
-					file.appendContents(buf);
-				else {
-					byte[] shortbuf = new byte[len];
-					arraycopy(buf, 0, shortbuf, 0, len);
-					file.appendContents(shortbuf);
-				}
-			}
+			file.setContents(is);
 		}
 	}
 }
 
 /**
  * A data source that knows how to communicate with the Taverna Server back-end.
+ * The contents of the file are moved a chunk at a time, so the memory used
+ * does not depend on the size of the file.
  * 
  * @author Donal Fellows
  */
 class TavernaFileSource implements DataSource {
+	/**
+	 * How much of the file to move in one call to the back end. Bounds the
+	 * memory used by a transfer, however large the file.
+	 */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
 	TavernaFileSource(File f, String type) {
 		this.f = f;
 		this.type = type;
@@ -102,36 +99,62 @@ class TavernaFileSource implements DataSource {
 	public InputStream getInputStream() throws IOException {
 		final File f = this.f;
 		return new InputStream() {
-			private int idx;
-
-			@Override
-			public int read(byte[] b, int off, int len) throws IOException {
+			/** Where in the file the next chunk starts. */
+			private long idx;
+			private byte[] chunk = new byte[0];
+			private int pos;
+			private boolean eof;
+
+			/**
+			 * Make sure there is something in the current chunk, fetching the
+			 * next one if necessary.
+			 * 
+			 * @return Whether there is anything left to read.
+			 */
+			private boolean fill() throws IOException {
+				if (pos < chunk.length)
+					return true;
+				if (eof)
+					return false;
 				byte[] r;
 				try {
-					r = f.getContents(idx, len);
+					r = f.getContents(idx, CHUNK_SIZE);
 				} catch (FilesystemAccessException e) {
 					throw new IOException(e);
 				}
-				if (r == null)
+				pos = 0;
+				if (r == null || r.length == 0) {
+					chunk = new byte[0];
+					eof = true;
+					return false;
+				}
+				chunk = r;
+				idx += r.length;
+				return true;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				if (!fill())
 					return -1;
-				len = min(len, r.length);
-				arraycopy(r, 0, b, off, len);
-				idx += len;
+				len = min(len, chunk.length - pos);
+				arraycopy(chunk, pos, b, off, len);
+				pos += len;
 				return len;
 			}
 
 			@Override
 			public int read() throws IOException {
-				byte[] r;
-				try {
-					r = f.getContents(idx, 1);
-				} catch (FilesystemAccessException e) {
-					throw new IOException(e);
-				}
-				if (r == null)
+				if (!fill())
 					return -1;
-				idx++;
-				return r[0];
+				return chunk[pos++] & 0xFF;
+			}
+
+			@Override
+			public int available() {
+				return chunk.length - pos;
 			}
 		};
 	}
@@ -139,7 +162,8 @@ class TavernaFileSource implements DataSource {
 	@Override
 	public OutputStream getOutputStream() throws IOException {
 		final File f = this.f;
-		return new OutputStream() {
+		// Buffered so that each call to the back end carries a whole chunk
+		return new BufferedOutputStream(new OutputStream() {
 			private boolean append = false;
 
 			@Override
@@ -166,6 +190,6 @@ class TavernaFileSource implements DataSource {
 				arraycopy(b, off, ary, 0, len);
 				write(ary);
 			}
-		};
+		}, CHUNK_SIZE);
 	}
 }
@@ -12,12 +12,14 @@ import java.net.URI;
 import java.util.Date;
 import java.util.List;
 
+import javax.activation.DataHandler;
 import javax.annotation.security.RolesAllowed;
 import javax.jws.WebMethod;
 import javax.jws.WebParam;
 import javax.jws.WebResult;
 import javax.jws.WebService;
 import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlMimeType;
 
 import org.apache.cxf.annotations.WSDLDocumentation;
 import org.ogf.usage.JobUsageRecord;
@@ -1024,7 +1026,8 @@ public interface TavernaServerSOAP {
 	 * @param directory
 	 *            The name of the directory to fetch; the main working directory
 	 *            is <tt>/</tt> and <tt>..</tt> is always disallowed.
-	 * @return A serialized ZIP file.
+	 * @return A serialized ZIP file. It is streamed as it is built, and
+	 *         is sent as an MTOM attachment to clients that accept them.
 	 * @throws UnknownRunException
 	 *             If the server doesn't know about the run or if the user is
 	 *             not permitted to see it.
@@ -1036,7 +1039,8 @@ public interface TavernaServerSOAP {
 	 */
 	@WebResult(name = "ZipFile")
 	@WSDLDocumentation("Get the contents of any directory (and its subdirectories) at/under the run's working directory, returning it as a compressed ZIP file.")
-	byte[] getRunDirectoryAsZip(
+	@XmlMimeType("application/octet-stream")
+	DataHandler getRunDirectoryAsZip(
 			@WebParam(name = "runName") @XmlElement(required = true) String runName,
 			@WebParam(name = "directory") @XmlElement(required = true) DirEntry directory)
 			throws UnknownRunException, FilesystemAccessException,
@@ -1178,7 +1182,9 @@ public interface TavernaServerSOAP {
 	 * @param file
 	 *            The name of the file to fetch; the main working directory is
 	 *            <tt>/</tt> and <tt>..</tt> is always disallowed.
-	 * @return The literal byte contents of the file.
+	 * @return The literal byte contents of the file. They are streamed from
+	 *         the run as they are sent, and are sent as an MTOM attachment to
+	 *         clients that accept them.
 	 * @throws UnknownRunException
 	 *             If the server doesn't know about the run or if the user is
 	 *             not permitted to see it.
@@ -1190,7 +1196,8 @@ public interface TavernaServerSOAP {
 	 */
 	@WebResult(name = "FileContents")
 	@WSDLDocumentation("Get the contents of a file under the run's working directory.")
-	byte[] getRunFileContents(
+	@XmlMimeType("application/octet-stream")
+	DataHandler getRunFileContents(
 			@WebParam(name = "runName") @XmlElement(required = true) String runName,
 			@WebParam(name = "fileName") @XmlElement(required = true) DirEntry file)
 			throws UnknownRunException, FilesystemAccessException,
@@ -1233,7 +1240,8 @@ public interface TavernaServerSOAP {
 	 *            The name of the file to update; the main working directory is
 	 *            <tt>/</tt> and <tt>..</tt> is always disallowed.
 	 * @param newContents
-	 *            The literal bytes to set the file contents to.
+	 *            The literal bytes to set the file contents to. They are
+	 *            copied to the run a chunk at a time.
 	 * @throws UnknownRunException
 	 *             If the server doesn't know about the run or if the user is
 	 *             not permitted to see it.
@@ -1249,7 +1257,7 @@ public interface TavernaServerSOAP {
 	void setRunFileContents(
 			@WebParam(name = "runName") @XmlElement(required = true) String runName,
 			@WebParam(name = "fileName") @XmlElement(required = true) DirEntry file,
-			@WebParam(name = "contents") @XmlElement(required = true) byte[] newContents)
+			@WebParam(name = "contents") @XmlElement(required = true) @XmlMimeType("application/octet-stream") DataHandler newContents)
 			throws UnknownRunException, NoUpdateException,
 			FilesystemAccessException, NoDirectoryEntryException;
 
@@ -23,8 +23,6 @@ import org.taverna.server.master.interfaces.TavernaRun;
  * @author Donal Fellows
  */
 public class FilenameUtils {
-	private static final String TYPE_ERROR = "trying to take subdirectory of file";
-	private static final String NO_FILE = "no such directory entry";
 	private static final String NOT_A_FILE = "not a file";
 	private static final String NOT_A_DIR = "not a directory";
 
@@ -46,25 +44,7 @@ public class FilenameUtils {
 	 */
 	public DirectoryEntry getDirEntry(TavernaRun run, String name)
 			throws FilesystemAccessException, NoDirectoryEntryException {
-		Directory dir = run.getWorkingDirectory();
-		if (name == null || name.isEmpty())
-			return dir;
-		DirectoryEntry found = dir;
-		boolean mustBeLast = false;
-
-		// Must be nested loops; avoids problems with %-encoded "/" chars
-		for (String bit : name.split("/")) {
-			if (mustBeLast)
-				throw new FilesystemAccessException(TYPE_ERROR);
-			found = getEntryFromDir(bit, dir);
-			dir = null;
-			if (found instanceof Directory) {
-				dir = (Directory) found;
-				mustBeLast = false;
-			} else
-				mustBeLast = true;
-		}
-		return found;
+		return resolve(run.getWorkingDirectory(), name);
 	}
 
 	/**
@@ -88,23 +68,13 @@ public class FilenameUtils {
 		Directory dir = run.getWorkingDirectory();
 		if (d == null || d.isEmpty())
 			return dir;
-		DirectoryEntry found = dir;
-		boolean mustBeLast = false;
-
-		// Must be nested loops; avoids problems with %-encoded "/" chars
-		for (PathSegment segment : d)
-			for (String bit : segment.getPath().split("/")) {
-				if (mustBeLast)
-					throw new FilesystemAccessException(TYPE_ERROR);
-				found = getEntryFromDir(bit, dir);
-				dir = null;
-				if (found instanceof Directory) {
-					dir = (Directory) found;
-					mustBeLast = false;
-				} else
-					mustBeLast = true;
-			}
-		return found;
+		StringBuilder path = new StringBuilder();
+		String sep = "";
+		for (PathSegment segment : d) {
+			path.append(sep).append(segment.getPath());
+			sep = "/";
+		}
+		return resolve(dir, path.toString());
 	}
 
 	/**
@@ -125,47 +95,30 @@ public class FilenameUtils {
 	 */
 	public DirectoryEntry getDirEntry(TavernaRun run, DirEntryReference d)
 			throws FilesystemAccessException, NoDirectoryEntryException {
-		Directory dir = run.getWorkingDirectory();
-		if (d == null || d.path == null || d.path.isEmpty())
-			return dir;
-		DirectoryEntry found = dir;
-		boolean mustBeLast = false;
-
-		for (String bit : d.path.split("/")) {
-			if (mustBeLast)
-				throw new FilesystemAccessException(TYPE_ERROR);
-			found = getEntryFromDir(bit, dir);
-			dir = null;
-			if (found instanceof Directory) {
-				dir = (Directory) found;
-				mustBeLast = false;
-			} else
-				mustBeLast = true;
-		}
-		return found;
+		return resolve(run.getWorkingDirectory(), d == null ? null : d.path);
 	}
 
 	/**
-	 * Get a named directory entry from a directory.
+	 * Get a directory entry from a directory by its path. The lookup is done
+	 * in a single call to the directory rather than by listing each directory
+	 * on the path.
 	 * 
-	 * @param name
-	 *            The name of the entry; must be "<tt>/</tt>"-free.
 	 * @param dir
 	 *            The directory to look in.
-	 * @return The directory entry whose name is equal to the given name.
+	 * @param path
+	 *            The "<tt>/</tt>"-separated path to the entry; an empty path
+	 *            will retrieve the directory itself.
+	 * @return The directory entry.
 	 * @throws NoDirectoryEntryException
 	 *             If there is no such entry.
 	 * @throws FilesystemAccessException
-	 *             If the directory isn't specified or isn't readable.
+	 *             If the directory isn't readable.
 	 */
-	private DirectoryEntry getEntryFromDir(String name, Directory dir)
+	private DirectoryEntry resolve(Directory dir, String path)
 			throws FilesystemAccessException, NoDirectoryEntryException {
-		if (dir == null)
-			throw new FilesystemAccessException(NO_FILE);
-		for (DirectoryEntry entry : dir.getContents())
-			if (entry.getName().equals(name))
-				return entry;
-		throw new NoDirectoryEntryException(NO_FILE);
+		if (path == null || path.split("/").length == 0)
+			return dir;
+		return dir.resolve(path);
 	}
 
 	/**
@@ -5,27 +5,41 @@
  */
 package org.taverna.server.master.utils;
 
+import static java.lang.System.nanoTime;
 import static java.lang.annotation.ElementType.METHOD;
 import static java.lang.annotation.RetentionPolicy.RUNTIME;
 import static org.apache.commons.logging.LogFactory.getLog;
+import static org.taverna.server.master.TavernaServer.JMX_ROOT;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.PreDestroy;
+import javax.jdo.JDODataStoreException;
 import javax.jdo.JDOException;
 import javax.jdo.PersistenceManager;
 import javax.jdo.PersistenceManagerFactory;
 import javax.jdo.Query;
 import javax.jdo.Transaction;
+import javax.jdo.datastore.JDOConnection;
 
 import org.apache.commons.logging.Log;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.springframework.beans.factory.annotation.Required;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 
 /**
  * Simple support class that wraps up and provides access to the correct parts
@@ -38,6 +52,11 @@ import org.springframework.beans.factory.annotation.Required;
 public abstract class JDOSupport<T> {
 	private Class<T> contextClass;
 	PersistenceManager pm;
+	/**
+	 * Serializes the top-level transactions of this particular DAO; other DAOs
+	 * have their own lock.
+	 */
+	final Lock lock = new ReentrantLock();
 
 	/**
 	 * Instantiate this class, supplying it a handle to the class that will be
@@ -101,6 +120,54 @@ public abstract class JDOSupport<T> {
 		return pm.newNamedQuery(contextClass, name);
 	}
 
+	/**
+	 * Find out whether a table exists in the database. Should be called
+	 * before anything is changed in the current transaction.
+	 * 
+	 * @param schema
+	 *            The schema holding the table.
+	 * @param table
+	 *            The name of the table.
+	 * @return Whether the table exists.
+	 */
+	protected boolean tableExists(@Nonnull String schema,
+			@Nonnull String table) {
+		JDOConnection conn = pm.getDataStoreConnection();
+		try {
+			Connection c = (Connection) conn.getNativeConnection();
+			try (ResultSet rs = c.getMetaData().getTables(null, schema, table,
+					null)) {
+				return rs.next();
+			}
+		} catch (SQLException e) {
+			throw new JDODataStoreException("failed to look for table "
+					+ schema + "." + table, e);
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Run an SQL statement that changes the database, such as a
+	 * <tt>DELETE</tt>, in the current transaction. Changes already made to
+	 * persistence-coupled instances are written first.
+	 * 
+	 * @param sql
+	 *            The statement.
+	 */
+	protected void executeSQL(@Nonnull String sql) {
+		pm.flush();
+		JDOConnection conn = pm.getDataStoreConnection();
+		try (Statement s = ((Connection) conn.getNativeConnection())
+				.createStatement()) {
+			s.executeUpdate(sql);
+		} catch (SQLException e) {
+			throw new JDODataStoreException("failed to execute " + sql, e);
+		} finally {
+			conn.close();
+		}
+	}
+
 	/**
 	 * Make an instance of the context class persist in the database. It's
 	 * identity must not already exist.
@@ -159,59 +226,139 @@ public abstract class JDOSupport<T> {
 	}
 
 	/**
-	 * Manages integration of JDO transactions with Spring.
+	 * Manages integration of JDO transactions with Spring. Each thread works
+	 * with its own persistence manager (we are handed a proxy that resolves to
+	 * a thread-bound one), so transactions for different DAOs proceed
+	 * concurrently; only the outermost transactions of a single DAO are
+	 * serialized with respect to each other. Calls made while a transaction is
+	 * already active on the current thread simply join it.
 	 * 
 	 * @author Donal Fellows
 	 */
 	@Aspect
+	@ManagedResource(objectName = JMX_ROOT + "Transactions", description = "The database transaction manager.")
 	public static class TransactionAspect {
-		private Object lock = new Object();
 		private Log log = getLog("Taverna.Server.Utils");
-		private volatile int txid;
+		private final AtomicInteger txid = new AtomicInteger();
+		private final AtomicLong txCount = new AtomicLong();
+		private final AtomicLong lockWaitTime = new AtomicLong();
+		private final AtomicLong maxLockWaitTime = new AtomicLong();
+		private final AtomicLong txTime = new AtomicLong();
+		private final AtomicLong maxTxTime = new AtomicLong();
 
 		@Around(value = "@annotation(org.taverna.server.master.utils.JDOSupport.WithinSingleTransaction) && target(support)", argNames = "support")
 		Object applyTransaction(ProceedingJoinPoint pjp, JDOSupport<?> support)
 				throws Throwable {
-			synchronized (lock) {
-				int id = ++txid;
-				Transaction tx = support.pm == null ? null : support.pm
-						.currentTransaction();
-				if (tx != null && tx.isActive())
-					tx = null;
-				if (tx != null) {
-					if (log.isDebugEnabled())
-						log.debug("starting transaction #" + id);
-					tx.begin();
+			Transaction tx = support.pm == null ? null : support.pm
+					.currentTransaction();
+			if (tx == null || tx.isActive())
+				return pjp.proceed();
+
+			long fore = nanoTime();
+			support.lock.lock();
+			try {
+				long start = nanoTime();
+				record(start - fore, lockWaitTime, maxLockWaitTime);
+				try {
+					return doTransaction(pjp, tx);
+				} finally {
+					txCount.incrementAndGet();
+					record(nanoTime() - start, txTime, maxTxTime);
 				}
+			} finally {
+				support.lock.unlock();
+			}
+		}
+
+		private Object doTransaction(ProceedingJoinPoint pjp, Transaction tx)
+				throws Throwable {
+			int id = txid.incrementAndGet();
+			if (log.isDebugEnabled())
+				log.debug("starting transaction #" + id);
+			tx.begin();
+			try {
+				Object result = pjp.proceed();
+				tx.commit();
+				if (log.isDebugEnabled())
+					log.debug("committed transaction #" + id);
+				return result;
+			} catch (Throwable t) {
 				try {
-					Object result = pjp.proceed();
-					if (tx != null) {
-						tx.commit();
+					if (tx.isActive()) {
+						tx.rollback();
 						if (log.isDebugEnabled())
-							log.debug("committed transaction #" + id);
+							log.debug("rolled back transaction #" + id);
 					}
-					tx = null;
-					return result;
-				} catch (Throwable t) {
-					try {
-						if (tx != null) {
-							tx.rollback();
-							if (log.isDebugEnabled())
-								log.debug("rolled back transaction #" + id);
-						}
-					} catch (JDOException e) {
-						log.warn("rollback failed unexpectedly", e);
-					}
-					throw t;
+				} catch (JDOException e) {
+					log.warn("rollback failed unexpectedly", e);
 				}
+				throw t;
+			}
+		}
+
+		private static void record(long elapsed, AtomicLong total,
+				AtomicLong max) {
+			total.addAndGet(elapsed);
+			while (true) {
+				long m = max.get();
+				if (elapsed <= m || max.compareAndSet(m, elapsed))
+					return;
 			}
 		}
+
+		private double mean(AtomicLong total) {
+			long count = txCount.get();
+			return count == 0 ? 0.0 : total.get() / (count * 1000000.0);
+		}
+
+		/**
+		 * @return The number of top-level transactions executed.
+		 */
+		@ManagedAttribute(description = "The number of top-level transactions executed.")
+		public long getTransactionCount() {
+			return txCount.get();
+		}
+
+		/**
+		 * @return The mean time spent waiting for a DAO's lock, in
+		 *         milliseconds.
+		 */
+		@ManagedAttribute(description = "The mean time spent waiting for a DAO's lock, in milliseconds.")
+		public double getMeanLockWaitTime() {
+			return mean(lockWaitTime);
+		}
+
+		/**
+		 * @return The longest time spent waiting for a DAO's lock, in
+		 *         milliseconds.
+		 */
+		@ManagedAttribute(description = "The longest time spent waiting for a DAO's lock, in milliseconds.")
+		public double getMaxLockWaitTime() {
+			return maxLockWaitTime.get() / 1000000.0;
+		}
+
+		/**
+		 * @return The mean duration of a transaction, in milliseconds.
+		 */
+		@ManagedAttribute(description = "The mean duration of a transaction, in milliseconds.")
+		public double getMeanTransactionTime() {
+			return mean(txTime);
+		}
+
+		/**
+		 * @return The longest duration of a transaction, in milliseconds.
+		 */
+		@ManagedAttribute(description = "The longest duration of a transaction, in milliseconds.")
+		public double getMaxTransactionTime() {
+			return maxTxTime.get() / 1000000.0;
+		}
 	}
 
 	/**
 	 * Mark a method (of a subclass of {@link JDOSupport}) as having a
 	 * transaction wrapped around it. The transactions are managed correctly in
-	 * the multi-threaded case.
+	 * the multi-threaded case; transactions on different DAOs do not block
+	 * each other.
 	 * 
 	 * @author Donal Fellows
 	 */
@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+/**
+ * A source of the current time, so that the classes whose behaviour depends
+ * on time passing can be tested without waiting for it to pass.
+ * 
+ * @author Donal Fellows
+ */
+public interface Clock {
+	/**
+	 * @return The current time, in milliseconds since the epoch.
+	 */
+	long currentTimeMillis();
+
+	/** The system clock. */
+	Clock SYSTEM = new Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+}
@@ -5,6 +5,13 @@
  */
 package org.taverna.server.master.worker;
 
+import java.util.Collection;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.taverna.server.localworker.remote.RemoteRunStatus;
 import org.taverna.server.master.notification.atom.EventDAO;
 
 /**
@@ -23,4 +30,30 @@ public interface FactoryBean {
 	 *         feed)
 	 */
 	EventDAO getMasterEventFeed();
+
+	/**
+	 * Get the state of many runs at once, using as few calls to the back end
+	 * as possible.
+	 * 
+	 * @param ids
+	 *            The IDs of the runs of interest.
+	 * @return The state of those runs that the back end could report on,
+	 *         keyed by run ID. Runs that are missing are not held by any part
+	 *         of the back end that answered. If the back end cannot report on
+	 *         runs in bulk at all, <tt>null</tt>; each run must then be asked
+	 *         about individually.
+	 */
+	@Nullable
+	Map<String, RemoteRunStatus> getRunStatuses(@Nonnull Collection<String> ids);
+
+	/**
+	 * Say which back end process holds the runs of a user, so that the health
+	 * of that process can be tracked.
+	 * 
+	 * @param owner
+	 *            The name of the owner of a run.
+	 * @return The key of the process.
+	 */
+	@Nonnull
+	String getWorkerProcessKey(@Nonnull String owner);
 }
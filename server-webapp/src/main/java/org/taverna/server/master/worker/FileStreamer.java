@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.lang.Math.min;
+import static org.apache.commons.logging.LogFactory.getLog;
+import static org.taverna.server.localworker.remote.RemoteStreamTicket.ARCHIVE_STARTING;
+import static org.taverna.server.localworker.remote.RemoteStreamTicket.ARCHIVE_WAITING;
+
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.apache.commons.logging.Log;
+import org.taverna.server.localworker.remote.RemoteFilesystem;
+import org.taverna.server.localworker.remote.RemoteStreamTicket;
+import org.taverna.server.master.exceptions.FilesystemAccessException;
+
+/**
+ * Copies the contents of a file in a remote filesystem to a stream. The data
+ * is fetched over the worker's dedicated transfer socket where possible, and
+ * by a series of RMI reads where that can't be set up. ZIP archives of
+ * directories can also be fetched over the transfer socket; as their length
+ * is not known in advance, they are checked to end with a complete ZIP
+ * directory so that one cut short by a failure is not taken as whole.
+ * 
+ * @author Donal Fellows
+ */
+final class FileStreamer {
+	private static final Log log = getLog("Taverna.Server.Worker");
+	/** How long to wait for the transfer socket to connect, in milliseconds. */
+	private static final int CONNECT_TIMEOUT = 10000;
+	/** How long to wait for data to arrive, in milliseconds. */
+	private static final int READ_TIMEOUT = 60000;
+	/** The most that the worker will send in one RMI read. */
+	private static final int MAX_RMI_CHUNK = 64 * 1024;
+	/** The signature of a ZIP end-of-central-directory record. */
+	private static final byte[] ZIP_END = { 'P', 'K', 5, 6 };
+	/** The length of an end-of-central-directory record with no comment. */
+	private static final int ZIP_END_LENGTH = 22;
+
+	private FileStreamer() {
+	}
+
+	/**
+	 * Copy a section of a remote file to a stream.
+	 * 
+	 * @param fs
+	 *            The filesystem holding the file.
+	 * @param path
+	 *            The path to the file to read.
+	 * @param offset
+	 *            Where in the file to start reading.
+	 * @param length
+	 *            How much of the file to read; -1 for "to the end".
+	 * @param chunkSize
+	 *            How much to read at once.
+	 * @param out
+	 *            Where to write the data.
+	 * @throws FilesystemAccessException
+	 *             If reading the file fails.
+	 * @throws IOException
+	 *             If writing to the stream fails.
+	 */
+	static void copy(RemoteFilesystem fs, String path, long offset,
+			long length, int chunkSize, OutputStream out)
+			throws FilesystemAccessException, IOException {
+		RemoteStreamTicket ticket;
+		Socket s = new Socket();
+		try {
+			ticket = fs.openStream(path, offset, length);
+			s.connect(new InetSocketAddress(ticket.getHost(), ticket.getPort()),
+					CONNECT_TIMEOUT);
+		} catch (IOException e) {
+			log.info("falling back to RMI reads of file", e);
+			s.close();
+			copyInChunks(fs, path, offset, length, chunkSize, out);
+			return;
+		}
+
+		try (Socket sock = s) {
+			byte[] buffer = new byte[chunkSize];
+			long remaining = ticket.getLength();
+			InputStream in;
+			try {
+				in = handshake(sock, ticket);
+			} catch (IOException e) {
+				throw new FilesystemAccessException(
+						"problem when starting file transfer", e);
+			}
+			while (remaining > 0) {
+				int n;
+				try {
+					n = in.read(buffer, 0, (int) min(buffer.length, remaining));
+				} catch (IOException e) {
+					throw new FilesystemAccessException(
+							"problem when reading file", e);
+				}
+				if (n < 0)
+					throw new FilesystemAccessException(
+							"file shrank while it was being read");
+				out.write(buffer, 0, n);
+				remaining -= n;
+			}
+		}
+	}
+
+	/**
+	 * Open a stream of the contents of a remote directory, as a ZIP archive
+	 * built by the worker.
+	 * 
+	 * @param fs
+	 *            The filesystem holding the directory.
+	 * @param path
+	 *            The path to the directory.
+	 * @return The stream of the archive; closing it closes the connection to
+	 *         the worker. Reading it fails if the archive turns out to be
+	 *         incomplete.
+	 * @throws IOException
+	 *             If the archive can't be requested, the transfer socket
+	 *             can't be connected, or the worker fails before it starts
+	 *             sending the archive.
+	 */
+	static InputStream openArchive(RemoteFilesystem fs, String path)
+			throws IOException {
+		RemoteStreamTicket ticket = fs.openZipStream(path);
+		Socket sock = new Socket();
+		try {
+			sock.connect(new InetSocketAddress(ticket.getHost(),
+					ticket.getPort()), CONNECT_TIMEOUT);
+			InputStream in = handshake(sock, ticket);
+			awaitArchive(in);
+			return new ArchiveStream(in);
+		} catch (IOException e) {
+			sock.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Wait for the worker to start sending an archive, which may have to wait
+	 * for its turn to be built.
+	 * 
+	 * @param in
+	 *            The stream from the worker.
+	 * @throws IOException
+	 *             If the stream ends or something other than the agreed
+	 *             bytes arrive.
+	 */
+	static void awaitArchive(InputStream in) throws IOException {
+		while (true) {
+			int b = in.read();
+			if (b == ARCHIVE_STARTING)
+				return;
+			if (b < 0)
+				throw new IOException(
+						"archive transfer ended before it started");
+			if (b != ARCHIVE_WAITING)
+				throw new IOException("unexpected byte " + b
+						+ " before archive");
+		}
+	}
+
+	/**
+	 * A stream of a ZIP archive that fails at its end, rather than ending
+	 * quietly, if the last thing in it is not an end-of-central-directory
+	 * record (without a comment, as the worker never writes one).
+	 */
+	static class ArchiveStream extends FilterInputStream {
+		private final byte[] tail = new byte[ZIP_END_LENGTH];
+		private long count;
+		private boolean checked;
+
+		ArchiveStream(InputStream in) {
+			super(in);
+		}
+
+		private void saw(byte[] b, int off, int len) {
+			if (len >= tail.length)
+				System.arraycopy(b, off + len - tail.length, tail, 0,
+						tail.length);
+			else {
+				System.arraycopy(tail, len, tail, 0, tail.length - len);
+				System.arraycopy(b, off, tail, tail.length - len, len);
+			}
+			count += len;
+		}
+
+		private void check() throws IOException {
+			if (checked)
+				return;
+			boolean complete = count >= tail.length && tail[20] == 0
+					&& tail[21] == 0;
+			for (int i = 0; complete && i < ZIP_END.length; i++)
+				complete = tail[i] == ZIP_END[i];
+			if (!complete)
+				throw new IOException("archive transfer was cut short");
+			checked = true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b < 0)
+				check();
+			else
+				saw(new byte[] { (byte) b }, 0, 1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n < 0)
+				check();
+			else
+				saw(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] buffer = new byte[(int) min(n, 8192)];
+			int got = read(buffer, 0, buffer.length);
+			return got < 0 ? 0 : got;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return 0;
+		}
+	}
+
+	/**
+	 * Present a ticket over a connected transfer socket.
+	 * 
+	 * @return The stream of the data that the ticket is for.
+	 */
+	private static InputStream handshake(Socket sock, RemoteStreamTicket ticket)
+			throws IOException {
+		sock.setSoTimeout(READ_TIMEOUT);
+		DataOutputStream dos = new DataOutputStream(sock.getOutputStream());
+		dos.writeLong(ticket.getToken().getMostSignificantBits());
+		dos.writeLong(ticket.getToken().getLeastSignificantBits());
+		dos.flush();
+		return sock.getInputStream();
+	}
+
+	private static void copyInChunks(RemoteFilesystem fs, String path,
+			long offset, long length, int chunkSize, OutputStream out)
+			throws FilesystemAccessException, IOException {
+		long off = offset;
+		long remaining = (length < 0 ? Long.MAX_VALUE : length);
+		int size = min(chunkSize, MAX_RMI_CHUNK);
+		while (remaining > 0) {
+			byte[] buffer;
+			try {
+				buffer = fs.read(path, off, (int) min(size, remaining));
+			} catch (IOException e) {
+				throw new FilesystemAccessException(
+						"problem when reading file", e);
+			}
+			if (buffer == null || buffer.length == 0)
+				break;
+			out.write(buffer);
+			off += buffer.length;
+			remaining -= buffer.length;
+		}
+	}
+}
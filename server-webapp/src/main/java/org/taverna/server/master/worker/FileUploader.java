@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.Arrays.copyOf;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.UnmarshalException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.taverna.server.localworker.remote.RemoteFilesystem;
+import org.taverna.server.localworker.remote.RemoteUpload;
+import org.taverna.server.master.exceptions.FilesystemAccessException;
+
+/**
+ * Copies the contents of a stream to a file in a remote filesystem. The data
+ * is sent in large windows through an {@linkplain RemoteUpload upload} on the
+ * worker, which keeps the file open for the whole transfer; several windows
+ * are sent at once, so the time for each call to get to the worker and back
+ * is not paid once per window. Where the worker is too old to open an
+ * upload, the data is sent by a series of RMI writes instead.
+ * 
+ * @author Donal Fellows
+ */
+final class FileUploader {
+	private static final Log log = getLog("Taverna.Server.Worker");
+	/** How much data to send to the worker in one call. */
+	static final int WINDOW_SIZE = 1024 * 1024;
+	/**
+	 * How many windows of one upload may be on their way at once. Bounds the
+	 * memory used by an upload, however large the file.
+	 */
+	static final int MAX_WINDOWS = 4;
+	private static final int MAX_SENDERS = 16;
+	/**
+	 * Where windows are sent from. Shared by all uploads so that many uploads
+	 * at once can't use up the master's threads; the rest wait their turn.
+	 */
+	private static final ExecutorService senders = newFixedThreadPool(
+			MAX_SENDERS, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "file uploader");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private FileUploader() {
+	}
+
+	/**
+	 * Replace the contents of a remote file with the contents of a stream. If
+	 * anything goes wrong, the file is left as it was (unless the data had to
+	 * be sent by RMI writes, in which case it may be partly written).
+	 * 
+	 * @param fs
+	 *            The filesystem holding the file.
+	 * @param path
+	 *            The path to the file to write, which must exist.
+	 * @param in
+	 *            Where to read the data from. Not closed by this method.
+	 * @return The length of the file afterwards.
+	 * @throws FilesystemAccessException
+	 *             If opening or writing the file fails.
+	 * @throws IOException
+	 *             If reading from the stream fails.
+	 */
+	static long upload(RemoteFilesystem fs, String path, InputStream in)
+			throws FilesystemAccessException, IOException {
+		RemoteUpload upload;
+		try {
+			upload = fs.openUpload(path, false);
+		} catch (UnmarshalException e) {
+			/*
+			 * What RMI says when the worker doesn't have the method, or
+			 * can't give back a handle to an upload that we understand.
+			 */
+			log.info("falling back to RMI writes of file", e);
+			return writeInChunks(fs, path, in);
+		} catch (IOException e) {
+			throw new FilesystemAccessException(
+					"failed to open file for writing", e);
+		}
+		return upload(upload, in);
+	}
+
+	/**
+	 * Send the contents of a stream through an upload, and commit it. If
+	 * anything goes wrong, the upload is aborted.
+	 * 
+	 * @param upload
+	 *            The upload to send the data through.
+	 * @param in
+	 *            Where to read the data from. Not closed by this method.
+	 * @return The length of the file afterwards.
+	 * @throws FilesystemAccessException
+	 *             If writing the file fails.
+	 * @throws IOException
+	 *             If reading from the stream fails.
+	 */
+	static long upload(RemoteUpload upload, InputStream in)
+			throws FilesystemAccessException, IOException {
+		Deque<Future<?>> sending = new ArrayDeque<>();
+		boolean committed = false;
+		try {
+			long offset = 0;
+			byte[] window;
+			while ((window = readWindow(in)) != null) {
+				if (sending.size() >= MAX_WINDOWS)
+					await(sending.remove());
+				sending.add(send(upload, offset, window));
+				offset += window.length;
+			}
+			while (!sending.isEmpty())
+				await(sending.remove());
+			long size;
+			try {
+				size = upload.commit();
+			} catch (IOException e) {
+				throw new FilesystemAccessException(
+						"failed to commit file contents", e);
+			}
+			committed = true;
+			return size;
+		} finally {
+			if (!committed)
+				abort(upload, sending);
+		}
+	}
+
+	private static Future<?> send(final RemoteUpload upload,
+			final long offset, final byte[] window) {
+		return senders.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				upload.write(offset, window);
+				return null;
+			}
+		});
+	}
+
+	private static void await(Future<?> sent)
+			throws FilesystemAccessException {
+		try {
+			sent.get();
+		} catch (ExecutionException e) {
+			throw new FilesystemAccessException(
+					"failed to write file contents", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FilesystemAccessException("interrupted during upload",
+					e);
+		}
+	}
+
+	/**
+	 * Abort an upload once the windows still on their way have arrived, so
+	 * that none of them can land after the worker has tidied up.
+	 */
+	private static void abort(RemoteUpload upload, Deque<Future<?>> sending) {
+		for (Future<?> sent : sending)
+			try {
+				sent.get();
+			} catch (ExecutionException e) {
+				// already failing; ignore...
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		try {
+			upload.abort();
+		} catch (NoSuchObjectException e) {
+			// the worker has already given up on it; ignore...
+		} catch (RemoteException e) {
+			log.warn("failed to abort upload", e);
+		}
+	}
+
+	/**
+	 * Read a window of data, filling it unless the stream ends first.
+	 * 
+	 * @return The data read, or <tt>null</tt> at the end of the stream.
+	 */
+	private static byte[] readWindow(InputStream in) throws IOException {
+		byte[] window = new byte[WINDOW_SIZE];
+		int len = 0;
+		while (len < window.length) {
+			int n = in.read(window, len, window.length - len);
+			if (n < 0)
+				break;
+			len += n;
+		}
+		if (len == 0)
+			return null;
+		return len < window.length ? copyOf(window, len) : window;
+	}
+
+	private static long writeInChunks(RemoteFilesystem fs, String path,
+			InputStream in) throws FilesystemAccessException, IOException {
+		long total = 0;
+		byte[] window = readWindow(in);
+		write(fs, path, window == null ? new byte[0] : window, false);
+		while (window != null) {
+			total += window.length;
+			window = readWindow(in);
+			if (window != null)
+				write(fs, path, window, true);
+		}
+		return total;
+	}
+
+	private static void write(RemoteFilesystem fs, String path, byte[] data,
+			boolean append) throws FilesystemAccessException {
+		try {
+			fs.write(path, data, append);
+		} catch (IOException e) {
+			throw new FilesystemAccessException(
+					"failed to write file contents", e);
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import java.io.ObjectStreamException;
+import java.util.Date;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.taverna.server.master.common.Status;
+import org.taverna.server.master.common.Workflow;
+import org.taverna.server.master.exceptions.BadStateChangeException;
+import org.taverna.server.master.exceptions.FilesystemAccessException;
+import org.taverna.server.master.exceptions.NoDestroyException;
+import org.taverna.server.master.exceptions.UnknownRunException;
+import org.taverna.server.master.interfaces.Directory;
+import org.taverna.server.master.interfaces.Input;
+import org.taverna.server.master.interfaces.Listener;
+import org.taverna.server.master.interfaces.TavernaRun;
+import org.taverna.server.master.interfaces.TavernaSecurityContext;
+
+/**
+ * A handle to a workflow run that is backed by the {@linkplain RunIndexEntry
+ * run index}. The full {@link RemoteRunDelegate} (with its RMI stub and
+ * security context) is only built from the database when something other than
+ * the indexed properties is asked for.
+ * 
+ * @author Donal Fellows
+ */
+@SuppressWarnings("serial")
+class IndexedRun implements TavernaRun {
+	private final RunIndexEntry entry;
+	private final transient RunDatabase db;
+	private transient volatile RemoteRunDelegate delegate;
+
+	IndexedRun(@Nonnull RunIndexEntry entry, @Nonnull RunDatabase db) {
+		this.entry = entry;
+		this.db = db;
+	}
+
+	/**
+	 * @return The index entry describing this run.
+	 */
+	@Nonnull
+	RunIndexEntry getIndexEntry() {
+		return entry;
+	}
+
+	/**
+	 * @return The real run delegate, fetched from the database if necessary.
+	 * @throws UnknownRunException
+	 *             If the run is no longer in the database.
+	 */
+	@Nonnull
+	RemoteRunDelegate getDelegate() throws UnknownRunException {
+		RemoteRunDelegate rrd = delegate;
+		if (rrd == null) {
+			rrd = db.hydrate(entry.getId());
+			if (rrd == null)
+				throw new UnknownRunException();
+			delegate = rrd;
+		}
+		return rrd;
+	}
+
+	private RemoteRunDelegate rrd() {
+		try {
+			return getDelegate();
+		} catch (UnknownRunException e) {
+			throw new IllegalStateException("run " + entry.getId()
+					+ " has vanished from the database", e);
+		}
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		return rrd();
+	}
+
+	@Override
+	public String getId() {
+		return entry.getId();
+	}
+
+	@Override
+	public String getName() {
+		RemoteRunDelegate rrd = delegate;
+		return rrd == null ? entry.getName() : rrd.getName();
+	}
+
+	@Override
+	public Date getExpiry() {
+		RemoteRunDelegate rrd = delegate;
+		return rrd == null ? entry.getExpiry() : rrd.getExpiry();
+	}
+
+	@Override
+	public Workflow getWorkflow() {
+		return rrd().getWorkflow();
+	}
+
+	@Override
+	public void setName(String name) {
+		rrd().setName(name);
+	}
+
+	@Override
+	public String getInputBaclavaFile() {
+		return rrd().getInputBaclavaFile();
+	}
+
+	@Override
+	public void setInputBaclavaFile(String filename)
+			throws FilesystemAccessException, BadStateChangeException {
+		rrd().setInputBaclavaFile(filename);
+	}
+
+	@Override
+	public List<Input> getInputs() {
+		return rrd().getInputs();
+	}
+
+	@Override
+	public Input makeInput(String name) throws BadStateChangeException {
+		return rrd().makeInput(name);
+	}
+
+	@Override
+	public String getOutputBaclavaFile() {
+		return rrd().getOutputBaclavaFile();
+	}
+
+	@Override
+	public void setOutputBaclavaFile(String filename)
+			throws FilesystemAccessException, BadStateChangeException {
+		rrd().setOutputBaclavaFile(filename);
+	}
+
+	@Override
+	public void setExpiry(Date d) {
+		rrd().setExpiry(d);
+	}
+
+	@Override
+	public Status getStatus() {
+		return rrd().getStatus();
+	}
+
+	@Override
+	public String setStatus(Status s) throws BadStateChangeException {
+		return rrd().setStatus(s);
+	}
+
+	@Override
+	public Directory getWorkingDirectory() throws FilesystemAccessException {
+		return rrd().getWorkingDirectory();
+	}
+
+	@Override
+	public List<Listener> getListeners() {
+		return rrd().getListeners();
+	}
+
+	@Override
+	public void addListener(Listener listener) {
+		rrd().addListener(listener);
+	}
+
+	@Override
+	public TavernaSecurityContext getSecurityContext() {
+		return rrd().getSecurityContext();
+	}
+
+	@Override
+	public void destroy() throws NoDestroyException {
+		rrd().destroy();
+	}
+
+	@Override
+	public Date getCreationTimestamp() {
+		return rrd().getCreationTimestamp();
+	}
+
+	@Override
+	public Date getStartTimestamp() {
+		return rrd().getStartTimestamp();
+	}
+
+	@Override
+	public Date getFinishTimestamp() {
+		return rrd().getFinishTimestamp();
+	}
+
+	@Override
+	public void ping() throws UnknownRunException {
+		getDelegate().ping();
+	}
+
+	@Override
+	public boolean isDegraded() {
+		return db.isWorkerDegraded(entry.getOwner());
+	}
+
+	@Override
+	public boolean getGenerateProvenance() {
+		return rrd().getGenerateProvenance();
+	}
+
+	@Override
+	public void setGenerateProvenance(boolean generateProvenance) {
+		rrd().setGenerateProvenance(generateProvenance);
+	}
+}
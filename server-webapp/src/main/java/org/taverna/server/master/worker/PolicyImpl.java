@@ -68,9 +68,17 @@ class PolicyImpl implements Policy {
 		return limits.getPermittedWorkflowURIs();
 	}
 
-	private boolean isSelfAccess(String runId) {
+	/**
+	 * Get the ID of the run that the current caller is, if the caller is a
+	 * workflow run accessing itself.
+	 * 
+	 * @return The run ID, or <tt>null</tt> if this is not self-access.
+	 */
+	String getSelfAccessRunId() {
 		Authentication auth = SecurityContextHolder.getContext()
 				.getAuthentication();
+		if (auth == null)
+			return null;
 		boolean self = false;
 		String id = null;
 		for (GrantedAuthority a : auth.getAuthorities()) {
@@ -83,12 +91,31 @@ class PolicyImpl implements Policy {
 				continue;
 			id = aa.substring(PREFIX.length());
 		}
-		return self && runId.equals(id);
+		return self ? id : null;
+	}
+
+	private boolean isSelfAccess(String runId) {
+		return runId.equals(getSelfAccessRunId());
 	}
 
 	@Override
 	public boolean permitAccess(UsernamePrincipal user, TavernaRun run) {
 		String username = user.getName();
+		if (run instanceof IndexedRun) {
+			/*
+			 * Answer from the run index if we can; this avoids rebuilding the
+			 * run's security context just to look at its owner and readers.
+			 */
+			RunIndexEntry entry = ((IndexedRun) run).getIndexEntry();
+			if (entry.isOwnerOrReader(username))
+				return true;
+			if (isSelfAccess(run.getId())) {
+				if (log.isDebugEnabled())
+					log.debug("access by workflow to itself: " + run.getId());
+				return true;
+			}
+			return false;
+		}
 		TavernaSecurityContext context = run.getSecurityContext();
 		if (context.getOwner().getName().equals(username)) {
 			if (log.isDebugEnabled())
@@ -10,17 +10,27 @@ import static java.util.Calendar.MINUTE;
 import static java.util.Collections.sort;
 import static java.util.Collections.unmodifiableSet;
 import static java.util.UUID.randomUUID;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.apache.commons.io.IOUtils.closeQuietly;
 import static org.apache.commons.logging.LogFactory.getLog;
+import static org.taverna.server.localworker.remote.RemoteEntryAttributes.Type.DIRECTORY;
 import static org.taverna.server.master.worker.RemoteRunDelegate.checkBadFilename;
 import static org.taverna.server.master.worker.RunConnection.NAME_LENGTH;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
 import java.rmi.MarshalledObject;
 import java.rmi.RemoteException;
+import java.rmi.UnmarshalException;
 import java.security.GeneralSecurityException;
 import java.security.Principal;
 import java.util.ArrayList;
@@ -29,23 +39,32 @@ import java.util.Calendar;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.apache.commons.logging.Log;
 import org.taverna.server.localworker.remote.IllegalStateTransitionException;
 import org.taverna.server.localworker.remote.ImplementationException;
-import org.taverna.server.localworker.remote.RemoteDirectory;
-import org.taverna.server.localworker.remote.RemoteDirectoryEntry;
-import org.taverna.server.localworker.remote.RemoteFile;
+import org.taverna.server.localworker.remote.RemoteEntryAttributes;
+import org.taverna.server.localworker.remote.RemoteFilesystem;
 import org.taverna.server.localworker.remote.RemoteInput;
 import org.taverna.server.localworker.remote.RemoteListener;
+import org.taverna.server.localworker.remote.RemoteRunSnapshot;
+import org.taverna.server.localworker.remote.RemoteRunSnapshot.InputState;
+import org.taverna.server.localworker.remote.RemoteRunSnapshot.ListenerState;
 import org.taverna.server.localworker.remote.RemoteSingleRun;
 import org.taverna.server.localworker.remote.RemoteStatus;
 import org.taverna.server.localworker.remote.StillWorkingOnItException;
@@ -54,6 +73,8 @@ import org.taverna.server.master.common.Workflow;
 import org.taverna.server.master.exceptions.BadPropertyValueException;
 import org.taverna.server.master.exceptions.BadStateChangeException;
 import org.taverna.server.master.exceptions.FilesystemAccessException;
+import org.taverna.server.master.exceptions.GeneralFailureException;
+import org.taverna.server.master.exceptions.NoDirectoryEntryException;
 import org.taverna.server.master.exceptions.NoListenerException;
 import org.taverna.server.master.exceptions.OverloadedException;
 import org.taverna.server.master.exceptions.UnknownRunException;
@@ -89,8 +110,46 @@ public class RemoteRunDelegate implements TavernaRun {
 	boolean doneTransitionToFinished;
 	boolean generateProvenance;// FIXME expose
 	String name;
+	/**
+	 * Which persistent properties have changed since the last flush to the
+	 * database. Guarded by itself.
+	 */
+	private transient Set<Property> dirty = EnumSet.noneOf(Property.class);
+	/**
+	 * Whether a call to the back end has failed since the run was last known
+	 * to be alive; if so, the {@linkplain RunCache cache} checks it again
+	 * before handing it out.
+	 */
+	private transient volatile boolean remoteFailed;
+	/**
+	 * The most recently fetched description of the state of the run, or
+	 * <tt>null</tt> if it must be fetched again.
+	 */
+	private transient volatile RemoteRunSnapshot snapshot;
+	/** When the {@linkplain #snapshot snapshot} stops being usable. */
+	private transient volatile long snapshotExpiry;
+	/** Incremented whenever the snapshot is invalidated. */
+	private transient int snapshotGeneration;
+	/** The remote filesystem of the run, or <tt>null</tt> if not yet fetched. */
+	private transient volatile RemoteFilesystem filesystem;
+	/**
+	 * The handle to the back end that calls are made through, or <tt>null</tt>
+	 * if not yet made.
+	 */
+	private transient volatile RemoteSingleRun remote;
 	private static final String ELLIPSIS = "...";
 
+	/**
+	 * The properties of a run that are written to the database after
+	 * creation, and which are tracked so that a flush only writes what has
+	 * changed.
+	 * 
+	 * @author Donal Fellows
+	 */
+	enum Property {
+		NAME, EXPIRY, READERS, WRITERS, DESTROYERS, PROVENANCE, CREDENTIALS, TRUST
+	}
+
 	public RemoteRunDelegate(Date creationInstant, Workflow workflow,
 			RemoteSingleRun rsr, int defaultLifetime, RunDBSupport db, UUID id,
 			boolean generateProvenance, FactoryBean factory) {
@@ -124,6 +183,159 @@ public class RemoteRunDelegate implements TavernaRun {
 	RemoteRunDelegate() {
 	}
 
+	/**
+	 * Note that some properties have changed.
+	 * 
+	 * @param changed
+	 *            The properties that have changed.
+	 */
+	void markDirty(Property... changed) {
+		synchronized (dirty) {
+			dirty.addAll(Arrays.asList(changed));
+		}
+	}
+
+	/**
+	 * Note that some properties have changed, and ask for them to be written
+	 * to the database.
+	 * 
+	 * @param changed
+	 *            The properties that have changed.
+	 */
+	private void flush(Property... changed) {
+		markDirty(changed);
+		db.flushToDisk(this);
+	}
+
+	/**
+	 * Get the set of properties that have changed since the last flush, and
+	 * reset it.
+	 * 
+	 * @return The changed properties; empty if there are none.
+	 */
+	@Nonnull
+	Set<Property> takeDirty() {
+		synchronized (dirty) {
+			Set<Property> result = EnumSet.copyOf(dirty);
+			dirty.clear();
+			return result;
+		}
+	}
+
+	/**
+	 * Put back properties as being changed, typically because writing them to
+	 * the database failed.
+	 * 
+	 * @param changed
+	 *            The properties to mark as changed.
+	 */
+	void restoreDirty(@Nonnull Set<Property> changed) {
+		synchronized (dirty) {
+			dirty.addAll(changed);
+		}
+	}
+
+	/**
+	 * @return Whether a call to the back end of this run has failed since
+	 *         {@link #clearRemoteFailure()} was last called (as it is when the
+	 *         run is successfully {@linkplain #ping() pinged}).
+	 */
+	boolean hasRemoteFailed() {
+		return remoteFailed;
+	}
+
+	/**
+	 * Note that the back end of this run has been found to be alive.
+	 */
+	void clearRemoteFailure() {
+		remoteFailed = false;
+	}
+
+	/**
+	 * Get the handle to use to call the back end of the run. If the database
+	 * supplies a {@linkplain WorkerCalls call manager}, the calls are made
+	 * through that so that they have deadlines.
+	 * 
+	 * @return The handle.
+	 */
+	@Nonnull
+	RemoteSingleRun remote() {
+		RemoteSingleRun r = remote;
+		if (r == null) {
+			WorkerCalls calls = (db == null ? null : db.getWorkerCalls());
+			r = (calls == null ? run : calls.wrap(RemoteSingleRun.class,
+					getId(), getWorkerProcessKey(), run));
+			remote = r;
+		}
+		return r;
+	}
+
+	private String getOwnerName() {
+		return secContext == null ? null : secContext.getOwner().getName();
+	}
+
+	/**
+	 * @return The key of the back end process holding the run.
+	 */
+	private String getWorkerProcessKey() {
+		String owner = getOwnerName();
+		if (factory == null || owner == null)
+			return "";
+		return factory.getWorkerProcessKey(owner);
+	}
+
+	/**
+	 * Get a description of the state of the run, fetching it from the back end
+	 * if the one we have is too old or has been invalidated. This means that
+	 * describing a run takes one call to the back end, not one per property.
+	 * 
+	 * @return The description, or <tt>null</tt> if the back end no longer
+	 *         holds the run.
+	 * @throws GeneralFailureException
+	 *             If the back end could not be asked just now (e.g., because
+	 *             it did not answer in time). The run may well still exist,
+	 *             so this is reported as the service being unavailable.
+	 */
+	private RemoteRunSnapshot getSnapshot() {
+		RemoteRunSnapshot s = snapshot;
+		long now = currentTimeMillis();
+		if (s != null && now < snapshotExpiry)
+			return s;
+		int generation;
+		synchronized (this) {
+			generation = snapshotGeneration;
+		}
+		try {
+			s = remote().getSnapshot();
+		} catch (WorkerTimeoutException | WorkerUnavailableException
+				| WorkerBusyException e) {
+			remoteFailed = true;
+			throw new GeneralFailureException("failed to get state of run", e);
+		} catch (RemoteException e) {
+			remoteFailed = true;
+			log.warn("failed to get state of run", e);
+			return null;
+		}
+		long lifetime = (db == null ? 0 : db.getSnapshotLifetime());
+		synchronized (this) {
+			// Don't cache if the run was changed while we were asking
+			if (generation == snapshotGeneration) {
+				snapshot = s;
+				snapshotExpiry = now + lifetime;
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Discard the cached description of the state of the run, because the
+	 * run has been changed.
+	 */
+	synchronized void invalidateSnapshot() {
+		snapshotGeneration++;
+		snapshot = null;
+	}
+
 	/**
 	 * Get the types of listener supported by this run.
 	 * 
@@ -132,15 +344,17 @@ public class RemoteRunDelegate implements TavernaRun {
 	 *             If anything goes wrong.
 	 */
 	public List<String> getListenerTypes() throws RemoteException {
-		return run.getListenerTypes();
+		return remote().getListenerTypes();
 	}
 
 	@Override
 	public void addListener(Listener listener) {
 		if (listener instanceof ListenerDelegate)
 			try {
-				run.addListener(((ListenerDelegate) listener).getRemote());
+				remote().addListener(((ListenerDelegate) listener).getRemote());
+				invalidateSnapshot();
 			} catch (RemoteException e) {
+				remoteFailed = true;
 				log.warn("communication problem adding listener", e);
 			} catch (ImplementationException e) {
 				log.warn("implementation problem adding listener", e);
@@ -171,16 +385,21 @@ public class RemoteRunDelegate implements TavernaRun {
 	public Listener makeListener(String type, String config)
 			throws NoListenerException {
 		try {
-			return new ListenerDelegate(run.makeListener(type, config));
+			Listener l = new ListenerDelegate(remote().makeListener(type,
+					config));
+			invalidateSnapshot();
+			return l;
 		} catch (RemoteException e) {
+			remoteFailed = true;
 			throw new NoListenerException("failed to make listener", e);
 		}
 	}
 
 	@Override
 	public void destroy() {
+		invalidateSnapshot();
 		try {
-			run.destroy();
+			remote().destroy();
 		} catch (RemoteException | ImplementationException e) {
 			log.warn("failed to destroy run", e);
 		}
@@ -194,12 +413,11 @@ public class RemoteRunDelegate implements TavernaRun {
 	@Override
 	public List<Listener> getListeners() {
 		List<Listener> listeners = new ArrayList<>();
-		try {
-			for (RemoteListener rl : run.getListeners())
-				listeners.add(new ListenerDelegate(rl));
-		} catch (RemoteException e) {
-			log.warn("failed to get listeners", e);
-		}
+		RemoteRunSnapshot s = getSnapshot();
+		if (s != null)
+			for (ListenerState ls : s.getListeners())
+				listeners.add(new ListenerDelegate(ls.getListener(), ls
+						.getName(), ls.getConfiguration()));
 		return listeners;
 	}
 
@@ -208,10 +426,42 @@ public class RemoteRunDelegate implements TavernaRun {
 		return secContext;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * A run that its back end no longer holds is finished.
+	 * 
+	 * @throws GeneralFailureException
+	 *             If the back end could not be asked just now.
+	 */
 	@Override
 	public Status getStatus() {
+		Status s = status(getSnapshot());
+		return s == null ? Status.Finished : s;
+	}
+
+	/**
+	 * Get the state of the run. Unlike {@link #getStatus()}, this does not
+	 * report a run whose back end could not be asked (e.g., because it did not
+	 * answer in time) as finished, and does not fail if it could not be
+	 * asked.
+	 * 
+	 * @return The state, or <tt>null</tt> if it is not known.
+	 */
+	@Nullable
+	Status getKnownStatus() {
 		try {
-			switch (run.getStatus()) {
+			return status(getSnapshot());
+		} catch (GeneralFailureException e) {
+			log.warn("failed to get state of run", e.getCause());
+			return null;
+		}
+	}
+
+	@Nullable
+	private static Status status(@Nullable RemoteRunSnapshot s) {
+		if (s != null)
+			switch (s.getStatus()) {
 			case Initialized:
 				return Status.Initialized;
 			case Operating:
@@ -221,10 +471,7 @@ public class RemoteRunDelegate implements TavernaRun {
 			case Finished:
 				return Status.Finished;
 			}
-		} catch (RemoteException e) {
-			log.warn("problem getting remote status", e);
-		}
-		return Status.Finished;
+		return null;
 	}
 
 	@Override
@@ -235,7 +482,9 @@ public class RemoteRunDelegate implements TavernaRun {
 	@Override
 	public Directory getWorkingDirectory() throws FilesystemAccessException {
 		try {
-			return new DirectoryDelegate(run.getWorkingDirectory());
+			if (filesystem == null)
+				filesystem = remote().getFilesystem();
+			return new DirectoryDelegate(filesystem);
 		} catch (Throwable e) {
 			if (e.getCause() != null)
 				e = e.getCause();
@@ -248,7 +497,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	public void setExpiry(Date d) {
 		if (d.after(new Date()))
 			expiry = new Date(d.getTime());
-		db.flushToDisk(this);
+		flush(Property.EXPIRY);
 	}
 
 	@Override
@@ -257,16 +506,17 @@ public class RemoteRunDelegate implements TavernaRun {
 			log.info("setting status of run " + id + " to " + s);
 			switch (s) {
 			case Initialized:
-				run.setStatus(RemoteStatus.Initialized);
+				remote().setStatus(RemoteStatus.Initialized);
 				break;
 			case Operating:
-				if (run.getStatus() == RemoteStatus.Initialized) {
+				if (remote().getStatus() == RemoteStatus.Initialized) {
 					if (!factory.isAllowingRunsToStart())
 						throw new OverloadedException();
 					secContext.conveySecurity();
 				}
-				run.setGenerateProvenance(generateProvenance);
-				run.setStatus(RemoteStatus.Operating);
+				remote().setGenerateProvenance(generateProvenance);
+				remote().setStatus(RemoteStatus.Operating);
+				db.runStarted(getId());
 				factory.getMasterEventFeed()
 						.started(
 								this,
@@ -275,16 +525,22 @@ public class RemoteRunDelegate implements TavernaRun {
 										+ "' has started.");
 				break;
 			case Stopped:
-				run.setStatus(RemoteStatus.Stopped);
+				remote().setStatus(RemoteStatus.Stopped);
 				break;
 			case Finished:
-				run.setStatus(RemoteStatus.Finished);
+				remote().setStatus(RemoteStatus.Finished);
 				break;
 			}
 			return null;
 		} catch (IllegalStateTransitionException e) {
 			throw new BadStateChangeException(e.getMessage());
+		} catch (WorkerTimeoutException | WorkerUnavailableException
+				| WorkerBusyException e) {
+			// Keep these as the cause so that they are reported as transient
+			remoteFailed = true;
+			throw new BadStateChangeException(e.getMessage(), e);
 		} catch (RemoteException e) {
+			remoteFailed = true;
 			throw new BadStateChangeException(e.getMessage(), e.getCause());
 		} catch (GeneralSecurityException | IOException e) {
 			throw new BadStateChangeException(e.getMessage(), e);
@@ -299,6 +555,8 @@ public class RemoteRunDelegate implements TavernaRun {
 		} catch (InterruptedException e) {
 			throw new BadStateChangeException(
 					"interrupted while waiting to insert notification into database");
+		} finally {
+			invalidateSnapshot();
 		}
 	}
 
@@ -313,41 +571,34 @@ public class RemoteRunDelegate implements TavernaRun {
 
 	@Override
 	public String getInputBaclavaFile() {
-		try {
-			return run.getInputBaclavaFile();
-		} catch (RemoteException e) {
-			log.warn("problem when fetching input baclava file", e);
-			return null;
-		}
+		RemoteRunSnapshot s = getSnapshot();
+		return s == null ? null : s.getInputBaclavaFile();
 	}
 
 	@Override
 	public List<Input> getInputs() {
 		ArrayList<Input> inputs = new ArrayList<>();
-		try {
-			for (RemoteInput ri : run.getInputs())
-				inputs.add(new RunInput(ri));
-		} catch (RemoteException e) {
-			log.warn("problem when fetching list of workflow inputs", e);
-		}
+		RemoteRunSnapshot s = getSnapshot();
+		if (s != null)
+			for (InputState is : s.getInputs())
+				inputs.add(new RunInput(this, is));
 		return inputs;
 	}
 
 	@Override
 	public String getOutputBaclavaFile() {
-		try {
-			return run.getOutputBaclavaFile();
-		} catch (RemoteException e) {
-			log.warn("problem when fetching output baclava file", e);
-			return null;
-		}
+		RemoteRunSnapshot s = getSnapshot();
+		return s == null ? null : s.getOutputBaclavaFile();
 	}
 
 	@Override
 	public Input makeInput(String name) throws BadStateChangeException {
 		try {
-			return new RunInput(run.makeInput(name));
+			Input i = new RunInput(this, remote().makeInput(name));
+			invalidateSnapshot();
+			return i;
 		} catch (RemoteException e) {
+			remoteFailed = true;
 			throw new BadStateChangeException("failed to make input", e);
 		}
 	}
@@ -357,8 +608,10 @@ public class RemoteRunDelegate implements TavernaRun {
 			throws FilesystemAccessException, BadStateChangeException {
 		checkBadFilename(filename);
 		try {
-			run.setInputBaclavaFile(filename);
+			remote().setInputBaclavaFile(filename);
+			invalidateSnapshot();
 		} catch (RemoteException e) {
+			remoteFailed = true;
 			throw new FilesystemAccessException(
 					"cannot set input baclava file name", e);
 		}
@@ -369,8 +622,10 @@ public class RemoteRunDelegate implements TavernaRun {
 			throws FilesystemAccessException, BadStateChangeException {
 		checkBadFilename(filename);
 		try {
-			run.setOutputBaclavaFile(filename);
+			remote().setOutputBaclavaFile(filename);
+			invalidateSnapshot();
 		} catch (RemoteException e) {
+			remoteFailed = true;
 			throw new FilesystemAccessException(
 					"cannot set output baclava file name", e);
 		}
@@ -384,22 +639,14 @@ public class RemoteRunDelegate implements TavernaRun {
 
 	@Override
 	public Date getFinishTimestamp() {
-		try {
-			return run.getFinishTimestamp();
-		} catch (RemoteException e) {
-			log.info("failed to get finish timestamp", e);
-			return null;
-		}
+		RemoteRunSnapshot s = getSnapshot();
+		return s == null ? null : s.getFinishTimestamp();
 	}
 
 	@Override
 	public Date getStartTimestamp() {
-		try {
-			return run.getStartTimestamp();
-		} catch (RemoteException e) {
-			log.info("failed to get finish timestamp", e);
-			return null;
-		}
+		RemoteRunSnapshot s = getSnapshot();
+		return s == null ? null : s.getStartTimestamp();
 	}
 
 	/**
@@ -408,7 +655,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	 */
 	public void setReaders(Set<String> readers) {
 		this.readers = new HashSet<>(readers);
-		db.flushToDisk(this);
+		flush(Property.READERS);
 	}
 
 	/**
@@ -425,7 +672,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	 */
 	public void setWriters(Set<String> writers) {
 		this.writers = new HashSet<>(writers);
-		db.flushToDisk(this);
+		flush(Property.WRITERS);
 	}
 
 	/**
@@ -442,7 +689,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	 */
 	public void setDestroyers(Set<String> destroyers) {
 		this.destroyers = new HashSet<>(destroyers);
-		db.flushToDisk(this);
+		flush(Property.DESTROYERS);
 	}
 
 	/**
@@ -468,13 +715,14 @@ public class RemoteRunDelegate implements TavernaRun {
 	@Override
 	public void setGenerateProvenance(boolean generateProvenance) {
 		this.generateProvenance = generateProvenance;
-		db.flushToDisk(this);
+		flush(Property.PROVENANCE);
 	}
 
 	@SuppressWarnings("unchecked")
 	private void readObject(ObjectInputStream in) throws IOException,
 			ClassNotFoundException {
 		in.defaultReadObject();
+		dirty = EnumSet.noneOf(Property.class);
 		if (log == null)
 			log = getLog("Taverna.Server.LocalWorker");
 		final String creatorName = in.readUTF();
@@ -506,13 +754,31 @@ public class RemoteRunDelegate implements TavernaRun {
 			this.name = name.substring(0, RunConnection.NAME_LENGTH);
 		else
 			this.name = name;
-		db.flushToDisk(this);
+		flush(Property.NAME);
+	}
+
+	@Override
+	public boolean isDegraded() {
+		String owner = getOwnerName();
+		return db != null && owner != null && db.isWorkerDegraded(owner);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * A back end that can't be asked just now (because it is known to not be
+	 * responding, or the call did not complete in time) may well still hold
+	 * the run, so that is not reported as the run being unknown; it is only
+	 * noted as a {@linkplain #hasRemoteFailed() failure}.
+	 */
 	@Override
 	public void ping() throws UnknownRunException {
 		try {
-			run.ping();
+			remote().ping();
+			clearRemoteFailure();
+		} catch (WorkerTimeoutException | WorkerUnavailableException
+				| WorkerBusyException e) {
+			remoteFailed = true;
 		} catch (RemoteException e) {
 			throw new UnknownRunException(e);
 		}
@@ -521,20 +787,63 @@ public class RemoteRunDelegate implements TavernaRun {
 
 abstract class DEDelegate implements DirectoryEntry {
 	Log log = getLog("Taverna.Server.Worker");
-	private RemoteDirectoryEntry entry;
-	private String name;
-	private String full;
+	/** The filesystem of the run that holds this entry. */
+	final RemoteFilesystem fs;
+	/** The path to this entry; the empty string for the working directory. */
+	final String path;
+	private final String name;
+	private final String full;
 	private Date cacheModTime;
 	private long cacheQueryTime = 0L;
 
-	DEDelegate(RemoteDirectoryEntry entry) {
-		this.entry = entry;
+	/**
+	 * Make a handle for the working directory of a run.
+	 */
+	DEDelegate(RemoteFilesystem fs) {
+		this.fs = fs;
+		this.path = "";
+		this.name = "";
+		this.full = "";
+	}
+
+	DEDelegate(RemoteFilesystem fs, RemoteEntryAttributes attrs) {
+		this.fs = fs;
+		this.full = attrs.getFullName();
+		this.path = full.startsWith("/") ? full.substring(1) : full;
+		this.name = attrs.getName();
+		this.cacheModTime = attrs.getModificationDate();
+		this.cacheQueryTime = currentTimeMillis();
+	}
+
+	/**
+	 * Make a handle for an entry in the filesystem of a run.
+	 * 
+	 * @param fs
+	 *            The filesystem holding the entry.
+	 * @param attrs
+	 *            The description of the entry.
+	 * @return The handle.
+	 */
+	static DEDelegate make(RemoteFilesystem fs, RemoteEntryAttributes attrs) {
+		if (attrs.getType() == DIRECTORY)
+			return new DirectoryDelegate(fs, attrs);
+		return new FileDelegate(fs, attrs);
+	}
+
+	/**
+	 * @param name
+	 *            The "<tt>/</tt>"-separated path of an entry relative to this
+	 *            one.
+	 * @return The path of that entry relative to the working directory.
+	 */
+	String child(String name) {
+		return path.isEmpty() ? name : path + "/" + name;
 	}
 
 	@Override
 	public void destroy() throws FilesystemAccessException {
 		try {
-			entry.destroy();
+			fs.delete(path);
 		} catch (IOException e) {
 			throw new FilesystemAccessException(
 					"failed to delete directory entry", e);
@@ -543,42 +852,21 @@ abstract class DEDelegate implements DirectoryEntry {
 
 	@Override
 	public String getFullName() {
-		if (full != null)
-			return full;
-		String n = getName();
-		RemoteDirectoryEntry re = entry;
-		try {
-			while (true) {
-				RemoteDirectory parent = re.getContainingDirectory();
-				if (parent == null)
-					break;
-				n = parent.getName() + "/" + n;
-				re = parent;
-			}
-		} catch (RemoteException e) {
-			log.warn("failed to generate full name", e);
-		}
-		return (full = n);
+		return full;
 	}
 
 	@Override
 	public String getName() {
-		if (name == null)
-			try {
-				name = entry.getName();
-			} catch (RemoteException e) {
-				log.error("failed to get name", e);
-			}
 		return name;
 	}
 
 	@Override
 	public Date getModificationDate() {
-		if (cacheModTime == null || currentTimeMillis() - cacheQueryTime < 5000)
+		if (cacheModTime == null || currentTimeMillis() - cacheQueryTime > 5000)
 			try {
-				cacheModTime = entry.getModificationDate();
+				cacheModTime = fs.stat(path).getModificationDate();
 				cacheQueryTime = currentTimeMillis();
-			} catch (RemoteException e) {
+			} catch (IOException e) {
 				log.error("failed to get modification time", e);
 			}
 		return cacheModTime;
@@ -602,11 +890,31 @@ abstract class DEDelegate implements DirectoryEntry {
 }
 
 class DirectoryDelegate extends DEDelegate implements Directory {
-	RemoteDirectory rd;
+	/** The most ZIP archives to build here at once. */
+	private static final int MAX_ZIPPERS = 4;
+	/**
+	 * Where ZIP archives are built when the worker can't build them itself.
+	 * Bounded so that many requests for archives can't use up the master's
+	 * threads. Requests beyond that are refused rather than queued, as each
+	 * would hold a request thread while it waited.
+	 */
+	private static final ExecutorService zippers = new ThreadPoolExecutor(
+			MAX_ZIPPERS, MAX_ZIPPERS, 60, SECONDS,
+			new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "directory zipper");
+					t.setDaemon(true);
+					return t;
+				}
+			});
 
-	DirectoryDelegate(RemoteDirectory dir) {
-		super(dir);
-		rd = dir;
+	DirectoryDelegate(RemoteFilesystem fs) {
+		super(fs);
+	}
+
+	DirectoryDelegate(RemoteFilesystem fs, RemoteEntryAttributes attrs) {
+		super(fs, attrs);
 	}
 
 	@Override
@@ -614,12 +922,8 @@ class DirectoryDelegate extends DEDelegate implements Directory {
 			throws FilesystemAccessException {
 		ArrayList<DirectoryEntry> result = new ArrayList<>();
 		try {
-			for (RemoteDirectoryEntry rde : rd.getContents()) {
-				if (rde instanceof RemoteDirectory)
-					result.add(new DirectoryDelegate((RemoteDirectory) rde));
-				else
-					result.add(new FileDelegate((RemoteFile) rde));
-			}
+			for (RemoteEntryAttributes attrs : fs.list(path))
+				result.add(make(fs, attrs));
 		} catch (IOException e) {
 			throw new FilesystemAccessException(
 					"failed to get directory contents", e);
@@ -627,6 +931,22 @@ class DirectoryDelegate extends DEDelegate implements Directory {
 		return result;
 	}
 
+	@Override
+	public DirectoryEntry resolve(String relativePath)
+			throws FilesystemAccessException, NoDirectoryEntryException {
+		try {
+			return make(fs, fs.stat(child(relativePath)));
+		} catch (NoSuchFileException e) {
+			throw new NoDirectoryEntryException("no such directory entry");
+		} catch (NotDirectoryException e) {
+			throw new FilesystemAccessException(
+					"trying to take subdirectory of file");
+		} catch (IOException e) {
+			throw new FilesystemAccessException(
+					"failed to look up directory entry", e);
+		}
+	}
+
 	@Override
 	public Collection<DirectoryEntry> getContentsByDate()
 			throws FilesystemAccessException {
@@ -646,7 +966,7 @@ class DirectoryDelegate extends DEDelegate implements Directory {
 	public File makeEmptyFile(Principal actor, String name)
 			throws FilesystemAccessException {
 		try {
-			return new FileDelegate(rd.makeEmptyFile(name));
+			return new FileDelegate(fs, fs.makeEmptyFile(child(name)));
 		} catch (IOException e) {
 			throw new FilesystemAccessException("failed to make empty file", e);
 		}
@@ -656,46 +976,81 @@ class DirectoryDelegate extends DEDelegate implements Directory {
 	public Directory makeSubdirectory(Principal actor, String name)
 			throws FilesystemAccessException {
 		try {
-			return new DirectoryDelegate(rd.makeSubdirectory(name));
+			return new DirectoryDelegate(fs, fs.makeDirectory(child(name)));
 		} catch (IOException e) {
 			throw new FilesystemAccessException("failed to make subdirectory",
 					e);
 		}
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The archive is built by the worker and streamed straight from it. Only
+	 * if the worker is too old to do that is the archive built here, from the
+	 * contents read one file at a time. Failures to reach the worker are
+	 * reported as the service being unavailable.
+	 */
 	@Override
 	public ZipStream getContentsAsZip() throws FilesystemAccessException {
-		ZipStream zs = new ZipStream();
+		try {
+			return new ZipStream(FileStreamer.openArchive(fs, path));
+		} catch (UnmarshalException e) {
+			log.info("falling back to zipping directory in the master", e);
+		} catch (FileSystemException | FileNotFoundException
+				| WorkerTimeoutException | WorkerUnavailableException
+				| WorkerBusyException e) {
+			throw new FilesystemAccessException("failed to archive directory",
+					e);
+		} catch (IOException e) {
+			// Couldn't reach the worker's transfer socket, or it broke off
+			log.warn("failed to transfer archive from back end", e);
+			throw new FilesystemAccessException("failed to archive directory",
+					new WorkerUnavailableException(
+							"failed to transfer archive from back end: "
+									+ e.getMessage()));
+		}
 
+		PipedInputStream pipe = new PipedInputStream();
+		final PipedOutputStream out;
 		final ZipOutputStream zos;
 		try {
-			zos = new ZipOutputStream(new PipedOutputStream(zs));
+			out = new PipedOutputStream(pipe);
+			zos = new ZipOutputStream(out);
 		} catch (IOException e) {
 			throw new FilesystemAccessException("problem building zip stream",
 					e);
 		}
-		Thread t = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					zipDirectory(rd, null, zos);
-				} catch (IOException e) {
-					log.warn("problem when zipping directory", e);
-				} finally {
-					closeQuietly(zos);
+		try {
+			zippers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						zipDirectory(path, null, zos);
+						zos.close();
+					} catch (IOException | RuntimeException e) {
+						log.warn("problem when zipping directory", e);
+						/*
+						 * Close the pipe without finishing the archive, so the
+						 * reader sees it is truncated instead of complete.
+						 */
+						closeQuietly(out);
+					}
 				}
-			}
-		});
-		t.setDaemon(true);
-		t.start();
-		return zs;
+			});
+		} catch (RejectedExecutionException e) {
+			throw new FilesystemAccessException("failed to archive directory",
+					new WorkerBusyException("getContentsAsZip",
+							"too many directories being archived"));
+		}
+		return new ZipStream(new FileStreamer.ArchiveStream(pipe));
 	}
 
 	/**
 	 * Compresses a directory tree into a ZIP.
 	 * 
 	 * @param dir
-	 *            The directory to compress.
+	 *            The path to the directory to compress.
 	 * @param base
 	 *            The base name of the directory (or <tt>null</tt> if this is
 	 *            the root directory of the ZIP).
@@ -706,27 +1061,21 @@ class DirectoryDelegate extends DEDelegate implements Directory {
 	 * @throws IOException
 	 *             If we run into problems with reading or writing data.
 	 */
-	void zipDirectory(RemoteDirectory dir, String base, ZipOutputStream zos)
+	void zipDirectory(String dir, String base, ZipOutputStream zos)
 			throws RemoteException, IOException {
-		for (RemoteDirectoryEntry rde : dir.getContents()) {
-			String name = rde.getName();
+		for (RemoteEntryAttributes attrs : fs.list(dir)) {
+			String name = attrs.getName();
+			String entryPath = (dir.isEmpty() ? name : dir + "/" + name);
 			if (base != null)
 				name = base + "/" + name;
-			if (rde instanceof RemoteDirectory) {
-				RemoteDirectory rd = (RemoteDirectory) rde;
-				zipDirectory(rd, name, zos);
+			if (attrs.getType() == DIRECTORY) {
+				zipDirectory(entryPath, name, zos);
 			} else {
-				RemoteFile rf = (RemoteFile) rde;
 				zos.putNextEntry(new ZipEntry(name));
 				try {
-					int off = 0;
-					while (true) {
-						byte[] c = rf.getContents(off, 64 * 1024);
-						if (c == null || c.length == 0)
-							break;
-						zos.write(c);
-						off += c.length;
-					}
+					FileStreamer.copy(fs, entryPath, 0, -1, 64 * 1024, zos);
+				} catch (FilesystemAccessException e) {
+					throw new IOException("problem when reading file", e);
 				} finally {
 					zos.closeEntry();
 				}
@@ -736,28 +1085,40 @@ class DirectoryDelegate extends DEDelegate implements Directory {
 }
 
 class FileDelegate extends DEDelegate implements File {
-	RemoteFile rf;
+	/**
+	 * The length of the file when it was described, or <tt>null</tt> if it
+	 * must be asked for.
+	 */
+	private Long listedSize;
 
-	FileDelegate(RemoteFile f) {
-		super(f);
-		this.rf = f;
+	FileDelegate(RemoteFilesystem fs, RemoteEntryAttributes attrs) {
+		super(fs, attrs);
+		this.listedSize = attrs.getSize();
 	}
 
 	@Override
-	public byte[] getContents(int offset, int length)
+	public byte[] getContents(long offset, int length)
 			throws FilesystemAccessException {
 		try {
-			return rf.getContents(offset, length);
+			return fs.read(path, offset, length);
 		} catch (IOException e) {
 			throw new FilesystemAccessException("failed to read file contents",
 					e);
 		}
 	}
 
+	@Override
+	public void writeContentsTo(OutputStream out, long offset, long length,
+			int chunkSize) throws FilesystemAccessException, IOException {
+		FileStreamer.copy(fs, path, offset, length, chunkSize, out);
+	}
+
 	@Override
 	public long getSize() throws FilesystemAccessException {
+		if (listedSize != null)
+			return listedSize;
 		try {
-			return rf.getSize();
+			return fs.stat(path).getSize();
 		} catch (IOException e) {
 			throw new FilesystemAccessException("failed to get file length", e);
 		}
@@ -766,17 +1127,26 @@ class FileDelegate extends DEDelegate implements File {
 	@Override
 	public void setContents(byte[] data) throws FilesystemAccessException {
 		try {
-			rf.setContents(data);
+			listedSize = null;
+			fs.write(path, data, false);
 		} catch (IOException e) {
 			throw new FilesystemAccessException(
 					"failed to write file contents", e);
 		}
 	}
 
+	@Override
+	public void setContents(InputStream data)
+			throws FilesystemAccessException, IOException {
+		listedSize = null;
+		listedSize = FileUploader.upload(fs, path, data);
+	}
+
 	@Override
 	public void appendContents(byte[] data) throws FilesystemAccessException {
 		try {
-			rf.appendContents(data);
+			listedSize = null;
+			fs.write(path, data, true);
 		} catch (IOException e) {
 			throw new FilesystemAccessException(
 					"failed to write file contents", e);
@@ -793,7 +1163,8 @@ class FileDelegate extends DEDelegate implements File {
 		}
 
 		try {
-			rf.copy(fromFile.rf);
+			listedSize = null;
+			fs.copy(fromFile.fs, fromFile.path, path);
 		} catch (Exception e) {
 			throw new FilesystemAccessException("failed to copy file contents",
 					e);
@@ -806,11 +1177,18 @@ class ListenerDelegate implements Listener {
 	private Log log = getLog("Taverna.Server.Worker");
 	private RemoteListener r;
 	String conf;
+	private String name;
 
 	ListenerDelegate(RemoteListener l) {
 		r = l;
 	}
 
+	ListenerDelegate(RemoteListener l, String name, String conf) {
+		r = l;
+		this.name = name;
+		this.conf = conf;
+	}
+
 	RemoteListener getRemote() {
 		return r;
 	}
@@ -829,7 +1207,9 @@ class ListenerDelegate implements Listener {
 	@Override
 	public String getName() {
 		try {
-			return r.getName();
+			if (name == null)
+				name = r.getName();
+			return name;
 		} catch (RemoteException e) {
 			log.warn("failed to get name", e);
 			return "UNKNOWN NAME";
@@ -885,14 +1265,45 @@ class ListenerDelegate implements Listener {
 }
 
 class RunInput implements Input {
-	private final RemoteInput i;
+	private final RemoteRunDelegate owner;
+	private RemoteInput i;
+	/**
+	 * The state of the input when the run was described, or <tt>null</tt> if
+	 * the input must be asked directly (because it has been changed).
+	 */
+	private InputState state;
 
-	RunInput(RemoteInput remote) {
+	RunInput(RemoteRunDelegate owner, RemoteInput remote) {
+		this.owner = owner;
 		this.i = remote;
 	}
 
+	RunInput(RemoteRunDelegate owner, InputState state) {
+		this.owner = owner;
+		this.state = state;
+	}
+
+	/**
+	 * Get the handle to the input for changing it.
+	 */
+	private RemoteInput remote() throws RemoteException {
+		if (i == null)
+			i = owner.remote().makeInput(state.getName());
+		return i;
+	}
+
+	/**
+	 * Note that the input has been changed, so descriptions of it are stale.
+	 */
+	private void changed() {
+		state = null;
+		owner.invalidateSnapshot();
+	}
+
 	@Override
 	public String getFile() {
+		if (state != null)
+			return state.getFile();
 		try {
 			return i.getFile();
 		} catch (RemoteException e) {
@@ -902,6 +1313,8 @@ class RunInput implements Input {
 
 	@Override
 	public String getName() {
+		if (state != null)
+			return state.getName();
 		try {
 			return i.getName();
 		} catch (RemoteException e) {
@@ -911,6 +1324,8 @@ class RunInput implements Input {
 
 	@Override
 	public String getValue() {
+		if (state != null)
+			return state.getValue();
 		try {
 			return i.getValue();
 		} catch (RemoteException e) {
@@ -923,7 +1338,8 @@ class RunInput implements Input {
 			BadStateChangeException {
 		checkBadFilename(file);
 		try {
-			i.setFile(file);
+			remote().setFile(file);
+			changed();
 		} catch (RemoteException e) {
 			throw new FilesystemAccessException("cannot set file for input", e);
 		}
@@ -932,7 +1348,8 @@ class RunInput implements Input {
 	@Override
 	public void setValue(String value) throws BadStateChangeException {
 		try {
-			i.setValue(value);
+			remote().setValue(value);
+			changed();
 		} catch (RemoteException e) {
 			throw new BadStateChangeException(e);
 		}
@@ -940,6 +1357,8 @@ class RunInput implements Input {
 
 	@Override
 	public String getDelimiter() {
+		if (state != null)
+			return state.getDelimiter();
 		try {
 			return i.getDelimiter();
 		} catch (RemoteException e) {
@@ -952,7 +1371,8 @@ class RunInput implements Input {
 		try {
 			if (delimiter != null)
 				delimiter = delimiter.substring(0, 1);
-			i.setDelimiter(delimiter);
+			remote().setDelimiter(delimiter);
+			changed();
 		} catch (RemoteException e) {
 			throw new BadStateChangeException(e);
 		}
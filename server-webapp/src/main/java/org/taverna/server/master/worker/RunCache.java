@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static org.springframework.jmx.support.MetricType.COUNTER;
+import static org.springframework.jmx.support.MetricType.GAUGE;
+import static org.taverna.server.master.TavernaServer.JMX_ROOT;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.taverna.server.master.exceptions.UnknownRunException;
+import org.taverna.server.master.interfaces.TavernaRun;
+
+/**
+ * A bounded cache of the delegates for workflow runs. Each entry holds a lease
+ * on the liveness of its run; the run's back end is only checked (with an RMI
+ * ping) when the lease has expired or when a call to the back end has failed,
+ * instead of on every lookup. When the cache is full, the least recently used
+ * entries are evicted.
+ * 
+ * @author Donal Fellows
+ */
+@ManagedResource(objectName = JMX_ROOT + "RunCache", description = "The cache of workflow run handles.")
+public class RunCache {
+	private Log log = LogFactory.getLog("Taverna.Server.Worker.RunDB");
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final Object evictionLock = new Object();
+	private volatile int maxSize = 1000;
+	private volatile long leaseTime = 30000;
+	private Clock clock = Clock.SYSTEM;
+	private volatile long snapshotLifetime = 2000;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong revalidations = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private static class Entry {
+		final TavernaRun run;
+		volatile long leaseExpiry;
+		volatile long lastUsed;
+
+		Entry(TavernaRun run, long now, long leaseTime) {
+			this.run = run;
+			this.leaseExpiry = now + leaseTime;
+			this.lastUsed = now;
+		}
+
+		boolean needsRevalidation(long now) {
+			if (now >= leaseExpiry)
+				return true;
+			return run instanceof RemoteRunDelegate
+					&& ((RemoteRunDelegate) run).hasRemoteFailed();
+		}
+	}
+
+	private static class Victim implements Comparable<Victim> {
+		final String id;
+		final Entry entry;
+		final long lastUsed;
+
+		Victim(String id, Entry entry) {
+			this.id = id;
+			this.entry = entry;
+			this.lastUsed = entry.lastUsed;
+		}
+
+		@Override
+		public int compareTo(Victim o) {
+			return lastUsed < o.lastUsed ? -1 : lastUsed == o.lastUsed ? 0 : 1;
+		}
+	}
+
+	/**
+	 * @param clock
+	 *            Where to get the current time from. Only for testing.
+	 */
+	void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * @param maxSize
+	 *            The maximum number of runs to hold in the cache.
+	 */
+	@ManagedAttribute(description = "The maximum number of runs to hold in the cache.")
+	public void setMaxSize(int maxSize) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("cache must hold at least one run");
+		this.maxSize = maxSize;
+		evictIfNeeded();
+	}
+
+	@ManagedAttribute(description = "The maximum number of runs to hold in the cache.")
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param leaseTime
+	 *            How long a run is assumed to be alive after it was last
+	 *            checked, in milliseconds.
+	 */
+	@ManagedAttribute(description = "How long a run is assumed to be alive after it was last checked, in milliseconds.")
+	public void setLeaseTime(long leaseTime) {
+		this.leaseTime = Math.max(0, leaseTime);
+	}
+
+	@ManagedAttribute(description = "How long a run is assumed to be alive after it was last checked, in milliseconds.")
+	public long getLeaseTime() {
+		return leaseTime;
+	}
+
+	/**
+	 * @param snapshotLifetime
+	 *            How long a fetched description of the state of a run may be
+	 *            used for, in milliseconds. Changes made through this server
+	 *            discard the description anyway.
+	 */
+	@ManagedAttribute(description = "How long a fetched description of the state of a run may be used for, in milliseconds.")
+	public void setSnapshotLifetime(long snapshotLifetime) {
+		this.snapshotLifetime = Math.max(0, snapshotLifetime);
+	}
+
+	@ManagedAttribute(description = "How long a fetched description of the state of a run may be used for, in milliseconds.")
+	public long getSnapshotLifetime() {
+		return snapshotLifetime;
+	}
+
+	@ManagedMetric(description = "The number of runs currently in the cache.", metricType = GAUGE)
+	public int getSize() {
+		return entries.size();
+	}
+
+	@ManagedMetric(description = "The number of lookups that were satisfied by the cache.", metricType = COUNTER)
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	@ManagedMetric(description = "The number of lookups that were not satisfied by the cache.", metricType = COUNTER)
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	@ManagedMetric(description = "The number of times that a cached run has been checked for liveness.", metricType = COUNTER)
+	public long getRevalidationCount() {
+		return revalidations.get();
+	}
+
+	@ManagedMetric(description = "The number of runs evicted from the cache because it was full.", metricType = COUNTER)
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	@ManagedOperation(description = "Empty the cache.")
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Look up a run, checking that its back end is still alive if the lease
+	 * on it has expired.
+	 * 
+	 * @param id
+	 *            The ID of the run.
+	 * @return The run, or <tt>null</tt> if it is not in the cache or its back
+	 *         end could not be contacted (in which case it is removed).
+	 */
+	@Nullable
+	public TavernaRun get(@Nonnull String id) {
+		Entry e = entries.get(id);
+		if (e == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		long now = clock.currentTimeMillis();
+		if (e.needsRevalidation(now)) {
+			revalidations.incrementAndGet();
+			try {
+				e.run.ping();
+			} catch (UnknownRunException ex) {
+				if (log.isDebugEnabled())
+					log.debug("stale mapping in cache?", ex);
+				entries.remove(id);
+				misses.incrementAndGet();
+				return null;
+			}
+			boolean unanswered = e.run instanceof RemoteRunDelegate
+					&& ((RemoteRunDelegate) e.run).hasRemoteFailed();
+			// If the back end couldn't be asked, check again next time
+			if (!unanswered)
+				e.leaseExpiry = now + leaseTime;
+		}
+		e.lastUsed = now;
+		hits.incrementAndGet();
+		return e.run;
+	}
+
+	/**
+	 * Look up a run without checking its liveness or updating the statistics.
+	 * 
+	 * @param id
+	 *            The ID of the run.
+	 * @return The run, or <tt>null</tt> if it is not in the cache.
+	 */
+	@Nullable
+	public TavernaRun peek(@Nonnull String id) {
+		Entry e = entries.get(id);
+		return e == null ? null : e.run;
+	}
+
+	/**
+	 * Add a run to the cache, with a fresh lease. May cause other runs to be
+	 * evicted.
+	 * 
+	 * @param id
+	 *            The ID of the run.
+	 * @param run
+	 *            The run.
+	 */
+	public void put(@Nonnull String id, @Nonnull TavernaRun run) {
+		entries.put(id, new Entry(run, clock.currentTimeMillis(), leaseTime));
+		evictIfNeeded();
+	}
+
+	/**
+	 * Remove a run from the cache.
+	 * 
+	 * @param id
+	 *            The ID of the run.
+	 */
+	public void remove(@Nonnull String id) {
+		entries.remove(id);
+	}
+
+	/**
+	 * Evict the least recently used entries if the cache is over-full. Evicts
+	 * down to 90% of the maximum size so that the cost of sorting the entries
+	 * is not paid on every insertion once the cache is full.
+	 */
+	private void evictIfNeeded() {
+		if (entries.size() <= maxSize)
+			return;
+		synchronized (evictionLock) {
+			int target = maxSize - maxSize / 10;
+			if (entries.size() <= maxSize)
+				return;
+			// Snapshot the usage times; they change while we sort
+			List<Victim> all = new ArrayList<>(entries.size());
+			for (Map.Entry<String, Entry> e : entries.entrySet())
+				all.add(new Victim(e.getKey(), e.getValue()));
+			Collections.sort(all);
+			for (Victim v : all) {
+				if (entries.size() <= target)
+					break;
+				if (entries.remove(v.id, v.entry))
+					evictions.incrementAndGet();
+			}
+		}
+	}
+}
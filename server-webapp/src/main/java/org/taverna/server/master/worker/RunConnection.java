@@ -8,20 +8,34 @@ package org.taverna.server.master.worker;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static org.taverna.server.master.worker.RunConnection.COUNT_QUERY;
+import static org.taverna.server.master.worker.RunConnection.LEGACY_QUERY;
+import static org.taverna.server.master.worker.RunConnection.LEGACY_READERS_QUERY;
 import static org.taverna.server.master.worker.RunConnection.NAMES_QUERY;
 import static org.taverna.server.master.worker.RunConnection.SCHEMA;
 import static org.taverna.server.master.worker.RunConnection.TABLE;
 import static org.taverna.server.master.worker.RunConnection.TIMEOUT_QUERY;
 import static org.taverna.server.master.worker.RunConnection.UNTERMINATED_QUERY;
+import static org.taverna.server.master.worker.RunConnection.VISIBLE_QUERY;
+import static org.taverna.server.master.worker.RunConnectionCodec.decodeCredentials;
+import static org.taverna.server.master.worker.RunConnectionCodec.decodeRun;
+import static org.taverna.server.master.worker.RunConnectionCodec.decodeTrust;
+import static org.taverna.server.master.worker.RunConnectionCodec.decodeWorkflow;
+import static org.taverna.server.master.worker.RunConnectionCodec.encodeCredentials;
+import static org.taverna.server.master.worker.RunConnectionCodec.encodeRun;
+import static org.taverna.server.master.worker.RunConnectionCodec.encodeTrust;
 
 import java.io.IOException;
 import java.rmi.MarshalledObject;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.annotation.Nonnull;
 import javax.jdo.annotations.Column;
+import javax.jdo.annotations.Element;
+import javax.jdo.annotations.Index;
 import javax.jdo.annotations.Join;
 import javax.jdo.annotations.PersistenceCapable;
 import javax.jdo.annotations.Persistent;
@@ -35,6 +49,7 @@ import org.taverna.server.master.common.Trust;
 import org.taverna.server.master.common.Workflow;
 import org.taverna.server.master.interfaces.SecurityContextFactory;
 import org.taverna.server.master.utils.UsernamePrincipal;
+import org.taverna.server.master.worker.RemoteRunDelegate.Property;
 
 /**
  * The representation of the connections to the runs that actually participates
@@ -47,17 +62,35 @@ import org.taverna.server.master.utils.UsernamePrincipal;
 		@Query(name = "count", language = "SQL", value = COUNT_QUERY, unique = "true", resultClass = Integer.class),
 		@Query(name = "names", language = "SQL", value = NAMES_QUERY, unique = "false", resultClass = String.class),
 		@Query(name = "unterminated", language = "SQL", value = UNTERMINATED_QUERY, unique = "false", resultClass = String.class),
-		@Query(name = "timedout", language = "SQL", value = TIMEOUT_QUERY, unique = "false", resultClass = String.class) })
+		@Query(name = "timedout", language = "SQL", value = TIMEOUT_QUERY, unique = "false", resultClass = String.class),
+		@Query(name = "visibleTo", language = "JDOQL", value = VISIBLE_QUERY, unique = "false"),
+		@Query(name = "legacy", language = "SQL", value = LEGACY_QUERY, unique = "false", resultClass = String.class),
+		@Query(name = "legacyReaders", language = "SQL", value = LEGACY_READERS_QUERY, unique = "false", resultClass = String.class) })
 public class RunConnection {
 	static final String SCHEMA = "TAVERNA";
 	static final String TABLE = "RUN_CONNECTION";
-	private static final String FULL_NAME = SCHEMA + "." + TABLE;
+	static final String FULL_NAME = SCHEMA + "." + TABLE;
 	static final String COUNT_QUERY = "SELECT count(*) FROM " + FULL_NAME;
 	static final String NAMES_QUERY = "SELECT ID FROM " + FULL_NAME;
 	static final String TIMEOUT_QUERY = "SELECT ID FROM " + FULL_NAME
 			+ "   WHERE expiry < CURRENT_TIMESTAMP";
 	static final String UNTERMINATED_QUERY = "SELECT ID FROM " + FULL_NAME
 			+ "   WHERE doneTransitionToFinished = 0";
+	static final String VISIBLE_QUERY = "SELECT FROM "
+			+ "org.taverna.server.master.worker.RunConnection"
+			+ "   WHERE owner == :user || readerSet.contains(:user)";
+	static final String LEGACY_QUERY = "SELECT ID FROM " + FULL_NAME
+			+ "   WHERE runData IS NULL OR workflowHash IS NULL";
+	/*
+	 * The legacy readers are in the join table that DataNucleus named after
+	 * the class, as it ignores the table named in the field's @Join. Older
+	 * databases may not have it at all.
+	 */
+	static final String LEGACY_READERS_TABLE = "RUNCONNECTION_READERS";
+	static final String LEGACY_READERS_QUERY = "SELECT DISTINCT ID FROM "
+			+ SCHEMA + "." + LEGACY_READERS_TABLE;
+	static final String LEGACY_READERS_CLEAR = "DELETE FROM " + SCHEMA + "."
+			+ LEGACY_READERS_TABLE;
 	static final int NAME_LENGTH = 48; 
 
 	@PrimaryKey
@@ -71,17 +104,40 @@ public class RunConnection {
 	@Persistent(defaultFetchGroup = "true")
 	private Date creationInstant;
 
-	@Persistent(defaultFetchGroup = "true", serialized = "true")
+	/** Legacy Java-serialized form; see {@link #workflowHash}. */
+	@Persistent(defaultFetchGroup = "false", serialized = "true")
 	@Column(jdbcType = "BLOB", sqlType = "BLOB")
 	private Workflow workflow;
 
+	/** Legacy per-run form; see {@link #workflowHash}. */
+	@Persistent(defaultFetchGroup = "false")
+	@Column(jdbcType = "BLOB", sqlType = "BLOB")
+	private byte[] workflowData;
+
+	/** The key of the workflow in the {@link WorkflowStore}. */
 	@Persistent(defaultFetchGroup = "true")
-	private Date expiry;
+	@Column(length = StoredWorkflow.HASH_LENGTH)
+	@Index(name = "RUN_CONNECTION_WORKFLOW")
+	private String workflowHash;
 
 	@Persistent(defaultFetchGroup = "true")
+	private Date expiry;
+
+	/** Legacy form; see {@link #readerSet}. */
+	@Persistent(defaultFetchGroup = "false")
 	@Join(table = TABLE + "_READERS", column = "ID")
 	private String[] readers;
 
+	/**
+	 * Who may read the run. Held as a collection and not an array because
+	 * JDOQL can only reliably look inside collections; see
+	 * {@link #VISIBLE_QUERY}.
+	 */
+	@Persistent(defaultFetchGroup = "true", table = TABLE + "_READER_SET")
+	@Join(column = "ID")
+	@Element(column = "READER", indexed = "true")
+	private Set<String> readerSet;
+
 	@Persistent(defaultFetchGroup = "true")
 	@Join(table = TABLE + "_WRITERS", column = "ID")
 	private String[] writers;
@@ -90,10 +146,15 @@ public class RunConnection {
 	@Join(table = TABLE + "_DESTROYERS", column = "ID")
 	private String[] destroyers;
 
-	@Persistent(defaultFetchGroup = "true", serialized = "true")
+	/** Legacy Java-serialized form; see {@link #runData}. */
+	@Persistent(defaultFetchGroup = "false", serialized = "true")
 	@Column(jdbcType = "BLOB", sqlType = "BLOB")
 	private MarshalledObject<RemoteSingleRun> run;
 
+	@Persistent(defaultFetchGroup = "false")
+	@Column(jdbcType = "BLOB", sqlType = "BLOB")
+	private byte[] runData;
+
 	@Persistent(defaultFetchGroup = "true")
 	private int doneTransitionToFinished;
 
@@ -102,22 +163,35 @@ public class RunConnection {
 
 	@Persistent(defaultFetchGroup = "true")
 	@Column(length = 128)
+	@Index(name = "RUN_CONNECTION_OWNER")
 	String owner;
 
 	@Persistent(defaultFetchGroup = "true")
 	@Column(length = 36)
 	private String securityToken;
 
-	@Persistent(defaultFetchGroup = "true", serialized = "true")
+	/*
+	 * Legacy Java-serialized forms. The security context factory is a
+	 * singleton, so records in the current encoding do not store it at all;
+	 * see credentialData and trustData for the other two.
+	 */
+	@Persistent(defaultFetchGroup = "false", serialized = "true")
 	@Column(jdbcType = "BLOB", sqlType = "BLOB")
 	private SecurityContextFactory securityContextFactory;
-	@Persistent(defaultFetchGroup = "true", serialized = "true")
+	@Persistent(defaultFetchGroup = "false", serialized = "true")
 	@Column(jdbcType = "BLOB", sqlType = "BLOB")
 	private Credential[] credentials;
-	@Persistent(defaultFetchGroup = "true", serialized = "true")
+	@Persistent(defaultFetchGroup = "false", serialized = "true")
 	@Column(jdbcType = "BLOB", sqlType = "BLOB")
 	private Trust[] trust;
 
+	@Persistent(defaultFetchGroup = "false")
+	@Column(jdbcType = "BLOB", sqlType = "BLOB")
+	private byte[] credentialData;
+	@Persistent(defaultFetchGroup = "false")
+	@Column(jdbcType = "BLOB", sqlType = "BLOB")
+	private byte[] trustData;
+
 	private static final String[] STRING_ARY = new String[0];
 
 	public String getId() {
@@ -146,16 +220,18 @@ public class RunConnection {
 	 * 
 	 * @param rrd
 	 *            The remote delegate of the workflow run.
+	 * @param workflows
+	 *            Where the run's workflow is stored.
 	 * @return The persistent object.
 	 * @throws IOException
 	 *             If serialisation fails.
 	 */
 	@Nonnull
-	public static RunConnection toDBform(@Nonnull RemoteRunDelegate rrd)
-			throws IOException {
+	public static RunConnection toDBform(@Nonnull RemoteRunDelegate rrd,
+			@Nonnull WorkflowStore workflows) throws IOException {
 		RunConnection rc = new RunConnection();
 		rc.id = rrd.id;
-		rc.makeChanges(rrd);
+		rc.makeChanges(rrd, workflows);
 		return rc;
 	}
 
@@ -165,33 +241,41 @@ public class RunConnection {
 		return asList(ary);
 	}
 
+	private static HashSet<String> set(Set<String> set) {
+		if (set == null)
+			return new HashSet<>();
+		return new HashSet<>(set);
+	}
+
 	/**
 	 * Get the remote run delegate for a particular persistent connection. Must
 	 * be called within the context of a transaction.
 	 * 
 	 * @param db
 	 *            The database facade.
+	 * @param workflows
+	 *            Where the run's workflow is stored.
 	 * @return The delegate object.
 	 * @throws Exception
 	 *             If anything goes wrong.
 	 */
 	@Nonnull
-	public RemoteRunDelegate fromDBform(@Nonnull RunDBSupport db)
-			throws Exception {
+	public RemoteRunDelegate fromDBform(@Nonnull RunDBSupport db,
+			@Nonnull WorkflowStore workflows) throws Exception {
 		RemoteRunDelegate rrd = new RemoteRunDelegate();
 		rrd.id = getId();
 		rrd.creationInstant = creationInstant;
-		rrd.workflow = workflow;
+		rrd.workflow = getWorkflow(workflows);
 		rrd.expiry = expiry;
-		rrd.readers = new HashSet<>(list(readers));
+		rrd.readers = set(readerSet);
 		rrd.writers = new HashSet<>(list(writers));
 		rrd.destroyers = new HashSet<>(list(destroyers));
-		rrd.run = run.get();
+		rrd.run = getRemoteRun();
 		rrd.doneTransitionToFinished = isFinished();
 		rrd.generateProvenance = isProvenanceGenerated();
-		rrd.secContext = securityContextFactory.create(rrd,
+		rrd.secContext = getSecurityContextFactory().create(rrd,
 				new UsernamePrincipal(owner));
-		((SecurityContextDelegate)rrd.secContext).setCredentialsAndTrust(credentials,trust);
+		((SecurityContextDelegate)rrd.secContext).setCredentialsAndTrust(getCredentials(),getTrust());
 		rrd.db = db;
 		rrd.factory = db.getFactory();
 		rrd.name = name;
@@ -199,38 +283,214 @@ public class RunConnection {
 	}
 
 	/**
-	 * Flush changes from a remote run delegate to the database. Must be called
-	 * within the context of a transaction.
+	 * Get the summary of this persistent connection that is used to build the
+	 * run index. Only touches the columns in the default fetch group; the
+	 * serialized columns are not read. Must be called within the context of a
+	 * transaction.
+	 * 
+	 * @return The index entry.
+	 */
+	@Nonnull
+	public RunIndexEntry toIndexEntry() {
+		return new RunIndexEntry(id, owner, set(readerSet), name, expiry,
+				isFinished());
+	}
+
+	/**
+	 * Get the handle to the remote run without building the rest of the
+	 * delegate (in particular, without rebuilding the security context). Must
+	 * be called within the context of a transaction.
+	 * 
+	 * @return The remote run handle.
+	 * @throws IOException
+	 *             If deserialization of the handle fails.
+	 * @throws ClassNotFoundException
+	 *             If deserialization of the handle fails.
+	 */
+	@Nonnull
+	public RemoteSingleRun getRemoteRun() throws IOException,
+			ClassNotFoundException {
+		if (runData != null)
+			return decodeRun(runData).get();
+		return run.get();
+	}
+
+	private Workflow getWorkflow(WorkflowStore workflows) throws IOException {
+		if (workflowHash != null) {
+			Workflow wf = workflows.get(workflowHash);
+			if (wf == null)
+				throw new IOException("no stored workflow with hash "
+						+ workflowHash);
+			return wf;
+		}
+		if (workflowData != null)
+			return decodeWorkflow(workflowData);
+		return workflow;
+	}
+
+	private SecurityContextFactory getSecurityContextFactory() {
+		if (securityContextFactory != null)
+			return securityContextFactory;
+		SecurityContextFactory scf = org.taverna.server.master.worker.SecurityContextFactory
+				.getInstance();
+		if (scf == null)
+			throw new IllegalStateException(
+					"no security context factory available");
+		return scf;
+	}
+
+	private Credential[] getCredentials() throws IOException {
+		if (credentialData != null)
+			return decodeCredentials(credentialData);
+		return credentials;
+	}
+
+	private Trust[] getTrust() throws IOException {
+		if (trustData != null)
+			return decodeTrust(trustData);
+		return trust;
+	}
+
+	/**
+	 * Convert any parts of this record that are still in the legacy
+	 * (Java-serialized) form to the current encoding, and move a workflow
+	 * that is held in the record itself into the workflow store. Must be
+	 * called within the context of a transaction. Everything is converted
+	 * before anything is changed, so a failure leaves the record as it was.
+	 * 
+	 * @param workflows
+	 *            Where the run's workflow is stored.
+	 * @return Whether anything was converted.
+	 * @throws IOException
+	 *             If decoding or encoding fails.
+	 * @throws ClassNotFoundException
+	 *             If decoding the legacy form fails.
+	 */
+	public boolean upgradeEncoding(@Nonnull WorkflowStore workflows)
+			throws IOException, ClassNotFoundException {
+		boolean moveWorkflow = workflowHash == null
+				&& (workflow != null || workflowData != null);
+		byte[] newRunData = (run == null ? null : encodeRun(run));
+		byte[] newCredentialData = (credentials == null ? null
+				: encodeCredentials(credentials));
+		byte[] newTrustData = (trust == null ? null : encodeTrust(trust));
+		String newWorkflowHash = (moveWorkflow ? workflows
+				.store(getWorkflow(workflows)) : null);
+
+		boolean changed = false;
+		if (moveWorkflow) {
+			workflowHash = newWorkflowHash;
+			workflowData = null;
+			workflow = null;
+			changed = true;
+		}
+		if (newRunData != null) {
+			runData = newRunData;
+			run = null;
+			changed = true;
+		}
+		if (newCredentialData != null) {
+			credentialData = newCredentialData;
+			credentials = null;
+			changed = true;
+		}
+		if (newTrustData != null) {
+			trustData = newTrustData;
+			trust = null;
+			changed = true;
+		}
+		if (securityContextFactory != null) {
+			securityContextFactory = null;
+			changed = true;
+		}
+		return changed;
+	}
+
+	/**
+	 * Move the readers of this record from the legacy array to the collection
+	 * that the visibility query looks inside. Must be called within the
+	 * context of a transaction.
+	 * 
+	 * @return Whether anything was moved.
+	 */
+	public boolean upgradeReaders() {
+		if (readers == null)
+			return false;
+		if (readerSet == null)
+			readerSet = new HashSet<>();
+		readerSet.addAll(asList(readers));
+		readers = null;
+		return true;
+	}
+
+	/**
+	 * Flush all the state of a remote run delegate to the database. Must be
+	 * called within the context of a transaction.
 	 * 
 	 * @param rrd
 	 *            The remote run delegate object that has potential changes.
+	 * @param workflows
+	 *            Where the run's workflow is stored.
 	 * @throws IOException
 	 *             If anything goes wrong in serialization.
 	 */
-	public void makeChanges(@Nonnull RemoteRunDelegate rrd) throws IOException {
+	public void makeChanges(@Nonnull RemoteRunDelegate rrd,
+			@Nonnull WorkflowStore workflows) throws IOException {
 		// Properties that are set exactly once
 		if (creationInstant == null) {
 			creationInstant = rrd.getCreationTimestamp();
-			workflow = rrd.getWorkflow();
-			run = new MarshalledObject<>(rrd.run);
-			securityContextFactory = rrd.getSecurityContext().getFactory();
+			workflowHash = workflows.store(rrd.getWorkflow());
+			runData = encodeRun(new MarshalledObject<>(rrd.run));
 			owner = rrd.getSecurityContext().getOwner().getName();
-			securityToken = ((org.taverna.server.master.worker.SecurityContextFactory) securityContextFactory)
-					.issueNewPassword();
-		}
+			securityToken = ((org.taverna.server.master.worker.SecurityContextFactory) rrd
+					.getSecurityContext().getFactory()).issueNewPassword();
+		} else
+			try {
+				upgradeEncoding(workflows);
+			} catch (ClassNotFoundException e) {
+				throw new IOException("failed to upgrade legacy record", e);
+			}
 		// Properties that are set multiple times
-		expiry = rrd.getExpiry();
-		readers = rrd.getReaders().toArray(STRING_ARY);
-		writers = rrd.getWriters().toArray(STRING_ARY);
-		destroyers = rrd.getDestroyers().toArray(STRING_ARY);
-		credentials = rrd.getSecurityContext().getCredentials();
-		trust = rrd.getSecurityContext().getTrusted();
-		if (rrd.name.length() > NAME_LENGTH)
-			this.name = rrd.name.substring(0, NAME_LENGTH);
-		else
-			this.name = rrd.name;
+		makeChanges(rrd, EnumSet.allOf(Property.class));
 		setFinished(rrd.doneTransitionToFinished);
-		setProvenanceGenerated(rrd.generateProvenance);
+	}
+
+	/**
+	 * Flush the changed parts of a remote run delegate to the database. Only
+	 * the columns corresponding to the changed properties are touched, so
+	 * only those are written. Must be called within the context of a
+	 * transaction.
+	 * 
+	 * @param rrd
+	 *            The remote run delegate object that has changes.
+	 * @param changed
+	 *            Which properties of the delegate have changed.
+	 * @throws IOException
+	 *             If anything goes wrong in serialization.
+	 */
+	public void makeChanges(@Nonnull RemoteRunDelegate rrd,
+			@Nonnull Set<Property> changed) throws IOException {
+		if (changed.contains(Property.EXPIRY))
+			expiry = rrd.getExpiry();
+		if (changed.contains(Property.READERS))
+			readerSet = new HashSet<>(rrd.getReaders());
+		if (changed.contains(Property.WRITERS))
+			writers = rrd.getWriters().toArray(STRING_ARY);
+		if (changed.contains(Property.DESTROYERS))
+			destroyers = rrd.getDestroyers().toArray(STRING_ARY);
+		if (changed.contains(Property.CREDENTIALS))
+			credentialData = encodeCredentials(rrd.getSecurityContext()
+					.getCredentials());
+		if (changed.contains(Property.TRUST))
+			trustData = encodeTrust(rrd.getSecurityContext().getTrusted());
+		if (changed.contains(Property.NAME)) {
+			if (rrd.name.length() > NAME_LENGTH)
+				this.name = rrd.name.substring(0, NAME_LENGTH);
+			else
+				this.name = rrd.name;
+		}
+		if (changed.contains(Property.PROVENANCE))
+			setProvenanceGenerated(rrd.generateProvenance);
 	}
 
 	public String getSecurityToken() {
@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.rmi.MarshalledObject;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.bind.JAXBException;
+
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+import org.taverna.server.master.common.Credential;
+import org.taverna.server.master.common.Trust;
+import org.taverna.server.master.common.Workflow;
+
+/**
+ * The compact binary encoding of the large parts of a {@link RunConnection}.
+ * Each encoded value starts with a version byte so that the format can be
+ * changed later without losing the ability to read existing databases. The
+ * encodings avoid Java serialization (and its class descriptors) except for
+ * the remote run handle, which is an RMI stub and so has to be serialized.
+ * 
+ * @author Donal Fellows
+ */
+final class RunConnectionCodec {
+	private RunConnectionCodec() {
+	}
+
+	/** The version of the encoding written by this class. */
+	static final int VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int KEYPAIR = 1;
+	private static final int PASSWORD = 2;
+	private static final int DUMMY = 3;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static class Out extends DataOutputStream {
+		Out(ByteArrayOutputStream baos) throws IOException {
+			super(baos);
+			writeByte(VERSION);
+		}
+
+		void writeCount(int n) throws IOException {
+			while ((n & ~0x7F) != 0) {
+				writeByte((n & 0x7F) | 0x80);
+				n >>>= 7;
+			}
+			writeByte(n);
+		}
+
+		void writeBytes(@Nullable byte[] b) throws IOException {
+			if (b == null) {
+				writeCount(0);
+				return;
+			}
+			writeCount(b.length + 1);
+			write(b);
+		}
+
+		void writeString(@Nullable String s) throws IOException {
+			writeBytes(s == null ? null : s.getBytes(UTF8));
+		}
+	}
+
+	private static class In extends DataInputStream {
+		In(byte[] data) throws IOException {
+			super(new ByteArrayInputStream(data));
+			int version = readUnsignedByte();
+			if (version != VERSION)
+				throw new IOException("unsupported encoding version: "
+						+ version);
+		}
+
+		int readCount() throws IOException {
+			int n = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				int b = readUnsignedByte();
+				n |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return n;
+			}
+			throw new IOException("malformed count");
+		}
+
+		byte[] readBytes() throws IOException {
+			int n = readCount();
+			if (n == 0)
+				return null;
+			byte[] b = new byte[n - 1];
+			readFully(b);
+			return b;
+		}
+
+		String readString() throws IOException {
+			byte[] b = readBytes();
+			return b == null ? null : new String(b, UTF8);
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) >= 0)
+			baos.write(buffer, 0, n);
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Encode a workflow as a deflated XML document.
+	 * 
+	 * @param workflow
+	 *            The workflow to encode.
+	 * @return The encoded form.
+	 * @throws IOException
+	 *             If the workflow can't be converted to XML.
+	 */
+	@Nonnull
+	static byte[] encodeWorkflow(@Nonnull Workflow workflow)
+			throws IOException {
+		return encodeWorkflow(marshalWorkflow(workflow));
+	}
+
+	/**
+	 * Encode the XML form of a workflow as a deflated XML document.
+	 * 
+	 * @param xml
+	 *            The workflow document, as produced by
+	 *            {@link #marshalWorkflow(Workflow)}.
+	 * @return The encoded form.
+	 * @throws IOException
+	 *             If compression fails.
+	 */
+	@Nonnull
+	static byte[] encodeWorkflow(@Nonnull String xml) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (Out out = new Out(baos)) {
+			out.flush();
+			try (DeflaterOutputStream dos = new DeflaterOutputStream(baos)) {
+				dos.write(xml.getBytes(UTF8));
+			}
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Convert a workflow to its XML form.
+	 * 
+	 * @param workflow
+	 *            The workflow to convert.
+	 * @return The workflow document.
+	 * @throws IOException
+	 *             If the workflow can't be converted to XML.
+	 */
+	@Nonnull
+	static String marshalWorkflow(@Nonnull Workflow workflow)
+			throws IOException {
+		try {
+			return workflow.marshal();
+		} catch (JAXBException e) {
+			throw new IOException("failed to marshal workflow", e);
+		}
+	}
+
+	/**
+	 * Compute the content hash of a workflow document. Identical documents
+	 * have identical hashes, so this is used as the key of a stored workflow.
+	 * 
+	 * @param xml
+	 *            The workflow document, as produced by
+	 *            {@link #marshalWorkflow(Workflow)}.
+	 * @return The SHA-256 hash of the document, as a lower-case hexadecimal
+	 *         string.
+	 */
+	@Nonnull
+	static String hashWorkflow(@Nonnull String xml) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException("no SHA-256 support", e);
+		}
+		byte[] digest = md.digest(xml.getBytes(UTF8));
+		StringBuilder sb = new StringBuilder(digest.length * 2);
+		for (byte b : digest)
+			sb.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+		return sb.toString();
+	}
+
+	/**
+	 * Decode a workflow encoded with {@link #encodeWorkflow(Workflow)}.
+	 * 
+	 * @param data
+	 *            The encoded form.
+	 * @return The workflow.
+	 * @throws IOException
+	 *             If the data is not a valid encoded workflow.
+	 */
+	@Nonnull
+	static Workflow decodeWorkflow(@Nonnull byte[] data) throws IOException {
+		try (In in = new In(data);
+				InflaterInputStream iis = new InflaterInputStream(in)) {
+			return Workflow.unmarshal(new String(readAll(iis), UTF8));
+		} catch (JAXBException e) {
+			throw new IOException("failed to unmarshal workflow", e);
+		}
+	}
+
+	/**
+	 * Encode the handle to a remote run. This is an RMI stub, so it must be
+	 * serialized, but it is only ever written once for each run.
+	 * 
+	 * @param run
+	 *            The marshalled remote run handle.
+	 * @return The encoded form.
+	 * @throws IOException
+	 *             If serialization fails.
+	 */
+	@Nonnull
+	static byte[] encodeRun(@Nonnull MarshalledObject<RemoteSingleRun> run)
+			throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (Out out = new Out(baos)) {
+			out.flush();
+			try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+				oos.writeObject(run);
+			}
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Decode the handle to a remote run encoded with
+	 * {@link #encodeRun(MarshalledObject)}.
+	 * 
+	 * @param data
+	 *            The encoded form.
+	 * @return The marshalled remote run handle.
+	 * @throws IOException
+	 *             If the data is not a valid encoded handle.
+	 * @throws ClassNotFoundException
+	 *             If deserialization fails.
+	 */
+	@Nonnull
+	@SuppressWarnings("unchecked")
+	static MarshalledObject<RemoteSingleRun> decodeRun(@Nonnull byte[] data)
+			throws IOException, ClassNotFoundException {
+		try (In in = new In(data);
+				ObjectInputStream ois = new ObjectInputStream(in)) {
+			return (MarshalledObject<RemoteSingleRun>) ois.readObject();
+		}
+	}
+
+	/**
+	 * Encode the credentials of a run.
+	 * 
+	 * @param credentials
+	 *            The credentials to encode.
+	 * @return The encoded form.
+	 * @throws IOException
+	 *             If a credential is of an unknown type.
+	 */
+	@Nonnull
+	static byte[] encodeCredentials(@Nullable Credential[] credentials)
+			throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (Out out = new Out(baos)) {
+			int n = (credentials == null ? 0 : credentials.length);
+			out.writeCount(n);
+			for (int i = 0; i < n; i++) {
+				Credential c = credentials[i];
+				if (c instanceof Credential.KeyPair) {
+					Credential.KeyPair kp = (Credential.KeyPair) c;
+					out.writeByte(KEYPAIR);
+					writeCommon(out, c);
+					out.writeString(kp.credentialName);
+					out.writeString(kp.credentialFile);
+					out.writeString(kp.fileType);
+					out.writeString(kp.unlockPassword);
+					out.writeBytes(kp.credentialBytes);
+				} else if (c instanceof Credential.Password) {
+					Credential.Password pw = (Credential.Password) c;
+					out.writeByte(PASSWORD);
+					writeCommon(out, c);
+					out.writeString(pw.username);
+					out.writeString(pw.password);
+				} else if (c instanceof Credential.Dummy) {
+					out.writeByte(DUMMY);
+					writeCommon(out, c);
+				} else
+					throw new IOException("unsupported type of credential: "
+							+ c);
+			}
+		}
+		return baos.toByteArray();
+	}
+
+	private static void writeCommon(Out out, Credential c) throws IOException {
+		out.writeString(c.href);
+		out.writeString(c.id);
+		out.writeString(c.serviceURI == null ? null : c.serviceURI.toString());
+	}
+
+	/**
+	 * Decode the credentials of a run encoded with
+	 * {@link #encodeCredentials(Credential[])}.
+	 * 
+	 * @param data
+	 *            The encoded form.
+	 * @return The credentials.
+	 * @throws IOException
+	 *             If the data is not a valid encoded credential list.
+	 */
+	@Nonnull
+	static Credential[] decodeCredentials(@Nonnull byte[] data)
+			throws IOException {
+		try (In in = new In(data)) {
+			Credential[] result = new Credential[in.readCount()];
+			for (int i = 0; i < result.length; i++) {
+				int type = in.readUnsignedByte();
+				String href = in.readString();
+				String id = in.readString();
+				String uri = in.readString();
+				Credential c;
+				switch (type) {
+				case KEYPAIR:
+					Credential.KeyPair kp = new Credential.KeyPair();
+					kp.credentialName = in.readString();
+					kp.credentialFile = in.readString();
+					kp.fileType = in.readString();
+					kp.unlockPassword = in.readString();
+					kp.credentialBytes = in.readBytes();
+					c = kp;
+					break;
+				case PASSWORD:
+					Credential.Password pw = new Credential.Password();
+					pw.username = in.readString();
+					pw.password = in.readString();
+					c = pw;
+					break;
+				case DUMMY:
+					c = new Credential.Dummy(id);
+					break;
+				default:
+					throw new IOException("unknown type of credential: " + type);
+				}
+				c.href = href;
+				c.id = id;
+				try {
+					c.serviceURI = (uri == null ? null : new URI(uri));
+				} catch (URISyntaxException e) {
+					throw new IOException("bad service URI in credential", e);
+				}
+				result[i] = c;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Encode the trusted identities of a run.
+	 * 
+	 * @param trust
+	 *            The trusted identities to encode.
+	 * @return The encoded form.
+	 * @throws IOException
+	 *             If writing fails.
+	 */
+	@Nonnull
+	static byte[] encodeTrust(@Nullable Trust[] trust) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (Out out = new Out(baos)) {
+			int n = (trust == null ? 0 : trust.length);
+			out.writeCount(n);
+			for (int i = 0; i < n; i++) {
+				Trust t = trust[i];
+				out.writeString(t.href);
+				out.writeString(t.id);
+				out.writeString(t.certificateFile);
+				out.writeString(t.fileType);
+				out.writeBytes(t.certificateBytes);
+				if (t.serverName == null) {
+					out.writeCount(0);
+					continue;
+				}
+				out.writeCount(t.serverName.size() + 1);
+				for (String name : t.serverName)
+					out.writeString(name);
+			}
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Decode the trusted identities of a run encoded with
+	 * {@link #encodeTrust(Trust[])}.
+	 * 
+	 * @param data
+	 *            The encoded form.
+	 * @return The trusted identities.
+	 * @throws IOException
+	 *             If the data is not a valid encoded trust list.
+	 */
+	@Nonnull
+	static Trust[] decodeTrust(@Nonnull byte[] data) throws IOException {
+		try (In in = new In(data)) {
+			Trust[] result = new Trust[in.readCount()];
+			for (int i = 0; i < result.length; i++) {
+				Trust t = new Trust();
+				t.href = in.readString();
+				t.id = in.readString();
+				t.certificateFile = in.readString();
+				t.fileType = in.readString();
+				t.certificateBytes = in.readBytes();
+				int names = in.readCount();
+				if (names > 0) {
+					List<String> serverName = new ArrayList<>(names - 1);
+					for (int j = 1; j < names; j++)
+						serverName.add(in.readString());
+					t.serverName = serverName;
+				}
+				result[i] = t;
+			}
+			return result;
+		}
+	}
+}
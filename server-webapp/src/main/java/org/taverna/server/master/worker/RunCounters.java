@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.Collections.newSetFromMap;
+import static org.springframework.jmx.support.MetricType.GAUGE;
+import static org.taverna.server.master.TavernaServer.JMX_ROOT;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedOperationParameters;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Counts of the workflow runs known to the server, maintained as runs are
+ * added, removed and change state so that reading them is cheap. Updates are
+ * made by the {@link RunDatabase} while it holds the lock on its run index;
+ * reads are not locked. The counts are periodically reconciled against the
+ * database in case they have drifted.
+ * 
+ * @author Donal Fellows
+ */
+@ManagedResource(objectName = JMX_ROOT + "RunCounters", description = "Counts of the workflow runs known to the server.")
+public class RunCounters {
+	private final AtomicInteger total = new AtomicInteger();
+	private final AtomicInteger finished = new AtomicInteger();
+	private final ConcurrentMap<String, AtomicInteger> owned = new ConcurrentHashMap<>();
+	/**
+	 * The runs that have been started by this server and have not yet been
+	 * seen to finish.
+	 */
+	private final Set<String> operating = newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	@ManagedMetric(description = "The number of workflow runs.", metricType = GAUGE)
+	public int getTotal() {
+		return total.get();
+	}
+
+	@ManagedMetric(description = "The number of workflow runs that have finished.", metricType = GAUGE)
+	public int getFinished() {
+		return finished.get();
+	}
+
+	@ManagedMetric(description = "The number of workflow runs started by this server that have not yet finished.", metricType = GAUGE)
+	public int getOperating() {
+		return operating.size();
+	}
+
+	@ManagedMetric(description = "The number of users who own workflow runs.", metricType = GAUGE)
+	public int getOwnerCount() {
+		return owned.size();
+	}
+
+	/**
+	 * @param owner
+	 *            The name of a user.
+	 * @return The number of workflow runs that the user owns.
+	 */
+	@ManagedOperation(description = "The number of workflow runs owned by a user.")
+	@ManagedOperationParameters(@ManagedOperationParameter(name = "owner", description = "The name of the user."))
+	public int countOwnedBy(String owner) {
+		AtomicInteger count = owned.get(owner);
+		return count == null ? 0 : count.get();
+	}
+
+	private void adjust(RunIndexEntry e, int delta) {
+		total.addAndGet(delta);
+		if (e.isFinished())
+			finished.addAndGet(delta);
+		AtomicInteger count = owned.get(e.getOwner());
+		if (count == null) {
+			if (delta < 0)
+				return;
+			count = new AtomicInteger();
+			AtomicInteger existing = owned.putIfAbsent(e.getOwner(), count);
+			if (existing != null)
+				count = existing;
+		}
+		if (count.addAndGet(delta) <= 0)
+			owned.remove(e.getOwner(), count);
+	}
+
+	/**
+	 * Note that a run has been added to the index.
+	 * 
+	 * @param e
+	 *            The run's index entry.
+	 */
+	void added(@Nonnull RunIndexEntry e) {
+		adjust(e, 1);
+		if (e.isFinished())
+			operating.remove(e.getId());
+	}
+
+	/**
+	 * Note that the index entry for a run has been replaced, perhaps because
+	 * it has finished.
+	 * 
+	 * @param old
+	 *            The previous index entry.
+	 * @param e
+	 *            The new index entry.
+	 */
+	void replaced(@Nonnull RunIndexEntry old, @Nonnull RunIndexEntry e) {
+		adjust(old, -1);
+		added(e);
+	}
+
+	/**
+	 * Note that a run has been removed from the index.
+	 * 
+	 * @param e
+	 *            The run's former index entry.
+	 */
+	void removed(@Nonnull RunIndexEntry e) {
+		adjust(e, -1);
+		operating.remove(e.getId());
+	}
+
+	/**
+	 * Note that a run has been started.
+	 * 
+	 * @param id
+	 *            The ID of the run.
+	 */
+	void started(@Nonnull String id) {
+		operating.add(id);
+	}
+
+	/**
+	 * Recompute the counts from scratch.
+	 * 
+	 * @param entries
+	 *            The index entries of all the runs.
+	 * @return Whether the counts had drifted from the correct values.
+	 */
+	boolean reset(@Nonnull Collection<RunIndexEntry> entries) {
+		int newTotal = 0, newFinished = 0;
+		Map<String, Integer> newOwned = new HashMap<>();
+		Set<String> ids = new HashSet<>();
+		for (RunIndexEntry e : entries) {
+			newTotal++;
+			if (e.isFinished())
+				newFinished++;
+			else
+				ids.add(e.getId());
+			Integer count = newOwned.get(e.getOwner());
+			newOwned.put(e.getOwner(), count == null ? 1 : count + 1);
+		}
+		boolean drifted = total.getAndSet(newTotal) != newTotal;
+		drifted |= finished.getAndSet(newFinished) != newFinished;
+		for (String owner : owned.keySet())
+			if (!newOwned.containsKey(owner)) {
+				owned.remove(owner);
+				drifted = true;
+			}
+		for (Map.Entry<String, Integer> entry : newOwned.entrySet()) {
+			AtomicInteger count = owned.get(entry.getKey());
+			if (count == null)
+				owned.put(entry.getKey(), count = new AtomicInteger());
+			drifted |= count.getAndSet(entry.getValue()) != entry.getValue();
+		}
+		// Runs that have gone or finished are no longer operating
+		drifted |= operating.retainAll(ids);
+		return drifted;
+	}
+}
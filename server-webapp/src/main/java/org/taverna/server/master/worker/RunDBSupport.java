@@ -5,6 +5,7 @@
  */
 package org.taverna.server.master.worker;
 
+import java.util.Collection;
 import java.util.List;
 
 import javax.annotation.Nonnull;
@@ -24,21 +25,73 @@ public interface RunDBSupport {
 	 */
 	void checkForFinishNow();
 
+	/**
+	 * Check whether some particular runs have finished and issue registered
+	 * notifications for those that have. Used when the runs' workers report
+	 * that they have finished, so that all runs do not need to be scanned.
+	 * 
+	 * @param ids
+	 *            The IDs of the runs to check.
+	 */
+	void checkForFinish(@Nonnull Collection<String> ids);
+
 	/**
 	 * Remove currently-expired runs from this database.
 	 */
 	void cleanNow();
 
 	/**
-	 * How many runs are stored in the database.
+	 * Note that a run has been started executing, for the purposes of keeping
+	 * count of how many runs are operating.
+	 * 
+	 * @param id
+	 *            The ID of the run.
+	 */
+	void runStarted(@Nonnull String id);
+
+	/**
+	 * Note that a run's worker has reported that the run changed state, so
+	 * that any description of the run's state that is held is out of date.
+	 * 
+	 * @param id
+	 *            The ID of the run.
+	 */
+	void runStatusChanged(@Nonnull String id);
+
+	/**
+	 * How many runs are stored in the database. This is a maintained count, so
+	 * it is cheap to get.
 	 * 
 	 * @return The current size of the run table.
 	 */
 	int countRuns();
 
+	/**
+	 * @return How long, in milliseconds, a run may reuse a description of its
+	 *         state fetched from its back end.
+	 */
+	long getSnapshotLifetime();
+
+	/**
+	 * @return What makes the calls to the back ends of runs, or <tt>null</tt>
+	 *         if the calls are to be made directly.
+	 */
+	@Nullable
+	WorkerCalls getWorkerCalls();
+
+	/**
+	 * @param owner
+	 *            The name of the owner of a run.
+	 * @return Whether the back end process holding the user's runs is known
+	 *         to not be responding.
+	 */
+	boolean isWorkerDegraded(@Nonnull String owner);
+
 	/**
 	 * Ensure that a run gets persisted in the database. It is assumed that the
-	 * value is already in there.
+	 * value is already in there. Only the properties that the run has marked
+	 * as changed are written, and the write may be deferred until the end of
+	 * the current request so that several changes are written together.
 	 * 
 	 * @param run
 	 *            The run to persist.
@@ -11,18 +11,32 @@ import static java.util.UUID.randomUUID;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.rmi.NoSuchObjectException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Nullable;
+import javax.annotation.PostConstruct;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Required;
+import org.taverna.server.localworker.remote.RemoteRunStatus;
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+import org.taverna.server.localworker.remote.RemoteStatus;
 import org.taverna.server.master.common.Status;
 import org.taverna.server.master.exceptions.UnknownRunException;
 import org.taverna.server.master.interfaces.Listener;
@@ -32,6 +46,7 @@ import org.taverna.server.master.interfaces.TavernaRun;
 import org.taverna.server.master.notification.NotificationEngine;
 import org.taverna.server.master.notification.NotificationEngine.Message;
 import org.taverna.server.master.utils.UsernamePrincipal;
+import org.taverna.server.master.worker.RemoteRunDelegate.Property;
 
 /**
  * The main facade bean that interfaces to the database of runs.
@@ -40,13 +55,62 @@ import org.taverna.server.master.utils.UsernamePrincipal;
  */
 public class RunDatabase implements RunStore, RunDBSupport {
 	private Log log = LogFactory.getLog("Taverna.Server.Worker.RunDB");
-	RunDatabaseDAO dao;
+	RunRecordStore dao;
 	CompletionNotifier backupNotifier;
+	private RunReaper reaper;
 	Map<String, CompletionNotifier> typedNotifiers;
 	private NotificationEngine notificationEngine;
-	@Autowired
 	private FactoryBean factory;
-	private Map<String, TavernaRun> cache = new HashMap<>();
+	private RunCache cache = new RunCache();
+	private RunCounters counters = new RunCounters();
+	private WorkerCalls workerCalls;
+	/**
+	 * The lightweight index of all runs, used for filtering and listing.
+	 * Mutations (and the initial load from the database) are done while
+	 * holding {@link #indexLock}; reads are not locked.
+	 */
+	private final Map<String, RunIndexEntry> index = new ConcurrentHashMap<>();
+	private final Object indexLock = new Object();
+	/**
+	 * Secondary index from user names to the IDs of the runs that they own or
+	 * may read. Guarded by {@link #indexLock}.
+	 */
+	private final Map<String, Set<String>> principalIndex = new HashMap<>();
+	private volatile boolean indexLoaded;
+	/**
+	 * Incremented on every change to the run index, so that a reload that was
+	 * read from the database without holding {@link #indexLock} can tell
+	 * whether it has missed a change. Guarded by {@link #indexLock}.
+	 */
+	private long indexVersion;
+	/**
+	 * The runs with changes waiting to be written when the current thread's
+	 * request finishes, by run ID; <tt>null</tt> when flushes are not being
+	 * deferred.
+	 */
+	private final ThreadLocal<Map<String, RemoteRunDelegate>> pendingFlushes = new ThreadLocal<>();
+	/**
+	 * Whether there may be runs in the database stored in the legacy
+	 * encoding. They are converted a batch at a time during cleaning.
+	 */
+	private volatile boolean legacyRunsRemain = true;
+	/**
+	 * Whether the readers of runs stored in the legacy form may still need
+	 * moving. Only cleared once the move has been committed.
+	 */
+	private volatile boolean legacyReadersRemain = true;
+	/**
+	 * Whether runs may have been deleted since unused workflows were last
+	 * removed from the store. Set initially so that a purge happens soon
+	 * after startup.
+	 */
+	private volatile boolean workflowsMayBeOrphaned = true;
+	/**
+	 * Serializes the passes that look for finished runs, so that a run that
+	 * is found by both the poller and a worker's report is only notified once.
+	 */
+	private final Object finishLock = new Object();
+	private static final int UPGRADE_BATCH_SIZE = 50;
 
 	@Override
 	@Required
@@ -67,21 +131,159 @@ public class RunDatabase implements RunStore, RunDBSupport {
 	}
 
 	@Required
-	public void setDao(RunDatabaseDAO dao) {
+	public void setDao(RunRecordStore dao) {
 		this.dao = dao;
 	}
 
+	/**
+	 * @param reaper
+	 *            What destroys the execution resources of expired runs. If not
+	 *            set, they are destroyed one at a time by the thread that
+	 *            cleans up the database.
+	 */
+	public void setReaper(RunReaper reaper) {
+		this.reaper = reaper;
+	}
+
+	/**
+	 * @param cache
+	 *            The cache of run delegates to use. If not set, a private
+	 *            cache with the default configuration is used.
+	 */
+	public void setCache(RunCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @param factory
+	 *            What is asked about the state of runs.
+	 */
+	@Autowired
+	public void setFactory(FactoryBean factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * @param workerCalls
+	 *            What makes the calls to the back ends of runs. If not set,
+	 *            the calls are made directly, without deadlines.
+	 */
+	public void setWorkerCalls(WorkerCalls workerCalls) {
+		this.workerCalls = workerCalls;
+	}
+
+	/**
+	 * @param counters
+	 *            Where to maintain the counts of runs. If not set, a private
+	 *            set of counters is used.
+	 */
+	public void setCounters(RunCounters counters) {
+		this.counters = counters;
+	}
+
 	@Override
 	public void checkForFinishNow() {
 		/*
-		 * Get which runs are actually newly finished; this requires getting the
-		 * candidates from the database and *then* doing the expensive requests
-		 * to the back end to find out the status.
+		 * The candidates come from the index, so that the only runs read from
+		 * the database are those that turn out to have finished.
 		 */
-		Map<String, RemoteRunDelegate> notifiable = new HashMap<>();
-		for (RemoteRunDelegate p : dao.getPotentiallyNotifiable())
-			if (p.getStatus() == Status.Finished)
-				notifiable.put(p.getId(), p);
+		synchronized (finishLock) {
+			processFinished(getIndex().keySet());
+		}
+	}
+
+	@Override
+	public void checkForFinish(Collection<String> ids) {
+		if (ids.isEmpty())
+			return;
+		synchronized (finishLock) {
+			processFinished(ids);
+		}
+	}
+
+	/**
+	 * Ask the back end about the state of many runs in one go, so that the
+	 * cost of checking does not scale with the number of runs.
+	 * 
+	 * @return The states of the runs that the back end holds, or
+	 *         <tt>null</tt> if it cannot report on them in bulk.
+	 */
+	@Nullable
+	private Map<String, RemoteRunStatus> getRunStatuses(List<String> ids) {
+		if (factory == null)
+			return null;
+		try {
+			return factory.getRunStatuses(ids);
+		} catch (RuntimeException e) {
+			log.warn("failed to get bulk run status", e);
+			return Collections.emptyMap();
+		}
+	}
+
+	/**
+	 * Work out which of the runs with the given IDs are newly finished.
+	 * 
+	 * @return The newly finished runs, keyed by ID.
+	 */
+	private Map<String, RemoteRunDelegate> getNewlyFinished(
+			Collection<String> ids) {
+		Set<String> candidates = new HashSet<>();
+		Map<String, RunIndexEntry> idx = getIndex();
+		for (String id : ids) {
+			RunIndexEntry e = idx.get(id);
+			if (e != null && !e.isFinished())
+				candidates.add(id);
+		}
+		Map<String, RemoteRunDelegate> finished = new HashMap<>();
+		if (candidates.isEmpty())
+			return finished;
+
+		Map<String, RemoteRunStatus> statuses = getRunStatuses(new ArrayList<>(
+				candidates));
+		if (statuses == null) {
+			// Back end too old to answer in bulk; ask each run instead
+			for (RemoteRunDelegate p : dao.getPotentiallyNotifiable(candidates))
+				if (noteStatus(p.getId(), p.getKnownStatus()))
+					finished.put(p.getId(), p);
+			return finished;
+		}
+
+		/*
+		 * Runs that no back end reported on are not held by one that answered
+		 * just now; the next check will try again.
+		 */
+		List<String> done = new ArrayList<>();
+		for (Map.Entry<String, RemoteRunStatus> s : statuses.entrySet())
+			if (candidates.contains(s.getKey())
+					&& noteStatus(s.getKey(), Status.valueOf(s.getValue()
+							.getStatus().name())))
+				done.add(s.getKey());
+		if (!done.isEmpty())
+			for (RemoteRunDelegate p : dao.getPotentiallyNotifiable(done))
+				finished.put(p.getId(), p);
+		return finished;
+	}
+
+	/**
+	 * @return Whether the run has finished.
+	 */
+	private boolean noteStatus(String id, Status status) {
+		if (status == null)
+			// Couldn't find out; the next check will try again
+			return false;
+		if (status == Status.Finished)
+			return true;
+		if (status != Status.Initialized)
+			/*
+			 * Which runs are operating isn't stored, so this is how the count
+			 * is rebuilt after a restart.
+			 */
+			counters.started(id);
+		return false;
+	}
+
+	private void processFinished(Collection<String> ids) {
+		Map<String, RemoteRunDelegate> notifiable = getNewlyFinished(ids);
 
 		// Check if there's nothing more to do
 		if (notifiable.isEmpty())
@@ -91,52 +293,312 @@ public class RunDatabase implements RunStore, RunDBSupport {
 		 * Tell the database about the ones we've got.
 		 */
 		dao.markFinished(notifiable.keySet());
+		synchronized (indexLock) {
+			for (String id : notifiable.keySet()) {
+				RunIndexEntry e = index.get(id);
+				if (e != null)
+					indexPut(e.asFinished());
+			}
+		}
+		for (String id : notifiable.keySet()) {
+			TavernaRun cached = cache.peek(id);
+			if (cached instanceof RemoteRunDelegate)
+				((RemoteRunDelegate) cached).invalidateSnapshot();
+		}
 
 		/*
 		 * Send out the notifications. The notification addresses are stored in
 		 * the back-end engine, so this is *another* thing that can take time.
 		 */
 		for (RemoteRunDelegate rrd : notifiable.values())
-			for (Listener l : rrd.getListeners())
-				if (l.getName().equals("io")) {
-					try {
+			try {
+				for (Listener l : rrd.getListeners())
+					if (l.getName().equals("io")) {
 						notifyFinished(rrd.id, l, rrd);
-					} catch (Exception e) {
-						log.warn("failed to do notification of completion", e);
+						break;
 					}
-					break;
-				}
+			} catch (Exception e) {
+				log.warn("failed to do notification of completion", e);
+			}
+	}
+
+	/**
+	 * Move the readers of runs stored in the legacy form, in a transaction of
+	 * its own. Done when the server starts; if it fails, each cleaning pass
+	 * tries again until it works.
+	 */
+	@PostConstruct
+	void upgradeLegacyReaders() {
+		try {
+			int moved = dao.upgradeLegacyReaders();
+			legacyReadersRemain = false;
+			if (moved > 0)
+				log.info("moved the readers of " + moved
+						+ " runs to the current form");
+		} catch (Exception e) {
+			log.warn("failure during conversion of legacy run readers", e);
+		}
 	}
 
 	@Override
 	public void cleanNow() {
-		List<String> cleaned;
+		if (legacyReadersRemain)
+			upgradeLegacyReaders();
+		if (legacyRunsRemain)
+			try {
+				legacyRunsRemain = dao.upgradeLegacyRuns(UPGRADE_BATCH_SIZE) > 0;
+			} catch (Exception e) {
+				log.warn("failure during conversion of legacy run records", e);
+			}
+		/*
+		 * Phase one: replace the records of the expired runs with tombstones,
+		 * which is quick. Phase two: destroy the execution resources of every
+		 * run with a tombstone, which is slow, outside the database
+		 * transaction and in parallel; each tombstone is only deleted once its
+		 * run's resources are gone, so failed or interrupted destructions are
+		 * retried by a later pass.
+		 */
+		Map<String, RemoteSingleRun> cleaned;
 		try {
 			cleaned = dao.doClean();
 		} catch (Exception e) {
 			log.warn("failure during deletion of expired runs", e);
 			return;
 		}
-		synchronized (cache) {
-			for (String id : cleaned)
+		if (!cleaned.isEmpty())
+			workflowsMayBeOrphaned = true;
+		if (workflowsMayBeOrphaned)
+			try {
+				workflowsMayBeOrphaned = false;
+				dao.purgeUnusedWorkflows();
+			} catch (Exception e) {
+				workflowsMayBeOrphaned = true;
+				log.warn("failure during deletion of unused workflows", e);
+			}
+		if (!cleaned.isEmpty()) {
+			for (String id : cleaned.keySet())
 				cache.remove(id);
+			synchronized (indexLock) {
+				for (String id : cleaned.keySet())
+					indexRemove(id);
+			}
 		}
+		Map<String, RemoteSingleRun> tombstones;
+		try {
+			tombstones = dao.listTombstones();
+		} catch (Exception e) {
+			log.warn("failure during listing of runs to destroy", e);
+			return;
+		}
+		if (reaper != null) {
+			reaper.reap(tombstones, dao);
+			return;
+		}
+		for (Map.Entry<String, RemoteSingleRun> e : tombstones.entrySet())
+			try {
+				try {
+					e.getValue().destroy();
+				} catch (NoSuchObjectException ex) {
+					// Already gone; that's what we wanted
+				}
+				dao.removeTombstone(e.getKey());
+			} catch (Exception ex) {
+				if (log.isDebugEnabled())
+					log.debug("failed to delete execution resource for "
+							+ e.getKey(), ex);
+			}
 	}
 
 	@Override
 	public int countRuns() {
-		return dao.countRuns();
+		getIndex();
+		return counters.getTotal();
+	}
+
+	@Override
+	public long getSnapshotLifetime() {
+		return cache.getSnapshotLifetime();
+	}
+
+	@Override
+	public WorkerCalls getWorkerCalls() {
+		return workerCalls;
+	}
+
+	@Override
+	public boolean isWorkerDegraded(String owner) {
+		WorkerHealth health = (workerCalls == null ? null : workerCalls
+				.getHealth());
+		// Check the cheap case first; mapping the owner may not be cheap
+		if (health == null || health.getUnhealthyCount() == 0)
+			return false;
+		return health.isUnhealthy(factory.getWorkerProcessKey(owner));
+	}
+
+	@Override
+	public void runStarted(String id) {
+		counters.started(id);
+	}
+
+	@Override
+	public void runStatusChanged(String id) {
+		TavernaRun run = cache.peek(id);
+		if (run instanceof RemoteRunDelegate)
+			((RemoteRunDelegate) run).invalidateSnapshot();
+	}
+
+	/**
+	 * Check the maintained counts of runs against the database, reloading the
+	 * run index if it has missed changes, and correct the counts if they have
+	 * drifted.
+	 */
+	public void reconcileCounters() {
+		getIndex();
+		long version;
+		synchronized (indexLock) {
+			version = indexVersion;
+		}
+		List<RunIndexEntry> reloaded = null;
+		try {
+			int stored = dao.countRuns();
+			if (index.size() != stored) {
+				log.info("run index has " + index.size()
+						+ " entries but database has " + stored
+						+ " runs; reloading index");
+				// Read without holding the lock; this can take a while
+				reloaded = dao.listRunIndex();
+			}
+		} catch (RuntimeException e) {
+			log.warn("failed to read run index from database", e);
+			return;
+		}
+		synchronized (indexLock) {
+			if (reloaded != null) {
+				if (indexVersion != version) {
+					log.info("run index changed while being reloaded;"
+							+ " will try again later");
+					return;
+				}
+				index.clear();
+				principalIndex.clear();
+				counters.reset(Collections.<RunIndexEntry> emptyList());
+				for (RunIndexEntry e : reloaded)
+					indexPut(e);
+			}
+			if (counters.reset(index.values()))
+				log.info("corrected drift in run counts");
+		}
 	}
 
 	@Override
 	public void flushToDisk(RemoteRunDelegate run) {
+		Map<String, RemoteRunDelegate> pending = pendingFlushes.get();
+		if (pending != null) {
+			// Coalesce with any other changes made during this request
+			RemoteRunDelegate other = pending.put(run.id, run);
+			/*
+			 * A different handle to the same run (e.g., because the cached one
+			 * was replaced) holds its changes in its own fields, so they can't
+			 * be merged; write them now.
+			 */
+			if (other != null && other != run)
+				writeChanges(other);
+			return;
+		}
+		writeChanges(run);
+	}
+
+	private void writeChanges(RemoteRunDelegate run) {
+		Set<Property> changed = run.takeDirty();
+		if (changed.isEmpty())
+			return;
 		try {
-			dao.flushToDisk(run);
-		} catch (IOException e) {
+			dao.flushToDisk(run, changed);
+		} catch (IOException | RuntimeException e) {
+			run.restoreDirty(changed);
+			if (e instanceof RuntimeException)
+				throw (RuntimeException) e;
 			throw new RuntimeException(
 					"unexpected problem when persisting run record in database",
 					e);
 		}
+		if (changed.contains(Property.NAME)
+				|| changed.contains(Property.EXPIRY)
+				|| changed.contains(Property.READERS))
+			updateIndex(run);
+	}
+
+	/**
+	 * Start deferring flushes on the current thread, so that all the changes
+	 * made to a run during a request are written in one go. Calls may nest;
+	 * the flushes happen when the outermost scope ends.
+	 * 
+	 * @return Whether this is the outermost scope, and so whether the caller
+	 *         must call {@link #endCoalescing()}.
+	 */
+	boolean beginCoalescing() {
+		if (pendingFlushes.get() != null)
+			return false;
+		pendingFlushes.set(new LinkedHashMap<String, RemoteRunDelegate>());
+		return true;
+	}
+
+	/**
+	 * Stop deferring flushes on the current thread, and write out all the
+	 * runs that changed since {@link #beginCoalescing()}.
+	 */
+	void endCoalescing() {
+		Map<String, RemoteRunDelegate> pending = pendingFlushes.get();
+		pendingFlushes.remove();
+		if (pending == null)
+			return;
+		RuntimeException failure = null;
+		for (RemoteRunDelegate run : pending.values())
+			try {
+				writeChanges(run);
+			} catch (RuntimeException e) {
+				log.warn("failed to write changes to run " + run.id, e);
+				if (failure == null)
+					failure = e;
+			}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Makes each call to a public webapp operation into a scope within which
+	 * changes to runs are coalesced into a single flush per run.
+	 * 
+	 * @author Donal Fellows
+	 */
+	@Aspect
+	public static class FlushCoalescingAspect {
+		private RunDatabase runDB;
+
+		@Required
+		public void setRunDatabase(RunDatabase runDB) {
+			this.runDB = runDB;
+		}
+
+		@Around("@annotation(org.taverna.server.master.utils.InvocationCounter.CallCounted)")
+		public Object coalesce(ProceedingJoinPoint call) throws Throwable {
+			if (!runDB.beginCoalescing())
+				return call.proceed();
+			boolean ok = false;
+			try {
+				Object result = call.proceed();
+				ok = true;
+				return result;
+			} finally {
+				try {
+					runDB.endCoalescing();
+				} catch (RuntimeException e) {
+					// Don't hide the original failure, if any
+					if (ok)
+						throw e;
+				}
+			}
+		}
 	}
 
 	@Override
@@ -151,21 +613,12 @@ public class RunDatabase implements RunStore, RunDBSupport {
 
 	@Nullable
 	private TavernaRun get(String uuid) {
-		TavernaRun run = null;
-		synchronized (cache) {
-			run = cache.get(uuid);
-		}
-		try {
+		TavernaRun run = cache.get(uuid);
+		if (run == null) {
+			run = dao.get(uuid);
 			if (run != null)
-				run.ping();
-		} catch (UnknownRunException e) {
-			if (log.isDebugEnabled())
-				log.debug("stale mapping in cache?", e);
-			// Don't need to flush the cache; this happens when cleaning anyway
-			run = null;
+				cache.put(uuid, run);
 		}
-		if (run == null)
-			run = dao.get(uuid);
 		return run;
 	}
 
@@ -195,19 +648,150 @@ public class RunDatabase implements RunStore, RunDBSupport {
 		throw new UnknownRunException();
 	}
 
+	/**
+	 * Get the run index, loading it from the database if this has not yet been
+	 * done.
+	 * 
+	 * @return The index, mapping run IDs to their summaries.
+	 */
+	private Map<String, RunIndexEntry> getIndex() {
+		if (!indexLoaded)
+			synchronized (indexLock) {
+				if (!indexLoaded) {
+					for (RunIndexEntry e : dao.listRunIndex())
+						if (!index.containsKey(e.getId()))
+							indexPut(e);
+					indexLoaded = true;
+				}
+			}
+		return index;
+	}
+
+	/** Must be called while holding {@link #indexLock}. */
+	private void indexPut(RunIndexEntry e) {
+		indexVersion++;
+		RunIndexEntry old = index.put(e.getId(), e);
+		if (old != null) {
+			unlinkPrincipals(old);
+			counters.replaced(old, e);
+		} else
+			counters.added(e);
+		linkPrincipal(e.getOwner(), e.getId());
+		for (String reader : e.getReaders())
+			linkPrincipal(reader, e.getId());
+	}
+
+	/** Must be called while holding {@link #indexLock}. */
+	private void indexRemove(String id) {
+		indexVersion++;
+		RunIndexEntry old = index.remove(id);
+		if (old != null) {
+			unlinkPrincipals(old);
+			counters.removed(old);
+		}
+	}
+
+	private void linkPrincipal(String user, String id) {
+		Set<String> ids = principalIndex.get(user);
+		if (ids == null)
+			principalIndex.put(user, ids = new HashSet<>());
+		ids.add(id);
+	}
+
+	private void unlinkPrincipals(RunIndexEntry e) {
+		Set<String> users = new HashSet<>(e.getReaders());
+		users.add(e.getOwner());
+		for (String user : users) {
+			Set<String> ids = principalIndex.get(user);
+			if (ids != null && ids.remove(e.getId()) && ids.isEmpty())
+				principalIndex.remove(user);
+		}
+	}
+
+	/**
+	 * Get the index entries for the runs that a user owns or may read.
+	 * 
+	 * @param username
+	 *            The name of the user.
+	 * @return The index entries. Cost is proportional to the number of runs
+	 *         that the user can see, not the number of runs on the server.
+	 */
+	private Collection<RunIndexEntry> getIndexEntriesVisibleTo(String username) {
+		if (!indexLoaded)
+			return dao.listRunIndexVisibleTo(username);
+		List<RunIndexEntry> result = new ArrayList<>();
+		synchronized (indexLock) {
+			Set<String> ids = principalIndex.get(username);
+			if (ids != null)
+				for (String id : ids) {
+					RunIndexEntry e = index.get(id);
+					if (e != null)
+						result.add(e);
+				}
+		}
+		return result;
+	}
+
+	private void updateIndex(RemoteRunDelegate rrd) {
+		RunIndexEntry e;
+		try {
+			e = RunIndexEntry.of(rrd);
+		} catch (RuntimeException ex) {
+			log.warn("failed to build index entry for run " + rrd.id, ex);
+			return;
+		}
+		synchronized (indexLock) {
+			indexPut(e);
+		}
+	}
+
+	/**
+	 * Get the full delegate for a run, preferring the cached copy.
+	 * 
+	 * @param uuid
+	 *            The ID of the run.
+	 * @return The delegate, or <tt>null</tt> if the run is not known.
+	 */
+	@Nullable
+	RemoteRunDelegate hydrate(String uuid) {
+		TavernaRun run = cache.peek(uuid);
+		if (run == null)
+			run = dao.get(uuid);
+		return (RemoteRunDelegate) run;
+	}
+
 	@Override
 	public Map<String, TavernaRun> listRuns(UsernamePrincipal user, Policy p) {
-		synchronized (cache) {
-			Map<String, TavernaRun> cached = new HashMap<>();
-			for (Entry<String, TavernaRun> e : cache.entrySet()) {
-				TavernaRun r = e.getValue();
-				if (p.permitAccess(user, r))
-					cached.put(e.getKey(), r);
+		Collection<RunIndexEntry> candidates;
+		if (user != null && p instanceof PolicyImpl) {
+			/*
+			 * The standard policy only lets users see the runs that they own
+			 * or have been made readers of, plus a workflow can see itself,
+			 * so we can restrict the candidates to those.
+			 */
+			candidates = new ArrayList<>(getIndexEntriesVisibleTo(user
+					.getName()));
+			String self = ((PolicyImpl) p).getSelfAccessRunId();
+			RunIndexEntry selfEntry = (self == null ? null : getIndex().get(
+					self));
+			if (selfEntry != null)
+				candidates.add(selfEntry);
+		} else
+			candidates = getIndex().values();
+		Map<String, TavernaRun> result = new HashMap<>();
+		for (RunIndexEntry e : candidates) {
+			TavernaRun run = cache.peek(e.getId());
+			if (run == null)
+				run = new IndexedRun(e, this);
+			try {
+				if (user == null || p.permitAccess(user, run))
+					result.put(e.getId(), run);
+			} catch (RuntimeException ex) {
+				if (log.isDebugEnabled())
+					log.debug("problem checking access to " + e.getId(), ex);
 			}
-			if (!cached.isEmpty())
-				return cached;
 		}
-		return dao.listRuns(user, p);
+		return result;
 	}
 
 	private void logLength(String message, Object obj) {
@@ -240,19 +824,21 @@ public class RunDatabase implements RunStore, RunDBSupport {
 					"unexpected problem when persisting run record in database",
 					e);
 		}
-		synchronized (cache) {
-			cache.put(rrd.getId(), run);
-		}
+		cache.put(rrd.getId(), run);
+		updateIndex(rrd);
 		return rrd.getId();
 	}
 
 	@Override
 	public void unregisterRun(String uuid) {
 		try {
-			if (dao.unpersistRun(uuid))
-				synchronized (cache) {
-					cache.remove(uuid);
+			if (dao.unpersistRun(uuid)) {
+				workflowsMayBeOrphaned = true;
+				cache.remove(uuid);
+				synchronized (indexLock) {
+					indexRemove(uuid);
 				}
+			}
 		} catch (RuntimeException e) {
 			if (log.isDebugEnabled())
 				log.debug("problem persisting the deletion of the run " + uuid,
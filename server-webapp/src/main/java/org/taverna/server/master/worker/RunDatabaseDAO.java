@@ -5,15 +5,21 @@
  */
 package org.taverna.server.master.worker;
 
+import static java.util.Collections.newSetFromMap;
+import static org.taverna.server.master.worker.RunConnection.LEGACY_READERS_CLEAR;
+import static org.taverna.server.master.worker.RunConnection.LEGACY_READERS_TABLE;
+import static org.taverna.server.master.worker.RunConnection.SCHEMA;
 import static org.taverna.server.master.worker.RunConnection.toDBform;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -22,11 +28,13 @@ import javax.jdo.annotations.PersistenceAware;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Required;
+import org.taverna.server.localworker.remote.RemoteSingleRun;
 import org.taverna.server.master.interfaces.Policy;
 import org.taverna.server.master.interfaces.TavernaRun;
 import org.taverna.server.master.utils.CallTimeLogger.PerfLogged;
 import org.taverna.server.master.utils.JDOSupport;
 import org.taverna.server.master.utils.UsernamePrincipal;
+import org.taverna.server.master.worker.RemoteRunDelegate.Property;
 
 /**
  * This handles storing runs, interfacing with the underlying state engine as
@@ -35,19 +43,37 @@ import org.taverna.server.master.utils.UsernamePrincipal;
  * @author Donal Fellows
  */
 @PersistenceAware
-public class RunDatabaseDAO extends JDOSupport<RunConnection> {
+public class RunDatabaseDAO extends JDOSupport<RunConnection> implements
+		RunRecordStore {
 	public RunDatabaseDAO() {
 		super(RunConnection.class);
 	}
 
 	private Log log = LogFactory.getLog("Taverna.Server.Worker.RunDB");
 	private RunDatabase facade;
+	private WorkflowStore workflows;
+	private RunTombstoneStore tombstones;
+	/**
+	 * The runs stored in the legacy form that could not be converted; they
+	 * are left alone rather than being retried on every pass.
+	 */
+	private final Set<String> unconvertibleRuns = newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
 	@Required
 	public void setFacade(RunDatabase facade) {
 		this.facade = facade;
 	}
 
+	@Required
+	public void setWorkflowStore(WorkflowStore workflows) {
+		this.workflows = workflows;
+	}
+
+	@Required
+	public void setTombstoneStore(RunTombstoneStore tombstones) {
+		this.tombstones = tombstones;
+	}
+
 	// -=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=
 
 	@SuppressWarnings("unchecked")
@@ -60,6 +86,7 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	/**
 	 * @return The number of workflow runs in the database.
 	 */
+	@Override
 	@WithinSingleTransaction
 	public int countRuns() {
 		if (log.isDebugEnabled())
@@ -73,8 +100,13 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	}
 
 	@SuppressWarnings("unchecked")
-	private List<String> unterminatedRuns() {
-		return (List<String>) namedQuery("unterminated").execute();
+	private List<String> legacyRuns() {
+		return (List<String>) namedQuery("legacy").execute();
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<String> legacyReaderRuns() {
+		return (List<String>) namedQuery("legacyReaders").execute();
 	}
 
 	@Nullable
@@ -92,6 +124,7 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 		}
 	}
 
+	@Override
 	@Nullable
 	@WithinSingleTransaction
 	public String getSecurityToken(@Nonnull String name) {
@@ -102,7 +135,7 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	}
 
 	private void persist(@Nonnull RemoteRunDelegate rrd) throws IOException {
-		persist(toDBform(rrd));
+		persist(toDBform(rrd, workflows));
 	}
 
 	@Nonnull
@@ -134,12 +167,13 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	 *            The identifier of the run.
 	 * @return The run handle, or <tt>null</tt> if there is no such run.
 	 */
+	@Override
 	@Nullable
 	@WithinSingleTransaction
 	public TavernaRun get(String name) {
 		try {
 			RunConnection rc = pickRun(name);
-			return (rc == null) ? null : rc.fromDBform(facade);
+			return (rc == null) ? null : rc.fromDBform(facade, workflows);
 		} catch (Exception e) {
 			return null;
 		}
@@ -160,7 +194,7 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 		Map<String, TavernaRun> result = new HashMap<>();
 		for (String id : nameRuns())
 			try {
-				RemoteRunDelegate rrd = pickRun(id).fromDBform(facade);
+				RemoteRunDelegate rrd = pickRun(id).fromDBform(facade, workflows);
 				if (p.permitAccess(user, rrd))
 					result.put(id, rrd);
 			} catch (Exception e) {
@@ -169,9 +203,67 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 		return result;
 	}
 
+	/**
+	 * Get the summaries of all the runs, as needed to build the run index.
+	 * Only the cheap columns of the run table are read; the serialized parts
+	 * of the runs are not touched.
+	 * 
+	 * @return The index entries of all runs.
+	 */
+	@Override
+	@Nonnull
+	@PerfLogged
+	@WithinSingleTransaction
+	public List<RunIndexEntry> listRunIndex() {
+		if (log.isDebugEnabled())
+			log.debug("fetching the run index");
+		List<RunIndexEntry> result = new ArrayList<>();
+		@SuppressWarnings("unchecked")
+		Collection<RunConnection> rcs = (Collection<RunConnection>) query(
+				"id != null").execute();
+		for (RunConnection rc : rcs)
+			try {
+				result.add(rc.toIndexEntry());
+			} catch (RuntimeException e) {
+				log.warn("failed to index run " + rc.getId(), e);
+			}
+		return result;
+	}
+
+	/**
+	 * Get the summaries of the runs that a particular user owns or has been
+	 * granted read access to. This uses the indexes on the owner column and on
+	 * the readers table, so its cost depends on how many runs the user can
+	 * see and not on the total number of runs.
+	 * 
+	 * @param username
+	 *            The name of the user.
+	 * @return The index entries of the runs they can see.
+	 */
+	@Override
+	@Nonnull
+	@PerfLogged
+	@WithinSingleTransaction
+	public List<RunIndexEntry> listRunIndexVisibleTo(@Nonnull String username) {
+		if (log.isDebugEnabled())
+			log.debug("fetching the run index for " + username);
+		List<RunIndexEntry> result = new ArrayList<>();
+		@SuppressWarnings("unchecked")
+		Collection<RunConnection> rcs = (Collection<RunConnection>) namedQuery(
+				"visibleTo").execute(username);
+		for (RunConnection rc : rcs)
+			try {
+				result.add(rc.toIndexEntry());
+			} catch (RuntimeException e) {
+				log.warn("failed to index run " + rc.getId(), e);
+			}
+		return result;
+	}
+
 	/**
 	 * @return A list of the IDs for all workflow runs.
 	 */
+	@Override
 	@Nonnull
 	@WithinSingleTransaction
 	public List<String> listRunNames() {
@@ -187,13 +279,14 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	 * @throws Exception
 	 *             If anything goes wrong.
 	 */
+	@Override
 	@Nullable
 	@WithinSingleTransaction
 	public RemoteRunDelegate pickArbitraryRun() throws Exception {
 		for (RunConnection rc : allRuns()) {
 			if (rc.getId() == null)
 				continue;
-			return rc.fromDBform(facade);
+			return rc.fromDBform(facade, workflows);
 		}
 		return null;
 	}
@@ -207,6 +300,7 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	 * @throws IOException
 	 *             If anything goes wrong with serialisation of the run.
 	 */
+	@Override
 	@WithinSingleTransaction
 	public void persistRun(@Nonnull RemoteRunDelegate rrd) throws IOException {
 		persist(rrd);
@@ -219,6 +313,7 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	 *            The ID of the run.
 	 * @return Whether a deletion happened.
 	 */
+	@Override
 	@WithinSingleTransaction
 	public boolean unpersistRun(String name) {
 		RunConnection rc = pickRun(name);
@@ -232,55 +327,177 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	 * 
 	 * @param run
 	 *            The run to synchronise.
+	 * @param changed
+	 *            Which properties of the run have changed; only these are
+	 *            written.
 	 * @throws IOException
 	 *             If serialization of anything fails.
 	 */
+	@Override
 	@WithinSingleTransaction
-	public void flushToDisk(@Nonnull RemoteRunDelegate run) throws IOException {
-		getById(run.id).makeChanges(run);
+	public void flushToDisk(@Nonnull RemoteRunDelegate run,
+			@Nonnull Set<Property> changed) throws IOException {
+		getById(run.id).makeChanges(run, changed);
 	}
 
 	/**
-	 * Remove all workflow runs that have expired.
+	 * Remove all workflow runs that have expired from the database. This only
+	 * deletes the records, leaving a tombstone for each; the (slow)
+	 * destruction of the execution resources that they refer to is left to
+	 * the caller, so that it can be done outside the transaction.
 	 * 
-	 * @return The ids of the deleted runs.
+	 * @return A mapping from the ids of the deleted runs to the handles of
+	 *         their remote execution resources. A handle is <tt>null</tt> if it
+	 *         could not be recovered from the database.
 	 */
+	@Override
 	@Nonnull
 	@PerfLogged
 	@WithinSingleTransaction
-	public List<String> doClean() {
+	public Map<String, RemoteSingleRun> doClean() {
 		if (log.isDebugEnabled())
 			log.debug("deleting runs that timed out before " + new Date());
 		List<String> toDelete = expiredRuns();
 		if (log.isDebugEnabled())
 			log.debug("found " + toDelete.size() + " runs to delete");
+		Map<String, RemoteSingleRun> deleted = new HashMap<>();
 		for (String id : toDelete) {
 			RunConnection rc = getById(id);
+			if (rc == null)
+				continue;
+			RemoteSingleRun run = null;
 			try {
-				rc.fromDBform(facade).run.destroy();
+				run = rc.getRemoteRun();
 			} catch (Exception e) {
-				if (log.isDebugEnabled())
-					log.debug("failed to delete execution resource for " + id,
-							e);
+				log.warn("failed to recover execution resource handle for "
+						+ id + "; it will not be destroyed", e);
 			}
+			if (run != null)
+				try {
+					tombstones.add(id, run);
+				} catch (IOException e) {
+					log.warn("failed to record that " + id
+							+ " must be destroyed; will try again", e);
+					continue;
+				}
 			delete(rc);
+			deleted.put(id, run);
+		}
+		return deleted;
+	}
+
+	@Override
+	@Nonnull
+	@WithinSingleTransaction
+	public Map<String, RemoteSingleRun> listTombstones() {
+		return tombstones.list();
+	}
+
+	@Override
+	@WithinSingleTransaction
+	public void removeTombstone(@Nonnull String id) {
+		tombstones.remove(id);
+	}
+
+	/**
+	 * Remove the stored workflows that are no longer used by any run. This is
+	 * done in a transaction of this DAO so that it cannot interleave with the
+	 * creation of a run that reuses one of those workflows.
+	 * 
+	 * @return The number of workflows removed.
+	 */
+	@Override
+	@PerfLogged
+	@WithinSingleTransaction
+	public int purgeUnusedWorkflows() {
+		return workflows.purgeOrphans();
+	}
+
+	/**
+	 * Move the readers of all the runs that still hold them in the legacy
+	 * form to where the visibility query can see them, and empty the legacy
+	 * table so that a reader removed later does not come back. The whole
+	 * conversion commits or fails together.
+	 * 
+	 * @return The number of runs whose readers were moved.
+	 */
+	@Override
+	@PerfLogged
+	@WithinSingleTransaction
+	public int upgradeLegacyReaders() {
+		if (!tableExists(SCHEMA, LEGACY_READERS_TABLE))
+			return 0;
+		List<String> ids = legacyReaderRuns();
+		if (ids.isEmpty())
+			return 0;
+		for (String id : ids) {
+			RunConnection rc = getById(id);
+			if (rc != null)
+				rc.upgradeReaders();
+		}
+		executeSQL(LEGACY_READERS_CLEAR);
+		return ids.size();
+	}
+
+	/**
+	 * Convert some of the runs that are still stored in a legacy form (Java
+	 * serialized, or holding their own copy of their workflow) to the current
+	 * encoding.
+	 * 
+	 * @param limit
+	 *            The maximum number of runs to convert in this transaction.
+	 * @return The number of runs that still need converting after this call.
+	 */
+	@Override
+	@PerfLogged
+	@WithinSingleTransaction
+	public int upgradeLegacyRuns(int limit) {
+		List<String> ids = new ArrayList<>(legacyRuns());
+		ids.removeAll(unconvertibleRuns);
+		int done = 0, failed = 0;
+		for (String id : ids) {
+			if (done + failed >= limit)
+				break;
+			RunConnection rc = getById(id);
+			try {
+				if (rc != null && !rc.upgradeEncoding(workflows)) {
+					// Nothing that can be converted, yet still looks legacy
+					log.warn("run " + id + " has no convertible content;"
+							+ " leaving it as it is");
+					unconvertibleRuns.add(id);
+					failed++;
+					continue;
+				}
+			} catch (Exception e) {
+				log.warn("failed to convert run " + id + " to current encoding;"
+						+ " leaving it as it is", e);
+				unconvertibleRuns.add(id);
+				failed++;
+				continue;
+			}
+			done++;
 		}
-		return toDelete;
+		return ids.size() - done - failed;
 	}
 
 	/**
-	 * @return A list of workflow runs that are candidates for doing
-	 *         notification of termination.
+	 * @param ids
+	 *            The IDs of runs that have been found to have finished.
+	 * @return Those of the workflow runs that have not yet had notification of
+	 *         termination done. Unknown runs are ignored.
 	 */
+	@Override
 	@Nonnull
 	@PerfLogged
 	@WithinSingleTransaction
-	public List<RemoteRunDelegate> getPotentiallyNotifiable() {
+	public List<RemoteRunDelegate> getPotentiallyNotifiable(
+			@Nonnull Collection<String> ids) {
 		List<RemoteRunDelegate> toNotify = new ArrayList<>();
-		for (String id : unterminatedRuns())
+		for (String id : ids)
 			try {
 				RunConnection rc = getById(id);
-				toNotify.add(rc.fromDBform(facade));
+				if (rc != null && !rc.isFinished())
+					toNotify.add(rc.fromDBform(facade, workflows));
 			} catch (Exception e) {
 				log.warn("failed to fetch connection token"
 						+ "for notification of completion check", e);
@@ -288,6 +505,7 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 		return toNotify;
 	}
 
+	@Override
 	@PerfLogged
 	@WithinSingleTransaction
 	public void markFinished(@Nonnull Set<String> terminated) {
@@ -296,7 +514,7 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 			if (rc == null)
 				continue;
 			try {
-				rc.fromDBform(facade).doneTransitionToFinished = true;
+				rc.fromDBform(facade, workflows).doneTransitionToFinished = true;
 				rc.setFinished(true);
 			} catch (Exception e) {
 				log.warn("failed to note termination", e);
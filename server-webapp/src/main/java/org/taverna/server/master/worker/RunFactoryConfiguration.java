@@ -59,6 +59,12 @@ public abstract class RunFactoryConfiguration implements ConfigurableRunFactory
 	/** Count the number of operating runs. */
 	protected abstract int operatingCount() throws Exception;
 
+	/**
+	 * Tell the run factory subprocesses how to compress ZIP archives of run
+	 * directories.
+	 */
+	protected abstract void reconfigureArchiving();
+
 	protected final synchronized void incrementRunCount() {
 		totalRuns++;
 	}
@@ -392,4 +398,30 @@ public abstract class RunFactoryConfiguration implements ConfigurableRunFactory
 	public final boolean getGenerateProvenance() {
 		return state.getGenerateProvenance();
 	}
+
+	@Override
+	@ManagedAttribute(description = "How many threads compress the contents of ZIP archives of run directories.")
+	public final void setArchiveThreads(int archiveThreads) {
+		state.setArchiveThreads(archiveThreads);
+		reconfigureArchiving();
+	}
+
+	@Override
+	@ManagedAttribute(description = "How many threads compress the contents of ZIP archives of run directories.")
+	public final int getArchiveThreads() {
+		return state.getArchiveThreads();
+	}
+
+	@Override
+	@ManagedAttribute(description = "The level of compression of ZIP archives of run directories, from 0 (none) to 9 (best), or -1 for the default.")
+	public final void setArchiveCompressionLevel(int archiveCompressionLevel) {
+		state.setArchiveCompressionLevel(archiveCompressionLevel);
+		reconfigureArchiving();
+	}
+
+	@Override
+	@ManagedAttribute(description = "The level of compression of ZIP archives of run directories, from 0 (none) to 9 (best), or -1 for the default.")
+	public final int getArchiveCompressionLevel() {
+		return state.getArchiveCompressionLevel();
+	}
 }
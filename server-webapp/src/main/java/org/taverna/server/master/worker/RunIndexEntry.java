@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.Collections.emptySet;
+import static java.util.Collections.unmodifiableSet;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A compact, immutable summary of a workflow run, holding just the information
+ * needed to decide who may see the run and to list it. Building one of these
+ * does not require deserializing the connection to the remote run or
+ * rebuilding its security context.
+ * 
+ * @author Donal Fellows
+ */
+public final class RunIndexEntry {
+	private final String id;
+	private final String owner;
+	private final Set<String> readers;
+	private final String name;
+	private final long expiry;
+	private final boolean finished;
+
+	RunIndexEntry(@Nonnull String id, @Nonnull String owner,
+			@Nullable Set<String> readers, @Nullable String name,
+			@Nonnull Date expiry, boolean finished) {
+		this.id = id;
+		this.owner = owner;
+		if (readers == null || readers.isEmpty())
+			this.readers = emptySet();
+		else
+			this.readers = unmodifiableSet(new HashSet<>(readers));
+		this.name = name;
+		this.expiry = expiry.getTime();
+		this.finished = finished;
+	}
+
+	/**
+	 * Build the index entry that describes a run delegate's current state.
+	 * 
+	 * @param rrd
+	 *            The run delegate to summarise.
+	 * @return The index entry.
+	 */
+	@Nonnull
+	static RunIndexEntry of(@Nonnull RemoteRunDelegate rrd) {
+		return new RunIndexEntry(rrd.getId(), rrd.getSecurityContext()
+				.getOwner().getName(), rrd.getReaders(), rrd.getName(),
+				rrd.getExpiry(), rrd.doneTransitionToFinished);
+	}
+
+	/**
+	 * @return The identifier of the run.
+	 */
+	@Nonnull
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return The name of the user that owns the run.
+	 */
+	@Nonnull
+	public String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * @return The names of the users granted read access to the run.
+	 */
+	@Nonnull
+	public Set<String> getReaders() {
+		return readers;
+	}
+
+	/**
+	 * @return The descriptive name of the run.
+	 */
+	@Nullable
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return When the run is due to be destroyed.
+	 */
+	@Nonnull
+	public Date getExpiry() {
+		return new Date(expiry);
+	}
+
+	/**
+	 * @return Whether the run has been noted as having finished.
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Test whether a user is one of the users that is allowed to see the run
+	 * without any further policy involvement.
+	 * 
+	 * @param username
+	 *            The name of the user.
+	 * @return Whether they are the owner or a permitted reader.
+	 */
+	public boolean isOwnerOrReader(@Nonnull String username) {
+		return owner.equals(username) || readers.contains(username);
+	}
+
+	/**
+	 * Make a copy of this entry that notes that the run is finished.
+	 * 
+	 * @return The updated entry.
+	 */
+	@Nonnull
+	RunIndexEntry asFinished() {
+		if (finished)
+			return this;
+		return new RunIndexEntry(id, owner, readers, name, new Date(expiry),
+				true);
+	}
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An append-only log of records in a file, which is memory-mapped in
+ * fixed-size regions. Each record is framed by its length and a checksum, so
+ * that a record that was only partly written when the server stopped is
+ * detected (and discarded) when the log is reopened. Records never straddle
+ * regions. Appending is serialized; reading may be done concurrently with
+ * appending.
+ * 
+ * @author Donal Fellows
+ */
+final class RunLog implements Closeable {
+	private Log log = LogFactory.getLog("Taverna.Server.Worker.RunDB");
+	/** The size of each mapped region of the file. */
+	static final int REGION_SIZE = 32 * 1024 * 1024;
+	private static final int MAGIC = 0x54535231;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+	private static final int FRAME_SIZE = 8;
+	/** A length that means "continue at the start of the next region". */
+	private static final int SKIP = -1;
+
+	/**
+	 * Receives the records of a log as it is read when it is opened.
+	 */
+	interface Handler {
+		/**
+		 * @param offset
+		 *            The offset of the record in the log.
+		 * @param payload
+		 *            The content of the record.
+		 * @throws IOException
+		 *             If the record can't be understood.
+		 */
+		void record(long offset, @Nonnull byte[] payload) throws IOException;
+	}
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	/** Replaced (never modified) when a region is added. */
+	private volatile MappedByteBuffer[] regions;
+	/** Where the next record will be written. Guarded by this. */
+	private long end;
+	/** The first region with unforced writes, or -1. Guarded by this. */
+	private int dirtyRegion = -1;
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Open a log, creating it if it does not exist.
+	 * 
+	 * @param file
+	 *            The file holding the log.
+	 * @param handler
+	 *            What to pass the existing records of the log to, in the order
+	 *            that they were written, or <tt>null</tt> if they are not
+	 *            wanted.
+	 * @throws IOException
+	 *             If the file can't be opened or is not a log.
+	 */
+	RunLog(@Nonnull File file, @Nullable Handler handler) throws IOException {
+		this.file = file;
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		try {
+			long length = channel.size();
+			int count = (int) Math.max(1, (length + REGION_SIZE - 1)
+					/ REGION_SIZE);
+			MappedByteBuffer[] ary = new MappedByteBuffer[count];
+			for (int i = 0; i < count; i++)
+				ary[i] = channel.map(READ_WRITE, (long) i * REGION_SIZE,
+						REGION_SIZE);
+			regions = ary;
+			ByteBuffer header = ary[0].duplicate();
+			if (length == 0) {
+				header.putInt(MAGIC).putInt(VERSION);
+				end = HEADER_SIZE;
+				return;
+			}
+			if (header.getInt() != MAGIC)
+				throw new IOException(file + " is not a run log");
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException("unsupported run log version: " + version);
+			scan(handler);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read the existing records of the log, and work out where the next
+	 * record will be written. Anything after the last complete record is
+	 * wiped.
+	 */
+	private void scan(@Nullable Handler handler) throws IOException {
+		MappedByteBuffer[] ary = regions;
+		long pos = HEADER_SIZE;
+		while (true) {
+			int r = (int) (pos / REGION_SIZE);
+			int p = (int) (pos % REGION_SIZE);
+			if (r >= ary.length)
+				break;
+			ByteBuffer b = ary[r].duplicate();
+			if (REGION_SIZE - p < FRAME_SIZE) {
+				pos = (long) (r + 1) * REGION_SIZE;
+				continue;
+			}
+			b.position(p);
+			int length = b.getInt();
+			if (length == SKIP) {
+				pos = (long) (r + 1) * REGION_SIZE;
+				continue;
+			}
+			if (length == 0)
+				break;
+			if (length < 0 || length > REGION_SIZE - p - FRAME_SIZE) {
+				discardTail(pos);
+				break;
+			}
+			int sum = b.getInt();
+			byte[] payload = new byte[length];
+			b.get(payload);
+			if (checksum(payload) != sum) {
+				discardTail(pos);
+				break;
+			}
+			if (handler != null)
+				handler.record(pos, payload);
+			pos += FRAME_SIZE + length;
+		}
+		end = pos;
+	}
+
+	private void discardTail(long pos) {
+		log.warn("discarding incomplete record at offset " + pos + " of "
+				+ file);
+		MappedByteBuffer[] ary = regions;
+		for (int r = (int) (pos / REGION_SIZE); r < ary.length; r++) {
+			ByteBuffer b = ary[r].duplicate();
+			if (r == pos / REGION_SIZE)
+				b.position((int) (pos % REGION_SIZE));
+			byte[] zeroes = new byte[b.remaining()];
+			b.put(zeroes);
+			ary[r].force();
+		}
+	}
+
+	private int checksum(byte[] payload) {
+		synchronized (crc) {
+			crc.reset();
+			crc.update(payload);
+			return (int) crc.getValue();
+		}
+	}
+
+	/**
+	 * Add a record to the end of the log.
+	 * 
+	 * @param payload
+	 *            The content of the record.
+	 * @return The offset of the record, for passing to {@link #read(long)}.
+	 * @throws IOException
+	 *             If the record is too large, or the file can't be extended.
+	 */
+	synchronized long append(@Nonnull byte[] payload) throws IOException {
+		int need = FRAME_SIZE + payload.length;
+		if (need > REGION_SIZE - HEADER_SIZE)
+			throw new IOException("record of " + payload.length
+					+ " bytes is too large for the run log");
+		int r = (int) (end / REGION_SIZE);
+		int p = (int) (end % REGION_SIZE);
+		if (p + need > REGION_SIZE) {
+			if (REGION_SIZE - p >= FRAME_SIZE)
+				region(r).putInt(p, SKIP);
+			markDirty(r);
+			r++;
+			p = 0;
+		}
+		ByteBuffer b = region(r).duplicate();
+		b.position(p);
+		b.putInt(payload.length).putInt(checksum(payload)).put(payload);
+		markDirty(r);
+		long offset = (long) r * REGION_SIZE + p;
+		end = offset + need;
+		return offset;
+	}
+
+	private MappedByteBuffer region(int r) throws IOException {
+		MappedByteBuffer[] ary = regions;
+		if (r < ary.length)
+			return ary[r];
+		ary = Arrays.copyOf(ary, r + 1);
+		ary[r] = channel.map(READ_WRITE, (long) r * REGION_SIZE, REGION_SIZE);
+		regions = ary;
+		return ary[r];
+	}
+
+	private void markDirty(int r) {
+		if (dirtyRegion < 0 || r < dirtyRegion)
+			dirtyRegion = r;
+	}
+
+	/**
+	 * Read a record from the log.
+	 * 
+	 * @param offset
+	 *            The offset of the record, as returned by
+	 *            {@link #append(byte[])} or passed to the {@link Handler}.
+	 * @return The content of the record.
+	 * @throws IOException
+	 *             If there is no record at that offset.
+	 */
+	@Nonnull
+	byte[] read(long offset) throws IOException {
+		MappedByteBuffer[] ary = regions;
+		int r = (int) (offset / REGION_SIZE);
+		if (offset < HEADER_SIZE || r >= ary.length)
+			throw new IOException("no record at offset " + offset);
+		ByteBuffer b = ary[r].duplicate();
+		b.position((int) (offset % REGION_SIZE));
+		int length = b.getInt();
+		if (length <= 0 || length > b.remaining() - 4)
+			throw new IOException("no record at offset " + offset);
+		b.getInt();
+		byte[] payload = new byte[length];
+		b.get(payload);
+		return payload;
+	}
+
+	/**
+	 * Write the records appended since the last call to stable storage.
+	 */
+	synchronized void force() {
+		if (dirtyRegion < 0)
+			return;
+		MappedByteBuffer[] ary = regions;
+		for (int r = dirtyRegion; r < ary.length; r++)
+			ary[r].force();
+		dirtyRegion = -1;
+	}
+
+	/**
+	 * @return The number of bytes of the file in use by the log.
+	 */
+	synchronized long size() {
+		return end;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		force();
+		channel.close();
+		raf.close();
+	}
+}
@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.taverna.server.master.worker.RunConnectionCodec.decodeCredentials;
+import static org.taverna.server.master.worker.RunConnectionCodec.decodeRun;
+import static org.taverna.server.master.worker.RunConnectionCodec.decodeTrust;
+import static org.taverna.server.master.worker.RunConnectionCodec.encodeCredentials;
+import static org.taverna.server.master.worker.RunConnectionCodec.encodeRun;
+import static org.taverna.server.master.worker.RunConnectionCodec.encodeTrust;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.rmi.MarshalledObject;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+import org.taverna.server.master.common.Workflow;
+import org.taverna.server.master.utils.UsernamePrincipal;
+import org.taverna.server.master.worker.RemoteRunDelegate.Property;
+
+/**
+ * The records held in a {@link RunLog} by the {@link RunLogStore}. There are
+ * five kinds: the complete state of a run, the deletion of a run, the
+ * tombstone of an expired run (which holds just the handle to its execution
+ * resources, until they are destroyed), a workflow document (which is
+ * written once and referred to by hash from the runs that use it), and the
+ * deletion of a workflow document that no run uses any more. The large
+ * parts of a run are encoded as they are in a {@link RunConnection}.
+ * 
+ * @author Donal Fellows
+ */
+final class RunLogRecord {
+	static final byte RUN = 1;
+	static final byte DELETE = 2;
+	static final byte WORKFLOW = 3;
+	static final byte TOMBSTONE = 4;
+	static final byte DELETE_WORKFLOW = 5;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String[] STRING_ARY = new String[0];
+
+	String id;
+	String name;
+	long creationInstant;
+	long expiry;
+	String owner;
+	String[] readers;
+	String[] writers;
+	String[] destroyers;
+	String workflowHash;
+	byte[] runData;
+	byte[] credentialData;
+	byte[] trustData;
+	boolean finished;
+	boolean provenance;
+	String securityToken;
+
+	/**
+	 * @param payload
+	 *            The content of a log record.
+	 * @return What kind of record it is.
+	 */
+	static byte type(@Nonnull byte[] payload) {
+		return payload[0];
+	}
+
+	/**
+	 * Build the record of a new run. The password that the run uses to talk
+	 * back to the server is issued at this point.
+	 * 
+	 * @param rrd
+	 *            The run.
+	 * @param workflowHash
+	 *            The hash of the run's workflow, which must already be in the
+	 *            log.
+	 * @return The record.
+	 * @throws IOException
+	 *             If encoding fails.
+	 */
+	@Nonnull
+	static RunLogRecord of(@Nonnull RemoteRunDelegate rrd,
+			@Nonnull String workflowHash) throws IOException {
+		RunLogRecord rec = new RunLogRecord();
+		rec.id = rrd.id;
+		rec.creationInstant = rrd.getCreationTimestamp().getTime();
+		rec.workflowHash = workflowHash;
+		rec.runData = encodeRun(new MarshalledObject<>(rrd.run));
+		rec.owner = rrd.getSecurityContext().getOwner().getName();
+		rec.securityToken = ((SecurityContextFactory) rrd.getSecurityContext()
+				.getFactory()).issueNewPassword();
+		rec.applyChanges(rrd, EnumSet.allOf(Property.class));
+		rec.finished = rrd.doneTransitionToFinished;
+		return rec;
+	}
+
+	/**
+	 * Copy the changed parts of a run into this record.
+	 * 
+	 * @param rrd
+	 *            The run.
+	 * @param changed
+	 *            Which properties of the run have changed.
+	 * @throws IOException
+	 *             If encoding fails.
+	 */
+	void applyChanges(@Nonnull RemoteRunDelegate rrd,
+			@Nonnull Set<Property> changed) throws IOException {
+		if (changed.contains(Property.EXPIRY))
+			expiry = rrd.getExpiry().getTime();
+		if (changed.contains(Property.READERS))
+			readers = rrd.getReaders().toArray(STRING_ARY);
+		if (changed.contains(Property.WRITERS))
+			writers = rrd.getWriters().toArray(STRING_ARY);
+		if (changed.contains(Property.DESTROYERS))
+			destroyers = rrd.getDestroyers().toArray(STRING_ARY);
+		if (changed.contains(Property.CREDENTIALS))
+			credentialData = encodeCredentials(rrd.getSecurityContext()
+					.getCredentials());
+		if (changed.contains(Property.TRUST))
+			trustData = encodeTrust(rrd.getSecurityContext().getTrusted());
+		if (changed.contains(Property.NAME))
+			name = rrd.name;
+		if (changed.contains(Property.PROVENANCE))
+			provenance = rrd.generateProvenance;
+	}
+
+	private static List<String> list(String[] ary) {
+		if (ary == null)
+			return emptyList();
+		return asList(ary);
+	}
+
+	/**
+	 * Rebuild the run delegate described by this record.
+	 * 
+	 * @param db
+	 *            The database facade.
+	 * @param workflow
+	 *            The run's workflow.
+	 * @return The delegate.
+	 * @throws Exception
+	 *             If anything goes wrong.
+	 */
+	@Nonnull
+	RemoteRunDelegate toDelegate(@Nonnull RunDBSupport db,
+			@Nonnull Workflow workflow) throws Exception {
+		RemoteRunDelegate rrd = new RemoteRunDelegate();
+		rrd.id = id;
+		rrd.creationInstant = new Date(creationInstant);
+		rrd.workflow = workflow;
+		rrd.expiry = new Date(expiry);
+		rrd.readers = new HashSet<>(list(readers));
+		rrd.writers = new HashSet<>(list(writers));
+		rrd.destroyers = new HashSet<>(list(destroyers));
+		rrd.run = getRemoteRun();
+		rrd.doneTransitionToFinished = finished;
+		rrd.generateProvenance = provenance;
+		SecurityContextFactory scf = SecurityContextFactory.getInstance();
+		if (scf == null)
+			throw new IllegalStateException(
+					"no security context factory available");
+		rrd.secContext = scf.create(rrd, new UsernamePrincipal(owner));
+		((SecurityContextDelegate) rrd.secContext).setCredentialsAndTrust(
+				decodeCredentials(credentialData), decodeTrust(trustData));
+		rrd.db = db;
+		rrd.factory = db.getFactory();
+		rrd.name = name;
+		return rrd;
+	}
+
+	/**
+	 * @return The summary of the run that is used to build the run index.
+	 */
+	@Nonnull
+	RunIndexEntry toIndexEntry() {
+		return new RunIndexEntry(id, owner, new HashSet<>(list(readers)),
+				name, new Date(expiry), finished);
+	}
+
+	/**
+	 * @return The handle to the remote run.
+	 * @throws IOException
+	 *             If deserialization of the handle fails.
+	 * @throws ClassNotFoundException
+	 *             If deserialization of the handle fails.
+	 */
+	@Nonnull
+	RemoteSingleRun getRemoteRun() throws IOException, ClassNotFoundException {
+		return decodeRun(runData).get();
+	}
+
+	// -=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=
+
+	/**
+	 * @return The encoded form of this record.
+	 * @throws IOException
+	 *             If encoding fails.
+	 */
+	@Nonnull
+	byte[] encode() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(baos)) {
+			out.writeByte(RUN);
+			writeString(out, id);
+			writeString(out, name);
+			out.writeLong(creationInstant);
+			out.writeLong(expiry);
+			writeString(out, owner);
+			writeStrings(out, readers);
+			writeStrings(out, writers);
+			writeStrings(out, destroyers);
+			writeString(out, workflowHash);
+			writeBytes(out, runData);
+			writeBytes(out, credentialData);
+			writeBytes(out, trustData);
+			out.writeBoolean(finished);
+			out.writeBoolean(provenance);
+			writeString(out, securityToken);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @param payload
+	 *            The content of a log record of type {@link #RUN}.
+	 * @return The decoded record.
+	 * @throws IOException
+	 *             If the record is malformed.
+	 */
+	@Nonnull
+	static RunLogRecord decode(@Nonnull byte[] payload) throws IOException {
+		try (DataInputStream in = open(payload, RUN)) {
+			RunLogRecord rec = new RunLogRecord();
+			rec.id = readString(in);
+			rec.name = readString(in);
+			rec.creationInstant = in.readLong();
+			rec.expiry = in.readLong();
+			rec.owner = readString(in);
+			rec.readers = readStrings(in);
+			rec.writers = readStrings(in);
+			rec.destroyers = readStrings(in);
+			rec.workflowHash = readString(in);
+			rec.runData = readBytes(in);
+			rec.credentialData = readBytes(in);
+			rec.trustData = readBytes(in);
+			rec.finished = in.readBoolean();
+			rec.provenance = in.readBoolean();
+			rec.securityToken = readString(in);
+			return rec;
+		}
+	}
+
+	/**
+	 * @param id
+	 *            The ID of a run.
+	 * @return The encoded record of the deletion of the run.
+	 * @throws IOException
+	 *             If encoding fails.
+	 */
+	@Nonnull
+	static byte[] encodeDeletion(@Nonnull String id) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(baos)) {
+			out.writeByte(DELETE);
+			writeString(out, id);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @param payload
+	 *            The content of a log record of type {@link #DELETE}.
+	 * @return The ID of the deleted run.
+	 * @throws IOException
+	 *             If the record is malformed.
+	 */
+	@Nonnull
+	static String decodeDeletion(@Nonnull byte[] payload) throws IOException {
+		try (DataInputStream in = open(payload, DELETE)) {
+			return readString(in);
+		}
+	}
+
+	/**
+	 * @param id
+	 *            The ID of an expired run.
+	 * @param runData
+	 *            The handle to the run's execution resources, as encoded by
+	 *            {@link RunConnectionCodec#encodeRun(java.rmi.MarshalledObject)}.
+	 * @return The encoded tombstone of the run.
+	 * @throws IOException
+	 *             If encoding fails.
+	 */
+	@Nonnull
+	static byte[] encodeTombstone(@Nonnull String id, @Nonnull byte[] runData)
+			throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(baos)) {
+			out.writeByte(TOMBSTONE);
+			writeString(out, id);
+			writeBytes(out, runData);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @param payload
+	 *            The content of a log record of type {@link #TOMBSTONE}.
+	 * @return The ID of the expired run.
+	 * @throws IOException
+	 *             If the record is malformed.
+	 */
+	@Nonnull
+	static String decodeTombstoneId(@Nonnull byte[] payload)
+			throws IOException {
+		try (DataInputStream in = open(payload, TOMBSTONE)) {
+			return readString(in);
+		}
+	}
+
+	/**
+	 * @param payload
+	 *            The content of a log record of type {@link #TOMBSTONE}.
+	 * @return The handle to the expired run's execution resources.
+	 * @throws IOException
+	 *             If the record is malformed.
+	 * @throws ClassNotFoundException
+	 *             If decoding the handle fails.
+	 */
+	@Nonnull
+	static RemoteSingleRun decodeTombstoneRun(@Nonnull byte[] payload)
+			throws IOException, ClassNotFoundException {
+		try (DataInputStream in = open(payload, TOMBSTONE)) {
+			readString(in);
+			return decodeRun(readBytes(in)).get();
+		}
+	}
+
+	/**
+	 * @param hash
+	 *            The content hash of a workflow.
+	 * @param data
+	 *            The workflow, as encoded by
+	 *            {@link RunConnectionCodec#encodeWorkflow(String)}.
+	 * @return The encoded record of the workflow.
+	 * @throws IOException
+	 *             If encoding fails.
+	 */
+	@Nonnull
+	static byte[] encodeWorkflow(@Nonnull String hash, @Nonnull byte[] data)
+			throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(baos)) {
+			out.writeByte(WORKFLOW);
+			writeString(out, hash);
+			writeBytes(out, data);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @param payload
+	 *            The content of a log record of type {@link #WORKFLOW}.
+	 * @return The content hash of the workflow.
+	 * @throws IOException
+	 *             If the record is malformed.
+	 */
+	@Nonnull
+	static String decodeWorkflowHash(@Nonnull byte[] payload)
+			throws IOException {
+		try (DataInputStream in = open(payload, WORKFLOW)) {
+			return readString(in);
+		}
+	}
+
+	/**
+	 * @param payload
+	 *            The content of a log record of type {@link #WORKFLOW}.
+	 * @return The workflow, as encoded by
+	 *         {@link RunConnectionCodec#encodeWorkflow(String)}.
+	 * @throws IOException
+	 *             If the record is malformed.
+	 */
+	@Nonnull
+	static byte[] decodeWorkflowData(@Nonnull byte[] payload)
+			throws IOException {
+		try (DataInputStream in = open(payload, WORKFLOW)) {
+			readString(in);
+			return readBytes(in);
+		}
+	}
+
+	/**
+	 * @param hash
+	 *            The key of a workflow document.
+	 * @return The encoded record of the deletion of the workflow.
+	 * @throws IOException
+	 *             If encoding fails.
+	 */
+	@Nonnull
+	static byte[] encodeWorkflowDeletion(@Nonnull String hash)
+			throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(baos)) {
+			out.writeByte(DELETE_WORKFLOW);
+			writeString(out, hash);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @param payload
+	 *            The content of a log record of type {@link #DELETE_WORKFLOW}.
+	 * @return The key of the deleted workflow.
+	 * @throws IOException
+	 *             If the record is malformed.
+	 */
+	@Nonnull
+	static String decodeWorkflowDeletion(@Nonnull byte[] payload)
+			throws IOException {
+		try (DataInputStream in = open(payload, DELETE_WORKFLOW)) {
+			return readString(in);
+		}
+	}
+
+	private static DataInputStream open(byte[] payload, byte type)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				payload));
+		int t = in.readByte();
+		if (t != type)
+			throw new IOException("expected record of type " + type
+					+ " but got " + t);
+		return in;
+	}
+
+	private static void writeBytes(DataOutputStream out, @Nullable byte[] b)
+			throws IOException {
+		if (b == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		if (n < 0)
+			return null;
+		byte[] b = new byte[n];
+		in.readFully(b);
+		return b;
+	}
+
+	private static void writeString(DataOutputStream out, @Nullable String s)
+			throws IOException {
+		writeBytes(out, s == null ? null : s.getBytes(UTF8));
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] b = readBytes(in);
+		return b == null ? null : new String(b, UTF8);
+	}
+
+	private static void writeStrings(DataOutputStream out,
+			@Nullable String[] ary) throws IOException {
+		if (ary == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(ary.length);
+		for (String s : ary)
+			writeString(out, s);
+	}
+
+	private static String[] readStrings(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		if (n < 0)
+			return null;
+		String[] ary = new String[n];
+		for (int i = 0; i < n; i++)
+			ary[i] = readString(in);
+		return ary;
+	}
+}
@@ -0,0 +1,949 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.lang.System.currentTimeMillis;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.springframework.jmx.support.MetricType.COUNTER;
+import static org.springframework.jmx.support.MetricType.GAUGE;
+import static org.taverna.server.master.TavernaServer.JMX_ROOT;
+import static org.taverna.server.master.worker.RunConnectionCodec.decodeWorkflow;
+import static org.taverna.server.master.worker.RunConnectionCodec.encodeWorkflow;
+import static org.taverna.server.master.worker.RunConnectionCodec.hashWorkflow;
+import static org.taverna.server.master.worker.RunConnectionCodec.marshalWorkflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+import org.taverna.server.master.common.Workflow;
+import org.taverna.server.master.interfaces.TavernaRun;
+import org.taverna.server.master.utils.CallTimeLogger.PerfLogged;
+import org.taverna.server.master.utils.Contextualizer;
+import org.taverna.server.master.worker.RemoteRunDelegate.Property;
+
+/**
+ * A store of run records that keeps them in an append-only, memory-mapped log
+ * file, with an index of the live records held in memory. Every change to a
+ * run appends a new copy of its record; deleting a run appends a deletion
+ * record, except that an expired run is first replaced by a tombstone that
+ * lasts until its execution resources are destroyed.
+ * Workflows are written to the log once, keyed by content hash, as in the
+ * {@link WorkflowStore}, and are deleted (by a deletion record of their own)
+ * once no run refers to them. The log is periodically compacted by rewriting
+ * just the live records to a new file, when enough of it is garbage; most of
+ * the copying is done without holding the lock, so that the store can still
+ * be used meanwhile. This avoids the object-relational mapping and SQL costs
+ * of {@link RunDatabaseDAO}, at the cost of holding the index (but not the
+ * records) in memory.
+ * 
+ * @author Donal Fellows
+ */
+@ManagedResource(objectName = JMX_ROOT + "RunLog", description = "The log-structured store of workflow runs.")
+public class RunLogStore implements RunRecordStore {
+	private Log log = LogFactory.getLog("Taverna.Server.Worker.RunDB");
+	static final String LOG_NAME = "runs.log";
+	private static final String COMPACTING_NAME = "runs.log.new";
+
+	private RunDatabase facade;
+	private Contextualizer contextualizer;
+	private String directoryName;
+	private File directory;
+	private volatile boolean syncWrites = true;
+	private volatile double compactionRatio = 0.5;
+	private volatile long compactionMinimum = RunLog.REGION_SIZE;
+	private volatile int cacheSize = 100;
+
+	/** Guards everything below, except where noted. */
+	private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+	private final Lock readLock = rwLock.readLock();
+	private final Lock writeLock = rwLock.writeLock();
+	private RunLog runLog;
+	private final Map<String, RunSlot> runs = new HashMap<>();
+	private final Map<String, WorkflowSlot> workflows = new HashMap<>();
+	private final Map<String, TombstoneSlot> tombstones = new HashMap<>();
+	/** The number of bytes of the log occupied by live records. */
+	private long liveBytes;
+
+	/** Guarded by itself. In access order, so the eldest is the LRU entry. */
+	private final Map<String, Workflow> workflowCache = new LinkedHashMap<String, Workflow>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Workflow> eldest) {
+			return size() > cacheSize;
+		}
+	};
+	private final AtomicLong appends = new AtomicLong();
+	private final AtomicLong bytesAppended = new AtomicLong();
+	private final AtomicLong compactions = new AtomicLong();
+	/** Held while compacting, so that only one compaction happens at once. */
+	private final Lock compactionLock = new ReentrantLock();
+
+	private static class RunSlot {
+		final long offset;
+		final int size;
+		final RunIndexEntry entry;
+		final String workflowHash;
+
+		RunSlot(long offset, int size, RunLogRecord rec) {
+			this.offset = offset;
+			this.size = size;
+			this.entry = rec.toIndexEntry();
+			this.workflowHash = rec.workflowHash;
+		}
+
+		/** The same record, moved to another offset. */
+		RunSlot(long offset, RunSlot old) {
+			this.offset = offset;
+			this.size = old.size;
+			this.entry = old.entry;
+			this.workflowHash = old.workflowHash;
+		}
+	}
+
+	private static class WorkflowSlot {
+		final long offset;
+		final int size;
+		int refs;
+
+		WorkflowSlot(long offset, int size) {
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+
+	private static class TombstoneSlot {
+		final long offset;
+		final int size;
+
+		TombstoneSlot(long offset, int size) {
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+
+	@Required
+	public void setFacade(RunDatabase facade) {
+		this.facade = facade;
+	}
+
+	/**
+	 * @param directory
+	 *            The directory to hold the log in. May contain
+	 *            <tt>%{WEBAPPROOT}</tt> if a contextualizer is set.
+	 */
+	@Required
+	public void setDirectory(String directory) {
+		this.directoryName = directory;
+	}
+
+	/**
+	 * @param contextualizer
+	 *            Used to resolve the name of the directory relative to the
+	 *            webapp.
+	 */
+	public void setContextualizer(Contextualizer contextualizer) {
+		this.contextualizer = contextualizer;
+	}
+
+	/**
+	 * @param syncWrites
+	 *            Whether to force each change to stable storage before
+	 *            returning.
+	 */
+	@ManagedAttribute(description = "Whether to force each change to stable storage before returning.")
+	public void setSyncWrites(boolean syncWrites) {
+		this.syncWrites = syncWrites;
+	}
+
+	@ManagedAttribute(description = "Whether to force each change to stable storage before returning.")
+	public boolean getSyncWrites() {
+		return syncWrites;
+	}
+
+	/**
+	 * @param ratio
+	 *            The fraction of the log that must be garbage before it is
+	 *            compacted.
+	 */
+	@ManagedAttribute(description = "The fraction of the log that must be garbage before it is compacted.")
+	public void setCompactionRatio(double ratio) {
+		if (ratio <= 0 || ratio >= 1)
+			throw new IllegalArgumentException("ratio must be between 0 and 1");
+		this.compactionRatio = ratio;
+	}
+
+	@ManagedAttribute(description = "The fraction of the log that must be garbage before it is compacted.")
+	public double getCompactionRatio() {
+		return compactionRatio;
+	}
+
+	/**
+	 * @param bytes
+	 *            The size that the log must reach before it is considered for
+	 *            compaction.
+	 */
+	@ManagedAttribute(description = "The size in bytes that the log must reach before it is considered for compaction.")
+	public void setCompactionMinimum(long bytes) {
+		this.compactionMinimum = bytes;
+	}
+
+	@ManagedAttribute(description = "The size in bytes that the log must reach before it is considered for compaction.")
+	public long getCompactionMinimum() {
+		return compactionMinimum;
+	}
+
+	/**
+	 * @param cacheSize
+	 *            The maximum number of parsed workflows to hold in memory.
+	 */
+	@ManagedAttribute(description = "The maximum number of parsed workflows to hold in memory.")
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = Math.max(0, cacheSize);
+	}
+
+	@ManagedAttribute(description = "The maximum number of parsed workflows to hold in memory.")
+	public int getCacheSize() {
+		return cacheSize;
+	}
+
+	@ManagedMetric(description = "The number of bytes of the log in use.", metricType = GAUGE)
+	public long getLogSize() {
+		readLock.lock();
+		try {
+			return runLog == null ? 0 : runLog.size();
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@ManagedMetric(description = "The number of bytes of the log occupied by live records.", metricType = GAUGE)
+	public long getLiveBytes() {
+		readLock.lock();
+		try {
+			return liveBytes;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@ManagedMetric(description = "The number of records appended to the log.", metricType = COUNTER)
+	public long getAppendCount() {
+		return appends.get();
+	}
+
+	@ManagedMetric(description = "The number of bytes appended to the log.", metricType = COUNTER)
+	public long getBytesAppended() {
+		return bytesAppended.get();
+	}
+
+	@ManagedMetric(description = "The number of times the log has been compacted.", metricType = COUNTER)
+	public long getCompactionCount() {
+		return compactions.get();
+	}
+
+	// -=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=
+
+	/**
+	 * Open the log and build the index from it.
+	 * 
+	 * @throws IOException
+	 *             If the log can't be opened or read.
+	 */
+	@PostConstruct
+	public void open() throws IOException {
+		String name = directoryName;
+		if (contextualizer != null)
+			name = contextualizer.contextualize(name);
+		directory = new File(name);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("could not create " + directory);
+		writeLock.lock();
+		try {
+			runLog = new RunLog(new File(directory, LOG_NAME),
+					new RunLog.Handler() {
+						@Override
+						public void record(long offset, byte[] payload)
+								throws IOException {
+							replay(offset, payload);
+						}
+					});
+			for (RunSlot slot : runs.values()) {
+				WorkflowSlot ws = workflows.get(slot.workflowHash);
+				if (ws != null)
+					ws.refs++;
+			}
+			for (WorkflowSlot ws : workflows.values())
+				liveBytes += ws.size;
+			log.info("loaded " + runs.size() + " runs from " + directory);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void replay(long offset, byte[] payload) throws IOException {
+		switch (RunLogRecord.type(payload)) {
+		case RunLogRecord.RUN:
+			RunLogRecord rec = RunLogRecord.decode(payload);
+			RunSlot old = runs.put(rec.id, new RunSlot(offset, payload.length,
+					rec));
+			if (old != null)
+				liveBytes -= old.size;
+			liveBytes += payload.length;
+			break;
+		case RunLogRecord.DELETE:
+			String id = RunLogRecord.decodeDeletion(payload);
+			old = runs.remove(id);
+			if (old != null)
+				liveBytes -= old.size;
+			TombstoneSlot ts = tombstones.remove(id);
+			if (ts != null)
+				liveBytes -= ts.size;
+			break;
+		case RunLogRecord.TOMBSTONE:
+			id = RunLogRecord.decodeTombstoneId(payload);
+			old = runs.remove(id);
+			if (old != null)
+				liveBytes -= old.size;
+			tombstones.put(id, new TombstoneSlot(offset, payload.length));
+			liveBytes += payload.length;
+			break;
+		case RunLogRecord.WORKFLOW:
+			workflows.put(RunLogRecord.decodeWorkflowHash(payload),
+					new WorkflowSlot(offset, payload.length));
+			break;
+		case RunLogRecord.DELETE_WORKFLOW:
+			workflows.remove(RunLogRecord.decodeWorkflowDeletion(payload));
+			break;
+		default:
+			throw new IOException("unknown record type at offset " + offset);
+		}
+	}
+
+	@PreDestroy
+	public void close() throws IOException {
+		writeLock.lock();
+		try {
+			if (runLog != null)
+				runLog.close();
+			runLog = null;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private long append(byte[] payload) throws IOException {
+		long offset = runLog.append(payload);
+		appends.incrementAndGet();
+		bytesAppended.addAndGet(payload.length);
+		return offset;
+	}
+
+	private void sync() {
+		if (syncWrites)
+			runLog.force();
+	}
+
+	@Nonnull
+	private RunLogRecord load(@Nonnull RunSlot slot) throws IOException {
+		return RunLogRecord.decode(runLog.read(slot.offset));
+	}
+
+	private void write(@Nonnull RunLogRecord rec, @Nullable RunSlot old)
+			throws IOException {
+		byte[] payload = rec.encode();
+		long offset = append(payload);
+		runs.put(rec.id, new RunSlot(offset, payload.length, rec));
+		if (old != null)
+			liveBytes -= old.size;
+		liveBytes += payload.length;
+		// Each run counts once towards the workflow that it refers to
+		String oldHash = (old == null ? null : old.workflowHash);
+		if (rec.workflowHash != null && !rec.workflowHash.equals(oldHash)) {
+			addRef(rec.workflowHash, 1);
+			if (oldHash != null)
+				addRef(oldHash, -1);
+		}
+	}
+
+	private void addRef(@Nonnull String hash, int delta) {
+		WorkflowSlot ws = workflows.get(hash);
+		if (ws != null)
+			ws.refs += delta;
+	}
+
+	private void remove(@Nonnull String id, @Nonnull RunSlot slot)
+			throws IOException {
+		append(RunLogRecord.encodeDeletion(id));
+		forget(id, slot);
+	}
+
+	/** Replace a run by a tombstone holding its encoded execution handle. */
+	private void retire(@Nonnull String id, @Nonnull RunSlot slot,
+			@Nonnull byte[] runData) throws IOException {
+		byte[] payload = RunLogRecord.encodeTombstone(id, runData);
+		long offset = append(payload);
+		forget(id, slot);
+		tombstones.put(id, new TombstoneSlot(offset, payload.length));
+		liveBytes += payload.length;
+	}
+
+	private void forget(@Nonnull String id, @Nonnull RunSlot slot) {
+		runs.remove(id);
+		liveBytes -= slot.size;
+		if (slot.workflowHash != null)
+			addRef(slot.workflowHash, -1);
+	}
+
+	/**
+	 * Store a workflow if it is not already in the log; returns its hash. The
+	 * workflow's reference count is updated when the run that refers to it is
+	 * written.
+	 */
+	@Nonnull
+	private String storeWorkflow(@Nonnull Workflow workflow)
+			throws IOException {
+		String xml = marshalWorkflow(workflow);
+		String hash = hashWorkflow(xml);
+		WorkflowSlot ws = workflows.get(hash);
+		if (ws == null) {
+			byte[] payload = RunLogRecord.encodeWorkflow(hash,
+					encodeWorkflow(xml));
+			ws = new WorkflowSlot(append(payload), payload.length);
+			workflows.put(hash, ws);
+			liveBytes += payload.length;
+		}
+		synchronized (workflowCache) {
+			workflowCache.put(hash, WorkflowStore.copy(workflow));
+		}
+		return hash;
+	}
+
+	@Nonnull
+	private Workflow getWorkflow(@Nonnull String hash) throws IOException {
+		Workflow workflow;
+		synchronized (workflowCache) {
+			workflow = workflowCache.get(hash);
+		}
+		if (workflow != null)
+			return WorkflowStore.copy(workflow);
+		WorkflowSlot ws = workflows.get(hash);
+		if (ws == null)
+			throw new IOException("no stored workflow with hash " + hash);
+		workflow = decodeWorkflow(RunLogRecord.decodeWorkflowData(runLog
+				.read(ws.offset)));
+		synchronized (workflowCache) {
+			workflowCache.put(hash, workflow);
+		}
+		return WorkflowStore.copy(workflow);
+	}
+
+	@Nonnull
+	private RemoteRunDelegate delegate(@Nonnull RunSlot slot) throws Exception {
+		RunLogRecord rec = load(slot);
+		return rec.toDelegate(facade, getWorkflow(rec.workflowHash));
+	}
+
+	// -=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=
+
+	@Override
+	@Nullable
+	public TavernaRun get(String name) {
+		readLock.lock();
+		try {
+			RunSlot slot = runs.get(name);
+			return slot == null ? null : delegate(slot);
+		} catch (Exception e) {
+			log.warn("failed to load run " + name, e);
+			return null;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	@Nonnull
+	public List<RunIndexEntry> listRunIndex() {
+		readLock.lock();
+		try {
+			List<RunIndexEntry> result = new ArrayList<>(runs.size());
+			for (RunSlot slot : runs.values())
+				result.add(slot.entry);
+			return result;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	@Nonnull
+	public List<RunIndexEntry> listRunIndexVisibleTo(@Nonnull String username) {
+		readLock.lock();
+		try {
+			List<RunIndexEntry> result = new ArrayList<>();
+			for (RunSlot slot : runs.values())
+				if (slot.entry.isOwnerOrReader(username))
+					result.add(slot.entry);
+			return result;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public int countRuns() {
+		readLock.lock();
+		try {
+			return runs.size();
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	@Nonnull
+	public List<String> listRunNames() {
+		readLock.lock();
+		try {
+			return new ArrayList<>(runs.keySet());
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	@Nullable
+	public RemoteRunDelegate pickArbitraryRun() throws Exception {
+		readLock.lock();
+		try {
+			Iterator<RunSlot> it = runs.values().iterator();
+			return it.hasNext() ? delegate(it.next()) : null;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	@Nullable
+	public String getSecurityToken(@Nonnull String name) {
+		readLock.lock();
+		try {
+			RunSlot slot = runs.get(name);
+			return slot == null ? null : load(slot).securityToken;
+		} catch (IOException e) {
+			log.warn("failed to load run " + name, e);
+			return null;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public void persistRun(@Nonnull RemoteRunDelegate rrd) throws IOException {
+		writeLock.lock();
+		try {
+			String hash = storeWorkflow(rrd.getWorkflow());
+			write(RunLogRecord.of(rrd, hash), runs.get(rrd.id));
+			sync();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean unpersistRun(String name) {
+		writeLock.lock();
+		try {
+			RunSlot slot = runs.get(name);
+			if (slot == null)
+				return false;
+			remove(name, slot);
+			sync();
+			return true;
+		} catch (IOException e) {
+			log.warn("failed to delete run " + name, e);
+			return false;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void flushToDisk(@Nonnull RemoteRunDelegate run,
+			@Nonnull Set<Property> changed) throws IOException {
+		writeLock.lock();
+		try {
+			RunSlot slot = runs.get(run.id);
+			if (slot == null)
+				return;
+			RunLogRecord rec = load(slot);
+			rec.applyChanges(run, changed);
+			write(rec, slot);
+			sync();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	@Nonnull
+	@PerfLogged
+	public Map<String, RemoteSingleRun> doClean() {
+		Map<String, RemoteSingleRun> deleted = new HashMap<>();
+		long now = currentTimeMillis();
+		boolean compact;
+		writeLock.lock();
+		try {
+			for (RunSlot slot : new ArrayList<>(runs.values())) {
+				if (slot.entry.getExpiry().getTime() >= now)
+					continue;
+				String id = slot.entry.getId();
+				RemoteSingleRun run = null;
+				byte[] runData = null;
+				try {
+					RunLogRecord rec = load(slot);
+					run = rec.getRemoteRun();
+					runData = rec.runData;
+				} catch (Exception e) {
+					log.warn("failed to recover execution resource handle for "
+							+ id + "; it will not be destroyed", e);
+				}
+				try {
+					if (run != null)
+						retire(id, slot, runData);
+					else
+						remove(id, slot);
+				} catch (IOException e) {
+					log.warn("failed to delete run " + id, e);
+					continue;
+				}
+				deleted.put(id, run);
+			}
+			if (!deleted.isEmpty())
+				sync();
+			compact = shouldCompact();
+		} finally {
+			writeLock.unlock();
+		}
+		if (compact)
+			try {
+				compactLog();
+			} catch (IOException e) {
+				log.warn("failed to compact run log", e);
+			}
+		return deleted;
+	}
+
+	@Override
+	@Nonnull
+	public Map<String, RemoteSingleRun> listTombstones() {
+		Map<String, RemoteSingleRun> result = new HashMap<>();
+		writeLock.lock();
+		try {
+			for (Map.Entry<String, TombstoneSlot> e : new ArrayList<>(
+					tombstones.entrySet()))
+				try {
+					result.put(e.getKey(), RunLogRecord
+							.decodeTombstoneRun(runLog.read(e.getValue().offset)));
+				} catch (Exception ex) {
+					// Nothing can ever be done with it
+					log.warn("failed to recover execution resource handle for "
+							+ e.getKey() + "; it will not be destroyed", ex);
+					forgetTombstone(e.getKey());
+				}
+			return result;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void removeTombstone(@Nonnull String id) {
+		writeLock.lock();
+		try {
+			forgetTombstone(id);
+			sync();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void forgetTombstone(@Nonnull String id) {
+		TombstoneSlot ts = tombstones.get(id);
+		if (ts == null)
+			return;
+		try {
+			append(RunLogRecord.encodeDeletion(id));
+		} catch (IOException e) {
+			log.warn("failed to delete tombstone of run " + id, e);
+			return;
+		}
+		tombstones.remove(id);
+		liveBytes -= ts.size;
+	}
+
+	@Override
+	public int upgradeLegacyRuns(int limit) {
+		return 0;
+	}
+
+	@Override
+	public int upgradeLegacyReaders() {
+		return 0;
+	}
+
+	@Override
+	public int purgeUnusedWorkflows() {
+		writeLock.lock();
+		try {
+			int count = 0;
+			Iterator<Map.Entry<String, WorkflowSlot>> it = workflows
+					.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, WorkflowSlot> e = it.next();
+				if (e.getValue().refs > 0)
+					continue;
+				try {
+					// Otherwise it would come back when the log is replayed
+					append(RunLogRecord.encodeWorkflowDeletion(e.getKey()));
+				} catch (IOException ex) {
+					log.warn("failed to delete workflow " + e.getKey(), ex);
+					continue;
+				}
+				it.remove();
+				liveBytes -= e.getValue().size;
+				synchronized (workflowCache) {
+					workflowCache.remove(e.getKey());
+				}
+				count++;
+			}
+			if (count > 0)
+				sync();
+			// Their space is reclaimed when the log is next compacted
+			return count;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	@Nonnull
+	@PerfLogged
+	public List<RemoteRunDelegate> getPotentiallyNotifiable(
+			@Nonnull Collection<String> ids) {
+		readLock.lock();
+		try {
+			List<RemoteRunDelegate> toNotify = new ArrayList<>();
+			for (String id : ids) {
+				RunSlot slot = runs.get(id);
+				if (slot != null && !slot.entry.isFinished())
+					try {
+						toNotify.add(delegate(slot));
+					} catch (Exception e) {
+						log.warn("failed to fetch connection token"
+								+ "for notification of completion check", e);
+					}
+			}
+			return toNotify;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	@PerfLogged
+	public void markFinished(@Nonnull Set<String> terminated) {
+		writeLock.lock();
+		try {
+			for (String id : terminated) {
+				RunSlot slot = runs.get(id);
+				if (slot == null || slot.entry.isFinished())
+					continue;
+				try {
+					RunLogRecord rec = load(slot);
+					rec.finished = true;
+					write(rec, slot);
+				} catch (IOException e) {
+					log.warn("failed to note termination", e);
+				}
+			}
+			sync();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	// -=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=
+
+	private boolean shouldCompact() {
+		long size = runLog.size();
+		return size >= compactionMinimum
+				&& size - liveBytes >= size * compactionRatio;
+	}
+
+	/**
+	 * Rewrite the log so that it only contains the live records.
+	 * 
+	 * @throws IOException
+	 *             If the new log can't be written. The old log remains in use
+	 *             in that case.
+	 */
+	@ManagedOperation(description = "Rewrite the log so that it only contains the live records.")
+	public void compact() throws IOException {
+		compactLog();
+	}
+
+	/**
+	 * Copies the live records to a new log without holding the lock, then
+	 * takes the lock to copy whatever was written meanwhile and to switch to
+	 * the new log. Writes the workflows first, so that on replay each run's
+	 * workflow is known before the run is. Must not be called while holding
+	 * the lock.
+	 */
+	private void compactLog() throws IOException {
+		if (!compactionLock.tryLock())
+			return;
+		try {
+			RunLog source;
+			List<Long> offsets = new ArrayList<>();
+			Set<String> copiedWorkflows, copiedRuns;
+			readLock.lock();
+			try {
+				source = runLog;
+				for (WorkflowSlot ws : workflows.values())
+					offsets.add(ws.offset);
+				for (RunSlot slot : runs.values())
+					offsets.add(slot.offset);
+				for (TombstoneSlot ts : tombstones.values())
+					offsets.add(ts.offset);
+				copiedWorkflows = new HashSet<>(workflows.keySet());
+				copiedRuns = new HashSet<>(runs.keySet());
+				copiedRuns.addAll(tombstones.keySet());
+			} finally {
+				readLock.unlock();
+			}
+			long before = source.size();
+			File target = new File(directory, LOG_NAME);
+			File temp = new File(directory, COMPACTING_NAME);
+			Files.deleteIfExists(temp.toPath());
+			RunLog newLog = new RunLog(temp, null);
+			try {
+				// Old offset to new; records are never changed once written
+				Map<Long, Long> moved = new HashMap<>();
+				for (long offset : offsets)
+					moved.put(offset, newLog.append(source.read(offset)));
+				writeLock.lock();
+				try {
+					switchTo(newLog, moved, copiedWorkflows, copiedRuns, temp,
+							target);
+				} finally {
+					writeLock.unlock();
+				}
+			} catch (IOException | RuntimeException e) {
+				newLog.close();
+				Files.deleteIfExists(temp.toPath());
+				throw e;
+			}
+			compactions.incrementAndGet();
+			log.info("compacted run log from " + before + " to "
+					+ newLog.size() + " bytes");
+		} finally {
+			compactionLock.unlock();
+		}
+	}
+
+	/**
+	 * Copy the records written since compaction started, record the deletion
+	 * of those of the copied runs and workflows that have been deleted since,
+	 * and make the new log the current one. Must hold the write lock.
+	 */
+	private void switchTo(@Nonnull RunLog newLog,
+			@Nonnull Map<Long, Long> moved,
+			@Nonnull Set<String> copiedWorkflows,
+			@Nonnull Set<String> copiedRuns, @Nonnull File temp,
+			@Nonnull File target) throws IOException {
+		Map<String, WorkflowSlot> newWorkflows = new HashMap<>();
+		Map<String, RunSlot> newRuns = new HashMap<>();
+		Map<String, TombstoneSlot> newTombstones = new HashMap<>();
+		long newLive = 0;
+		for (Map.Entry<String, WorkflowSlot> e : workflows.entrySet()) {
+			WorkflowSlot old = e.getValue();
+			WorkflowSlot ws = new WorkflowSlot(relocate(old.offset, newLog,
+					moved), old.size);
+			ws.refs = old.refs;
+			newWorkflows.put(e.getKey(), ws);
+			newLive += ws.size;
+		}
+		for (Map.Entry<String, RunSlot> e : runs.entrySet()) {
+			RunSlot old = e.getValue();
+			newRuns.put(e.getKey(), new RunSlot(relocate(old.offset, newLog,
+					moved), old));
+			newLive += old.size;
+		}
+		for (Map.Entry<String, TombstoneSlot> e : tombstones.entrySet()) {
+			TombstoneSlot old = e.getValue();
+			newTombstones.put(e.getKey(), new TombstoneSlot(relocate(
+					old.offset, newLog, moved), old.size));
+			newLive += old.size;
+		}
+		for (String id : copiedRuns)
+			if (!runs.containsKey(id) && !tombstones.containsKey(id))
+				newLog.append(RunLogRecord.encodeDeletion(id));
+		for (String hash : copiedWorkflows)
+			if (!workflows.containsKey(hash))
+				newLog.append(RunLogRecord.encodeWorkflowDeletion(hash));
+		newLog.force();
+		Files.move(temp.toPath(), target.toPath(), ATOMIC_MOVE,
+				REPLACE_EXISTING);
+		runLog.close();
+		runLog = newLog;
+		workflows.clear();
+		workflows.putAll(newWorkflows);
+		runs.clear();
+		runs.putAll(newRuns);
+		tombstones.clear();
+		tombstones.putAll(newTombstones);
+		liveBytes = newLive;
+	}
+
+	private long relocate(long offset, @Nonnull RunLog newLog,
+			@Nonnull Map<Long, Long> moved) throws IOException {
+		Long newOffset = moved.get(offset);
+		if (newOffset != null)
+			return newOffset;
+		return newLog.append(runLog.read(offset));
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.Collections.newSetFromMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.springframework.jmx.support.MetricType.COUNTER;
+import static org.springframework.jmx.support.MetricType.GAUGE;
+import static org.taverna.server.master.TavernaServer.JMX_ROOT;
+
+import java.rmi.NoSuchObjectException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+
+/**
+ * Tears down the execution resources of workflow runs that have expired. The
+ * database records of the runs will already have been replaced (quickly, in
+ * one transaction) by tombstones by the time they get here; the remote
+ * destruction, which kills the worker process and deletes its working
+ * directory, can take a long time so it is done on a bounded pool of threads,
+ * with failed attempts being retried after a delay. A run's tombstone is only
+ * deleted once its resources are gone; a run that is given up on keeps its
+ * tombstone, and is tried again once it has been left alone for a while.
+ * 
+ * @author Donal Fellows
+ */
+@ManagedResource(objectName = JMX_ROOT + "RunReaper", description = "The destroyer of expired workflow runs.")
+public class RunReaper {
+	private Log log = LogFactory.getLog("Taverna.Server.Worker.RunDB");
+	private final ScheduledThreadPoolExecutor pool;
+	private int maxAttempts = 3;
+	private long retryDelay = 30000;
+	private long abandonedRetryDelay = 3600000;
+	/** The runs that are being destroyed, or waiting to be retried. */
+	private final Set<String> inFlight = newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	/** When each of the runs that were given up on was given up on. */
+	private final Map<String, Long> abandonedAt = new ConcurrentHashMap<>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicLong destroyed = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong abandoned = new AtomicLong();
+
+	public RunReaper() {
+		pool = new ScheduledThreadPoolExecutor(2, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "RunReaper-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	@PreDestroy
+	void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * @param threads
+	 *            How many runs may be being destroyed at once.
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("must have at least one thread");
+		pool.setCorePoolSize(threads);
+	}
+
+	@ManagedAttribute(description = "How many runs may be being destroyed at once.")
+	public int getThreads() {
+		return pool.getCorePoolSize();
+	}
+
+	/**
+	 * @param maxAttempts
+	 *            How many times to try to destroy a run before giving up.
+	 */
+	@ManagedAttribute(description = "How many times to try to destroy a run before giving up.")
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = Math.max(1, maxAttempts);
+	}
+
+	@ManagedAttribute(description = "How many times to try to destroy a run before giving up.")
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @param retryDelay
+	 *            How long to wait before retrying a failed destruction, in
+	 *            milliseconds. Successive retries of the same run wait
+	 *            proportionately longer.
+	 */
+	@ManagedAttribute(description = "How long to wait before retrying a failed destruction, in milliseconds.")
+	public void setRetryDelay(long retryDelay) {
+		this.retryDelay = Math.max(0, retryDelay);
+	}
+
+	@ManagedAttribute(description = "How long to wait before retrying a failed destruction, in milliseconds.")
+	public long getRetryDelay() {
+		return retryDelay;
+	}
+
+	/**
+	 * @param abandonedRetryDelay
+	 *            How long to wait before trying again to destroy a run that
+	 *            was given up on, in milliseconds.
+	 */
+	@ManagedAttribute(description = "How long to wait before trying again to destroy a run that was given up on, in milliseconds.")
+	public void setAbandonedRetryDelay(long abandonedRetryDelay) {
+		this.abandonedRetryDelay = Math.max(0, abandonedRetryDelay);
+	}
+
+	@ManagedAttribute(description = "How long to wait before trying again to destroy a run that was given up on, in milliseconds.")
+	public long getAbandonedRetryDelay() {
+		return abandonedRetryDelay;
+	}
+
+	@ManagedMetric(description = "The number of expired runs waiting to have their resources destroyed.", metricType = GAUGE)
+	public int getPendingCount() {
+		return pending.get();
+	}
+
+	@ManagedMetric(description = "The number of expired runs whose resources have been destroyed.", metricType = COUNTER)
+	public long getDestroyedCount() {
+		return destroyed.get();
+	}
+
+	@ManagedMetric(description = "The number of times that destroying a run's resources has been retried.", metricType = COUNTER)
+	public long getRetryCount() {
+		return retried.get();
+	}
+
+	@ManagedMetric(description = "The number of runs whose resources could not be destroyed.", metricType = COUNTER)
+	public long getAbandonedCount() {
+		return abandoned.get();
+	}
+
+	/**
+	 * Arrange for the execution resources of some runs to be destroyed. Does
+	 * not wait for the destruction to happen. Runs that are already being
+	 * destroyed, or that were recently given up on, are skipped.
+	 * 
+	 * @param runs
+	 *            Mapping from run IDs to their remote handles. Entries with a
+	 *            <tt>null</tt> handle are ignored.
+	 * @param store
+	 *            Where the tombstones of the runs are kept; each is removed
+	 *            once its run's resources have been destroyed.
+	 */
+	public void reap(@Nonnull Map<String, RemoteSingleRun> runs,
+			@Nonnull RunRecordStore store) {
+		abandonedAt.keySet().retainAll(runs.keySet());
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, RemoteSingleRun> entry : runs.entrySet()) {
+			String id = entry.getKey();
+			if (entry.getValue() == null)
+				continue;
+			Long givenUp = abandonedAt.get(id);
+			if (givenUp != null && now - givenUp < abandonedRetryDelay)
+				continue;
+			if (!inFlight.add(id))
+				continue;
+			abandonedAt.remove(id);
+			pending.incrementAndGet();
+			schedule(new Teardown(id, entry.getValue(), store), 0);
+		}
+	}
+
+	private void schedule(Teardown task, long delay) {
+		try {
+			pool.schedule(task, delay, MILLISECONDS);
+		} catch (RuntimeException e) {
+			// Pool shut down; nothing more we can do
+			pending.decrementAndGet();
+			abandoned.incrementAndGet();
+			inFlight.remove(task.id);
+			log.warn("failed to schedule destruction of run " + task.id, e);
+		}
+	}
+
+	private class Teardown implements Runnable {
+		final String id;
+		private final RemoteSingleRun run;
+		private final RunRecordStore store;
+		private int attempt;
+
+		Teardown(String id, RemoteSingleRun run, RunRecordStore store) {
+			this.id = id;
+			this.run = run;
+			this.store = store;
+		}
+
+		@Override
+		public void run() {
+			attempt++;
+			try {
+				run.destroy();
+			} catch (NoSuchObjectException e) {
+				// Already gone; that's what we wanted
+			} catch (Exception e) {
+				if (attempt < maxAttempts) {
+					if (log.isDebugEnabled())
+						log.debug("failed to destroy execution resource for "
+								+ id + "; will retry", e);
+					retried.incrementAndGet();
+					schedule(this, retryDelay * attempt);
+					return;
+				}
+				log.warn("failed to destroy execution resource for " + id
+						+ " after " + attempt + " attempts", e);
+				abandonedAt.put(id, System.currentTimeMillis());
+				pending.decrementAndGet();
+				abandoned.incrementAndGet();
+				inFlight.remove(id);
+				return;
+			}
+			try {
+				store.removeTombstone(id);
+			} catch (RuntimeException e) {
+				// The next reaping pass will find the run already gone
+				log.warn("failed to delete tombstone of run " + id, e);
+			}
+			pending.decrementAndGet();
+			destroyed.incrementAndGet();
+			inFlight.remove(id);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+import org.taverna.server.master.interfaces.TavernaRun;
+import org.taverna.server.master.worker.RemoteRunDelegate.Property;
+
+/**
+ * The storage of the records of workflow runs, underneath the
+ * {@link RunDatabase} facade. Implementations must be safe to call from
+ * multiple threads.
+ * 
+ * @author Donal Fellows
+ * @see RunDatabaseDAO
+ * @see RunLogStore
+ */
+public interface RunRecordStore {
+	/**
+	 * Obtain a workflow run handle.
+	 * 
+	 * @param name
+	 *            The identifier of the run.
+	 * @return The run handle, or <tt>null</tt> if there is no such run.
+	 */
+	@Nullable
+	TavernaRun get(String name);
+
+	/**
+	 * Get the summaries of all the runs, as needed to build the run index.
+	 * 
+	 * @return The index entries of all runs.
+	 */
+	@Nonnull
+	List<RunIndexEntry> listRunIndex();
+
+	/**
+	 * Get the summaries of the runs that a particular user owns or has been
+	 * granted read access to.
+	 * 
+	 * @param username
+	 *            The name of the user.
+	 * @return The index entries of the runs they can see.
+	 */
+	@Nonnull
+	List<RunIndexEntry> listRunIndexVisibleTo(@Nonnull String username);
+
+	/**
+	 * @return The number of workflow runs in the store.
+	 */
+	int countRuns();
+
+	/**
+	 * @return A list of the IDs for all workflow runs.
+	 */
+	@Nonnull
+	List<String> listRunNames();
+
+	/**
+	 * @return An arbitrary, representative workflow run.
+	 * @throws Exception
+	 *             If anything goes wrong.
+	 */
+	@Nullable
+	RemoteRunDelegate pickArbitraryRun() throws Exception;
+
+	/**
+	 * Get the password issued to a workflow run for talking back to the
+	 * server.
+	 * 
+	 * @param name
+	 *            The ID of the run.
+	 * @return The password, or <tt>null</tt> if there is no such run.
+	 */
+	@Nullable
+	String getSecurityToken(@Nonnull String name);
+
+	/**
+	 * Make a workflow run persistent. Must only be called once per workflow
+	 * run.
+	 * 
+	 * @param rrd
+	 *            The workflow run to persist.
+	 * @throws IOException
+	 *             If anything goes wrong with serialisation of the run.
+	 */
+	void persistRun(@Nonnull RemoteRunDelegate rrd) throws IOException;
+
+	/**
+	 * Stop a workflow run from being persistent.
+	 * 
+	 * @param name
+	 *            The ID of the run.
+	 * @return Whether a deletion happened.
+	 */
+	boolean unpersistRun(String name);
+
+	/**
+	 * Ensure that the given workflow run is synchronized with the store.
+	 * 
+	 * @param run
+	 *            The run to synchronise.
+	 * @param changed
+	 *            Which properties of the run have changed; only these need be
+	 *            written.
+	 * @throws IOException
+	 *             If serialization of anything fails.
+	 */
+	void flushToDisk(@Nonnull RemoteRunDelegate run,
+			@Nonnull Set<Property> changed) throws IOException;
+
+	/**
+	 * Remove all workflow runs that have expired from the store. Only the
+	 * records are deleted; destroying the execution resources that they refer
+	 * to is left to the caller. Until it reports that they have been destroyed
+	 * (with {@link #removeTombstone(String)}), each deleted run leaves a
+	 * tombstone holding the handle to them.
+	 * 
+	 * @return A mapping from the ids of the deleted runs to the handles of
+	 *         their remote execution resources. A handle is <tt>null</tt> if it
+	 *         could not be recovered, in which case there is no tombstone.
+	 */
+	@Nonnull
+	Map<String, RemoteSingleRun> doClean();
+
+	/**
+	 * @return A mapping from the ids of the deleted runs whose execution
+	 *         resources have not yet been destroyed to the handles of those
+	 *         resources.
+	 */
+	@Nonnull
+	Map<String, RemoteSingleRun> listTombstones();
+
+	/**
+	 * Forget a deleted run, once its execution resources have been destroyed.
+	 * 
+	 * @param id
+	 *            The id of the run.
+	 */
+	void removeTombstone(@Nonnull String id);
+
+	/**
+	 * Convert some of the runs that are stored in an old format to the
+	 * current one. Stores without old formats do nothing.
+	 * 
+	 * @param limit
+	 *            The maximum number of runs to convert in this call.
+	 * @return The number of runs that still need converting after this call.
+	 */
+	int upgradeLegacyRuns(int limit);
+
+	/**
+	 * Move the readers of the runs stored in an old format to where the
+	 * visibility of runs is worked out from. Done once, when the server
+	 * starts. Stores without old formats do nothing.
+	 * 
+	 * @return The number of runs whose readers were moved.
+	 */
+	int upgradeLegacyReaders();
+
+	/**
+	 * Remove the stored workflows that are no longer used by any run.
+	 * 
+	 * @return The number of workflows removed.
+	 */
+	int purgeUnusedWorkflows();
+
+	/**
+	 * @param ids
+	 *            The IDs of runs that have been found to have finished.
+	 * @return Those of the workflow runs that have not yet had notification of
+	 *         termination done. Unknown runs are ignored.
+	 */
+	@Nonnull
+	List<RemoteRunDelegate> getPotentiallyNotifiable(
+			@Nonnull Collection<String> ids);
+
+	/**
+	 * Record that notification of termination has been done for some runs.
+	 * 
+	 * @param terminated
+	 *            The IDs of the runs.
+	 */
+	void markFinished(@Nonnull Set<String> terminated);
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static org.taverna.server.master.worker.RunConnectionCodec.decodeRun;
+import static org.taverna.server.master.worker.RunConnectionCodec.encodeRun;
+import static org.taverna.server.master.worker.RunTombstone.SCHEMA;
+import static org.taverna.server.master.worker.RunTombstone.TABLE;
+
+import java.io.IOException;
+import java.rmi.MarshalledObject;
+
+import javax.annotation.Nonnull;
+import javax.jdo.annotations.Column;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+
+/**
+ * What is left of a run that has expired but whose execution resources have
+ * not yet been destroyed: just the handle needed to destroy them. It is only
+ * deleted once they have been, so they are not forgotten if the server stops
+ * or if destroying them keeps failing.
+ * 
+ * @author Donal Fellows
+ * @see RunTombstoneStore
+ */
+@PersistenceCapable(table = TABLE, schema = SCHEMA)
+public class RunTombstone {
+	static final String SCHEMA = RunConnection.SCHEMA;
+	static final String TABLE = "RUN_TOMBSTONE";
+
+	@PrimaryKey
+	@Column(length = 40)
+	private String id;
+
+	@Persistent(defaultFetchGroup = "true")
+	@Column(jdbcType = "BLOB", sqlType = "BLOB")
+	private byte[] runData;
+
+	/** Used by the persistence engine. */
+	RunTombstone() {
+	}
+
+	/**
+	 * @param id
+	 *            The ID of the expired run.
+	 * @param run
+	 *            The handle to the run's execution resources.
+	 * @throws IOException
+	 *             If the handle can't be encoded.
+	 */
+	RunTombstone(@Nonnull String id, @Nonnull RemoteSingleRun run)
+			throws IOException {
+		this.id = id;
+		this.runData = encodeRun(new MarshalledObject<>(run));
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return The handle to the run's execution resources.
+	 * @throws IOException
+	 *             If decoding the handle fails.
+	 * @throws ClassNotFoundException
+	 *             If decoding the handle fails.
+	 */
+	@Nonnull
+	RemoteSingleRun getRemoteRun() throws IOException, ClassNotFoundException {
+		return decodeRun(runData).get();
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.jdo.annotations.PersistenceAware;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+import org.taverna.server.master.utils.JDOSupport;
+
+/**
+ * The store of the {@linkplain RunTombstone tombstones} of expired runs whose
+ * execution resources are still to be destroyed.
+ * 
+ * @author Donal Fellows
+ */
+@PersistenceAware
+public class RunTombstoneStore extends JDOSupport<RunTombstone> {
+	private Log log = LogFactory.getLog("Taverna.Server.Worker.RunDB");
+
+	public RunTombstoneStore() {
+		super(RunTombstone.class);
+	}
+
+	/**
+	 * Note that a run's execution resources must be destroyed.
+	 * 
+	 * @param id
+	 *            The ID of the run.
+	 * @param run
+	 *            The handle to the run's execution resources.
+	 * @throws IOException
+	 *             If the handle can't be encoded.
+	 */
+	@WithinSingleTransaction
+	public void add(@Nonnull String id, @Nonnull RemoteSingleRun run)
+			throws IOException {
+		if (getById(id) == null)
+			persist(new RunTombstone(id, run));
+	}
+
+	/**
+	 * Forget a run, as its execution resources have been destroyed.
+	 * 
+	 * @param id
+	 *            The ID of the run.
+	 * @return Whether there was a tombstone to delete.
+	 */
+	@WithinSingleTransaction
+	public boolean remove(@Nonnull String id) {
+		RunTombstone t = getById(id);
+		delete(t);
+		return t != null;
+	}
+
+	/**
+	 * @return A mapping from the IDs of the runs whose execution resources
+	 *         are still to be destroyed to the handles to those resources.
+	 */
+	@Nonnull
+	@WithinSingleTransaction
+	public Map<String, RemoteSingleRun> list() {
+		Map<String, RemoteSingleRun> result = new HashMap<>();
+		@SuppressWarnings("unchecked")
+		Collection<RunTombstone> tombstones = (Collection<RunTombstone>) query(
+				"id != null").execute();
+		for (RunTombstone t : tombstones)
+			try {
+				result.put(t.getId(), t.getRemoteRun());
+			} catch (Exception e) {
+				// Nothing can ever be done with it
+				log.warn("failed to recover execution resource handle for "
+						+ t.getId() + "; it will not be destroyed", e);
+				delete(t);
+			}
+		return result;
+	}
+}
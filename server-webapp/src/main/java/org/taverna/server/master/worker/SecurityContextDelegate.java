@@ -12,6 +12,8 @@ import static org.taverna.server.master.defaults.Default.CERTIFICATE_FIELD_NAMES
 import static org.taverna.server.master.defaults.Default.CERTIFICATE_TYPE;
 import static org.taverna.server.master.defaults.Default.CREDENTIAL_FILE_SIZE_LIMIT;
 import static org.taverna.server.master.identity.WorkflowInternalAuthProvider.PREFIX;
+import static org.taverna.server.master.worker.RemoteRunDelegate.Property.CREDENTIALS;
+import static org.taverna.server.master.worker.RemoteRunDelegate.Property.TRUST;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -53,6 +55,7 @@ import org.taverna.server.master.exceptions.NoDirectoryEntryException;
 import org.taverna.server.master.interfaces.File;
 import org.taverna.server.master.interfaces.TavernaSecurityContext;
 import org.taverna.server.master.utils.UsernamePrincipal;
+import org.taverna.server.master.worker.RemoteRunDelegate.Property;
 
 /**
  * Implementation of a security context.
@@ -118,8 +121,12 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 
 	/**
 	 * Cause the current state to be flushed to the database.
+	 * 
+	 * @param changed
+	 *            Which parts of the state have changed.
 	 */
-	protected final void flushToDB() {
+	protected final void flushToDB(Property... changed) {
+		run.markDirty(changed);
 		factory.db.flushToDisk(run);
 	}
 
@@ -131,7 +138,7 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 				credentials.set(idx, toAdd);
 			else
 				credentials.add(toAdd);
-			flushToDB();
+			flushToDB(CREDENTIALS);
 		}
 	}
 
@@ -139,7 +146,7 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 	public void deleteCredential(Credential toDelete) {
 		synchronized (lock) {
 			credentials.remove(toDelete);
-			flushToDB();
+			flushToDB(CREDENTIALS);
 		}
 	}
 
@@ -158,7 +165,7 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 				trusted.set(idx, toAdd);
 			else
 				trusted.add(toAdd);
-			flushToDB();
+			flushToDB(TRUST);
 		}
 	}
 
@@ -166,7 +173,7 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 	public void deleteTrusted(Trust toDelete) {
 		synchronized (lock) {
 			trusted.remove(toDelete);
-			flushToDB();
+			flushToDB(TRUST);
 		}
 	}
 
@@ -231,7 +238,7 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 		return factory.uriSource.getRunUriBuilder(run);
 	}
 
-	private RunDatabaseDAO getDAO() {
+	private RunRecordStore getDAO() {
 		return ((RunDatabase) factory.db).dao;
 	}
 
@@ -276,7 +283,7 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 	@Override
 	public final void conveySecurity() throws GeneralSecurityException,
 			IOException, ImplementationException {
-		RemoteSecurityContext rc = run.run.getSecurityContext();
+		RemoteSecurityContext rc = run.remote().getSecurityContext();
 
 		List<Trust> trusted = new ArrayList<>(this.trusted);
 		this.trusted.clear();
@@ -323,7 +330,7 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 					this.keystore = null;
 					credentials.clear();
 					trusted.clear();
-					flushToDB();
+					flushToDB(CREDENTIALS, TRUST);
 				}
 			}
 
@@ -64,6 +64,13 @@ public class SecurityContextFactory implements
 		return getLog("Taverna.Server.Worker.Security");
 	}
 
+	/**
+	 * @return The singleton instance of this class, if it has been created.
+	 */
+	static SecurityContextFactory getInstance() {
+		return instance;
+	}
+
 	private void installAsInstance(SecurityContextFactory handle) {
 		instance = handle;
 	}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static org.taverna.server.master.worker.StoredWorkflow.ORPHANS_QUERY;
+import static org.taverna.server.master.worker.StoredWorkflow.SCHEMA;
+import static org.taverna.server.master.worker.StoredWorkflow.TABLE;
+
+import javax.annotation.Nonnull;
+import javax.jdo.annotations.Column;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+import javax.jdo.annotations.Queries;
+import javax.jdo.annotations.Query;
+
+/**
+ * A workflow document, stored once however many runs have been created from
+ * it. It is keyed by the hash of its content; runs refer to it by that key.
+ * 
+ * @author Donal Fellows
+ * @see WorkflowStore
+ */
+@PersistenceCapable(table = TABLE, schema = SCHEMA)
+@Queries({ @Query(name = "orphans", language = "SQL", value = ORPHANS_QUERY, unique = "false", resultClass = String.class) })
+public class StoredWorkflow {
+	static final String SCHEMA = RunConnection.SCHEMA;
+	static final String TABLE = "WORKFLOW";
+	private static final String FULL_NAME = SCHEMA + "." + TABLE;
+	static final String ORPHANS_QUERY = "SELECT ID FROM " + FULL_NAME
+			+ "   WHERE ID NOT IN (SELECT workflowHash FROM "
+			+ RunConnection.FULL_NAME + "   WHERE workflowHash IS NOT NULL)";
+	static final int HASH_LENGTH = 64;
+
+	@PrimaryKey
+	@Column(length = HASH_LENGTH)
+	private String id;
+
+	@Persistent(defaultFetchGroup = "true")
+	@Column(jdbcType = "BLOB", sqlType = "BLOB")
+	private byte[] data;
+
+	/** Used by the persistence engine. */
+	StoredWorkflow() {
+	}
+
+	/**
+	 * @param hash
+	 *            The content hash of the workflow.
+	 * @param data
+	 *            The encoded (compressed) workflow document.
+	 */
+	StoredWorkflow(@Nonnull String hash, @Nonnull byte[] data) {
+		this.id = hash;
+		this.data = data;
+	}
+
+	public String getHash() {
+		return id;
+	}
+
+	/**
+	 * @return The encoded (compressed) workflow document.
+	 * @see RunConnectionCodec#decodeWorkflow(byte[])
+	 */
+	byte[] getData() {
+		return data;
+	}
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import java.rmi.RemoteException;
+
+/**
+ * Indicates that a call to the back end of a workflow run was not made,
+ * because too many calls were already waiting for a thread to make them on,
+ * or because it waited too long for one. The REST interface reports it (or
+ * any exception it causes) as the service being temporarily unavailable.
+ * 
+ * @author Donal Fellows
+ * @see WorkerCalls
+ */
+public class WorkerBusyException extends RemoteException {
+	private static final long serialVersionUID = -2052218326440473806L;
+
+	/**
+	 * @param operation
+	 *            The name of the operation that was not called.
+	 * @param reason
+	 *            Why it was not called.
+	 */
+	public WorkerBusyException(String operation, String reason) {
+		super(reason + "; " + operation + " not attempted");
+	}
+}
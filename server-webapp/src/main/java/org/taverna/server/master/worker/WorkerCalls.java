@@ -0,0 +1,671 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.lang.System.nanoTime;
+import static java.lang.reflect.Proxy.getInvocationHandler;
+import static java.lang.reflect.Proxy.isProxyClass;
+import static java.lang.reflect.Proxy.newProxyInstance;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.springframework.jmx.support.MetricType.COUNTER;
+import static org.springframework.jmx.support.MetricType.GAUGE;
+import static org.taverna.server.master.TavernaServer.JMX_ROOT;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedOperationParameters;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.taverna.server.localworker.remote.RemoteFilesystem;
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+import org.taverna.server.localworker.remote.RemoteUpload;
+
+/**
+ * Makes the calls to the back ends of workflow runs on a dedicated pool of
+ * threads, so that each call can be given a deadline. A back end that has
+ * wedged then ties up a thread of this pool instead of a thread of the servlet
+ * container, and the request that made the call fails with a
+ * {@link WorkerTimeoutException}. How long calls take is recorded for each
+ * back end. If a {@linkplain WorkerHealth health tracker} is set, calls to
+ * back end processes that have stopped responding are not attempted at all.
+ * <p>
+ * Calls wait in a bounded queue for a thread, and a call's deadline only
+ * starts once it has one, so a busy pool does not make calls to healthy back
+ * ends time out. A call that cannot be queued, or that waits too long for a
+ * thread, fails with a {@link WorkerBusyException} without being attempted.
+ * <p>
+ * Calls are made through
+ * {@linkplain #wrap(Class, String, String, Remote) wrappers} around the RMI
+ * stubs, so the code using them is unchanged; calls may also be
+ * {@linkplain #submit(String, String, String, Callable) submitted} directly to
+ * get a future for their result.
+ * 
+ * @author Donal Fellows
+ */
+@ManagedResource(objectName = JMX_ROOT + "WorkerCalls", description = "The calls made to the back ends of workflow runs.")
+public class WorkerCalls {
+	private Log log = LogFactory.getLog("Taverna.Server.Worker");
+	/** The operations that just report on the state of a run. */
+	private static final Set<String> STATUS_OPERATIONS = new HashSet<>(
+			Arrays.asList("getStatus", "getSnapshot", "ping"));
+	private static final String DESTROY_OPERATION = "destroy";
+	private static final String COMMIT_OPERATION = "commit";
+	private static final long MILLI = 1000000;
+	private final ThreadPoolExecutor pool;
+	private long statusDeadline = 1000;
+	private long fileDeadline = 10000;
+	private long destroyDeadline = 60000;
+	private long commitDeadline = 600000;
+	private long defaultDeadline = 30000;
+	private int maxQueuedCalls = 256;
+	private long queueDeadline = 10000;
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong busy = new AtomicLong();
+	/**
+	 * How long calls to each back end have taken, keyed by run ID. Only the
+	 * most recently used back ends are remembered. Guarded by itself.
+	 */
+	private final LinkedHashMap<String, Latency> latencies = new LinkedHashMap<String, Latency>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Latency> eldest) {
+			return size() > maxTrackedWorkers;
+		}
+	};
+	private int maxTrackedWorkers = 1000;
+	private WorkerHealth health;
+
+	public WorkerCalls() {
+		// The queue is bounded by start(), so the bound can be changed
+		pool = new ThreadPoolExecutor(16, 16, 60, SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "WorkerCall-"
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+	}
+
+	@PreDestroy
+	void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * @param threads
+	 *            How many calls to back ends may be in progress at once.
+	 *            Further calls wait for a thread.
+	 * @see #setMaxQueuedCalls(int)
+	 * @see #setQueueDeadline(long)
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("must have at least one thread");
+		if (threads > pool.getMaximumPoolSize()) {
+			pool.setMaximumPoolSize(threads);
+			pool.setCorePoolSize(threads);
+		} else {
+			pool.setCorePoolSize(threads);
+			pool.setMaximumPoolSize(threads);
+		}
+	}
+
+	@ManagedAttribute(description = "How many calls to back ends may be in progress at once.")
+	public int getThreads() {
+		return pool.getMaximumPoolSize();
+	}
+
+	/**
+	 * @param maxQueuedCalls
+	 *            How many calls to back ends may be waiting for a thread.
+	 *            Further calls fail at once.
+	 */
+	@ManagedAttribute(description = "How many calls to back ends may wait for a thread; further calls fail at once.")
+	public void setMaxQueuedCalls(int maxQueuedCalls) {
+		this.maxQueuedCalls = Math.max(1, maxQueuedCalls);
+	}
+
+	@ManagedAttribute(description = "How many calls to back ends may wait for a thread; further calls fail at once.")
+	public int getMaxQueuedCalls() {
+		return maxQueuedCalls;
+	}
+
+	/**
+	 * @param queueDeadline
+	 *            How long a call to a back end may wait for a thread, in
+	 *            milliseconds. This is separate from the deadline of the call
+	 *            itself, which only starts once it has a thread.
+	 */
+	@ManagedAttribute(description = "How long a call to a back end may wait for a thread, in milliseconds.")
+	public void setQueueDeadline(long queueDeadline) {
+		this.queueDeadline = Math.max(1, queueDeadline);
+	}
+
+	@ManagedAttribute(description = "How long a call to a back end may wait for a thread, in milliseconds.")
+	public long getQueueDeadline() {
+		return queueDeadline;
+	}
+
+	/**
+	 * @param statusDeadline
+	 *            How long a call to get the state of a run may take, in
+	 *            milliseconds.
+	 */
+	@ManagedAttribute(description = "How long a call to get the state of a run may take, in milliseconds.")
+	public void setStatusDeadline(long statusDeadline) {
+		this.statusDeadline = Math.max(1, statusDeadline);
+	}
+
+	@ManagedAttribute(description = "How long a call to get the state of a run may take, in milliseconds.")
+	public long getStatusDeadline() {
+		return statusDeadline;
+	}
+
+	/**
+	 * @param fileDeadline
+	 *            How long a call to work with the files of a run (including
+	 *            reading or writing one chunk of a file) may take, in
+	 *            milliseconds.
+	 */
+	@ManagedAttribute(description = "How long a call to work with the files of a run may take, in milliseconds.")
+	public void setFileDeadline(long fileDeadline) {
+		this.fileDeadline = Math.max(1, fileDeadline);
+	}
+
+	@ManagedAttribute(description = "How long a call to work with the files of a run may take, in milliseconds.")
+	public long getFileDeadline() {
+		return fileDeadline;
+	}
+
+	/**
+	 * @param destroyDeadline
+	 *            How long a call to destroy a run may take, in milliseconds.
+	 */
+	@ManagedAttribute(description = "How long a call to destroy a run may take, in milliseconds.")
+	public void setDestroyDeadline(long destroyDeadline) {
+		this.destroyDeadline = Math.max(1, destroyDeadline);
+	}
+
+	@ManagedAttribute(description = "How long a call to destroy a run may take, in milliseconds.")
+	public long getDestroyDeadline() {
+		return destroyDeadline;
+	}
+
+	/**
+	 * @param commitDeadline
+	 *            How long a call to commit an upload may take, in
+	 *            milliseconds. This flushes the whole file to disk, so it can
+	 *            take much longer than writing one chunk of it.
+	 */
+	@ManagedAttribute(description = "How long a call to commit an upload may take, in milliseconds.")
+	public void setCommitDeadline(long commitDeadline) {
+		this.commitDeadline = Math.max(1, commitDeadline);
+	}
+
+	@ManagedAttribute(description = "How long a call to commit an upload may take, in milliseconds.")
+	public long getCommitDeadline() {
+		return commitDeadline;
+	}
+
+	/**
+	 * @param defaultDeadline
+	 *            How long any other call to the back end of a run may take, in
+	 *            milliseconds.
+	 */
+	@ManagedAttribute(description = "How long any other call to the back end of a run may take, in milliseconds.")
+	public void setDefaultDeadline(long defaultDeadline) {
+		this.defaultDeadline = Math.max(1, defaultDeadline);
+	}
+
+	@ManagedAttribute(description = "How long any other call to the back end of a run may take, in milliseconds.")
+	public long getDefaultDeadline() {
+		return defaultDeadline;
+	}
+
+	/**
+	 * @param health
+	 *            What tracks whether the back end processes are responding.
+	 *            If not set, calls are always attempted.
+	 */
+	public void setHealth(WorkerHealth health) {
+		this.health = health;
+	}
+
+	/**
+	 * @return What tracks whether the back end processes are responding, or
+	 *         <tt>null</tt> if nothing does.
+	 */
+	@Nullable
+	public WorkerHealth getHealth() {
+		return health;
+	}
+
+	/**
+	 * @param maxTrackedWorkers
+	 *            How many back ends to keep the timings of calls for.
+	 */
+	public void setMaxTrackedWorkers(int maxTrackedWorkers) {
+		this.maxTrackedWorkers = Math.max(1, maxTrackedWorkers);
+	}
+
+	@ManagedMetric(description = "The number of calls made to back ends.", metricType = COUNTER)
+	public long getCallCount() {
+		return calls.get();
+	}
+
+	@ManagedMetric(description = "The number of calls to back ends that did not complete within their deadline.", metricType = COUNTER)
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	@ManagedMetric(description = "The number of calls to back ends that were not made because too many were waiting for a thread, or they waited too long.", metricType = COUNTER)
+	public long getBusyCount() {
+		return busy.get();
+	}
+
+	@ManagedMetric(description = "The number of calls to back ends waiting for a thread.", metricType = GAUGE)
+	public int getQueuedCount() {
+		return pool.getQueue().size();
+	}
+
+	/**
+	 * @param worker
+	 *            The ID of a run.
+	 * @return A description of how long calls to the back end of the run have
+	 *         taken, or <tt>null</tt> if none are recorded.
+	 */
+	@ManagedOperation(description = "How long calls to the back end of a run have taken.")
+	@ManagedOperationParameters(@ManagedOperationParameter(name = "worker", description = "The ID of the run."))
+	public String getWorkerLatency(String worker) {
+		Latency l;
+		synchronized (latencies) {
+			l = latencies.get(worker);
+		}
+		return l == null ? null : l.toString();
+	}
+
+	private Latency latency(String worker) {
+		synchronized (latencies) {
+			Latency l = latencies.get(worker);
+			if (l == null) {
+				l = new Latency();
+				latencies.put(worker, l);
+			}
+			return l;
+		}
+	}
+
+	/**
+	 * @param method
+	 *            The remote method being called.
+	 * @return How long to allow the call to take, in milliseconds.
+	 */
+	long getDeadline(Method method) {
+		String name = method.getName();
+		if (STATUS_OPERATIONS.contains(name))
+			return statusDeadline;
+		if (DESTROY_OPERATION.equals(name))
+			return destroyDeadline;
+		if (method.getDeclaringClass() == RemoteUpload.class
+				&& COMMIT_OPERATION.equals(name))
+			return commitDeadline;
+		if (method.getDeclaringClass() == RemoteFilesystem.class)
+			return fileDeadline;
+		return defaultDeadline;
+	}
+
+	/**
+	 * Start a call to the back end of a run.
+	 * 
+	 * @param worker
+	 *            The ID of the run.
+	 * @param process
+	 *            The key of the back end process holding the run.
+	 * @param operation
+	 *            The name of the operation, for reporting.
+	 * @param call
+	 *            What actually makes the call.
+	 * @return The future result of the call.
+	 * @throws WorkerUnavailableException
+	 *             If the back end process is known to not be responding, in
+	 *             which case the call is not attempted.
+	 * @throws WorkerBusyException
+	 *             If too many calls are already waiting for a thread, in which
+	 *             case the call is not attempted.
+	 * @throws RejectedExecutionException
+	 *             If the server is shutting down.
+	 */
+	@Nonnull
+	public <T> Future<T> submit(@Nonnull String worker,
+			@Nonnull String process, @Nonnull String operation,
+			@Nonnull Callable<T> call) throws RemoteException {
+		return start(worker, process, operation, call).future;
+	}
+
+	private <T> Attempt<T> start(String worker, String process,
+			String operation, Callable<T> call) throws RemoteException {
+		if (health != null)
+			health.admit(process, operation);
+		if (pool.getQueue().size() >= maxQueuedCalls) {
+			busy.incrementAndGet();
+			throw new WorkerBusyException(operation,
+					"too many calls to back ends waiting");
+		}
+		Attempt<T> attempt = new Attempt<>(worker, process, call);
+		calls.incrementAndGet();
+		pool.execute(attempt.future);
+		return attempt;
+	}
+
+	/**
+	 * One call to the back end of a run.
+	 * 
+	 * @author Donal Fellows
+	 */
+	private class Attempt<T> implements Callable<T> {
+		final String worker;
+		final String process;
+		final Callable<T> call;
+		final FutureTask<T> future = new FutureTask<>(this);
+		/**
+		 * Set once the outcome of the call has been reported to the health
+		 * tracker, so that a call that is abandoned and later fails is only
+		 * counted once.
+		 */
+		final AtomicBoolean settled = new AtomicBoolean();
+		/** Released when the call has got a thread and been started. */
+		final CountDownLatch started = new CountDownLatch(1);
+		/** When the call was started, as a {@link System#nanoTime()}. */
+		volatile long startedAt;
+
+		Attempt(String worker, String process, Callable<T> call) {
+			this.worker = worker;
+			this.process = process;
+			this.call = call;
+		}
+
+		@Override
+		public T call() throws Exception {
+			long start = nanoTime();
+			startedAt = start;
+			started.countDown();
+			try {
+				T result = call.call();
+				if (health != null && settled.compareAndSet(false, true))
+					health.succeeded(process, (nanoTime() - start) / MILLI);
+				return result;
+			} catch (RemoteException e) {
+				if (health != null && settled.compareAndSet(false, true))
+					health.failed(process, e);
+				throw e;
+			} finally {
+				latency(worker).record(nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * Make a call to the back end of a run, waiting at most until a deadline
+	 * for it to complete. The deadline starts when the call gets a thread to
+	 * be made on; if the deadline passes, the call is abandoned.
+	 * 
+	 * @param worker
+	 *            The ID of the run.
+	 * @param process
+	 *            The key of the back end process holding the run.
+	 * @param operation
+	 *            The name of the operation, for reporting.
+	 * @param deadline
+	 *            How long to wait, in milliseconds.
+	 * @param call
+	 *            What actually makes the call.
+	 * @return The result of the call.
+	 * @throws WorkerTimeoutException
+	 *             If the call did not complete in time.
+	 * @throws WorkerUnavailableException
+	 *             If the back end process is known to not be responding.
+	 * @throws WorkerBusyException
+	 *             If the call could not get a thread to be made on.
+	 * @throws RemoteException
+	 *             If the call could not be made.
+	 * @throws Exception
+	 *             Whatever the call itself throws.
+	 */
+	public <T> T call(@Nonnull String worker, @Nonnull String process,
+			@Nonnull String operation, long deadline,
+			@Nonnull Callable<T> call) throws Exception {
+		Attempt<T> attempt;
+		try {
+			attempt = start(worker, process, operation, call);
+		} catch (RejectedExecutionException e) {
+			throw new RemoteException("cannot call " + operation
+					+ "; server shutting down", e);
+		}
+		long queuedAt = nanoTime();
+		try {
+			while (!attempt.started.await(Math.max(1, queueDeadline
+					- (nanoTime() - queuedAt) / MILLI), MILLISECONDS)) {
+				if (pool.remove(attempt.future)) {
+					busy.incrementAndGet();
+					throw new WorkerBusyException(operation,
+							"no thread to call back end of run " + worker
+									+ " on within " + queueDeadline + "ms");
+				}
+				if (pool.isShutdown())
+					throw new RemoteException("cannot call " + operation
+							+ "; server shutting down");
+				// Otherwise it has just been given a thread
+			}
+			try {
+				return attempt.future.get(deadline
+						- (nanoTime() - attempt.startedAt) / MILLI,
+						MILLISECONDS);
+			} catch (TimeoutException e) {
+				throw timedOut(attempt, operation, deadline);
+			}
+		} catch (InterruptedException e) {
+			attempt.future.cancel(true);
+			pool.remove(attempt.future);
+			Thread.currentThread().interrupt();
+			throw new RemoteException("interrupted while waiting for "
+					+ operation, e);
+		} catch (ExecutionException e) {
+			Throwable t = e.getCause();
+			if (t instanceof Error)
+				throw (Error) t;
+			throw (Exception) t;
+		}
+	}
+
+	/**
+	 * Abandon a call that has not completed within its deadline. Only calls
+	 * that have started can time out, so a call that never got a thread is
+	 * not held against the back end's health.
+	 */
+	private WorkerTimeoutException timedOut(Attempt<?> attempt,
+			String operation, long deadline) {
+		attempt.future.cancel(true);
+		timeouts.incrementAndGet();
+		latency(attempt.worker).timedOut();
+		if (log.isDebugEnabled())
+			log.debug("call of " + operation + " on back end of run "
+					+ attempt.worker + " timed out after " + deadline + "ms");
+		WorkerTimeoutException wte = new WorkerTimeoutException(
+				attempt.worker, operation, deadline);
+		if (health != null && attempt.started.getCount() == 0
+				&& attempt.settled.compareAndSet(false, true))
+			health.failed(attempt.process, wte);
+		return wte;
+	}
+
+	/**
+	 * Wrap a handle to (part of) the back end of a run so that calls through
+	 * it are made by this class. Handles returned by calls through the wrapper
+	 * are wrapped in turn.
+	 * 
+	 * @param iface
+	 *            The remote interface of the handle.
+	 * @param worker
+	 *            The ID of the run.
+	 * @param process
+	 *            The key of the back end process holding the run.
+	 * @param stub
+	 *            The handle to wrap.
+	 * @return The wrapped handle.
+	 */
+	@Nullable
+	public <T extends Remote> T wrap(@Nonnull Class<T> iface,
+			@Nonnull String worker, @Nonnull String process, @Nullable T stub) {
+		if (stub == null || unwrap(stub) != stub)
+			return stub;
+		if (health != null && stub instanceof RemoteSingleRun)
+			health.remember(process, (RemoteSingleRun) stub);
+		return iface.cast(newProxyInstance(iface.getClassLoader(),
+				new Class<?>[] { iface }, new Wrapper(worker, process, stub)));
+	}
+
+	/**
+	 * @param o
+	 *            A value that might be a
+	 *            {@linkplain #wrap(Class, String, String, Remote) wrapped}
+	 *            handle.
+	 * @return The underlying handle if the value is wrapped, or the value
+	 *         itself if not. Wrapped handles must not be passed to the back
+	 *         end as they are not serializable.
+	 */
+	static Object unwrap(Object o) {
+		if (o != null && isProxyClass(o.getClass())) {
+			InvocationHandler h = getInvocationHandler(o);
+			if (h instanceof Wrapper)
+				return ((Wrapper) h).target;
+		}
+		return o;
+	}
+
+	private class Wrapper implements InvocationHandler {
+		final String worker;
+		final String process;
+		final Object target;
+
+		Wrapper(String worker, String process, Object target) {
+			this.worker = worker;
+			this.process = process;
+			this.target = target;
+		}
+
+		private Object invokeTarget(Method method, Object[] args)
+				throws Exception {
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				Throwable t = e.getCause();
+				if (t instanceof Error)
+					throw (Error) t;
+				throw (Exception) t;
+			}
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Object invoke(Object proxy, final Method method, Object[] args)
+				throws Throwable {
+			final Object[] realArgs = (args == null ? null : args.clone());
+			if (realArgs != null)
+				for (int i = 0; i < realArgs.length; i++)
+					realArgs[i] = unwrap(realArgs[i]);
+			// equals(), hashCode() and toString() are not remote calls
+			if (method.getDeclaringClass() == Object.class)
+				return invokeTarget(method, realArgs);
+			Object result = call(worker, process, method.getName(),
+					getDeadline(method), new Callable<Object>() {
+						@Override
+						public Object call() throws Exception {
+							return invokeTarget(method, realArgs);
+						}
+					});
+			if (health != null && target instanceof RemoteSingleRun
+					&& DESTROY_OPERATION.equals(method.getName()))
+				health.forget(process, (RemoteSingleRun) target);
+			Class<?> type = method.getReturnType();
+			if (result instanceof Remote && type.isInterface()
+					&& Remote.class.isAssignableFrom(type))
+				return wrap((Class<Remote>) type, worker, process,
+						(Remote) result);
+			return result;
+		}
+	}
+
+	/**
+	 * How long calls to one back end have taken.
+	 * 
+	 * @author Donal Fellows
+	 */
+	static class Latency {
+		private long count;
+		private long totalNanos;
+		private long maxNanos;
+		private long timeouts;
+
+		synchronized void record(long nanos) {
+			count++;
+			totalNanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+		}
+
+		synchronized void timedOut() {
+			timeouts++;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return String.format(
+					"%d calls, mean %.1fms, max %.1fms, %d timed out", count,
+					count == 0 ? 0.0 : totalNanos / 1e6 / count,
+					maxNanos / 1e6, timeouts);
+		}
+	}
+}
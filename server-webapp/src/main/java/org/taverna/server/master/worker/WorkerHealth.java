@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.springframework.jmx.support.MetricType.COUNTER;
+import static org.springframework.jmx.support.MetricType.GAUGE;
+import static org.taverna.server.master.TavernaServer.JMX_ROOT;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.ServerError;
+import java.rmi.ServerException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+
+/**
+ * Tracks the health of the back-end factory processes that hold workflow runs,
+ * and acts as a circuit breaker for calls to them. After enough consecutive
+ * calls to a process fail, calls to it are refused at once (with a
+ * {@link WorkerUnavailableException}) instead of each waiting to time out.
+ * Periodically, one of the process's runs is {@linkplain RemoteSingleRun#ping()
+ * pinged} to see whether it has recovered; if it answers, calls are allowed
+ * again. A process that answers that it no longer holds that run has still
+ * answered.
+ * 
+ * @author Donal Fellows
+ * @see WorkerCalls
+ */
+@ManagedResource(objectName = JMX_ROOT + "WorkerHealth", description = "The health of the back-end factory processes.")
+public class WorkerHealth {
+	private Log log = LogFactory.getLog("Taverna.Server.Worker");
+	/** Weight given to the latest call when averaging latencies. */
+	private static final double ALPHA = 0.2;
+	/** The most probes that may be in progress at once. */
+	private static final int MAX_PROBES = 4;
+	private final ConcurrentMap<String, ProcessHealth> processes = new ConcurrentHashMap<>();
+	private final ScheduledThreadPoolExecutor checker;
+	private final ExecutorService prober;
+	private final AtomicInteger unhealthy = new AtomicInteger();
+	private final AtomicLong refused = new AtomicLong();
+	private final AtomicLong trips = new AtomicLong();
+	private Clock clock = Clock.SYSTEM;
+	private int failureThreshold = 3;
+	private long retryInterval = 10000;
+	private long probeTimeout = 5000;
+
+	enum State {
+		/** Calls are allowed. */
+		CLOSED,
+		/** Calls are refused until it is time to probe. */
+		OPEN,
+		/** Calls are refused while a probe is in progress. */
+		HALF_OPEN
+	}
+
+	/**
+	 * The health of one back-end process. Guarded by itself.
+	 * 
+	 * @author Donal Fellows
+	 */
+	class ProcessHealth {
+		final String key;
+		State state = State.CLOSED;
+		int consecutiveFailures;
+		double latencyAverage;
+		long openedAt;
+		/** A run in the process, to be pinged to check on it. */
+		RemoteSingleRun probeTarget;
+		/**
+		 * Whether a probe has been started and not yet returned; it may have
+		 * been given up on.
+		 */
+		boolean probing;
+
+		ProcessHealth(String key) {
+			this.key = key;
+		}
+
+		synchronized void succeeded(long millis) {
+			latencyAverage = (latencyAverage == 0 ? millis : ALPHA * millis
+					+ (1 - ALPHA) * latencyAverage);
+			consecutiveFailures = 0;
+		}
+
+		synchronized void failed() {
+			consecutiveFailures++;
+			if (state == State.CLOSED
+					&& consecutiveFailures >= failureThreshold) {
+				state = State.OPEN;
+				openedAt = clock.currentTimeMillis();
+				unhealthy.incrementAndGet();
+				trips.incrementAndGet();
+				log.warn("back end process " + key + " failed "
+						+ consecutiveFailures
+						+ " calls in a row; refusing calls to it");
+			}
+		}
+
+		synchronized void closed() {
+			if (state != State.CLOSED) {
+				unhealthy.decrementAndGet();
+				log.info("back end process " + key
+						+ " is responding again; allowing calls to it");
+			}
+			state = State.CLOSED;
+			consecutiveFailures = 0;
+		}
+
+		synchronized void reopened() {
+			state = State.OPEN;
+			openedAt = clock.currentTimeMillis();
+		}
+
+		synchronized void probed() {
+			probing = false;
+		}
+
+		synchronized void forget(RemoteSingleRun run) {
+			if (probeTarget == run)
+				probeTarget = null;
+		}
+
+		/**
+		 * Start a probe of the process if one is due. A new probe is not
+		 * started while the last one has yet to return, so a process that
+		 * never answers holds up at most one prober thread.
+		 */
+		synchronized void check(long now) {
+			if (state == State.OPEN && now >= openedAt + retryInterval) {
+				if (probing)
+					return;
+				if (probeTarget == null) {
+					// Nothing to ping; let the next real call be the test
+					state = State.CLOSED;
+					consecutiveFailures = failureThreshold - 1;
+					unhealthy.decrementAndGet();
+					return;
+				}
+				state = State.HALF_OPEN;
+				openedAt = now;
+				probing = true;
+				final RemoteSingleRun target = probeTarget;
+				prober.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							target.ping();
+							closed();
+						} catch (NoSuchObjectException e) {
+							// The process answered; it just lacks that run now
+							forget(target);
+							closed();
+						} catch (RemoteException e) {
+							if (log.isDebugEnabled())
+								log.debug("probe of back end process " + key
+										+ " failed", e);
+							reopened();
+						} finally {
+							probed();
+						}
+					}
+				});
+			} else if (state == State.HALF_OPEN
+					&& now >= openedAt + probeTimeout) {
+				// Probe is stuck; give up waiting for it and try later
+				reopened();
+			}
+		}
+
+		@Override
+		public synchronized String toString() {
+			return String.format(
+					"%s: %s, %d consecutive failures, mean latency %.1fms",
+					key, state, consecutiveFailures, latencyAverage);
+		}
+	}
+
+	public WorkerHealth() {
+		ThreadFactory threads = new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "WorkerHealth-"
+						+ count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		/*
+		 * Probes get their own threads, as a stuck one cannot be interrupted;
+		 * there is at most one per process, and beyond a few they queue.
+		 */
+		ThreadPoolExecutor probes = new ThreadPoolExecutor(MAX_PROBES,
+				MAX_PROBES, 60, SECONDS, new LinkedBlockingQueue<Runnable>(),
+				threads);
+		probes.allowCoreThreadTimeOut(true);
+		prober = probes;
+		checker = new ScheduledThreadPoolExecutor(1, threads);
+		checker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkNow();
+			}
+		}, 1000, 1000, MILLISECONDS);
+	}
+
+	/**
+	 * @param clock
+	 *            Where to get the current time from. Only for testing.
+	 */
+	void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * Start the probes of the failed processes that are due to be checked on.
+	 * This is done every second anyway.
+	 */
+	void checkNow() {
+		long now = clock.currentTimeMillis();
+		for (ProcessHealth p : processes.values())
+			p.check(now);
+	}
+
+	@PreDestroy
+	void shutdown() {
+		checker.shutdownNow();
+		prober.shutdownNow();
+	}
+
+	/**
+	 * @param failureThreshold
+	 *            How many calls to a process must fail in a row before calls
+	 *            to it are refused.
+	 */
+	@ManagedAttribute(description = "How many calls to a process must fail in a row before calls to it are refused.")
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+	}
+
+	@ManagedAttribute(description = "How many calls to a process must fail in a row before calls to it are refused.")
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	/**
+	 * @param retryInterval
+	 *            How long to refuse calls to a failed process before checking
+	 *            whether it has recovered, in milliseconds.
+	 */
+	@ManagedAttribute(description = "How long to refuse calls to a failed process before checking on it, in milliseconds.")
+	public void setRetryInterval(long retryInterval) {
+		this.retryInterval = Math.max(0, retryInterval);
+	}
+
+	@ManagedAttribute(description = "How long to refuse calls to a failed process before checking on it, in milliseconds.")
+	public long getRetryInterval() {
+		return retryInterval;
+	}
+
+	/**
+	 * @param probeTimeout
+	 *            How long to wait for a failed process to answer a ping, in
+	 *            milliseconds.
+	 */
+	@ManagedAttribute(description = "How long to wait for a failed process to answer a ping, in milliseconds.")
+	public void setProbeTimeout(long probeTimeout) {
+		this.probeTimeout = Math.max(1, probeTimeout);
+	}
+
+	@ManagedAttribute(description = "How long to wait for a failed process to answer a ping, in milliseconds.")
+	public long getProbeTimeout() {
+		return probeTimeout;
+	}
+
+	@ManagedMetric(description = "The number of back end processes that calls are being refused to.", metricType = GAUGE)
+	public int getUnhealthyCount() {
+		return unhealthy.get();
+	}
+
+	@ManagedMetric(description = "The number of calls refused because their back end process had failed.", metricType = COUNTER)
+	public long getRefusedCount() {
+		return refused.get();
+	}
+
+	@ManagedMetric(description = "The number of times a back end process has been found to have failed.", metricType = COUNTER)
+	public long getTripCount() {
+		return trips.get();
+	}
+
+	/**
+	 * @return A description of the health of each known back end process.
+	 */
+	@ManagedOperation(description = "Describe the health of each back end process.")
+	public List<String> describeProcesses() {
+		List<String> result = new ArrayList<>();
+		for (ProcessHealth p : processes.values())
+			result.add(p.toString());
+		return result;
+	}
+
+	private ProcessHealth process(String key) {
+		ProcessHealth p = processes.get(key);
+		if (p == null) {
+			p = new ProcessHealth(key);
+			ProcessHealth p2 = processes.putIfAbsent(key, p);
+			if (p2 != null)
+				p = p2;
+		}
+		return p;
+	}
+
+	/**
+	 * Note a run that can be pinged to check on the health of its process.
+	 * 
+	 * @param key
+	 *            The key of the process.
+	 * @param run
+	 *            The (unwrapped) handle to the run.
+	 */
+	void remember(@Nonnull String key, @Nonnull RemoteSingleRun run) {
+		ProcessHealth p = process(key);
+		synchronized (p) {
+			p.probeTarget = run;
+		}
+	}
+
+	/**
+	 * Note that a run has been destroyed, so it can't be pinged any more.
+	 * 
+	 * @param key
+	 *            The key of the process.
+	 * @param run
+	 *            The (unwrapped) handle to the run.
+	 */
+	void forget(@Nonnull String key, @Nonnull RemoteSingleRun run) {
+		ProcessHealth p = processes.get(key);
+		if (p != null)
+			p.forget(run);
+	}
+
+	/**
+	 * Check whether a call to a process may be made.
+	 * 
+	 * @param key
+	 *            The key of the process.
+	 * @param operation
+	 *            The operation about to be called, for reporting.
+	 * @throws WorkerUnavailableException
+	 *             If calls to the process are being refused.
+	 */
+	void admit(@Nonnull String key, @Nonnull String operation)
+			throws WorkerUnavailableException {
+		if (isUnhealthy(key)) {
+			refused.incrementAndGet();
+			throw new WorkerUnavailableException(key, operation);
+		}
+	}
+
+	/**
+	 * @param key
+	 *            The key of a process.
+	 * @return Whether calls to the process are being refused.
+	 */
+	public boolean isUnhealthy(@Nonnull String key) {
+		if (unhealthy.get() == 0)
+			return false;
+		ProcessHealth p = processes.get(key);
+		if (p == null)
+			return false;
+		synchronized (p) {
+			return p.state != State.CLOSED;
+		}
+	}
+
+	/**
+	 * Note that a call to a process completed.
+	 * 
+	 * @param key
+	 *            The key of the process.
+	 * @param millis
+	 *            How long the call took.
+	 */
+	void succeeded(@Nonnull String key, long millis) {
+		process(key).succeeded(millis);
+	}
+
+	/**
+	 * Note that a call to a process failed. Only failures that indicate that
+	 * the process is not answering count; a process that reports an error is
+	 * still alive.
+	 * 
+	 * @param key
+	 *            The key of the process.
+	 * @param failure
+	 *            How the call failed.
+	 */
+	void failed(@Nonnull String key, @Nonnull RemoteException failure) {
+		if (failure instanceof ServerException
+				|| failure instanceof ServerError
+				|| failure instanceof NoSuchObjectException
+				|| failure instanceof WorkerUnavailableException)
+			return;
+		process(key).failed();
+	}
+}
@@ -200,4 +200,30 @@ public interface WorkerModel extends PolicyLimits {
 	 *            default
 	 */
 	void setGenerateProvenance(boolean generateProvenance);
+
+	/**
+	 * @return how many threads a factory process uses to compress the contents
+	 *         of ZIP archives of run directories
+	 */
+	int getArchiveThreads();
+
+	/**
+	 * @param archiveThreads
+	 *            how many threads a factory process uses to compress the
+	 *            contents of ZIP archives of run directories
+	 */
+	void setArchiveThreads(int archiveThreads);
+
+	/**
+	 * @return the level of compression of ZIP archives of run directories,
+	 *         from 0 (none) to 9 (best), or -1 for the default
+	 */
+	int getArchiveCompressionLevel();
+
+	/**
+	 * @param archiveCompressionLevel
+	 *            the level of compression of ZIP archives of run directories,
+	 *            from 0 (none) to 9 (best), or -1 for the default
+	 */
+	void setArchiveCompressionLevel(int archiveCompressionLevel);
 }
\ No newline at end of file
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import java.rmi.RemoteException;
+
+/**
+ * Indicates that a call to the back end of a workflow run did not complete
+ * within its deadline. Being a {@link RemoteException}, it is handled wherever
+ * a failure to communicate with the back end is; the REST interface reports it
+ * (or any exception it causes) as the service being temporarily unavailable.
+ * 
+ * @author Donal Fellows
+ * @see WorkerCalls
+ */
+public class WorkerTimeoutException extends RemoteException {
+	private static final long serialVersionUID = -4254617375318467025L;
+
+	/**
+	 * @param worker
+	 *            The ID of the run whose back end was being called.
+	 * @param operation
+	 *            The name of the operation that was called.
+	 * @param deadline
+	 *            How long the call was allowed, in milliseconds.
+	 */
+	public WorkerTimeoutException(String worker, String operation,
+			long deadline) {
+		super("back end of run " + worker + " did not complete " + operation
+				+ " within " + deadline + "ms");
+	}
+}
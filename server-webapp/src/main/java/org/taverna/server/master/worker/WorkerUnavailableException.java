@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import java.rmi.RemoteException;
+
+/**
+ * Indicates that a call to the back end of a workflow run was not made,
+ * because the process holding the run has stopped responding. The REST
+ * interface reports it (or any exception it causes) as the service being
+ * temporarily unavailable.
+ * 
+ * @author Donal Fellows
+ * @see WorkerHealth
+ */
+public class WorkerUnavailableException extends RemoteException {
+	private static final long serialVersionUID = 3319541624917262005L;
+
+	/**
+	 * @param process
+	 *            The key of the back end process.
+	 * @param operation
+	 *            The name of the operation that was not called.
+	 */
+	public WorkerUnavailableException(String process, String operation) {
+		super("back end process " + process + " is not responding; "
+				+ operation + " not attempted");
+	}
+
+	/**
+	 * @param message
+	 *            What could not be done, and why. The underlying failure is
+	 *            not kept as the cause, so that this stays the cause when it is
+	 *            wrapped in turn.
+	 */
+	public WorkerUnavailableException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static org.springframework.jmx.support.MetricType.COUNTER;
+import static org.springframework.jmx.support.MetricType.GAUGE;
+import static org.taverna.server.master.TavernaServer.JMX_ROOT;
+import static org.taverna.server.master.worker.RunConnectionCodec.decodeWorkflow;
+import static org.taverna.server.master.worker.RunConnectionCodec.encodeWorkflow;
+import static org.taverna.server.master.worker.RunConnectionCodec.hashWorkflow;
+import static org.taverna.server.master.worker.RunConnectionCodec.marshalWorkflow;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.jdo.annotations.PersistenceAware;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.taverna.server.master.common.Workflow;
+import org.taverna.server.master.utils.CallTimeLogger.PerfLogged;
+import org.taverna.server.master.utils.JDOSupport;
+import org.w3c.dom.Element;
+
+/**
+ * The store of the workflow documents that runs are created from. Each
+ * distinct document is stored once, compressed and keyed by the hash of its
+ * content, however many runs use it; the runs refer to it by that key. The
+ * most recently used documents are also held in memory in parsed form, so
+ * that rebuilding a run from the database does not have to parse its workflow
+ * again. As workflow documents are mutable, callers are always given their
+ * own copy; it is much cheaper to copy a document than to parse it.
+ * 
+ * @author Donal Fellows
+ */
+@PersistenceAware
+@ManagedResource(objectName = JMX_ROOT + "WorkflowStore", description = "The store of workflow documents.")
+public class WorkflowStore extends JDOSupport<StoredWorkflow> {
+	private Log log = LogFactory.getLog("Taverna.Server.Worker.RunDB");
+	private volatile int cacheSize = 100;
+	/** Guarded by itself. In access order, so the eldest is the LRU entry. */
+	private final Map<String, Workflow> cache = new LinkedHashMap<String, Workflow>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Workflow> eldest) {
+			return size() > cacheSize;
+		}
+	};
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong stored = new AtomicLong();
+	private final AtomicLong shared = new AtomicLong();
+	private final AtomicLong purged = new AtomicLong();
+
+	public WorkflowStore() {
+		super(StoredWorkflow.class);
+	}
+
+	/**
+	 * @param cacheSize
+	 *            The maximum number of parsed workflows to hold in memory.
+	 */
+	@ManagedAttribute(description = "The maximum number of parsed workflows to hold in memory.")
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = Math.max(0, cacheSize);
+		synchronized (cache) {
+			while (cache.size() > this.cacheSize)
+				cache.remove(cache.keySet().iterator().next());
+		}
+	}
+
+	@ManagedAttribute(description = "The maximum number of parsed workflows to hold in memory.")
+	public int getCacheSize() {
+		return cacheSize;
+	}
+
+	@ManagedMetric(description = "The number of parsed workflows held in memory.", metricType = GAUGE)
+	public int getCachedCount() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	@ManagedMetric(description = "The number of workflow lookups satisfied from memory.", metricType = COUNTER)
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	@ManagedMetric(description = "The number of workflow lookups that had to read the database.", metricType = COUNTER)
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	@ManagedMetric(description = "The number of distinct workflows written to the database.", metricType = COUNTER)
+	public long getStoredCount() {
+		return stored.get();
+	}
+
+	@ManagedMetric(description = "The number of submitted workflows that were already in the database.", metricType = COUNTER)
+	public long getSharedCount() {
+		return shared.get();
+	}
+
+	@ManagedMetric(description = "The number of workflows deleted because no run used them.", metricType = COUNTER)
+	public long getPurgedCount() {
+		return purged.get();
+	}
+
+	@ManagedOperation(description = "Empty the cache of parsed workflows.")
+	public void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	private void remember(@Nonnull String hash, @Nonnull Workflow workflow) {
+		synchronized (cache) {
+			cache.put(hash, workflow);
+		}
+	}
+
+	/**
+	 * Make a deep copy of a workflow. Locks the original, as even reading a
+	 * DOM tree may change it.
+	 */
+	@Nonnull
+	static Workflow copy(@Nonnull Workflow workflow) {
+		Workflow result = new Workflow();
+		synchronized (workflow) {
+			if (workflow.content != null) {
+				result.content = new Element[workflow.content.length];
+				for (int i = 0; i < workflow.content.length; i++)
+					result.content[i] = (Element) workflow.content[i]
+							.cloneNode(true);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Store a workflow, if an identical one is not already stored.
+	 * 
+	 * @param workflow
+	 *            The workflow to store.
+	 * @return The key of the stored workflow.
+	 * @throws IOException
+	 *             If the workflow can't be encoded.
+	 */
+	@Nonnull
+	@WithinSingleTransaction
+	public String store(@Nonnull Workflow workflow) throws IOException {
+		String xml = marshalWorkflow(workflow);
+		String hash = hashWorkflow(xml);
+		if (getById(hash) == null) {
+			persist(new StoredWorkflow(hash, encodeWorkflow(xml)));
+			stored.incrementAndGet();
+		} else
+			shared.incrementAndGet();
+		remember(hash, copy(workflow));
+		return hash;
+	}
+
+	/**
+	 * Look up a stored workflow.
+	 * 
+	 * @param hash
+	 *            The key of the workflow.
+	 * @return The workflow, or <tt>null</tt> if there is no such workflow.
+	 * @throws IOException
+	 *             If the stored workflow can't be decoded.
+	 */
+	@Nullable
+	@WithinSingleTransaction
+	public Workflow get(@Nonnull String hash) throws IOException {
+		Workflow workflow;
+		synchronized (cache) {
+			workflow = cache.get(hash);
+		}
+		if (workflow != null) {
+			hits.incrementAndGet();
+			return copy(workflow);
+		}
+		misses.incrementAndGet();
+		StoredWorkflow sw = getById(hash);
+		if (sw == null)
+			return null;
+		workflow = decodeWorkflow(sw.getData());
+		remember(hash, workflow);
+		return copy(workflow);
+	}
+
+	/**
+	 * Delete the stored workflows that no run refers to.
+	 * 
+	 * @return The number of workflows deleted.
+	 */
+	@PerfLogged
+	@WithinSingleTransaction
+	public int purgeOrphans() {
+		@SuppressWarnings("unchecked")
+		List<String> orphans = (List<String>) namedQuery("orphans").execute();
+		int count = 0;
+		for (String hash : orphans) {
+			StoredWorkflow sw = getById(hash);
+			if (sw == null)
+				continue;
+			delete(sw);
+			synchronized (cache) {
+				cache.remove(hash);
+			}
+			count++;
+		}
+		if (count > 0 && log.isDebugEnabled())
+			log.debug("deleted " + count + " unused workflows");
+		purged.addAndGet(count);
+		return count;
+	}
+}
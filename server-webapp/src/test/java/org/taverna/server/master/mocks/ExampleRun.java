@@ -438,6 +438,11 @@ public class ExampleRun implements TavernaRun, TavernaSecurityContext {
 		// Do nothing
 	}
 
+	@Override
+	public boolean isDegraded() {
+		return false;
+	}
+
 	@Override
 	public boolean getGenerateProvenance() {
 		// TODO Auto-generated method stub
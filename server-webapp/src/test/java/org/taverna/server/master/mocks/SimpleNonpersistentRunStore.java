@@ -116,6 +116,13 @@ public class SimpleNonpersistentRunStore implements RunStore {
 		return filtered;
 	}
 
+	@Override
+	public int countRuns() {
+		synchronized (lock) {
+			return store.size();
+		}
+	}
+
 	@Override
 	public String registerRun(TavernaRun run) {
 		synchronized (lock) {
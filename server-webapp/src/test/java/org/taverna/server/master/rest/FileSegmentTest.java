@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+
+import javax.ws.rs.core.MediaType;
+
+import org.junit.Test;
+import org.taverna.server.master.exceptions.FilesystemAccessException;
+import org.taverna.server.master.interfaces.DirectoryEntry;
+import org.taverna.server.master.interfaces.File;
+import org.taverna.server.master.rest.handler.FileSegmentHandler;
+
+public class FileSegmentTest {
+	/** A file of ten bytes, "0123456789", that can only be read. */
+	static class DigitsFile implements File {
+		private final byte[] data = "0123456789".getBytes();
+
+		@Override
+		public long getSize() {
+			return data.length;
+		}
+
+		@Override
+		public void writeContentsTo(OutputStream out, long offset,
+				long length, int chunkSize) throws IOException {
+			out.write(data, (int) offset, (int) length);
+		}
+
+		@Override
+		public byte[] getContents(long offset, int length) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void setContents(byte[] data) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void setContents(InputStream data) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void appendContents(byte[] data) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void copy(File from) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String getName() {
+			return "digits";
+		}
+
+		@Override
+		public String getFullName() {
+			return "/digits";
+		}
+
+		@Override
+		public Date getModificationDate() {
+			return new Date();
+		}
+
+		@Override
+		public void destroy() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int compareTo(DirectoryEntry o) {
+			return getFullName().compareTo(o.getFullName());
+		}
+	}
+
+	private static FileSegment segment(String range)
+			throws FilesystemAccessException {
+		return new FileSegment(new DigitsFile(), range);
+	}
+
+	private static String write(FileSegment fs) throws IOException {
+		fs.toResponse(MediaType.TEXT_PLAIN_TYPE);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new FileSegmentHandler().writeTo(fs, FileSegment.class, null, null,
+				null, null, baos);
+		return baos.toString("US-ASCII");
+	}
+
+	@Test
+	public void singleRanges() throws Exception {
+		assertEquals("234", write(segment("bytes=2-4")));
+		assertEquals("789", write(segment("bytes=7-")));
+		assertEquals("6789", write(segment("bytes=-4")));
+		assertEquals("89", write(segment("bytes=8-100")));
+		assertEquals(206, segment("bytes=2-4").toResponse(null).getStatus());
+	}
+
+	@Test
+	public void offsetsBeyondTwoGigabytesParse() throws Exception {
+		FileSegment fs = segment("bytes=3000000000-3000000001");
+		assertEquals(0, fs.ranges.size());
+		assertEquals(416, fs.toResponse(null).getStatus());
+	}
+
+	@Test
+	public void unparseableRangeMeansWholeFile() throws Exception {
+		assertNull(segment("bytes=4-2").ranges);
+		assertNull(segment("bytes=-").ranges);
+		assertNull(segment("lines=1-2").ranges);
+		assertEquals(200, segment("bytes=-").toResponse(null).getStatus());
+	}
+
+	@Test
+	public void multipleRanges() throws Exception {
+		FileSegment fs = segment("bytes=0-1, 20-30, 8-");
+		assertEquals(2, fs.ranges.size());
+		String body = write(fs);
+		String sep = "--" + fs.boundary;
+		assertTrue(body.startsWith(sep + "\r\n"));
+		assertTrue(body.contains("Content-Range: bytes 0-1/10\r\n\r\n01\r\n"));
+		assertTrue(body.contains("Content-Range: bytes 8-9/10\r\n\r\n89\r\n"));
+		assertTrue(body.endsWith(sep + "--\r\n"));
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.soap;
+
+import static java.lang.Math.min;
+import static org.junit.Assert.assertEquals;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Test;
+import org.taverna.server.master.interfaces.DirectoryEntry;
+import org.taverna.server.master.interfaces.File;
+
+/**
+ * Tests that file contents are streamed to SOAP clients in chunks. The build
+ * runs this with a small heap (see the <tt>small-heap-tests</tt> execution in
+ * the POM) so that a file larger than the heap stays cheap to make up.
+ */
+public class FileContentsTest {
+	/**
+	 * A read-only file of any size, whose contents are made up as they are
+	 * read.
+	 */
+	static class LargeFile implements File {
+		final long size;
+		int reads;
+
+		LargeFile(long size) {
+			this.size = size;
+		}
+
+		@Override
+		public byte[] getContents(long offset, int length) {
+			reads++;
+			if (length < 0 || length > size - offset)
+				length = (int) min(Integer.MAX_VALUE, size - offset);
+			byte[] data = new byte[length];
+			Arrays.fill(data, (byte) (offset >>> 16));
+			return data;
+		}
+
+		@Override
+		public long getSize() {
+			return size;
+		}
+
+		@Override
+		public void writeContentsTo(OutputStream out, long offset,
+				long length, int chunkSize) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void setContents(byte[] data) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void setContents(InputStream data) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void appendContents(byte[] data) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void copy(File from) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String getName() {
+			return "large";
+		}
+
+		@Override
+		public String getFullName() {
+			return "/large";
+		}
+
+		@Override
+		public Date getModificationDate() {
+			return new Date();
+		}
+
+		@Override
+		public void destroy() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int compareTo(DirectoryEntry o) {
+			return getFullName().compareTo(o.getFullName());
+		}
+	}
+
+	/** Counts what is written to it, and otherwise discards it. */
+	static class CountingSink extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	@Test
+	public void fileLargerThanHeapIsStreamed() throws Exception {
+		long size = Runtime.getRuntime().maxMemory() + (1 << 20);
+		FileContents fc = new FileContents();
+		fc.setFile(new LargeFile(size), "application/octet-stream");
+		CountingSink sink = new CountingSink();
+		fc.fileData.writeTo(sink);
+		assertEquals(size, sink.count);
+	}
+
+	@Test
+	public void singleByteReadsFetchWholeChunks() throws Exception {
+		LargeFile f = new LargeFile(200000);
+		FileContents fc = new FileContents();
+		fc.setFile(f, "application/octet-stream");
+		long count = 0;
+		try (InputStream in = fc.fileData.getInputStream()) {
+			int b;
+			while ((b = in.read()) >= 0) {
+				assertEquals((byte) (count >>> 16), (byte) b);
+				count++;
+			}
+		}
+		assertEquals(200000, count);
+		// Four chunks of data, and one to find the end
+		assertEquals(5, f.reads);
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.utils;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Transaction;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.junit.Before;
+import org.junit.Test;
+import org.taverna.server.master.utils.JDOSupport.TransactionAspect;
+
+/**
+ * Checks that the transaction aspect does not serialize the transactions of
+ * independent DAOs, while still serializing those of a single DAO.
+ * 
+ * @author Donal Fellows
+ */
+public class JDOTransactionConcurrencyTest {
+	private TransactionAspect aspect;
+
+	static class DummyDAO extends JDOSupport<Object> {
+		DummyDAO() {
+			super(Object.class);
+			pm = makeThreadBoundPersistenceManager();
+		}
+	}
+
+	/**
+	 * Make something that looks enough like a persistence manager proxy for
+	 * the aspect: each thread sees its own transaction.
+	 */
+	static PersistenceManager makeThreadBoundPersistenceManager() {
+		final ThreadLocal<Transaction> txs = new ThreadLocal<Transaction>() {
+			@Override
+			protected Transaction initialValue() {
+				return makeTransaction();
+			}
+		};
+		return (PersistenceManager) Proxy.newProxyInstance(
+				JDOTransactionConcurrencyTest.class.getClassLoader(),
+				new Class<?>[] { PersistenceManager.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("currentTransaction"))
+							return txs.get();
+						return null;
+					}
+				});
+	}
+
+	static Transaction makeTransaction() {
+		return (Transaction) Proxy.newProxyInstance(
+				JDOTransactionConcurrencyTest.class.getClassLoader(),
+				new Class<?>[] { Transaction.class }, new InvocationHandler() {
+					private boolean active;
+
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						switch (method.getName()) {
+						case "isActive":
+							return active;
+						case "begin":
+							if (active)
+								throw new IllegalStateException(
+										"nested begin");
+							active = true;
+							break;
+						case "commit":
+						case "rollback":
+							active = false;
+							break;
+						}
+						return null;
+					}
+				});
+	}
+
+	interface Body {
+		Object run() throws Throwable;
+	}
+
+	static ProceedingJoinPoint call(final Body body) {
+		return (ProceedingJoinPoint) Proxy.newProxyInstance(
+				JDOTransactionConcurrencyTest.class.getClassLoader(),
+				new Class<?>[] { ProceedingJoinPoint.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						if (method.getName().equals("proceed"))
+							return body.run();
+						if (method.getName().equals("toString"))
+							return "test call";
+						return null;
+					}
+				});
+	}
+
+	private Thread inTransaction(final JDOSupport<?> dao, final Body body,
+			final AtomicInteger failures) {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					aspect.applyTransaction(call(body), dao);
+				} catch (Throwable e) {
+					failures.incrementAndGet();
+				}
+			}
+		});
+		t.start();
+		return t;
+	}
+
+	@Before
+	public void makeAspect() {
+		aspect = new TransactionAspect();
+	}
+
+	@Test
+	public void independentDAOsRunConcurrently() throws Exception {
+		final CyclicBarrier bothInside = new CyclicBarrier(2);
+		Body body = new Body() {
+			@Override
+			public Object run() throws Throwable {
+				// Only completes if the other transaction is open at once
+				bothInside.await(10, SECONDS);
+				return null;
+			}
+		};
+		AtomicInteger failures = new AtomicInteger();
+		Thread t1 = inTransaction(new DummyDAO(), body, failures);
+		Thread t2 = inTransaction(new DummyDAO(), body, failures);
+		t1.join();
+		t2.join();
+		assertEquals("both transactions open together", 0, failures.get());
+		assertEquals(2, aspect.getTransactionCount());
+	}
+
+	@Test
+	public void sameDAOIsSerialized() throws Exception {
+		final DummyDAO dao = new DummyDAO();
+		final AtomicInteger inside = new AtomicInteger();
+		final AtomicInteger maxInside = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		Body body = new Body() {
+			@Override
+			public Object run() throws Throwable {
+				int n = inside.incrementAndGet();
+				if (n > maxInside.get())
+					maxInside.set(n);
+				started.countDown();
+				Thread.sleep(200);
+				inside.decrementAndGet();
+				return null;
+			}
+		};
+		AtomicInteger failures = new AtomicInteger();
+		Thread t1 = inTransaction(dao, body, failures);
+		started.await();
+		Thread t2 = inTransaction(dao, body, failures);
+		t1.join();
+		t2.join();
+		assertEquals(0, failures.get());
+		assertEquals(1, maxInside.get());
+		assertTrue(aspect.getMaxLockWaitTime() > 0.0);
+	}
+
+	@Test
+	public void nestedCallsJoinTheOuterTransaction() throws Throwable {
+		final DummyDAO outer = new DummyDAO();
+		final DummyDAO inner = new DummyDAO();
+		// Same thread, so both DAOs share the thread's transaction
+		inner.pm = outer.pm;
+		Object result = aspect.applyTransaction(call(new Body() {
+			@Override
+			public Object run() throws Throwable {
+				assertTrue(outer.pm.currentTransaction().isActive());
+				return aspect.applyTransaction(call(new Body() {
+					@Override
+					public Object run() {
+						return "ok";
+					}
+				}), inner);
+			}
+		}), outer);
+		assertEquals("ok", result);
+		assertFalse(outer.pm.currentTransaction().isActive());
+		assertEquals(1, aspect.getTransactionCount());
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.NoSuchFileException;
+import java.rmi.ConnectException;
+import java.rmi.UnmarshalException;
+import java.util.Collections;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Test;
+import org.taverna.server.localworker.remote.RemoteFilesystem;
+import org.taverna.server.master.exceptions.FilesystemAccessException;
+
+public class DirectoryDelegateTest {
+	/**
+	 * Make a directory whose filesystem fails to open archives with the given
+	 * exception, and whose listing is empty or fails.
+	 */
+	private static DirectoryDelegate directory(final Exception openFailure,
+			final boolean listFails) {
+		return new DirectoryDelegate((RemoteFilesystem) Proxy.newProxyInstance(
+				RemoteFilesystem.class.getClassLoader(),
+				new Class<?>[] { RemoteFilesystem.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						switch (method.getName()) {
+						case "openZipStream":
+							throw openFailure;
+						case "list":
+							if (listFails)
+								throw new IOException("disk gone");
+							return Collections.emptyList();
+						default:
+							throw new UnsupportedOperationException(method
+									.getName());
+						}
+					}
+				}));
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) >= 0)
+			baos.write(buffer, 0, n);
+		return baos.toByteArray();
+	}
+
+	@Test
+	public void olderWorkerIsArchivedHere() throws Exception {
+		try (InputStream in = directory(
+				new UnmarshalException("unrecognized method hash"), false)
+				.getContentsAsZip()) {
+			ZipInputStream zis = new ZipInputStream(in);
+			assertNull(zis.getNextEntry());
+		}
+	}
+
+	@Test
+	public void failedArchivingHereIsNotComplete() throws Exception {
+		try (InputStream in = directory(
+				new UnmarshalException("unrecognized method hash"), true)
+				.getContentsAsZip()) {
+			readAll(in);
+			fail("archive of unreadable directory looked complete");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void unreachableWorkerIsUnavailable() throws Exception {
+		try {
+			directory(new ConnectException("refused"), false)
+					.getContentsAsZip();
+			fail("archive of unreachable directory opened");
+		} catch (FilesystemAccessException e) {
+			assertTrue(e.getCause() instanceof WorkerUnavailableException);
+		}
+	}
+
+	@Test
+	public void missingDirectoryIsNotUnavailable() throws Exception {
+		NoSuchFileException missing = new NoSuchFileException("foo");
+		try {
+			directory(missing, false).getContentsAsZip();
+			fail("archive of missing directory opened");
+		} catch (FilesystemAccessException e) {
+			assertEquals(missing, e.getCause());
+		}
+	}
+}
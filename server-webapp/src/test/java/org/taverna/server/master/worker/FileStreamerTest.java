@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.Arrays.copyOf;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.taverna.server.localworker.remote.RemoteStreamTicket.ARCHIVE_STARTING;
+import static org.taverna.server.localworker.remote.RemoteStreamTicket.ARCHIVE_WAITING;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+import org.taverna.server.master.worker.FileStreamer.ArchiveStream;
+
+public class FileStreamerTest {
+	private static byte[] zip() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (ZipOutputStream zos = new ZipOutputStream(baos)) {
+			zos.putNextEntry(new ZipEntry("a.txt"));
+			zos.write("some content to archive".getBytes("UTF-8"));
+		}
+		return baos.toByteArray();
+	}
+
+	private static byte[] readAll(InputStream in, int chunk)
+			throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[chunk];
+		int n;
+		while ((n = in.read(buffer)) >= 0)
+			baos.write(buffer, 0, n);
+		return baos.toByteArray();
+	}
+
+	@Test
+	public void waitingBytesAreSkipped() throws IOException {
+		InputStream in = new ByteArrayInputStream(new byte[] {
+				ARCHIVE_WAITING, ARCHIVE_WAITING, ARCHIVE_STARTING, 'P' });
+		FileStreamer.awaitArchive(in);
+		assertEquals('P', in.read());
+	}
+
+	@Test(expected = IOException.class)
+	public void archiveThatNeverStartsFails() throws IOException {
+		FileStreamer.awaitArchive(new ByteArrayInputStream(
+				new byte[] { ARCHIVE_WAITING }));
+	}
+
+	@Test
+	public void completeArchiveIsPassedThrough() throws IOException {
+		byte[] zip = zip();
+		assertArrayEquals(zip,
+				readAll(new ArchiveStream(new ByteArrayInputStream(zip)), 7));
+		assertArrayEquals(zip, readAll(new ArchiveStream(
+				new ByteArrayInputStream(zip)), 4096));
+	}
+
+	@Test
+	public void truncatedArchiveFails() throws IOException {
+		byte[] zip = zip();
+		for (int len : new int[] { 0, 10, zip.length / 2, zip.length - 1 }) {
+			InputStream in = new ArchiveStream(new ByteArrayInputStream(
+					copyOf(zip, len)));
+			try {
+				readAll(in, 5);
+				fail("truncated to " + len + " bytes but not detected");
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+	}
+}
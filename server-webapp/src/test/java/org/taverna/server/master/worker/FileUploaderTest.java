@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.taverna.server.master.worker.FileUploader.MAX_WINDOWS;
+import static org.taverna.server.master.worker.FileUploader.WINDOW_SIZE;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.rmi.UnmarshalException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.taverna.server.localworker.remote.RemoteFilesystem;
+import org.taverna.server.localworker.remote.RemoteUpload;
+import org.taverna.server.master.exceptions.FilesystemAccessException;
+
+public class FileUploaderTest {
+	/** Records what is written through it, in whatever order it arrives. */
+	static class RecordingUpload implements RemoteUpload {
+		final byte[] file;
+		final AtomicInteger writing = new AtomicInteger();
+		final AtomicInteger mostWriting = new AtomicInteger();
+		/** Released when enough writes are in progress at once. */
+		final CountDownLatch overlapping;
+		volatile long failAt = -1;
+		volatile int commits;
+		volatile int aborts;
+		volatile boolean abortedWhileWriting;
+
+		RecordingUpload(int size, int overlap) {
+			file = new byte[size];
+			overlapping = new CountDownLatch(overlap);
+		}
+
+		@Override
+		public void write(long offset, byte[] data) throws IOException {
+			int n = writing.incrementAndGet();
+			try {
+				while (true) {
+					int most = mostWriting.get();
+					if (n <= most || mostWriting.compareAndSet(most, n))
+						break;
+				}
+				overlapping.countDown();
+				try {
+					overlapping.await(10, SECONDS);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				if (offset == failAt)
+					throw new IOException("disk full");
+				System.arraycopy(data, 0, file, (int) offset, data.length);
+			} finally {
+				writing.decrementAndGet();
+			}
+		}
+
+		@Override
+		public long commit() {
+			commits++;
+			return file.length;
+		}
+
+		@Override
+		public void abort() {
+			if (writing.get() > 0)
+				abortedWhileWriting = true;
+			aborts++;
+		}
+	}
+
+	/**
+	 * A filesystem whose uploads are opened by returning (or throwing) the
+	 * given object, and which records the RMI writes made to it.
+	 */
+	private static RemoteFilesystem filesystem(final Object openResult,
+			final ByteArrayOutputStream written) {
+		return (RemoteFilesystem) Proxy.newProxyInstance(
+				FileUploaderTest.class.getClassLoader(),
+				new Class<?>[] { RemoteFilesystem.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						switch (method.getName()) {
+						case "openUpload":
+							if (openResult instanceof Throwable)
+								throw (Throwable) openResult;
+							return openResult;
+						case "write":
+							if (!(Boolean) args[2])
+								written.reset();
+							written.write((byte[]) args[1]);
+							return null;
+						default:
+							throw new UnsupportedOperationException(method
+									.getName());
+						}
+					}
+				});
+	}
+
+	private static byte[] data(int size) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++)
+			data[i] = (byte) (i * 31 + i / WINDOW_SIZE);
+		return data;
+	}
+
+	@Test
+	public void windowsAreSentTogether() throws Exception {
+		byte[] data = data(3 * WINDOW_SIZE + 1000);
+		RecordingUpload upload = new RecordingUpload(data.length, 2);
+		assertEquals(data.length, FileUploader.upload(upload,
+				new ByteArrayInputStream(data)));
+		assertArrayEquals(data, upload.file);
+		assertTrue("windows were not sent at once",
+				upload.mostWriting.get() > 1);
+		assertEquals(1, upload.commits);
+		assertEquals(0, upload.aborts);
+	}
+
+	@Test
+	public void windowsInFlightAreBounded() throws Exception {
+		byte[] data = data((MAX_WINDOWS + 3) * WINDOW_SIZE);
+		RecordingUpload upload = new RecordingUpload(data.length,
+				MAX_WINDOWS);
+		FileUploader.upload(upload, new ByteArrayInputStream(data));
+		assertEquals(MAX_WINDOWS, upload.mostWriting.get());
+		assertArrayEquals(data, upload.file);
+	}
+
+	@Test
+	public void failedWindowAbortsUpload() throws Exception {
+		byte[] data = data(4 * WINDOW_SIZE);
+		RecordingUpload upload = new RecordingUpload(data.length, 2);
+		upload.failAt = WINDOW_SIZE;
+		try {
+			FileUploader.upload(upload, new ByteArrayInputStream(data));
+			fail("failed write not reported");
+		} catch (FilesystemAccessException e) {
+			assertEquals("disk full", e.getCause().getMessage());
+		}
+		assertEquals(0, upload.commits);
+		assertEquals(1, upload.aborts);
+		assertFalse("aborted before windows arrived",
+				upload.abortedWhileWriting);
+	}
+
+	@Test
+	public void failedReadAbortsUpload() throws Exception {
+		byte[] data = data(2 * WINDOW_SIZE);
+		InputStream in = new FilterInputStream(
+				new ByteArrayInputStream(data)) {
+			private int count;
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (count >= WINDOW_SIZE)
+					throw new IOException("connection lost");
+				int n = super.read(b, off, len);
+				count += n;
+				return n;
+			}
+		};
+		RecordingUpload upload = new RecordingUpload(data.length, 1);
+		try {
+			FileUploader.upload(upload, in);
+			fail("failed read not reported");
+		} catch (FilesystemAccessException e) {
+			fail("failed read reported as failed write");
+		} catch (IOException e) {
+			assertEquals("connection lost", e.getMessage());
+		}
+		assertEquals(0, upload.commits);
+		assertEquals(1, upload.aborts);
+		assertFalse(upload.abortedWhileWriting);
+	}
+
+	@Test
+	public void olderWorkerIsSentRmiWrites() throws Exception {
+		byte[] data = data(WINDOW_SIZE + 1000);
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		RemoteFilesystem fs = filesystem(new UnmarshalException(
+				"unrecognized method hash"), written);
+		assertEquals(data.length, FileUploader.upload(fs, "foo",
+				new ByteArrayInputStream(data)));
+		assertArrayEquals(data, written.toByteArray());
+	}
+
+	@Test
+	public void failureToOpenIsReported() throws Exception {
+		List<Exception> failures = new ArrayList<>();
+		failures.add(new FileNotFoundException("foo"));
+		failures.add(new RemoteException("worker gone"));
+		for (Exception failure : failures) {
+			ByteArrayOutputStream written = new ByteArrayOutputStream();
+			RemoteFilesystem fs = filesystem(failure, written);
+			try {
+				FileUploader.upload(fs, "foo", new ByteArrayInputStream(
+						data(10)));
+				fail("failure to open not reported");
+			} catch (FilesystemAccessException e) {
+				assertEquals(failure, e.getCause());
+			}
+			assertEquals(0, written.size());
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.taverna.server.master.worker.RemoteRunDelegate.Property;
+
+public class FlushCoalescingTest {
+	private List<Set<Property>> flushes;
+	private RunDatabase db;
+	private RemoteRunDelegate run;
+
+	@Before
+	public void setUp() {
+		flushes = new ArrayList<>();
+		db = new RunDatabase();
+		db.setDao(new RunDatabaseDAO() {
+			@Override
+			public void flushToDisk(RemoteRunDelegate run,
+					Set<Property> changed) {
+				flushes.add(changed);
+			}
+		});
+		run = new RemoteRunDelegate();
+		run.id = "abc";
+		run.db = db;
+	}
+
+	@Test
+	public void onlyChangedPropertiesAreFlushed() {
+		run.setGenerateProvenance(true);
+		assertEquals(1, flushes.size());
+		assertEquals(EnumSet.of(Property.PROVENANCE), flushes.get(0));
+		assertTrue(run.takeDirty().isEmpty());
+	}
+
+	@Test
+	public void changesInARequestAreCoalesced() {
+		assertTrue(db.beginCoalescing());
+		run.setGenerateProvenance(true);
+		run.setWriters(singleton("fred"));
+		run.setDestroyers(singleton("fred"));
+		run.setWriters(singleton("wilma"));
+		assertEquals(0, flushes.size());
+		db.endCoalescing();
+		assertEquals(1, flushes.size());
+		assertEquals(EnumSet.of(Property.PROVENANCE, Property.WRITERS,
+				Property.DESTROYERS), flushes.get(0));
+	}
+
+	@Test
+	public void nestedScopesFlushAtTheOutermostEnd() {
+		assertTrue(db.beginCoalescing());
+		assertFalse(db.beginCoalescing());
+		run.setGenerateProvenance(false);
+		assertEquals(0, flushes.size());
+		db.endCoalescing();
+		assertEquals(1, flushes.size());
+	}
+
+	@Test
+	public void handlesToTheSameRunAreNotMerged() {
+		RemoteRunDelegate other = new RemoteRunDelegate();
+		other.id = run.id;
+		other.db = db;
+		assertTrue(db.beginCoalescing());
+		run.setGenerateProvenance(true);
+		run.setWriters(singleton("fred"));
+		other.setDestroyers(singleton("fred"));
+		// The first handle's changes can't wait for the second's
+		assertEquals(1, flushes.size());
+		assertEquals(EnumSet.of(Property.PROVENANCE, Property.WRITERS),
+				flushes.get(0));
+		other.setWriters(singleton("wilma"));
+		db.endCoalescing();
+		assertEquals(2, flushes.size());
+		assertEquals(EnumSet.of(Property.DESTROYERS, Property.WRITERS),
+				flushes.get(1));
+	}
+
+	@Test
+	public void failedFlushesAreRetried() {
+		db.setDao(new RunDatabaseDAO() {
+			@Override
+			public void flushToDisk(RemoteRunDelegate run,
+					Set<Property> changed) {
+				throw new IllegalStateException("database unavailable");
+			}
+		});
+		try {
+			run.setGenerateProvenance(true);
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		assertEquals(EnumSet.of(Property.PROVENANCE), run.takeDirty());
+	}
+}
@@ -0,0 +1,22 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+/**
+ * A clock that only moves when a test tells it to.
+ */
+class ManualClock implements Clock {
+	private long now = 1000000;
+
+	@Override
+	public synchronized long currentTimeMillis() {
+		return now;
+	}
+
+	synchronized void advance(long millis) {
+		now += millis;
+	}
+}
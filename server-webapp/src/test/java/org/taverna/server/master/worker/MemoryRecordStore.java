@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+import org.taverna.server.master.interfaces.TavernaRun;
+import org.taverna.server.master.worker.RemoteRunDelegate.Property;
+
+/**
+ * A run record store that only holds index entries, in memory, and counts
+ * how often it is asked for full runs. Runs can't be persisted through it;
+ * add their entries directly instead.
+ */
+class MemoryRecordStore implements RunRecordStore {
+	final Map<String, RunIndexEntry> entries = new LinkedHashMap<>();
+	/** The runs that will be reported as having expired by the next clean. */
+	final Map<String, RemoteSingleRun> expired = new LinkedHashMap<>();
+	/** The runs whose execution resources are still to be destroyed. */
+	final Map<String, RemoteSingleRun> tombstones = new LinkedHashMap<>();
+	/** The runs to check for whether they have finished. */
+	final List<RemoteRunDelegate> unfinished = new ArrayList<>();
+	int gets;
+
+	synchronized void add(RunIndexEntry e) {
+		entries.put(e.getId(), e);
+	}
+
+	@Override
+	public synchronized TavernaRun get(String name) {
+		gets++;
+		return null;
+	}
+
+	@Override
+	public synchronized List<RunIndexEntry> listRunIndex() {
+		return new ArrayList<>(entries.values());
+	}
+
+	@Override
+	public synchronized List<RunIndexEntry> listRunIndexVisibleTo(
+			String username) {
+		List<RunIndexEntry> result = new ArrayList<>();
+		for (RunIndexEntry e : entries.values())
+			if (e.isOwnerOrReader(username))
+				result.add(e);
+		return result;
+	}
+
+	@Override
+	public synchronized int countRuns() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized List<String> listRunNames() {
+		return new ArrayList<>(entries.keySet());
+	}
+
+	@Override
+	public RemoteRunDelegate pickArbitraryRun() {
+		return null;
+	}
+
+	@Override
+	public String getSecurityToken(String name) {
+		return null;
+	}
+
+	@Override
+	public void persistRun(RemoteRunDelegate rrd) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public synchronized boolean unpersistRun(String name) {
+		return entries.remove(name) != null;
+	}
+
+	@Override
+	public void flushToDisk(RemoteRunDelegate run, Set<Property> changed) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public synchronized Map<String, RemoteSingleRun> doClean() {
+		Map<String, RemoteSingleRun> result = new LinkedHashMap<>(expired);
+		entries.keySet().removeAll(expired.keySet());
+		for (Map.Entry<String, RemoteSingleRun> e : expired.entrySet())
+			if (e.getValue() != null)
+				tombstones.put(e.getKey(), e.getValue());
+		expired.clear();
+		return result;
+	}
+
+	@Override
+	public synchronized Map<String, RemoteSingleRun> listTombstones() {
+		return new LinkedHashMap<>(tombstones);
+	}
+
+	@Override
+	public synchronized void removeTombstone(String id) {
+		tombstones.remove(id);
+	}
+
+	@Override
+	public int upgradeLegacyRuns(int limit) {
+		return 0;
+	}
+
+	@Override
+	public int upgradeLegacyReaders() {
+		return 0;
+	}
+
+	@Override
+	public int purgeUnusedWorkflows() {
+		return 0;
+	}
+
+	@Override
+	public synchronized List<RemoteRunDelegate> getPotentiallyNotifiable(
+			Collection<String> ids) {
+		List<RemoteRunDelegate> result = new ArrayList<>();
+		for (RemoteRunDelegate rrd : unfinished)
+			if (ids.contains(rrd.getId())) {
+				gets++;
+				result.add(rrd);
+			}
+		return result;
+	}
+
+	@Override
+	public synchronized void markFinished(Set<String> terminated) {
+		for (String id : terminated) {
+			RunIndexEntry e = entries.get(id);
+			if (e != null)
+				entries.put(id, e.asFinished());
+		}
+	}
+}
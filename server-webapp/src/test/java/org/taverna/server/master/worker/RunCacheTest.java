@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.taverna.server.master.exceptions.UnknownRunException;
+import org.taverna.server.master.mocks.ExampleRun;
+import org.taverna.server.master.utils.UsernamePrincipal;
+
+public class RunCacheTest {
+	private RunCache cache;
+	private ManualClock clock;
+
+	static class PingCountingRun extends ExampleRun {
+		int pings;
+		boolean dead;
+
+		PingCountingRun() {
+			super(new UsernamePrincipal("fred"), null, new Date());
+		}
+
+		@Override
+		public void ping() throws UnknownRunException {
+			pings++;
+			if (dead)
+				throw new UnknownRunException();
+		}
+	}
+
+	@Before
+	public void setUp() {
+		cache = new RunCache();
+		clock = new ManualClock();
+		cache.setClock(clock);
+	}
+
+	@Test
+	public void lookupsWithinLeaseDoNotPing() {
+		PingCountingRun run = new PingCountingRun();
+		cache.setLeaseTime(60000);
+		cache.put("a", run);
+		for (int i = 0; i < 10; i++)
+			assertSame(run, cache.get("a"));
+		assertEquals(0, run.pings);
+		assertEquals(10, cache.getHitCount());
+		assertNull(cache.get("b"));
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void expiredLeaseIsRevalidated() {
+		PingCountingRun run = new PingCountingRun();
+		cache.setLeaseTime(60000);
+		cache.put("a", run);
+		clock.advance(59999);
+		assertSame(run, cache.get("a"));
+		assertEquals(0, run.pings);
+		clock.advance(1);
+		assertSame(run, cache.get("a"));
+		assertEquals(1, run.pings);
+		clock.advance(60000);
+		run.dead = true;
+		assertNull(cache.get("a"));
+		assertNull(cache.peek("a"));
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void leastRecentlyUsedIsEvicted() {
+		cache.setMaxSize(10);
+		for (int i = 0; i < 10; i++) {
+			cache.put("r" + i, new PingCountingRun());
+			clock.advance(1);
+		}
+		assertNotNull(cache.get("r0"));
+		cache.put("r10", new PingCountingRun());
+		assertEquals(9, cache.getSize());
+		assertEquals(2, cache.getEvictionCount());
+		assertNotNull(cache.peek("r0"));
+		assertNull(cache.peek("r1"));
+		assertNull(cache.peek("r2"));
+		assertNotNull(cache.peek("r10"));
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.lang.String.format;
+import static java.lang.System.nanoTime;
+import static java.util.Arrays.asList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.rmi.MarshalledObject;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+import org.taverna.server.master.common.Credential;
+import org.taverna.server.master.common.Trust;
+import org.taverna.server.master.common.Workflow;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Compares the size and speed of the legacy (Java-serialized) and current
+ * encodings of the large parts of a run record. Not run as part of the test
+ * suite; run the {@link #main(String[]) main} method directly. Optional
+ * arguments are the number of iterations and the number of processors in the
+ * synthetic workflow.
+ * 
+ * @author Donal Fellows
+ */
+public class RunConnectionCodecBenchmark {
+	private static final String T2FLOW = "http://taverna.sf.net/2008/xml/t2flow";
+
+	private static class DummyRun implements InvocationHandler, Serializable {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			return null;
+		}
+	}
+
+	static RemoteSingleRun makeRun() {
+		return (RemoteSingleRun) Proxy.newProxyInstance(
+				RemoteSingleRun.class.getClassLoader(),
+				new Class<?>[] { RemoteSingleRun.class }, new DummyRun());
+	}
+
+	static Workflow makeWorkflow(int processors) throws Exception {
+		Document doc = DocumentBuilderFactory.newInstance()
+				.newDocumentBuilder().newDocument();
+		Element wf = doc.createElementNS(T2FLOW, "workflow");
+		Element df = doc.createElementNS(T2FLOW, "dataflow");
+		wf.appendChild(df);
+		Element name = doc.createElementNS(T2FLOW, "name");
+		name.setTextContent("benchmark");
+		df.appendChild(name);
+		Element procs = doc.createElementNS(T2FLOW, "processors");
+		df.appendChild(procs);
+		for (int i = 0; i < processors; i++) {
+			Element p = doc.createElementNS(T2FLOW, "processor");
+			Element pn = doc.createElementNS(T2FLOW, "name");
+			pn.setTextContent("processor_" + i);
+			p.appendChild(pn);
+			Element script = doc.createElementNS(T2FLOW, "script");
+			script.setTextContent("out = in.toUpperCase() + \"" + i + "\";");
+			p.appendChild(script);
+			procs.appendChild(p);
+		}
+		Workflow w = new Workflow();
+		w.content = new Element[] { wf };
+		return w;
+	}
+
+	static Credential[] makeCredentials() throws Exception {
+		byte[] keystore = new byte[2048];
+		new Random(1).nextBytes(keystore);
+		Credential.KeyPair kp = new Credential.KeyPair();
+		kp.id = "cred1";
+		kp.href = "https://localhost/taverna/rest/runs/x/security/credentials/cred1";
+		kp.serviceURI = new URI("https://example.com/service");
+		kp.credentialName = "alias";
+		kp.fileType = "PKCS12";
+		kp.unlockPassword = "secret";
+		kp.credentialBytes = keystore;
+		Credential.Password pw = new Credential.Password();
+		pw.id = "cred2";
+		pw.serviceURI = new URI("https://example.com/other");
+		pw.username = "fred";
+		pw.password = "wilma";
+		return new Credential[] { kp, pw };
+	}
+
+	static Trust[] makeTrust() {
+		byte[] cert = new byte[1024];
+		new Random(2).nextBytes(cert);
+		Trust t = new Trust();
+		t.id = "trust1";
+		t.fileType = "X.509";
+		t.certificateBytes = cert;
+		t.serverName = asList("example.com", "www.example.com");
+		return new Trust[] { t };
+	}
+
+	private static byte[] serialize(Object o) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+			oos.writeObject(o);
+		}
+		return baos.toByteArray();
+	}
+
+	private static Object deserialize(byte[] data) throws IOException,
+			ClassNotFoundException {
+		try (ObjectInputStream ois = new ObjectInputStream(
+				new ByteArrayInputStream(data))) {
+			return ois.readObject();
+		}
+	}
+
+	private final Workflow workflow;
+	private final MarshalledObject<RemoteSingleRun> run;
+	private final SecurityContextFactory factory = new SecurityContextFactory();
+	private final Credential[] credentials;
+	private final Trust[] trust;
+
+	RunConnectionCodecBenchmark(int processors) throws Exception {
+		workflow = makeWorkflow(processors);
+		run = new MarshalledObject<>(makeRun());
+		credentials = makeCredentials();
+		trust = makeTrust();
+	}
+
+	/** The legacy form: each BLOB column holds a serialized object. */
+	private int legacy() throws Exception {
+		byte[][] cols = { serialize(workflow), serialize(run),
+				serialize(factory), serialize(credentials), serialize(trust) };
+		int size = 0;
+		for (byte[] col : cols) {
+			deserialize(col);
+			size += col.length;
+		}
+		return size;
+	}
+
+	/** The current form, as written by {@link RunConnectionCodec}. */
+	private int current() throws Exception {
+		byte[] wf = RunConnectionCodec.encodeWorkflow(workflow);
+		byte[] rn = RunConnectionCodec.encodeRun(run);
+		byte[] cr = RunConnectionCodec.encodeCredentials(credentials);
+		byte[] tr = RunConnectionCodec.encodeTrust(trust);
+		RunConnectionCodec.decodeWorkflow(wf);
+		RunConnectionCodec.decodeRun(rn);
+		RunConnectionCodec.decodeCredentials(cr);
+		RunConnectionCodec.decodeTrust(tr);
+		return wf.length + rn.length + cr.length + tr.length;
+	}
+
+	/** The part of the current form that is rewritten on every flush. */
+	private int currentFlush() throws Exception {
+		byte[] cr = RunConnectionCodec.encodeCredentials(credentials);
+		byte[] tr = RunConnectionCodec.encodeTrust(trust);
+		return cr.length + tr.length;
+	}
+
+	private interface Encoding {
+		int apply() throws Exception;
+	}
+
+	private static void measure(String label, int iterations, Encoding e)
+			throws Exception {
+		// Warm up
+		for (int i = 0; i < iterations / 10 + 1; i++)
+			e.apply();
+		int size = 0;
+		long start = nanoTime();
+		for (int i = 0; i < iterations; i++)
+			size = e.apply();
+		double micros = (nanoTime() - start) / 1000.0 / iterations;
+		System.out.println(format("%-24s %8d bytes/run %10.1f us/run", label,
+				size, micros));
+	}
+
+	public static void main(String... args) throws Exception {
+		int iterations = (args.length > 0 ? Integer.parseInt(args[0]) : 2000);
+		int processors = (args.length > 1 ? Integer.parseInt(args[1]) : 50);
+		final RunConnectionCodecBenchmark b = new RunConnectionCodecBenchmark(
+				processors);
+		measure("legacy (write+read)", iterations, new Encoding() {
+			@Override
+			public int apply() throws Exception {
+				return b.legacy();
+			}
+		});
+		measure("current (write+read)", iterations, new Encoding() {
+			@Override
+			public int apply() throws Exception {
+				return b.current();
+			}
+		});
+		measure("current (flush only)", iterations, new Encoding() {
+			@Override
+			public int apply() throws Exception {
+				return b.currentFlush();
+			}
+		});
+	}
+}
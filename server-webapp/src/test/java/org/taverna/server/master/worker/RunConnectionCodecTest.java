@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.taverna.server.master.worker.RunConnectionCodec.decodeCredentials;
+import static org.taverna.server.master.worker.RunConnectionCodec.decodeRun;
+import static org.taverna.server.master.worker.RunConnectionCodec.decodeTrust;
+import static org.taverna.server.master.worker.RunConnectionCodec.decodeWorkflow;
+import static org.taverna.server.master.worker.RunConnectionCodec.encodeCredentials;
+import static org.taverna.server.master.worker.RunConnectionCodec.encodeRun;
+import static org.taverna.server.master.worker.RunConnectionCodec.encodeTrust;
+import static org.taverna.server.master.worker.RunConnectionCodec.encodeWorkflow;
+import static org.taverna.server.master.worker.RunConnectionCodec.hashWorkflow;
+import static org.taverna.server.master.worker.RunConnectionCodec.marshalWorkflow;
+import static org.taverna.server.master.worker.RunConnectionCodecBenchmark.makeCredentials;
+import static org.taverna.server.master.worker.RunConnectionCodecBenchmark.makeRun;
+import static org.taverna.server.master.worker.RunConnectionCodecBenchmark.makeTrust;
+import static org.taverna.server.master.worker.RunConnectionCodecBenchmark.makeWorkflow;
+
+import java.io.IOException;
+import java.rmi.MarshalledObject;
+
+import org.junit.Test;
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+import org.taverna.server.master.common.Credential;
+import org.taverna.server.master.common.Trust;
+import org.taverna.server.master.common.Workflow;
+
+public class RunConnectionCodecTest {
+	@Test
+	public void workflowRoundTrip() throws Exception {
+		Workflow w = makeWorkflow(5);
+		Workflow w2 = decodeWorkflow(encodeWorkflow(w));
+		assertEquals(w.marshal(), w2.marshal());
+	}
+
+	@Test
+	public void identicalWorkflowsHaveIdenticalHashes() throws Exception {
+		String h1 = hashWorkflow(marshalWorkflow(makeWorkflow(5)));
+		String h2 = hashWorkflow(marshalWorkflow(makeWorkflow(5)));
+		String h3 = hashWorkflow(marshalWorkflow(makeWorkflow(6)));
+		assertEquals(h1, h2);
+		assertFalse(h1.equals(h3));
+		assertEquals(StoredWorkflow.HASH_LENGTH, h1.length());
+	}
+
+	@Test
+	public void runRoundTrip() throws Exception {
+		MarshalledObject<RemoteSingleRun> run = new MarshalledObject<>(
+				makeRun());
+		MarshalledObject<RemoteSingleRun> run2 = decodeRun(encodeRun(run));
+		assertEquals(run, run2);
+		assertNotNull(run2.get());
+	}
+
+	@Test
+	public void credentialRoundTrip() throws Exception {
+		Credential[] creds = makeCredentials();
+		Credential[] creds2 = decodeCredentials(encodeCredentials(creds));
+		assertEquals(creds.length, creds2.length);
+		for (int i = 0; i < creds.length; i++) {
+			assertEquals(creds[i].getClass(), creds2[i].getClass());
+			assertEquals(creds[i].id, creds2[i].id);
+			assertEquals(creds[i].href, creds2[i].href);
+			assertEquals(creds[i].serviceURI, creds2[i].serviceURI);
+		}
+		Credential.KeyPair kp = (Credential.KeyPair) creds[0];
+		Credential.KeyPair kp2 = (Credential.KeyPair) creds2[0];
+		assertEquals(kp.credentialName, kp2.credentialName);
+		assertNull(kp2.credentialFile);
+		assertEquals(kp.unlockPassword, kp2.unlockPassword);
+		assertArrayEquals(kp.credentialBytes, kp2.credentialBytes);
+		Credential.Password pw = (Credential.Password) creds[1];
+		Credential.Password pw2 = (Credential.Password) creds2[1];
+		assertEquals(pw.username, pw2.username);
+		assertEquals(pw.password, pw2.password);
+		assertEquals(0, decodeCredentials(encodeCredentials(null)).length);
+	}
+
+	@Test
+	public void trustRoundTrip() throws Exception {
+		Trust[] trust = makeTrust();
+		Trust[] trust2 = decodeTrust(encodeTrust(trust));
+		assertEquals(trust.length, trust2.length);
+		for (int i = 0; i < trust.length; i++) {
+			assertEquals(trust[i].id, trust2[i].id);
+			assertEquals(trust[i].fileType, trust2[i].fileType);
+			assertArrayEquals(trust[i].certificateBytes,
+					trust2[i].certificateBytes);
+			assertEquals(trust[i].serverName, trust2[i].serverName);
+		}
+		assertEquals(0, decodeTrust(encodeTrust(null)).length);
+	}
+
+	@Test
+	public void unknownVersionIsRejected() throws Exception {
+		byte[] data = encodeTrust(makeTrust());
+		data[0] = (byte) (RunConnectionCodec.VERSION + 1);
+		try {
+			decodeTrust(data);
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("version"));
+			return;
+		}
+		throw new AssertionError("decoding should have failed");
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RunCountersTest {
+	private RunCounters counters;
+
+	private static RunIndexEntry entry(String id, String owner,
+			boolean finished) {
+		return new RunIndexEntry(id, owner, null, id, new Date(), finished);
+	}
+
+	@Before
+	public void setUp() {
+		counters = new RunCounters();
+	}
+
+	@Test
+	public void countsFollowLifecycle() {
+		RunIndexEntry a = entry("a", "fred", false);
+		RunIndexEntry b = entry("b", "fred", false);
+		counters.added(a);
+		counters.added(b);
+		counters.started("a");
+		assertEquals(2, counters.getTotal());
+		assertEquals(2, counters.countOwnedBy("fred"));
+		assertEquals(1, counters.getOperating());
+		assertEquals(0, counters.getFinished());
+
+		counters.replaced(a, a.asFinished());
+		assertEquals(2, counters.getTotal());
+		assertEquals(1, counters.getFinished());
+		assertEquals(0, counters.getOperating());
+
+		counters.removed(a.asFinished());
+		counters.removed(b);
+		assertEquals(0, counters.getTotal());
+		assertEquals(0, counters.getFinished());
+		assertEquals(0, counters.countOwnedBy("fred"));
+		assertEquals(0, counters.getOwnerCount());
+	}
+
+	@Test
+	public void resetCorrectsDrift() {
+		RunIndexEntry a = entry("a", "fred", false);
+		RunIndexEntry b = entry("b", "wilma", true);
+		counters.added(a);
+		counters.added(entry("c", "barney", false));
+		counters.started("c");
+		assertTrue(counters.reset(asList(a, b)));
+		assertEquals(2, counters.getTotal());
+		assertEquals(1, counters.getFinished());
+		assertEquals(1, counters.countOwnedBy("wilma"));
+		assertEquals(0, counters.countOwnedBy("barney"));
+		assertEquals(0, counters.getOperating());
+		assertFalse(counters.reset(asList(a, b)));
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
+import javax.jdo.datastore.JDOConnection;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.taverna.server.master.common.Workflow;
+import org.taverna.server.master.utils.UsernamePrincipal;
+import org.taverna.server.master.worker.RemoteRunDelegate.Property;
+import org.w3c.dom.Element;
+
+public class RunDatabaseDAOTest {
+	private static int dbCounter;
+	private PersistenceManagerFactory pmf;
+	private PersistenceManager pm;
+	private WorkflowStore workflows;
+	private RunTombstoneStore tombstones;
+	private RunDatabaseDAO dao;
+	private SecurityContextFactory security;
+
+	@Before
+	public void setUp() {
+		Properties props = new Properties();
+		props.setProperty("javax.jdo.PersistenceManagerFactoryClass",
+				"org.datanucleus.api.jdo.JDOPersistenceManagerFactory");
+		props.setProperty("javax.jdo.option.ConnectionDriverName",
+				"org.apache.derby.jdbc.EmbeddedDriver");
+		props.setProperty("javax.jdo.option.ConnectionURL",
+				"jdbc:derby:memory:runs" + (++dbCounter) + ";create=true");
+		props.setProperty("javax.jdo.option.NontransactionalRead", "true");
+		props.setProperty("datanucleus.autoCreateSchema", "true");
+		pmf = JDOHelper.getPersistenceManagerFactory(props);
+		pm = pmf.getPersistenceManagerProxy();
+		workflows = new WorkflowStore();
+		workflows.setPersistenceManagerFactory(pmf);
+		tombstones = new RunTombstoneStore();
+		tombstones.setPersistenceManagerFactory(pmf);
+		dao = makeDAO();
+		security = new SecurityContextFactory();
+		security.setPasswordIssuer(new PasswordIssuer());
+	}
+
+	@After
+	public void tearDown() {
+		pmf.close();
+	}
+
+	private RunDatabaseDAO makeDAO() {
+		RunDatabaseDAO d = new RunDatabaseDAO();
+		d.setPersistenceManagerFactory(pmf);
+		d.setFacade(new RunDatabase());
+		d.setWorkflowStore(workflows);
+		d.setTombstoneStore(tombstones);
+		return d;
+	}
+
+	/** What the transaction aspect does for the webapp. */
+	private <T> T inTransaction(Callable<T> body) throws Exception {
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+		try {
+			T result = body.call();
+			tx.commit();
+			return result;
+		} finally {
+			if (tx.isActive())
+				tx.rollback();
+		}
+	}
+
+	private RemoteRunDelegate run(String id, String owner, String... readers)
+			throws Exception {
+		RemoteRunDelegate rrd = new RemoteRunDelegate();
+		rrd.id = id;
+		rrd.name = id;
+		rrd.creationInstant = new Date();
+		rrd.expiry = new Date(System.currentTimeMillis() + 3600000);
+		rrd.workflow = new Workflow();
+		rrd.workflow.content = new Element[] { DocumentBuilderFactory
+				.newInstance().newDocumentBuilder().newDocument()
+				.createElement("workflow") };
+		rrd.readers = new HashSet<>(asList(readers));
+		rrd.writers = new HashSet<>();
+		rrd.destroyers = new HashSet<>();
+		rrd.secContext = security.create(rrd, new UsernamePrincipal(owner));
+		return rrd;
+	}
+
+	private void add(final RemoteRunDelegate rrd) throws Exception {
+		inTransaction(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				dao.persistRun(rrd);
+				return null;
+			}
+		});
+	}
+
+	private String visibleTo(final String user) throws Exception {
+		return inTransaction(new Callable<String>() {
+			@Override
+			public String call() {
+				TreeSet<String> ids = new TreeSet<>();
+				for (RunIndexEntry e : dao.listRunIndexVisibleTo(user))
+					ids.add(e.getId());
+				return ids.toString();
+			}
+		});
+	}
+
+	@Test
+	public void listsRunsOwnedOrReadable() throws Exception {
+		add(run("a", "fred"));
+		add(run("b", "wilma", "fred", "barney"));
+		add(run("c", "barney"));
+		assertEquals("[a, b]", visibleTo("fred"));
+		assertEquals("[b]", visibleTo("wilma"));
+		assertEquals("[b, c]", visibleTo("barney"));
+		assertEquals("[]", visibleTo("betty"));
+		assertEquals(3, (int) inTransaction(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return dao.listRunIndex().size();
+			}
+		}));
+	}
+
+	@Test
+	public void changedReadersAreListed() throws Exception {
+		final RemoteRunDelegate run = run("a", "fred", "barney");
+		add(run);
+		run.readers = new HashSet<>(singleton("wilma"));
+		inTransaction(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				dao.flushToDisk(run, EnumSet.of(Property.READERS));
+				return null;
+			}
+		});
+		assertEquals("[a]", visibleTo("wilma"));
+		assertEquals("[]", visibleTo("barney"));
+	}
+
+	@Test
+	public void legacyReadersAreMoved() throws Exception {
+		add(run("a", "fred"));
+		add(run("b", "wilma"));
+		final RemoteRunDelegate c = run("c", "barney");
+		// Store the readers of a run in the form used by older versions
+		inTransaction(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				RunConnection rc = RunConnection.toDBform(c, workflows);
+				set(rc, "readerSet", null);
+				set(rc, "readers", new String[] { "fred", "wilma" });
+				pm.makePersistent(rc);
+				return null;
+			}
+		});
+		assertEquals(1, legacyReaderRows());
+
+		assertEquals(1, upgradeReaders());
+		assertEquals("[a, c]", visibleTo("fred"));
+		assertEquals("[b, c]", visibleTo("wilma"));
+		assertEquals(0, legacyReaderRows());
+
+		// A reader removed after the move must stay removed
+		inTransaction(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				c.readers = new HashSet<>(singleton("wilma"));
+				dao.flushToDisk(c, EnumSet.of(Property.READERS));
+				return null;
+			}
+		});
+		dao = makeDAO();
+		assertEquals(0, upgradeReaders());
+		assertEquals("[a]", visibleTo("fred"));
+		assertEquals("[b, c]", visibleTo("wilma"));
+	}
+
+	@Test
+	public void missingLegacyReadersTableIsIgnored() throws Exception {
+		add(run("a", "fred", "wilma"));
+		inTransaction(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				JDOConnection conn = pm.getDataStoreConnection();
+				try (Statement s = ((Connection) conn.getNativeConnection())
+						.createStatement()) {
+					s.execute("DROP TABLE " + RunConnection.SCHEMA + "."
+							+ RunConnection.LEGACY_READERS_TABLE);
+				} finally {
+					conn.close();
+				}
+				return null;
+			}
+		});
+		assertEquals(0, upgradeReaders());
+		assertEquals("[a]", visibleTo("wilma"));
+	}
+
+	@Test
+	public void unconvertibleLegacyRunsAreSkipped() throws Exception {
+		add(run("a", "fred"));
+		inTransaction(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				// Workflow held in the record itself; can be moved
+				RunConnection rc = RunConnection.toDBform(run("b", "wilma"),
+						workflows);
+				Workflow wf = run("x", "x").workflow;
+				set(rc, "workflowHash", null);
+				set(rc, "workflow", wf);
+				pm.makePersistent(rc);
+				// Workflow that can't be decoded
+				rc = RunConnection.toDBform(run("c", "barney"), workflows);
+				set(rc, "workflowHash", null);
+				set(rc, "workflowData", new byte[] { 1, 2, 3 });
+				pm.makePersistent(rc);
+				return null;
+			}
+		});
+		assertEquals("[b, c]", legacyRuns());
+
+		assertEquals(1, upgrade(1));
+		assertEquals(0, upgrade(1));
+		assertEquals("[c]", legacyRuns());
+		// The bad record is neither retried nor counted as still to do
+		assertEquals(0, upgrade(10));
+		assertEquals("[c]", legacyRuns());
+	}
+
+	@Test
+	public void storedWorkflowsAreNotShared() throws Exception {
+		final Workflow wf = run("x", "x").workflow;
+		String hash = inTransaction(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return workflows.store(wf);
+			}
+		});
+		// Changing the submitted copy must not change the stored one
+		wf.content[0].setAttribute("changed", "yes");
+		Workflow a = workflows.get(hash), b = workflows.get(hash);
+		assertNotSame(a, b);
+		assertEquals("", a.content[0].getAttribute("changed"));
+		a.content[0].setAttribute("changed", "yes");
+		assertEquals("", b.content[0].getAttribute("changed"));
+		assertEquals("", workflows.get(hash).content[0].getAttribute("changed"));
+	}
+
+	private int upgradeReaders() throws Exception {
+		return inTransaction(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return dao.upgradeLegacyReaders();
+			}
+		});
+	}
+
+	private int upgrade(final int limit) throws Exception {
+		return inTransaction(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return dao.upgradeLegacyRuns(limit);
+			}
+		});
+	}
+
+	private String legacyRuns() throws Exception {
+		return inTransaction(new Callable<String>() {
+			@Override
+			public String call() {
+				return new TreeSet<>((List<?>) pm.newNamedQuery(
+						RunConnection.class, "legacy").execute()).toString();
+			}
+		});
+	}
+
+	private static void set(RunConnection rc, String field, Object value)
+			throws ReflectiveOperationException {
+		Field f = RunConnection.class.getDeclaredField(field);
+		f.setAccessible(true);
+		f.set(rc, value);
+	}
+
+	private int legacyReaderRows() throws Exception {
+		return inTransaction(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return ((List<?>) pm.newNamedQuery(RunConnection.class,
+						"legacyReaders").execute()).size();
+			}
+		});
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.taverna.server.localworker.remote.RemoteStatus.Finished;
+import static org.taverna.server.localworker.remote.RemoteStatus.Operating;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.NoSuchObjectException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.taverna.server.localworker.remote.RemoteRunStatus;
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+import org.taverna.server.localworker.remote.RemoteStatus;
+import org.taverna.server.master.common.Status;
+import org.taverna.server.master.exceptions.GeneralFailureException;
+import org.taverna.server.master.interfaces.TavernaRun;
+import org.taverna.server.master.utils.UsernamePrincipal;
+
+public class RunIndexTest {
+	private MemoryRecordStore store;
+	private RunDatabase db;
+	private PolicyImpl policy;
+
+	private static RunIndexEntry entry(String id, String owner,
+			String... readers) {
+		return new RunIndexEntry(id, owner, new HashSet<>(asList(readers)), id,
+				new Date(), false);
+	}
+
+	@Before
+	public void setUp() {
+		store = new MemoryRecordStore();
+		store.add(entry("a", "fred"));
+		store.add(entry("b", "wilma", "fred", "barney"));
+		store.add(entry("c", "barney"));
+		db = new RunDatabase();
+		db.setDao(store);
+		policy = new PolicyImpl();
+		policy.setRunDB(db);
+	}
+
+	private String list(String user) {
+		Map<String, TavernaRun> runs = db.listRuns(new UsernamePrincipal(user),
+				policy);
+		for (TavernaRun run : runs.values())
+			assertTrue(run instanceof IndexedRun);
+		return new TreeSet<>(runs.keySet()).toString();
+	}
+
+	@Test
+	public void listsRunsOwnedOrReadable() {
+		// Before the index is loaded, the store is asked directly
+		assertEquals("[a, b]", list("fred"));
+		db.countRuns();
+		assertEquals("[a, b]", list("fred"));
+		assertEquals("[b]", list("wilma"));
+		assertEquals("[b, c]", list("barney"));
+		assertEquals("[]", list("betty"));
+		// Listing must not rebuild the full runs
+		assertEquals(0, store.gets);
+	}
+
+	@Test
+	public void listsAllRunsWithoutUser() {
+		assertEquals(3, db.listRuns(null, policy).size());
+		assertEquals(3, db.countRuns());
+	}
+
+	@Test
+	public void deletedRunLeavesIndex() {
+		db.countRuns();
+		db.unregisterRun("b");
+		assertEquals("[a]", list("fred"));
+		assertEquals("[c]", list("barney"));
+		assertEquals("[]", list("wilma"));
+		assertFalse(db.listRuns(null, policy).containsKey("b"));
+		assertEquals(2, db.countRuns());
+	}
+
+	@Test
+	public void expiredRunLeavesIndex() {
+		db.countRuns();
+		store.expired.put("c", null);
+		db.cleanNow();
+		assertEquals("[b]", list("barney"));
+		assertEquals(2, db.countRuns());
+	}
+
+	/**
+	 * Make a run whose back end can't be asked anything just now.
+	 */
+	private static RemoteRunDelegate unanswering(final String id) {
+		return failing(id, new WorkerTimeoutException(id, "getSnapshot", 1000));
+	}
+
+	/**
+	 * Make a run whose back end fails every call with the given exception.
+	 */
+	private static RemoteRunDelegate failing(final String id,
+			final Exception failure) {
+		RemoteRunDelegate rrd = new RemoteRunDelegate();
+		rrd.id = id;
+		rrd.run = (RemoteSingleRun) Proxy.newProxyInstance(
+				RemoteSingleRun.class.getClassLoader(),
+				new Class<?>[] { RemoteSingleRun.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						throw failure;
+					}
+				});
+		return rrd;
+	}
+
+	@Test
+	public void unansweredRunIsNotFinished() {
+		store.unfinished.add(unanswering("a"));
+		db.checkForFinishNow();
+		assertFalse(store.entries.get("a").isFinished());
+	}
+
+	/**
+	 * Make a factory that reports on the runs with the given states, in
+	 * bulk.
+	 */
+	private static FactoryBean reporting(final Map<String, RemoteStatus> states) {
+		return (FactoryBean) Proxy.newProxyInstance(
+				FactoryBean.class.getClassLoader(),
+				new Class<?>[] { FactoryBean.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						if (!method.getName().equals("getRunStatuses"))
+							throw new UnsupportedOperationException();
+						Map<String, RemoteRunStatus> result = new HashMap<>();
+						for (Object id : (Collection<?>) args[0])
+							if (states.containsKey(id))
+								result.put((String) id, new RemoteRunStatus(
+										(String) id, states.get(id), null,
+										null, null));
+						return result;
+					}
+				});
+	}
+
+	@Test
+	public void onlyFinishedRunsAreRead() {
+		Map<String, RemoteStatus> states = new HashMap<>();
+		states.put("a", Finished);
+		states.put("b", Operating);
+		db.setFactory(reporting(states));
+		store.unfinished.add(unanswering("a"));
+		store.unfinished.add(unanswering("b"));
+		store.unfinished.add(unanswering("c"));
+		db.checkForFinishNow();
+		assertTrue(store.entries.get("a").isFinished());
+		assertFalse(store.entries.get("b").isFinished());
+		assertFalse(store.entries.get("c").isFinished());
+		assertEquals(1, store.gets);
+	}
+
+	@Test
+	public void unansweredRunIsUnavailable() {
+		RemoteRunDelegate rrd = unanswering("a");
+		try {
+			rrd.getStatus();
+			fail("run that did not answer has a state");
+		} catch (GeneralFailureException e) {
+			assertTrue(e.getCause() instanceof WorkerTimeoutException);
+		}
+		assertNull(rrd.getKnownStatus());
+	}
+
+	@Test
+	public void vanishedRunIsFinished() {
+		RemoteRunDelegate rrd = failing("a", new NoSuchObjectException("a"));
+		assertEquals(Status.Finished, rrd.getStatus());
+		assertNull(rrd.getKnownStatus());
+	}
+
+	@Test
+	public void unansweredRunIsNotUnknown() throws Exception {
+		RemoteRunDelegate rrd = unanswering("a");
+		rrd.ping();
+		assertTrue(rrd.hasRemoteFailed());
+	}
+
+	@Test
+	public void reconciliationReloadsMissedRuns() {
+		db.countRuns();
+		store.add(entry("d", "fred"));
+		assertEquals(3, db.countRuns());
+		db.reconcileCounters();
+		assertEquals(4, db.countRuns());
+		assertEquals("[a, b, d]", list("fred"));
+		assertEquals(0, store.gets);
+	}
+}
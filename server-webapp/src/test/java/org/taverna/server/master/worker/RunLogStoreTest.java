@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.TreeSet;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.taverna.server.master.common.Workflow;
+import org.taverna.server.master.utils.UsernamePrincipal;
+import org.w3c.dom.Element;
+
+public class RunLogStoreTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	private RunLogStore store;
+	private SecurityContextFactory security;
+
+	@Before
+	public void setUp() throws IOException {
+		security = new SecurityContextFactory();
+		security.setPasswordIssuer(new PasswordIssuer());
+		reopen();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		store.close();
+	}
+
+	private void reopen() throws IOException {
+		if (store != null)
+			store.close();
+		store = new RunLogStore();
+		store.setDirectory(tmp.getRoot().toString());
+		store.setFacade(new RunDatabase());
+		store.open();
+	}
+
+	private RemoteRunDelegate run(String id, String workflowName)
+			throws Exception {
+		RemoteRunDelegate rrd = new RemoteRunDelegate();
+		rrd.id = id;
+		rrd.name = id;
+		rrd.creationInstant = new Date();
+		rrd.expiry = new Date(System.currentTimeMillis() + 3600000);
+		rrd.workflow = new Workflow();
+		rrd.workflow.content = new Element[] { DocumentBuilderFactory
+				.newInstance().newDocumentBuilder().newDocument()
+				.createElement(workflowName) };
+		rrd.readers = new HashSet<>();
+		rrd.writers = new HashSet<>();
+		rrd.destroyers = new HashSet<>();
+		rrd.secContext = security.create(rrd, new UsernamePrincipal("fred"));
+		return rrd;
+	}
+
+	@Test
+	public void workflowIsCountedOncePerRun() throws Exception {
+		RemoteRunDelegate a = run("a", "wf");
+		store.persistRun(a);
+		store.persistRun(a);
+		store.persistRun(run("b", "wf"));
+		store.unpersistRun("a");
+		assertEquals(0, store.purgeUnusedWorkflows());
+		store.unpersistRun("b");
+		assertEquals(1, store.purgeUnusedWorkflows());
+	}
+
+	@Test
+	public void purgedWorkflowStaysDeleted() throws Exception {
+		store.persistRun(run("a", "wf1"));
+		store.persistRun(run("b", "wf2"));
+		store.unpersistRun("a");
+		assertEquals(1, store.purgeUnusedWorkflows());
+		long live = store.getLiveBytes();
+		reopen();
+		assertEquals(live, store.getLiveBytes());
+		assertEquals(0, store.purgeUnusedWorkflows());
+	}
+
+	@Test
+	public void compactionKeepsOnlyLiveRecords() throws Exception {
+		store.persistRun(run("a", "wf1"));
+		store.persistRun(run("b", "wf2"));
+		store.persistRun(run("c", "wf2"));
+		store.unpersistRun("a");
+		store.purgeUnusedWorkflows();
+		long live = store.getLiveBytes();
+		store.compact();
+		assertEquals(1, store.getCompactionCount());
+		assertEquals(live, store.getLiveBytes());
+		reopen();
+		assertEquals("[b, c]", new TreeSet<>(store.listRunNames()).toString());
+		assertEquals(live, store.getLiveBytes());
+		store.unpersistRun("b");
+		store.unpersistRun("c");
+		assertEquals(1, store.purgeUnusedWorkflows());
+	}
+}
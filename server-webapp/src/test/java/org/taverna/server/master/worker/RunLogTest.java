@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RunLogTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static class Collector implements RunLog.Handler {
+		final List<Long> offsets = new ArrayList<>();
+		final List<byte[]> payloads = new ArrayList<>();
+
+		@Override
+		public void record(long offset, byte[] payload) {
+			offsets.add(offset);
+			payloads.add(payload);
+		}
+	}
+
+	@Test
+	public void recordsSurviveReopening() throws IOException {
+		File f = new File(tmp.getRoot(), "test.log");
+		byte[] a = { 1, 2, 3 }, b = new byte[1000];
+		long oa, ob;
+		try (RunLog log = new RunLog(f, null)) {
+			oa = log.append(a);
+			ob = log.append(b);
+			assertArrayEquals(a, log.read(oa));
+		}
+		Collector c = new Collector();
+		try (RunLog log = new RunLog(f, c)) {
+			assertEquals(2, c.payloads.size());
+			assertEquals(oa, (long) c.offsets.get(0));
+			assertEquals(ob, (long) c.offsets.get(1));
+			assertArrayEquals(b, c.payloads.get(1));
+			byte[] d = { 4 };
+			long od = log.append(d);
+			assertEquals(ob + 8 + b.length, od);
+		}
+	}
+
+	@Test
+	public void recordsDoNotStraddleRegions() throws IOException {
+		File f = new File(tmp.getRoot(), "test.log");
+		byte[] big = new byte[RunLog.REGION_SIZE / 2];
+		try (RunLog log = new RunLog(f, null)) {
+			log.append(big);
+			long o = log.append(big);
+			assertEquals(RunLog.REGION_SIZE, o);
+		}
+		Collector c = new Collector();
+		new RunLog(f, c).close();
+		assertEquals(2, c.payloads.size());
+	}
+
+	@Test
+	public void incompleteRecordIsDiscarded() throws IOException {
+		File f = new File(tmp.getRoot(), "test.log");
+		long ob;
+		try (RunLog log = new RunLog(f, null)) {
+			log.append(new byte[] { 1 });
+			ob = log.append(new byte[] { 2, 3, 4, 5 });
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+			raf.seek(ob + 9);
+			raf.write(99);
+		}
+		Collector c = new Collector();
+		try (RunLog log = new RunLog(f, c)) {
+			assertEquals(1, c.payloads.size());
+			assertEquals(ob, log.size());
+		}
+	}
+
+	@Test
+	public void runRecordRoundTrip() throws IOException {
+		RunLogRecord rec = new RunLogRecord();
+		rec.id = "abc";
+		rec.owner = "fred";
+		rec.readers = new String[] { "wilma", "barney" };
+		rec.expiry = 12345;
+		rec.workflowHash = "0123";
+		rec.runData = new byte[] { 9, 8, 7 };
+		rec.finished = true;
+		RunLogRecord rec2 = RunLogRecord.decode(rec.encode());
+		assertEquals("abc", rec2.id);
+		assertNull(rec2.name);
+		assertArrayEquals(rec.readers, rec2.readers);
+		assertNull(rec2.writers);
+		assertEquals(12345, rec2.expiry);
+		assertArrayEquals(rec.runData, rec2.runData);
+		assertEquals(true, rec2.finished);
+		assertEquals("abc", RunLogRecord.decodeDeletion(RunLogRecord
+				.encodeDeletion("abc")));
+		byte[] tomb = RunLogRecord.encodeTombstone("abc", rec.runData);
+		assertEquals(RunLogRecord.TOMBSTONE, RunLogRecord.type(tomb));
+		assertEquals("abc", RunLogRecord.decodeTombstoneId(tomb));
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+
+public class RunReaperTest {
+	private RunReaper reaper;
+	private MemoryRecordStore store;
+
+	/**
+	 * Make a run handle whose <tt>destroy()</tt> fails a number of times
+	 * before succeeding.
+	 */
+	private static RemoteSingleRun run(final int failures,
+			final AtomicInteger attempts) {
+		return (RemoteSingleRun) Proxy.newProxyInstance(
+				RemoteSingleRun.class.getClassLoader(),
+				new Class<?>[] { RemoteSingleRun.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						if (!method.getName().equals("destroy"))
+							throw new UnsupportedOperationException();
+						if (attempts.incrementAndGet() <= failures)
+							throw new RemoteException("worker unreachable");
+						return null;
+					}
+				});
+	}
+
+	@Before
+	public void setUp() {
+		reaper = new RunReaper();
+		reaper.setMaxAttempts(3);
+		reaper.setRetryDelay(0);
+		store = new MemoryRecordStore();
+	}
+
+	@After
+	public void tearDown() {
+		reaper.shutdown();
+	}
+
+	private void reap(String id, RemoteSingleRun run) {
+		store.tombstones.put(id, run);
+		reaper.reap(store.listTombstones(), store);
+	}
+
+	private void awaitIdle() throws InterruptedException {
+		long deadline = currentTimeMillis() + 10000;
+		while (reaper.getPendingCount() > 0) {
+			if (currentTimeMillis() > deadline)
+				fail("reaper did not finish");
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void destroyedRunLosesTombstone() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		reap("a", run(0, attempts));
+		awaitIdle();
+		assertEquals(1, attempts.get());
+		assertEquals(1, reaper.getDestroyedCount());
+		assertTrue(store.tombstones.isEmpty());
+	}
+
+	@Test
+	public void failedDestroyIsRetried() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		reap("a", run(2, attempts));
+		awaitIdle();
+		assertEquals(3, attempts.get());
+		assertEquals(2, reaper.getRetryCount());
+		assertEquals(1, reaper.getDestroyedCount());
+		assertEquals(0, reaper.getAbandonedCount());
+		assertTrue(store.tombstones.isEmpty());
+	}
+
+	@Test
+	public void vanishedRunLosesTombstone() throws Exception {
+		store.tombstones.put("a", (RemoteSingleRun) Proxy.newProxyInstance(
+				RemoteSingleRun.class.getClassLoader(),
+				new Class<?>[] { RemoteSingleRun.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						throw new NoSuchObjectException("gone");
+					}
+				}));
+		reaper.reap(store.listTombstones(), store);
+		awaitIdle();
+		assertTrue(store.tombstones.isEmpty());
+	}
+
+	@Test
+	public void abandonedRunKeepsTombstone() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		reap("a", run(Integer.MAX_VALUE, attempts));
+		awaitIdle();
+		assertEquals(3, attempts.get());
+		assertEquals(1, reaper.getAbandonedCount());
+		assertEquals(0, reaper.getDestroyedCount());
+		assertTrue(store.tombstones.containsKey("a"));
+
+		// Not retried by the next pass...
+		reaper.reap(store.listTombstones(), store);
+		awaitIdle();
+		assertEquals(3, attempts.get());
+
+		// ...but is once it has been left alone long enough
+		reaper.setAbandonedRetryDelay(0);
+		reaper.reap(store.listTombstones(), store);
+		awaitIdle();
+		assertEquals(6, attempts.get());
+		assertEquals(2, reaper.getAbandonedCount());
+		assertTrue(store.tombstones.containsKey("a"));
+	}
+
+	@Test
+	public void runBeingDestroyedIsNotReapedTwice() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		reaper.setRetryDelay(60000);
+		reap("a", run(1, attempts));
+		long deadline = currentTimeMillis() + 10000;
+		while (attempts.get() == 0 && currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		// First attempt failed; the retry is waiting
+		reaper.reap(singletonMap("a", run(0, attempts)), store);
+		assertEquals(1, reaper.getPendingCount());
+		assertFalse(store.tombstones.isEmpty());
+	}
+
+	@Test
+	public void tombstoneOutlivesFailedCleanWithoutReaper() {
+		AtomicInteger attempts = new AtomicInteger();
+		store.add(new RunIndexEntry("a", "fred", new HashSet<String>(), "a",
+				new Date(), false));
+		store.expired.put("a", run(1, attempts));
+		RunDatabase db = new RunDatabase();
+		db.setDao(store);
+		db.cleanNow();
+		assertEquals(1, attempts.get());
+		assertTrue(store.tombstones.containsKey("a"));
+		db.cleanNow();
+		assertEquals(2, attempts.get());
+		assertTrue(store.tombstones.isEmpty());
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.lang.String.format;
+import static java.lang.System.nanoTime;
+import static java.util.UUID.randomUUID;
+import static org.taverna.server.master.worker.RunConnectionCodecBenchmark.makeRun;
+import static org.taverna.server.master.worker.RunConnectionCodecBenchmark.makeWorkflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
+
+import org.taverna.server.master.common.Workflow;
+import org.taverna.server.master.utils.UsernamePrincipal;
+import org.taverna.server.master.worker.RemoteRunDelegate.Property;
+
+/**
+ * Compares the {@link RunDatabaseDAO Derby} and {@link RunLogStore
+ * log-structured} run stores at registering runs, flushing changes to them,
+ * and rebuilding the run index from a cold start. Not run as part of the test
+ * suite; run the {@link #main(String[]) main} method directly (with the
+ * enhanced persistent classes on the classpath). Optional arguments are the
+ * numbers of runs to test with; the default is 10000 and 100000.
+ * 
+ * @author Donal Fellows
+ */
+public class RunStoreBenchmark {
+	private static final int WORKFLOWS = 10;
+
+	private interface Backend {
+		void open() throws Exception;
+
+		void persist(RemoteRunDelegate rrd) throws Exception;
+
+		void flush(RemoteRunDelegate rrd) throws Exception;
+
+		int loadIndex() throws Exception;
+
+		void close() throws Exception;
+	}
+
+	private static class Derby implements Backend {
+		private final File dir;
+		private PersistenceManagerFactory pmf;
+		private RunDatabaseDAO dao;
+
+		Derby(File dir) {
+			this.dir = dir;
+		}
+
+		@Override
+		public void open() {
+			Properties props = new Properties();
+			props.setProperty("javax.jdo.PersistenceManagerFactoryClass",
+					"org.datanucleus.api.jdo.JDOPersistenceManagerFactory");
+			props.setProperty("javax.jdo.option.ConnectionDriverName",
+					"org.apache.derby.jdbc.EmbeddedDriver");
+			props.setProperty("javax.jdo.option.ConnectionURL",
+					"jdbc:derby:directory:" + dir + "/derby;create=true");
+			props.setProperty("datanucleus.autoCreateSchema", "true");
+			pmf = JDOHelper.getPersistenceManagerFactory(props);
+			WorkflowStore workflows = new WorkflowStore();
+			workflows.setPersistenceManagerFactory(pmf);
+			dao = new RunDatabaseDAO();
+			dao.setPersistenceManagerFactory(pmf);
+			dao.setWorkflowStore(workflows);
+			dao.setFacade(new RunDatabase());
+		}
+
+		/*
+		 * Outside Spring there is no transaction aspect, so wrap each call in
+		 * a transaction here, as the aspect would.
+		 */
+		private Transaction begin() {
+			Transaction tx = pmf.getPersistenceManagerProxy()
+					.currentTransaction();
+			tx.begin();
+			return tx;
+		}
+
+		@Override
+		public void persist(RemoteRunDelegate rrd) throws IOException {
+			Transaction tx = begin();
+			dao.persistRun(rrd);
+			tx.commit();
+		}
+
+		@Override
+		public void flush(RemoteRunDelegate rrd) throws IOException {
+			Transaction tx = begin();
+			dao.flushToDisk(rrd, EnumSet.of(Property.EXPIRY));
+			tx.commit();
+		}
+
+		@Override
+		public int loadIndex() {
+			Transaction tx = begin();
+			int n = dao.listRunIndex().size();
+			tx.commit();
+			return n;
+		}
+
+		@Override
+		public void close() {
+			pmf.close();
+		}
+	}
+
+	private static class LogStructured implements Backend {
+		private final File dir;
+		private RunLogStore store;
+
+		LogStructured(File dir) {
+			this.dir = dir;
+		}
+
+		@Override
+		public void open() throws IOException {
+			store = new RunLogStore();
+			store.setDirectory(dir.toString());
+			store.setFacade(new RunDatabase());
+			store.open();
+		}
+
+		@Override
+		public void persist(RemoteRunDelegate rrd) throws IOException {
+			store.persistRun(rrd);
+		}
+
+		@Override
+		public void flush(RemoteRunDelegate rrd) throws IOException {
+			store.flushToDisk(rrd, EnumSet.of(Property.EXPIRY));
+		}
+
+		@Override
+		public int loadIndex() {
+			return store.listRunIndex().size();
+		}
+
+		@Override
+		public void close() throws IOException {
+			store.close();
+		}
+	}
+
+	private final List<RemoteRunDelegate> runs = new ArrayList<>();
+
+	RunStoreBenchmark(int count) throws Exception {
+		SecurityContextFactory factory = new SecurityContextFactory();
+		factory.setPasswordIssuer(new PasswordIssuer());
+		Workflow[] workflows = new Workflow[WORKFLOWS];
+		for (int i = 0; i < WORKFLOWS; i++)
+			workflows[i] = makeWorkflow(20 + i);
+		for (int i = 0; i < count; i++) {
+			RemoteRunDelegate rrd = new RemoteRunDelegate();
+			rrd.id = randomUUID().toString();
+			rrd.creationInstant = new Date();
+			rrd.workflow = workflows[i % WORKFLOWS];
+			rrd.expiry = new Date(System.currentTimeMillis() + 86400000);
+			rrd.readers = new HashSet<>();
+			rrd.writers = new HashSet<>();
+			rrd.destroyers = new HashSet<>();
+			rrd.run = makeRun();
+			rrd.name = "run " + i;
+			rrd.secContext = factory.create(rrd, new UsernamePrincipal("user"
+					+ (i % 100)));
+			runs.add(rrd);
+		}
+	}
+
+	private static void report(String label, int count, long elapsed) {
+		System.out.println(format("%-32s %10.1f us/run %10.1f ms total",
+				label, elapsed / 1000.0 / count, elapsed / 1000000.0));
+	}
+
+	private void measure(String name, Backend backend) throws Exception {
+		int n = runs.size();
+		backend.open();
+		long start = nanoTime();
+		for (RemoteRunDelegate rrd : runs)
+			backend.persist(rrd);
+		report(name + " register " + n, n, nanoTime() - start);
+		start = nanoTime();
+		for (RemoteRunDelegate rrd : runs) {
+			rrd.expiry = new Date(rrd.expiry.getTime() + 1000);
+			backend.flush(rrd);
+		}
+		report(name + " flush " + n, n, nanoTime() - start);
+		backend.close();
+		start = nanoTime();
+		backend.open();
+		int loaded = backend.loadIndex();
+		report(name + " cold index " + loaded, n, nanoTime() - start);
+		backend.close();
+	}
+
+	private static void delete(File f) throws IOException {
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		Files.deleteIfExists(f.toPath());
+	}
+
+	public static void main(String... args) throws Exception {
+		if (args.length == 0)
+			args = new String[] { "10000", "100000" };
+		for (String arg : args) {
+			RunStoreBenchmark b = new RunStoreBenchmark(Integer.parseInt(arg));
+			File dir = Files.createTempDirectory("runstore").toFile();
+			try {
+				b.measure("derby", new Derby(new File(dir, "jdo")));
+				b.measure("log", new LogStructured(new File(dir, "log")));
+			} finally {
+				delete(dir);
+			}
+		}
+	}
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.lang.System.currentTimeMillis;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+import org.taverna.server.localworker.remote.RemoteUpload;
+
+public class WorkerCallsTest {
+	interface Backend extends Remote {
+		String getStatus() throws RemoteException;
+
+		void read() throws RemoteException, IOException;
+
+		Backend child() throws RemoteException;
+
+		boolean isSame(Backend other) throws RemoteException;
+	}
+
+	static class SlowBackend implements Backend {
+		long delay;
+
+		@Override
+		public String getStatus() throws RemoteException {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				throw new RemoteException("interrupted", e);
+			}
+			return "ok";
+		}
+
+		@Override
+		public void read() throws IOException {
+			throw new FileNotFoundException("nothing here");
+		}
+
+		@Override
+		public Backend child() {
+			return this;
+		}
+
+		@Override
+		public boolean isSame(Backend other) {
+			return other == this;
+		}
+	}
+
+	private WorkerCalls calls;
+	private SlowBackend backend;
+	private Backend wrapped;
+	private WorkerHealth health;
+	private ManualClock clock;
+
+	@Before
+	public void setUp() {
+		calls = new WorkerCalls();
+		calls.setStatusDeadline(100);
+		backend = new SlowBackend();
+		wrapped = calls.wrap(Backend.class, "run1", "factory", backend);
+	}
+
+	@After
+	public void tearDown() {
+		calls.shutdown();
+		if (health != null)
+			health.shutdown();
+	}
+
+	private void useHealth(int failureThreshold) {
+		clock = new ManualClock();
+		health = new WorkerHealth();
+		health.setClock(clock);
+		health.setFailureThreshold(failureThreshold);
+		health.setRetryInterval(10000);
+		calls.setHealth(health);
+	}
+
+	/**
+	 * Make a run handle that counts how often it is pinged.
+	 * 
+	 * @param gone
+	 *            Whether to answer pings by saying the run does not exist.
+	 */
+	private static RemoteSingleRun run(boolean gone, AtomicInteger pings) {
+		return run(gone, pings, new CountDownLatch(0));
+	}
+
+	/**
+	 * Make a run handle that counts how often it is pinged, and only answers
+	 * pings once released.
+	 */
+	private static RemoteSingleRun run(final boolean gone,
+			final AtomicInteger pings, final CountDownLatch answer) {
+		return (RemoteSingleRun) Proxy.newProxyInstance(
+				RemoteSingleRun.class.getClassLoader(),
+				new Class<?>[] { RemoteSingleRun.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						switch (method.getName()) {
+						case "ping":
+							pings.incrementAndGet();
+							answer.await();
+							if (gone)
+								throw new NoSuchObjectException("gone");
+							return null;
+						case "destroy":
+							return null;
+						case "hashCode":
+							return System.identityHashCode(proxy);
+						case "equals":
+							return proxy == args[0];
+						default:
+							throw new UnsupportedOperationException();
+						}
+					}
+				});
+	}
+
+	/**
+	 * Get the status of the backend in another thread.
+	 * 
+	 * @return Where the result (or failure) of the call will be put.
+	 */
+	private AtomicReference<Object> getStatusInBackground() {
+		final AtomicReference<Object> result = new AtomicReference<>();
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					result.set(wrapped.getStatus());
+				} catch (RemoteException e) {
+					result.set(e);
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		return result;
+	}
+
+	private void awaitQueued(int made, int waiting)
+			throws InterruptedException {
+		long deadline = currentTimeMillis() + 10000;
+		while (calls.getCallCount() < made || calls.getQueuedCount() < waiting) {
+			if (currentTimeMillis() > deadline)
+				fail("calls not started");
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void callsWithinDeadlineSucceed() throws Exception {
+		assertEquals("ok", wrapped.getStatus());
+		assertEquals(1, calls.getCallCount());
+		assertEquals(0, calls.getTimeoutCount());
+		assertTrue(calls.getWorkerLatency("run1").startsWith("1 calls"));
+	}
+
+	@Test
+	public void callsPastDeadlineFailFast() throws Exception {
+		backend.delay = 5000;
+		long start = currentTimeMillis();
+		try {
+			wrapped.getStatus();
+			fail("call should have timed out");
+		} catch (WorkerTimeoutException e) {
+			// expected
+		}
+		assertTrue(currentTimeMillis() - start < 2000);
+		assertEquals(1, calls.getTimeoutCount());
+		assertTrue(calls.getWorkerLatency("run1").endsWith("1 timed out"));
+	}
+
+	@Test
+	public void failingProcessIsCutOffUntilRetry() throws Exception {
+		useHealth(2);
+		backend.delay = 5000;
+		for (int i = 0; i < 2; i++)
+			try {
+				wrapped.getStatus();
+				fail("call should have timed out");
+			} catch (WorkerTimeoutException e) {
+				// expected
+			}
+		assertTrue(health.isUnhealthy("factory"));
+		backend.delay = 0;
+		try {
+			wrapped.getStatus();
+			fail("call should have been refused");
+		} catch (WorkerUnavailableException e) {
+			// expected
+		}
+		assertEquals(1, health.getRefusedCount());
+		health.checkNow();
+		assertTrue(health.isUnhealthy("factory"));
+		// No run to ping, so the next check lets calls through again
+		clock.advance(10000);
+		health.checkNow();
+		assertFalse(health.isUnhealthy("factory"));
+		assertEquals("ok", wrapped.getStatus());
+	}
+
+	@Test
+	public void callThatNeverStartedIsNotHeldAgainstProcess() throws Exception {
+		useHealth(1);
+		calls.setThreads(1);
+		calls.setStatusDeadline(5000);
+		calls.setQueueDeadline(100);
+		backend.delay = 1000;
+		getStatusInBackground();
+		awaitQueued(1, 0);
+		try {
+			wrapped.getStatus();
+			fail("call should have been refused");
+		} catch (WorkerBusyException e) {
+			// expected
+		}
+		assertFalse(health.isUnhealthy("factory"));
+	}
+
+	@Test
+	public void processThatLostProbedRunHasAnswered() throws Exception {
+		useHealth(1);
+		AtomicInteger pings = new AtomicInteger();
+		health.remember("factory", run(true, pings));
+		health.failed("factory", new RemoteException("unreachable"));
+		assertTrue(health.isUnhealthy("factory"));
+		clock.advance(10000);
+		health.checkNow();
+		long deadline = currentTimeMillis() + 10000;
+		while (health.isUnhealthy("factory")) {
+			if (currentTimeMillis() > deadline)
+				fail("probe did not close circuit");
+			Thread.sleep(5);
+		}
+		assertEquals(1, pings.get());
+	}
+
+	@Test
+	public void stuckProbeIsNotRepeated() throws Exception {
+		useHealth(1);
+		AtomicInteger pings = new AtomicInteger();
+		CountDownLatch answer = new CountDownLatch(1);
+		health.remember("factory", run(false, pings, answer));
+		health.failed("factory", new RemoteException("unreachable"));
+		clock.advance(10000);
+		health.checkNow();
+		long deadline = currentTimeMillis() + 10000;
+		while (pings.get() == 0) {
+			if (currentTimeMillis() > deadline)
+				fail("probe not started");
+			Thread.sleep(5);
+		}
+		// Give up waiting for the probe, then come round to retry
+		clock.advance(health.getProbeTimeout());
+		health.checkNow();
+		clock.advance(10000);
+		health.checkNow();
+		Thread.sleep(100);
+		assertEquals(1, pings.get());
+		assertTrue(health.isUnhealthy("factory"));
+		answer.countDown();
+		while (health.isUnhealthy("factory")) {
+			if (currentTimeMillis() > deadline)
+				fail("probe did not close circuit");
+			Thread.sleep(5);
+		}
+		assertEquals(1, pings.get());
+	}
+
+	@Test
+	public void destroyedRunIsNotProbed() throws Exception {
+		useHealth(1);
+		AtomicInteger pings = new AtomicInteger();
+		calls.wrap(RemoteSingleRun.class, "run2", "factory",
+				run(false, pings)).destroy();
+		health.failed("factory", new RemoteException("unreachable"));
+		clock.advance(10000);
+		health.checkNow();
+		// Nothing left to ping, so calls are let through again at once
+		assertFalse(health.isUnhealthy("factory"));
+		assertEquals(0, pings.get());
+	}
+
+	@Test
+	public void deadlineStartsWhenCallGetsThread() throws Exception {
+		calls.setThreads(1);
+		calls.setStatusDeadline(1000);
+		backend.delay = 600;
+		AtomicReference<Object> other = getStatusInBackground();
+		awaitQueued(1, 0);
+		// Waits for the other call, then takes 600ms of its own
+		assertEquals("ok", wrapped.getStatus());
+		assertEquals("ok", other.get());
+		assertEquals(0, calls.getTimeoutCount());
+	}
+
+	@Test
+	public void callWaitingTooLongForThreadIsNotMade() throws Exception {
+		calls.setThreads(1);
+		calls.setStatusDeadline(5000);
+		calls.setQueueDeadline(100);
+		backend.delay = 1000;
+		getStatusInBackground();
+		awaitQueued(1, 0);
+		try {
+			wrapped.getStatus();
+			fail("call should have been refused");
+		} catch (WorkerBusyException e) {
+			// expected
+		}
+		assertEquals(1, calls.getBusyCount());
+		assertEquals(0, calls.getTimeoutCount());
+		assertEquals(0, calls.getQueuedCount());
+	}
+
+	@Test
+	public void callBeyondQueueLimitIsRefusedAtOnce() throws Exception {
+		calls.setThreads(1);
+		calls.setMaxQueuedCalls(1);
+		calls.setStatusDeadline(5000);
+		backend.delay = 1000;
+		getStatusInBackground();
+		awaitQueued(1, 0);
+		getStatusInBackground();
+		awaitQueued(2, 1);
+		long start = currentTimeMillis();
+		try {
+			wrapped.getStatus();
+			fail("call should have been refused");
+		} catch (WorkerBusyException e) {
+			// expected
+		}
+		assertTrue(currentTimeMillis() - start < 500);
+		assertEquals(1, calls.getBusyCount());
+	}
+
+	@Test(expected = FileNotFoundException.class)
+	public void exceptionsAreRethrown() throws Exception {
+		wrapped.read();
+	}
+
+	@Test
+	public void handlesAreWrappedAndUnwrapped() throws Exception {
+		Backend child = wrapped.child();
+		assertNotSame(backend, child);
+		assertSame(backend, WorkerCalls.unwrap(child));
+		assertSame(child, calls.wrap(Backend.class, "run1", "factory", child));
+		assertTrue(wrapped.isSame(child));
+	}
+
+	@Test
+	public void committingAnUploadHasItsOwnDeadline() throws Exception {
+		calls.setCommitDeadline(123456);
+		assertEquals(123456, calls.getDeadline(RemoteUpload.class
+				.getMethod("commit")));
+		assertEquals(calls.getDefaultDeadline(), calls.getDeadline(
+				RemoteUpload.class.getMethod("abort")));
+	}
+}
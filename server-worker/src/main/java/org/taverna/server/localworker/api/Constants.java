@@ -137,5 +137,23 @@ public abstract class Constants {
 	 */
 	public static final String SHARED_DIR_PROP = "taverna.sharedDirectory";
 
+	/**
+	 * The most files to keep open for reading at once, so that reading a file
+	 * in chunks does not reopen it for each chunk.
+	 */
+	public static final int MAX_OPEN_READ_HANDLES = 64;
+
+	/**
+	 * Time that a file may be left open for reading without being read
+	 * before it is closed, in milliseconds.
+	 */
+	public static final int READ_HANDLE_IDLE_TIME = 30000;
+
+	/**
+	 * The most ZIP archives of directories to build at once. Further requests
+	 * for archives wait their turn.
+	 */
+	public static final int MAX_ARCHIVE_THREADS = 4;
+
 	public static final String TIME = "/usr/bin/time";
 }
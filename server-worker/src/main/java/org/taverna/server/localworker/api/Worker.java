@@ -13,6 +13,7 @@ import org.taverna.server.localworker.impl.LocalWorker;
 import org.taverna.server.localworker.remote.ImplementationException;
 import org.taverna.server.localworker.remote.RemoteListener;
 import org.taverna.server.localworker.remote.RemoteStatus;
+import org.taverna.server.localworker.server.RunStatusListener;
 import org.taverna.server.localworker.server.UsageRecordReceiver;
 
 /**
@@ -111,6 +112,12 @@ public interface Worker {
 	 */
 	RemoteStatus getWorkerStatus();
 
+	/**
+	 * @return The exit code of the workflow engine subprocess, or
+	 *         <tt>null</tt> if it has not been seen to exit.
+	 */
+	Integer getExitCode();
+
 	/**
 	 * @return The listener that is registered by default, in addition to all
 	 *         those that are explicitly registered by the user.
@@ -124,6 +131,17 @@ public interface Worker {
 	 */
 	void setURReceiver(UsageRecordReceiver receiver);
 
+	/**
+	 * @param listener
+	 *            Where to report the workflow run changing state (including
+	 *            finishing of its own accord), or <tt>null</tt> if the server
+	 *            is not interested.
+	 * @param masterToken
+	 *            The internal name of the workflow run, used to identify the
+	 *            run to the listener.
+	 */
+	void setStatusListener(RunStatusListener listener, String masterToken);
+
 	/**
 	 * Arrange for the deletion of any resources created during worker process
 	 * construction. Guaranteed to be the last thing done before finalization.
@@ -5,13 +5,22 @@
  */
 package org.taverna.server.localworker.impl;
 
+import static java.nio.file.Files.newDirectoryStream;
+import static java.nio.file.Files.readAttributes;
 import static org.apache.commons.io.FileUtils.forceDelete;
 import static org.apache.commons.io.FileUtils.forceMkdir;
 import static org.apache.commons.io.FileUtils.touch;
+import static org.taverna.server.localworker.impl.utils.FilenameVerifier.getValidatedExistingPath;
 import static org.taverna.server.localworker.impl.utils.FilenameVerifier.getValidatedNewFile;
+import static org.taverna.server.localworker.remote.RemoteEntryAttributes.Type.DIRECTORY;
+import static org.taverna.server.localworker.remote.RemoteEntryAttributes.Type.FILE;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
@@ -25,6 +34,8 @@ import org.apache.commons.collections.MapIterator;
 import org.apache.commons.collections.map.ReferenceMap;
 import org.taverna.server.localworker.remote.RemoteDirectory;
 import org.taverna.server.localworker.remote.RemoteDirectoryEntry;
+import org.taverna.server.localworker.remote.RemoteEntryAttributes;
+import org.taverna.server.localworker.remote.RemoteEntryAttributes.Type;
 import org.taverna.server.localworker.remote.RemoteFile;
 
 /**
@@ -64,28 +75,123 @@ public class DirectoryDelegate extends UnicastRemoteObject implements
 				continue;
 			File f = new File(dir, s);
 			RemoteDirectoryEntry entry;
-			synchronized (localCache) {
-				entry = (RemoteDirectoryEntry) localCache.get(s);
-				if (f.isDirectory()) {
-					if (entry == null || !(entry instanceof DirectoryDelegate)) {
-						entry = new DirectoryDelegate(f, this);
-						localCache.put(s, entry);
-					}
-				} else if (f.isFile()) {
-					if (entry == null || !(entry instanceof FileDelegate)) {
-						entry = new FileDelegate(f, this);
-						localCache.put(s, entry);
-					}
-				} else {
-					// not file or dir; skip...
+			if (f.isDirectory())
+				entry = getDelegate(s, true);
+			else if (f.isFile())
+				entry = getDelegate(s, false);
+			else
+				// not file or dir; skip...
+				continue;
+			result.add(entry);
+		}
+		return result;
+	}
+
+	@Override
+	public List<RemoteEntryAttributes> listWithAttributes() throws IOException {
+		List<RemoteEntryAttributes> result = new ArrayList<>();
+		try (DirectoryStream<Path> ds = newDirectoryStream(dir.toPath())) {
+			for (Path p : ds) {
+				RemoteEntryAttributes entry;
+				try {
+					entry = describe(p.getFileName().toString(),
+							readAttributes(p, BasicFileAttributes.class));
+				} catch (NoSuchFileException e) {
+					// deleted while we were listing; skip...
 					continue;
 				}
+				// not file or dir; skip...
+				if (entry != null)
+					result.add(entry);
 			}
-			result.add(entry);
 		}
 		return result;
 	}
 
+	@Override
+	public RemoteEntryAttributes resolve(String path) throws IOException {
+		String[] names = path.split("/");
+		File f = getValidatedExistingPath(dir, names);
+		DirectoryDelegate d = this;
+		for (int i = 0; i < names.length - 1; i++)
+			d = (DirectoryDelegate) d.getDelegate(names[i], true);
+		String name = names[names.length - 1];
+		RemoteEntryAttributes entry = d.describe(name,
+				readAttributes(f.toPath(), BasicFileAttributes.class));
+		if (entry == null)
+			throw new NoSuchFileException(name, null,
+					"not a file or directory");
+		return entry;
+	}
+
+	/**
+	 * Describe an entry in this directory.
+	 * 
+	 * @param name
+	 *            The name of the entry.
+	 * @param attrs
+	 *            The attributes of the entry.
+	 * @return The description, or <tt>null</tt> if the entry is neither a file
+	 *         nor a directory.
+	 * @throws RemoteException
+	 *             If registration of a new delegate fails.
+	 */
+	private RemoteEntryAttributes describe(String name,
+			BasicFileAttributes attrs) throws RemoteException {
+		Type type;
+		if (attrs.isDirectory())
+			type = DIRECTORY;
+		else if (attrs.isRegularFile())
+			type = FILE;
+		else
+			return null;
+		return new RemoteEntryAttributes(getDelegate(name, type == DIRECTORY),
+				name, getFullName() + "/" + name, type, attrs.size(), attrs
+						.lastModifiedTime().toMillis());
+	}
+
+	/**
+	 * Get the delegate for an entry in this directory, making it if necessary.
+	 * 
+	 * @param name
+	 *            The name of the entry.
+	 * @param isDirectory
+	 *            Whether the entry is a directory.
+	 * @return The delegate.
+	 * @throws RemoteException
+	 *             If registration of a new delegate fails.
+	 */
+	private RemoteDirectoryEntry getDelegate(String name, boolean isDirectory)
+			throws RemoteException {
+		synchronized (localCache) {
+			RemoteDirectoryEntry entry = (RemoteDirectoryEntry) localCache
+					.get(name);
+			if (isDirectory) {
+				if (entry == null || !(entry instanceof DirectoryDelegate)) {
+					entry = new DirectoryDelegate(new File(dir, name), this);
+					localCache.put(name, entry);
+				}
+			} else {
+				if (entry == null || !(entry instanceof FileDelegate)) {
+					entry = new FileDelegate(new File(dir, name), this);
+					localCache.put(name, entry);
+				}
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * @return The name of this directory relative to the working directory of
+	 *         the workflow run; the empty string for the working directory
+	 *         itself.
+	 */
+	String getFullName() {
+		if (parent == null)
+			return "";
+		return parent.getFullName() + "/" + dir.getName();
+	}
+
 	@Override
 	public RemoteFile makeEmptyFile(String name) throws IOException {
 		File f = getValidatedNewFile(dir, name);
@@ -125,6 +231,7 @@ public class DirectoryDelegate extends UnicastRemoteObject implements
 			} catch (IOException e) {
 			}
 		}
+		FileDelegate.handles.forget(dir);
 		forceDelete(dir);
 		parent.forgetEntry(this);
 	}
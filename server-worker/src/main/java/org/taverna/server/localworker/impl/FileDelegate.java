@@ -5,13 +5,16 @@
  */
 package org.taverna.server.localworker.impl;
 
-import static java.lang.System.arraycopy;
+import static java.lang.Math.min;
 import static java.net.InetAddress.getLocalHost;
+import static java.nio.ByteBuffer.wrap;
+import static java.util.Arrays.copyOf;
 import static org.apache.commons.io.FileUtils.copyFile;
 import static org.apache.commons.io.FileUtils.forceDelete;
+import static org.taverna.server.localworker.api.Constants.MAX_OPEN_READ_HANDLES;
+import static org.taverna.server.localworker.api.Constants.READ_HANDLE_IDLE_TIME;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.UnknownHostException;
@@ -21,8 +24,11 @@ import java.util.Date;
 
 import javax.annotation.Nonnull;
 
+import org.taverna.server.localworker.impl.utils.FileHandleCache;
 import org.taverna.server.localworker.remote.RemoteDirectory;
 import org.taverna.server.localworker.remote.RemoteFile;
+import org.taverna.server.localworker.remote.RemoteStreamTicket;
+import org.taverna.server.localworker.remote.RemoteUpload;
 
 /**
  * This class acts as a remote-aware delegate for the files in a workflow run's
@@ -33,6 +39,9 @@ import org.taverna.server.localworker.remote.RemoteFile;
  */
 @java.lang.SuppressWarnings("serial")
 public class FileDelegate extends UnicastRemoteObject implements RemoteFile {
+	/** Shared by all files, as the limit is on the whole process. */
+	static final FileHandleCache handles = new FileHandleCache(
+			MAX_OPEN_READ_HANDLES, READ_HANDLE_IDLE_TIME);
 	private File file;
 	private DirectoryDelegate parent;
 
@@ -50,28 +59,44 @@ public class FileDelegate extends UnicastRemoteObject implements RemoteFile {
 	}
 
 	@Override
-	public byte[] getContents(int offset, int length) throws IOException {
+	public byte[] getContents(long offset, int length) throws IOException {
+		return read(file, offset, length);
+	}
+
+	/**
+	 * Read a chunk of a file.
+	 * 
+	 * @param file
+	 *            The file to read.
+	 * @param offset
+	 *            Where in the file to read the bytes from.
+	 * @param length
+	 *            How much of the file to read; -1 for "to the end". At most
+	 *            64kB will be read.
+	 * @return The bytes read; empty at the end of the file.
+	 * @throws IOException
+	 *             If things go wrong reading the file.
+	 */
+	static byte[] read(File file, long offset, int length) throws IOException {
 		if (length == -1)
-			length = (int) (file.length() - offset);
+			length = (int) min(file.length() - offset, 1024 * 64);
 		if (length < 0 || length > 1024 * 64)
 			length = 1024 * 64;
 		byte[] buffer = new byte[length];
-		int read;
-		try (FileInputStream fis = new FileInputStream(file)) {
-			if (offset > 0 && fis.skip(offset) != offset)
-				throw new IOException("did not move to correct offset in file");
-			read = fis.read(buffer);
-		}
+		int read = handles.read(file, wrap(buffer), offset);
 		if (read <= 0)
 			return new byte[0];
-		if (read < buffer.length) {
-			byte[] shortened = new byte[read];
-			arraycopy(buffer, 0, shortened, 0, read);
-			return shortened;
-		}
+		if (read < buffer.length)
+			return copyOf(buffer, read);
 		return buffer;
 	}
 
+	@Override
+	public RemoteStreamTicket openStream(long offset, long length)
+			throws IOException {
+		return FileTransferServer.getInstance().offer(file, offset, length);
+	}
+
 	@Override
 	public long getSize() {
 		return file.length();
@@ -91,8 +116,14 @@ public class FileDelegate extends UnicastRemoteObject implements RemoteFile {
 		}
 	}
 
+	@Override
+	public RemoteUpload openUpload(boolean append) throws IOException {
+		return new UploadDelegate(file, append);
+	}
+
 	@Override
 	public void destroy() throws IOException {
+		handles.forget(file);
 		forceDelete(file);
 		parent.forgetEntry(this);
 		parent = null;
@@ -127,6 +158,14 @@ public class FileDelegate extends UnicastRemoteObject implements RemoteFile {
 
 	@Override
 	public String getNativeHost() {
+		return localHostAddress();
+	}
+
+	/**
+	 * @return The address of this host, as reported to other hosts that wish
+	 *         to copy files.
+	 */
+	static String localHostAddress() {
 		try {
 			return getLocalHost().getHostAddress();
 		} catch (UnknownHostException e) {
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.impl;
+
+import static java.lang.Math.max;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.getProperty;
+import static java.lang.System.out;
+import static java.nio.channels.Channels.newOutputStream;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.UUID.randomUUID;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.zip.Deflater.DEFAULT_COMPRESSION;
+import static org.taverna.server.localworker.api.Constants.LOCALHOST;
+import static org.taverna.server.localworker.api.Constants.MAX_ARCHIVE_THREADS;
+import static org.taverna.server.localworker.api.Constants.RMI_HOST_PROP;
+import static org.taverna.server.localworker.remote.RemoteStreamTicket.ARCHIVE_STARTING;
+import static org.taverna.server.localworker.remote.RemoteStreamTicket.ARCHIVE_WAITING;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.annotation.Nonnull;
+
+import org.taverna.server.localworker.impl.utils.DirectoryZipper;
+import org.taverna.server.localworker.remote.RemoteStreamTicket;
+
+/**
+ * Sends the contents of files over plain sockets, so that reading a large file
+ * does not take a long series of RMI calls. Transfers are arranged through
+ * {@link FileDelegate#openStream(long, long)}, which hands out a single-use
+ * {@linkplain RemoteStreamTicket ticket}; the data itself is sent with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)
+ * transferTo}, so it need not pass through this process's memory. Whole
+ * directories can also be sent, as ZIP archives built while they are sent;
+ * while an archive waits for its turn to be built, the client is sent a byte
+ * every so often so that it can tell that the transfer is still alive.
+ * 
+ * @author Donal Fellows
+ */
+class FileTransferServer implements Runnable {
+	/** How long a ticket may be used for, in milliseconds. */
+	private static final long TICKET_LIFETIME = 30000;
+	/** How long to wait for a client to say what it wants, in milliseconds. */
+	private static final int HANDSHAKE_TIMEOUT = 10000;
+	private static final int ARCHIVE_BUFFER_SIZE = 64 * 1024;
+	/**
+	 * How often to tell a client whose archive is waiting to be built that it
+	 * is still coming, in milliseconds. Must be well within how long the
+	 * client waits for data.
+	 */
+	private static final long KEEPALIVE_INTERVAL = 15000;
+	private static FileTransferServer instance;
+
+	/**
+	 * @return The transfer server for this process, which is started on first
+	 *         use.
+	 * @throws IOException
+	 *             If the server socket can't be opened.
+	 */
+	static synchronized FileTransferServer getInstance() throws IOException {
+		if (instance == null)
+			instance = new FileTransferServer(getProperty(RMI_HOST_PROP,
+					LOCALHOST));
+		return instance;
+	}
+
+	private final ServerSocketChannel server;
+	private final String host;
+	private final Map<UUID, Transfer> pending = new HashMap<>();
+	private final ExecutorService executor = newCachedThreadPool(daemonThreads(
+			"file transfer"));
+	/**
+	 * Where archives are built. Building an archive is much more costly than
+	 * sending a file, so only a few are built at once; the rest wait.
+	 */
+	private final ExecutorService archivers = newFixedThreadPool(
+			MAX_ARCHIVE_THREADS, daemonThreads("archive transfer"));
+	/** Sends the keep-alives of the archives waiting to be built. */
+	private final ScheduledExecutorService keepAlives = newSingleThreadScheduledExecutor(
+			daemonThreads("archive keepalive"));
+
+	/**
+	 * How many threads compress the contents of archives. If 1, each archive
+	 * is compressed by the thread that sends it.
+	 */
+	private static volatile int archiveThreads = 1;
+	/** How much to compress the contents of archives. */
+	private static volatile int archiveLevel = DEFAULT_COMPRESSION;
+	/** Shared by all the archives being built at once. */
+	private static final ThreadPoolExecutor compressors = new ThreadPoolExecutor(
+			1, 1, 60, SECONDS, new LinkedBlockingQueue<Runnable>(),
+			daemonThreads("archive compressor"));
+	static {
+		compressors.allowCoreThreadTimeOut(true);
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Set how the contents of archives are compressed. Affects archives whose
+	 * transfer starts after this call.
+	 * 
+	 * @param threads
+	 *            How many threads compress the contents of archives.
+	 * @param level
+	 *            The level of compression, from 0 (none) to 9 (best), or -1
+	 *            for the default.
+	 */
+	static synchronized void setArchiveCompression(int threads, int level) {
+		threads = max(1, threads);
+		if (threads > compressors.getMaximumPoolSize()) {
+			compressors.setMaximumPoolSize(threads);
+			compressors.setCorePoolSize(threads);
+		} else {
+			compressors.setCorePoolSize(threads);
+			compressors.setMaximumPoolSize(threads);
+		}
+		archiveThreads = threads;
+		archiveLevel = level;
+	}
+
+	private FileTransferServer(String host) throws IOException {
+		this.host = host;
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(host, 0));
+		Thread t = new Thread(this, "file transfer server");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Arrange for a section of a file to be sent to whoever presents the
+	 * ticket that this returns.
+	 * 
+	 * @param file
+	 *            The file to send.
+	 * @param offset
+	 *            Where in the file to start.
+	 * @param length
+	 *            How much of the file to send; -1 for "to the end".
+	 * @return The ticket.
+	 * @throws IOException
+	 *             If the server has stopped.
+	 */
+	@Nonnull
+	RemoteStreamTicket offer(@Nonnull File file, long offset, long length)
+			throws IOException {
+		long size = file.length();
+		if (offset < 0 || offset > size)
+			offset = size;
+		if (length < 0 || length > size - offset)
+			length = size - offset;
+		return issue(new FileSection(file, offset, length, currentTimeMillis()
+				+ TICKET_LIFETIME), length);
+	}
+
+	/**
+	 * Arrange for the contents of a directory to be sent, as a ZIP archive,
+	 * to whoever presents the ticket that this returns. The archive is built
+	 * as it is sent, on a bounded pool of threads; its length is not known in
+	 * advance, so it ends when the connection is closed. It is preceded by
+	 * the bytes described in {@link RemoteStreamTicket}.
+	 * 
+	 * @param dir
+	 *            The directory to send.
+	 * @return The ticket.
+	 * @throws IOException
+	 *             If the server has stopped.
+	 */
+	@Nonnull
+	RemoteStreamTicket offerArchive(@Nonnull File dir) throws IOException {
+		return issue(new Archive(dir, currentTimeMillis() + TICKET_LIFETIME),
+				-1);
+	}
+
+	private RemoteStreamTicket issue(Transfer transfer, long length) {
+		UUID token = randomUUID();
+		synchronized (pending) {
+			long now = currentTimeMillis();
+			Iterator<Transfer> it = pending.values().iterator();
+			while (it.hasNext())
+				if (it.next().expiry < now)
+					it.remove();
+			pending.put(token, transfer);
+		}
+		return new RemoteStreamTicket(host, server.socket().getLocalPort(),
+				token, length);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				final SocketChannel channel = server.accept();
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(channel);
+					}
+				});
+			}
+		} catch (ClosedChannelException e) {
+			// We've been shut down
+		} catch (IOException e) {
+			out.println("file transfer server stopped: " + e);
+		}
+	}
+
+	private void serve(final SocketChannel channel) {
+		final Transfer t;
+		try {
+			channel.socket().setSoTimeout(HANDSHAKE_TIMEOUT);
+			DataInputStream in = new DataInputStream(channel.socket()
+					.getInputStream());
+			UUID token = new UUID(in.readLong(), in.readLong());
+			synchronized (pending) {
+				t = pending.remove(token);
+			}
+		} catch (IOException e) {
+			out.println("problem when starting transfer: " + e);
+			close(channel);
+			return;
+		}
+		if (t == null || t.expiry < currentTimeMillis()) {
+			close(channel);
+			return;
+		}
+		Runnable sender = new Runnable() {
+			@Override
+			public void run() {
+				try (SocketChannel ch = channel) {
+					t.send(ch);
+				} catch (IOException e) {
+					out.println("problem when sending data: " + e);
+				}
+			}
+		};
+		if (t instanceof Archive) {
+			((Archive) t).waitFor(channel, keepAlives);
+			archivers.execute(sender);
+		} else
+			sender.run();
+	}
+
+	private static void close(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Ignore; nothing we can do
+		}
+	}
+
+	private abstract static class Transfer {
+		final long expiry;
+
+		Transfer(long expiry) {
+			this.expiry = expiry;
+		}
+
+		abstract void send(SocketChannel ch) throws IOException;
+	}
+
+	private static class FileSection extends Transfer {
+		final File file;
+		final long offset;
+		final long length;
+
+		FileSection(File file, long offset, long length, long expiry) {
+			super(expiry);
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		void send(SocketChannel ch) throws IOException {
+			try (FileChannel fc = FileChannel.open(file.toPath(), READ)) {
+				long pos = offset, end = offset + length;
+				while (pos < end) {
+					long n = fc.transferTo(pos, end - pos, ch);
+					if (n <= 0)
+						break;
+					pos += n;
+				}
+			}
+		}
+	}
+
+	private static class Archive extends Transfer {
+		final File dir;
+		/** Guarded by this. */
+		private Future<?> keepAlive;
+		/** Guarded by this. */
+		private boolean started;
+
+		Archive(File dir, long expiry) {
+			super(expiry);
+			this.dir = dir;
+		}
+
+		/**
+		 * Tell the client every so often that the archive is still coming,
+		 * until it starts to be sent.
+		 */
+		synchronized void waitFor(final SocketChannel ch,
+				ScheduledExecutorService keepAlives) {
+			keepAlive = keepAlives.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (Archive.this) {
+						if (started)
+							return;
+						try {
+							writeByte(ch, ARCHIVE_WAITING);
+						} catch (IOException e) {
+							// Client has gone; the send will fail at once
+							close(ch);
+							keepAlive.cancel(false);
+						}
+					}
+				}
+			}, KEEPALIVE_INTERVAL, KEEPALIVE_INTERVAL, MILLISECONDS);
+		}
+
+		private static void writeByte(SocketChannel ch, int b)
+				throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(new byte[] { (byte) b });
+			while (buf.hasRemaining())
+				ch.write(buf);
+		}
+
+		@Override
+		void send(SocketChannel ch) throws IOException {
+			synchronized (this) {
+				started = true;
+				if (keepAlive != null)
+					keepAlive.cancel(false);
+			}
+			writeByte(ch, ARCHIVE_STARTING);
+			int threads = archiveThreads;
+			DirectoryZipper.write(dir.toPath(), new BufferedOutputStream(
+					newOutputStream(ch), ARCHIVE_BUFFER_SIZE), archiveLevel,
+					threads > 1 ? compressors : null, threads);
+		}
+	}
+}
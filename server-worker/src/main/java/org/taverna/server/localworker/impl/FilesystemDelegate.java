@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.impl;
+
+import static java.nio.file.Files.newDirectoryStream;
+import static java.nio.file.Files.readAttributes;
+import static org.apache.commons.io.FileUtils.copyFile;
+import static org.apache.commons.io.FileUtils.forceDelete;
+import static org.apache.commons.io.FileUtils.forceMkdir;
+import static org.apache.commons.io.FileUtils.touch;
+import static org.taverna.server.localworker.impl.utils.FilenameVerifier.getValidatedExistingPath;
+import static org.taverna.server.localworker.impl.utils.FilenameVerifier.getValidatedNewFile;
+import static org.taverna.server.localworker.remote.RemoteEntryAttributes.Type.DIRECTORY;
+import static org.taverna.server.localworker.remote.RemoteEntryAttributes.Type.FILE;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.taverna.server.localworker.remote.RemoteEntryAttributes;
+import org.taverna.server.localworker.remote.RemoteEntryAttributes.Type;
+import org.taverna.server.localworker.remote.RemoteFilesystem;
+import org.taverna.server.localworker.remote.RemoteStreamTicket;
+import org.taverna.server.localworker.remote.RemoteUpload;
+
+/**
+ * This class gives path-based access to a workflow run's working directory and
+ * everything in it, through a single remote object.
+ * 
+ * @author Donal Fellows
+ * @see DirectoryDelegate
+ * @see FileDelegate
+ */
+@SuppressWarnings("serial")
+public class FilesystemDelegate extends UnicastRemoteObject implements
+		RemoteFilesystem {
+	private final File root;
+
+	/**
+	 * @param root
+	 *            The working directory of the run.
+	 * @throws RemoteException
+	 *             If registration of the filesystem fails.
+	 */
+	public FilesystemDelegate(@Nonnull File root) throws RemoteException {
+		super();
+		this.root = root;
+	}
+
+	private static String[] split(String path) {
+		String[] names = path.split("/");
+		if (names.length == 1 && names[0].isEmpty())
+			return new String[0];
+		return names;
+	}
+
+	private static String fullName(String[] names) {
+		StringBuilder sb = new StringBuilder();
+		for (String name : names)
+			sb.append("/").append(name);
+		return sb.toString();
+	}
+
+	private File existing(String[] names) throws IOException {
+		if (names.length == 0)
+			return root;
+		return getValidatedExistingPath(root, names);
+	}
+
+	private File file(String path) throws IOException {
+		File f = existing(split(path));
+		if (!f.isFile())
+			throw new IOException("not a file");
+		return f;
+	}
+
+	private File newEntry(String[] names) throws IOException {
+		if (names.length == 0)
+			throw new IOException("the working directory already exists");
+		File parent = existing(Arrays.copyOf(names, names.length - 1));
+		if (!parent.isDirectory())
+			throw new NotDirectoryException(parent.getName());
+		return getValidatedNewFile(parent, names[names.length - 1]);
+	}
+
+	/**
+	 * Describe an entry.
+	 * 
+	 * @param name
+	 *            The local name of the entry.
+	 * @param fullName
+	 *            The full name of the entry.
+	 * @param attrs
+	 *            The attributes of the entry.
+	 * @return The description, or <tt>null</tt> if the entry is neither a file
+	 *         nor a directory.
+	 */
+	private static RemoteEntryAttributes describe(String name,
+			String fullName, BasicFileAttributes attrs) {
+		Type type;
+		if (attrs.isDirectory())
+			type = DIRECTORY;
+		else if (attrs.isRegularFile())
+			type = FILE;
+		else
+			return null;
+		return new RemoteEntryAttributes(null, name, fullName, type,
+				attrs.size(), attrs.lastModifiedTime().toMillis());
+	}
+
+	private static RemoteEntryAttributes describe(File f, String[] names)
+			throws IOException {
+		String name = (names.length == 0 ? "" : names[names.length - 1]);
+		RemoteEntryAttributes entry = describe(name, fullName(names),
+				readAttributes(f.toPath(), BasicFileAttributes.class));
+		if (entry == null)
+			throw new NoSuchFileException(name, null,
+					"not a file or directory");
+		return entry;
+	}
+
+	@Override
+	public RemoteEntryAttributes stat(String path) throws IOException {
+		String[] names = split(path);
+		return describe(existing(names), names);
+	}
+
+	@Override
+	public List<RemoteEntryAttributes> list(String path) throws IOException {
+		String[] names = split(path);
+		File dir = existing(names);
+		if (!dir.isDirectory())
+			throw new NotDirectoryException(dir.getName());
+		String prefix = fullName(names);
+		List<RemoteEntryAttributes> result = new ArrayList<>();
+		try (DirectoryStream<Path> ds = newDirectoryStream(dir.toPath())) {
+			for (Path p : ds) {
+				String name = p.getFileName().toString();
+				RemoteEntryAttributes entry;
+				try {
+					entry = describe(name, prefix + "/" + name,
+							readAttributes(p, BasicFileAttributes.class));
+				} catch (NoSuchFileException e) {
+					// deleted while we were listing; skip...
+					continue;
+				}
+				// not file or dir; skip...
+				if (entry != null)
+					result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public byte[] read(String path, long offset, int length)
+			throws IOException {
+		return FileDelegate.read(file(path), offset, length);
+	}
+
+	@Override
+	public RemoteStreamTicket openStream(String path, long offset, long length)
+			throws IOException {
+		return FileTransferServer.getInstance().offer(file(path), offset,
+				length);
+	}
+
+	@Override
+	public RemoteStreamTicket openZipStream(String path) throws IOException {
+		File dir = existing(split(path));
+		if (!dir.isDirectory())
+			throw new NotDirectoryException(dir.getName());
+		return FileTransferServer.getInstance().offerArchive(dir);
+	}
+
+	@Override
+	public void write(String path, byte[] data, boolean append)
+			throws IOException {
+		try (FileOutputStream fos = new FileOutputStream(file(path), append)) {
+			fos.write(data);
+		}
+	}
+
+	@Override
+	public RemoteUpload openUpload(String path, boolean append)
+			throws IOException {
+		return new UploadDelegate(file(path), append);
+	}
+
+	@Override
+	public RemoteEntryAttributes makeDirectory(String path)
+			throws IOException {
+		String[] names = split(path);
+		File f = newEntry(names);
+		forceMkdir(f);
+		return describe(f, names);
+	}
+
+	@Override
+	public RemoteEntryAttributes makeEmptyFile(String path)
+			throws IOException {
+		String[] names = split(path);
+		File f = newEntry(names);
+		touch(f);
+		return describe(f, names);
+	}
+
+	@Override
+	public void delete(String path) throws IOException {
+		String[] names = split(path);
+		if (names.length == 0)
+			throw new IOException("tried to destroy main job working directory");
+		File f = existing(names);
+		FileDelegate.handles.forget(f);
+		forceDelete(f);
+	}
+
+	@Override
+	public void copy(RemoteFilesystem source, String sourcePath, String path)
+			throws RemoteException, IOException {
+		String sourceHost = source.getNativeHost();
+		if (!getNativeHost().equals(sourceHost))
+			throw new IOException(
+					"cross-system copy not implemented; cannot copy from "
+							+ sourceHost + " to " + getNativeHost());
+		// Must copy; cannot count on other file to stay unmodified
+		copyFile(new File(source.getNativeName(sourcePath)), file(path));
+	}
+
+	@Override
+	public String getNativeName(String path) throws IOException {
+		return existing(split(path)).getAbsolutePath();
+	}
+
+	@Override
+	public String getNativeHost() {
+		return FileDelegate.localHostAddress();
+	}
+}
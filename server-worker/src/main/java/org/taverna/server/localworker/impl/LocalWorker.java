@@ -51,12 +51,18 @@ import org.taverna.server.localworker.api.WorkerFactory;
 import org.taverna.server.localworker.remote.IllegalStateTransitionException;
 import org.taverna.server.localworker.remote.ImplementationException;
 import org.taverna.server.localworker.remote.RemoteDirectory;
+import org.taverna.server.localworker.remote.RemoteFilesystem;
 import org.taverna.server.localworker.remote.RemoteInput;
 import org.taverna.server.localworker.remote.RemoteListener;
+import org.taverna.server.localworker.remote.RemoteRunSnapshot;
+import org.taverna.server.localworker.remote.RemoteRunSnapshot.InputState;
+import org.taverna.server.localworker.remote.RemoteRunSnapshot.ListenerState;
+import org.taverna.server.localworker.remote.RemoteRunStatus;
 import org.taverna.server.localworker.remote.RemoteSecurityContext;
 import org.taverna.server.localworker.remote.RemoteSingleRun;
 import org.taverna.server.localworker.remote.RemoteStatus;
 import org.taverna.server.localworker.remote.StillWorkingOnItException;
+import org.taverna.server.localworker.server.RunStatusListener;
 import org.taverna.server.localworker.server.UsageRecordReceiver;
 
 /**
@@ -100,6 +106,8 @@ public class LocalWorker extends UnicastRemoteObject implements RemoteSingleRun
 	private final String workflow;
 	/** The remote access object for the working directory. */
 	private final DirectoryDelegate baseDir;
+	/** The path-based remote access object for the working directory. */
+	private final FilesystemDelegate filesystem;
 	/** What inputs to pass as files. */
 	final Map<String, String> inputFiles;
 	/** What inputs to pass as files (as file refs). */
@@ -167,6 +175,11 @@ public class LocalWorker extends UnicastRemoteObject implements RemoteSingleRun
 	URL interactionFeedURL;
 	URL webdavURL;
 	private boolean doProvenance = true;
+	/**
+	 * The factory that is tracking this run so that it can report its state
+	 * in bulk, or <tt>null</tt> if it is not being tracked.
+	 */
+	TavernaRunManager manager;
 
 	// ----------------------- METHODS -----------------------
 
@@ -219,6 +232,7 @@ public class LocalWorker extends UnicastRemoteObject implements RemoteSingleRun
 					"problem creating run working directory", e);
 		}
 		baseDir = new DirectoryDelegate(base, null);
+		filesystem = new FilesystemDelegate(base);
 		inputFiles = new HashMap<>();
 		inputRealFiles = new HashMap<>();
 		inputValues = new HashMap<>();
@@ -253,8 +267,37 @@ public class LocalWorker extends UnicastRemoteObject implements RemoteSingleRun
 		status = Initialized;
 	}
 
+	/**
+	 * Arrange for the server to be told when this run finishes, so that it
+	 * does not need to poll for that.
+	 * 
+	 * @param listener
+	 *            The server's listener, or <tt>null</tt> for none.
+	 */
+	void setStatusListener(RunStatusListener listener) {
+		core.setStatusListener(listener, masterToken);
+	}
+
+	/**
+	 * @return The identity of this run, as used by the server.
+	 */
+	String getId() {
+		return masterToken;
+	}
+
+	/**
+	 * @return A snapshot of the state of this run.
+	 */
+	RemoteRunStatus getRunStatus() {
+		RemoteStatus s = getStatus();
+		return new RemoteRunStatus(masterToken, s, start, finish,
+				s == Finished ? core.getExitCode() : null);
+	}
+
 	@Override
 	public void destroy() throws ImplementationException {
+		if (manager != null)
+			manager.runDestroyed(this);
 		killWorkflowSubprocess();
 		removeFromShutdownHooks();
 		// Is this it?
@@ -289,8 +332,10 @@ public class LocalWorker extends UnicastRemoteObject implements RemoteSingleRun
 
 	private void deleteWorkingDirectory() throws ImplementationException {
 		try {
-			if (base != null)
+			if (base != null) {
+				FileDelegate.handles.forget(base);
 				forceDelete(base);
+			}
 		} catch (IOException e) {
 			out.println("problem deleting working directory");
 			e.printStackTrace(out);
@@ -522,6 +567,11 @@ public class LocalWorker extends UnicastRemoteObject implements RemoteSingleRun
 		return baseDir;
 	}
 
+	@Override
+	public RemoteFilesystem getFilesystem() {
+		return filesystem;
+	}
+
 	File validateFilename(String filename) throws RemoteException {
 		if (filename == null)
 			throw new IllegalArgumentException("filename must be non-null");
@@ -754,6 +804,20 @@ public class LocalWorker extends UnicastRemoteObject implements RemoteSingleRun
 		return start == null ? null : new Date(start.getTime());
 	}
 
+	@Override
+	public RemoteRunSnapshot getSnapshot() throws RemoteException {
+		List<InputState> inputs = new ArrayList<>();
+		for (String name : inputFiles.keySet())
+			inputs.add(new InputState(name, inputFiles.get(name), inputValues
+					.get(name), inputDelimiters.get(name)));
+		List<ListenerState> listeners = new ArrayList<>();
+		for (RemoteListener rl : getListeners())
+			listeners.add(new ListenerState(rl, rl.getName(), rl
+					.getConfiguration()));
+		return new RemoteRunSnapshot(getStatus(), start, finish,
+				inputBaclava, outputBaclava, inputs, listeners);
+	}
+
 	@Override
 	public void setInteractionServiceDetails(URL feed, URL webdav) {
 		interactionFeedURL = feed;
@@ -26,10 +26,12 @@ import java.rmi.RemoteException;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.TransformerFactory;
@@ -41,7 +43,9 @@ import org.taverna.server.localworker.api.RunAccounting;
 import org.taverna.server.localworker.api.Worker;
 import org.taverna.server.localworker.api.WorkerFactory;
 import org.taverna.server.localworker.remote.RemoteRunFactory;
+import org.taverna.server.localworker.remote.RemoteRunStatus;
 import org.taverna.server.localworker.remote.RemoteSingleRun;
+import org.taverna.server.localworker.server.RunStatusListener;
 import org.taverna.server.localworker.server.UsageRecordReceiver;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -71,6 +75,9 @@ public class TavernaRunManager extends UnicastRemoteObject implements
 	Map<String, String> seedEnvironment = new HashMap<>();
 	List<String> javaInitParams = new ArrayList<>();
 	private int activeRuns = 0;
+	private volatile RunStatusListener statusListener;
+	/** The runs made by this factory that have not yet been destroyed. */
+	private final Map<String, LocalWorker> runs = new ConcurrentHashMap<>();
 
 	/**
 	 * How to get the actual workflow document from the XML document that it is
@@ -147,8 +154,12 @@ public class TavernaRunManager extends UnicastRemoteObject implements
 			workflow = unwrapWorkflow(workflow, wfid);
 			out.println("Creating run from workflow <" + wfid.value + "> for <"
 					+ creator + ">");
-			return new LocalWorker(command, workflow, urReceiver, id,
-					seedEnvironment, javaInitParams, this);
+			LocalWorker run = new LocalWorker(command, workflow, urReceiver,
+					id, seedEnvironment, javaInitParams, this);
+			run.setStatusListener(statusListener);
+			run.manager = this;
+			runs.put(run.getId(), run);
+			return run;
 		} catch (RemoteException e) {
 			throw e;
 		} catch (Exception e) {
@@ -265,11 +276,44 @@ public class TavernaRunManager extends UnicastRemoteObject implements
 		interactionFeedPath = feedPath;
 	}
 
+	@Override
+	public void setArchiveCompression(int threads, int level) {
+		FileTransferServer.setArchiveCompression(threads, level);
+	}
+
+	@Override
+	public void setStatusListener(RunStatusListener listener) {
+		statusListener = listener;
+	}
+
 	@Override
 	public synchronized int countOperatingRuns() {
 		return (activeRuns < 0 ? 0 : activeRuns);
 	}
 
+	@Override
+	public Map<String, RemoteRunStatus> getRunStatuses(Collection<String> ids) {
+		Map<String, RemoteRunStatus> result = new HashMap<>();
+		for (String id : ids) {
+			LocalWorker run = runs.get(id);
+			if (run != null)
+				result.put(id, run.getRunStatus());
+		}
+		return result;
+	}
+
+	/**
+	 * Stop tracking a run, as it is being destroyed. Runs are tracked until
+	 * then even if the server drops its handle to them, as the server may
+	 * recover the handle from its database and ask about the run later.
+	 * 
+	 * @param run
+	 *            The run to stop tracking.
+	 */
+	void runDestroyed(LocalWorker run) {
+		runs.remove(run.getId(), run);
+	}
+
 	@Override
 	public synchronized void runStarted() {
 		activeRuns++;
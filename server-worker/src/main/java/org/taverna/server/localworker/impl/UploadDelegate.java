@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.impl;
+
+import static java.lang.System.out;
+import static java.nio.ByteBuffer.wrap;
+import static java.nio.file.Files.createTempFile;
+import static java.nio.file.Files.deleteIfExists;
+import static java.nio.file.Files.getPosixFilePermissions;
+import static java.nio.file.Files.move;
+import static java.nio.file.Files.setPosixFilePermissions;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.rmi.server.UnicastRemoteObject.unexportObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Path;
+import java.rmi.NoSuchObjectException;
+import java.rmi.server.UnicastRemoteObject;
+import java.rmi.server.Unreferenced;
+
+import javax.annotation.Nonnull;
+
+import org.taverna.server.localworker.remote.RemoteUpload;
+
+/**
+ * A write to a file in a workflow run's working directory that is made in
+ * many steps. When the contents of the file are being replaced, the data is
+ * written to a temporary file alongside it, which is moved over the file when
+ * the upload is committed; when appending, the data is written directly to
+ * the end of the file, which is cut back to its old length if the upload is
+ * aborted. Either way, the file is opened only once, and the data is only
+ * forced to disk when the upload is committed.
+ * 
+ * @author Donal Fellows
+ * @see RemoteUpload
+ */
+@java.lang.SuppressWarnings("serial")
+class UploadDelegate extends UnicastRemoteObject implements RemoteUpload,
+		Unreferenced {
+	private final File file;
+	/** Where the data goes; <tt>null</tt> when appending. */
+	private final Path temp;
+	private final long base;
+	private FileChannel channel;
+
+	/**
+	 * @param file
+	 *            The file to write to, which must exist.
+	 * @param append
+	 *            Whether to add to the end of the file instead of replacing
+	 *            its contents.
+	 * @throws IOException
+	 *             If the file (or its replacement) can't be opened.
+	 */
+	UploadDelegate(@Nonnull File file, boolean append) throws IOException {
+		super();
+		this.file = file;
+		if (append) {
+			temp = null;
+			channel = FileChannel.open(file.toPath(), WRITE);
+			base = channel.size();
+		} else {
+			File dir = file.getAbsoluteFile().getParentFile();
+			temp = createTempFile(dir.toPath(), "." + file.getName() + ".",
+					".upload");
+			try {
+				channel = FileChannel.open(temp, WRITE);
+			} catch (IOException e) {
+				deleteIfExists(temp);
+				throw e;
+			}
+			base = 0;
+		}
+	}
+
+	private synchronized FileChannel channel() throws IOException {
+		if (channel == null)
+			throw new IOException("upload is finished");
+		return channel;
+	}
+
+	@Override
+	public void write(long offset, byte[] data) throws IOException {
+		if (offset < 0)
+			throw new IOException("negative offset");
+		/*
+		 * Positioned writes don't touch the channel's own position, so they
+		 * may happen concurrently and in any order.
+		 */
+		FileChannel ch = channel();
+		ByteBuffer buffer = wrap(data);
+		long position = base + offset;
+		while (buffer.hasRemaining())
+			position += ch.write(buffer, position);
+	}
+
+	@Override
+	public synchronized long commit() throws IOException {
+		if (channel == null)
+			throw new IOException("upload is finished");
+		long size;
+		try {
+			channel.force(true);
+			size = channel.size();
+			channel.close();
+			channel = null;
+			if (temp != null)
+				replaceFile();
+		} catch (IOException e) {
+			abort();
+			throw e;
+		}
+		FileDelegate.handles.forget(file);
+		finished();
+		return size;
+	}
+
+	private void replaceFile() throws IOException {
+		// Temporary files are private; keep the permissions of the original
+		try {
+			setPosixFilePermissions(temp,
+					getPosixFilePermissions(file.toPath()));
+		} catch (UnsupportedOperationException e) {
+			// not a POSIX filesystem; nothing to keep
+		}
+		try {
+			move(temp, file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			move(temp, file.toPath(), REPLACE_EXISTING);
+		}
+	}
+
+	@Override
+	public synchronized void abort() {
+		try {
+			if (channel != null) {
+				if (temp == null)
+					channel.truncate(base);
+				channel.close();
+				channel = null;
+			}
+		} catch (IOException e) {
+			out.println("problem when aborting upload to " + file + ": "
+					+ e.getMessage());
+		}
+		try {
+			if (temp != null)
+				deleteIfExists(temp);
+		} catch (IOException e) {
+			out.println("problem when deleting " + temp + ": "
+					+ e.getMessage());
+		}
+		finished();
+	}
+
+	private void finished() {
+		try {
+			unexportObject(this, true);
+		} catch (NoSuchObjectException e) {
+			// already gone; ignore...
+		}
+	}
+
+	/**
+	 * The client has gone away without committing or aborting the upload, so
+	 * abort it.
+	 */
+	@Override
+	public void unreferenced() {
+		abort();
+	}
+
+	@Override
+	public String toString() {
+		return "upload to " + file;
+	}
+}
@@ -77,6 +77,7 @@ import org.taverna.server.localworker.impl.utils.TimingOutTask;
 import org.taverna.server.localworker.remote.ImplementationException;
 import org.taverna.server.localworker.remote.RemoteListener;
 import org.taverna.server.localworker.remote.RemoteStatus;
+import org.taverna.server.localworker.server.RunStatusListener;
 import org.taverna.server.localworker.server.UsageRecordReceiver;
 
 /**
@@ -144,6 +145,10 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 	@Nullable
 	private File workflowFile;
 	private boolean stopped;
+	@Nullable
+	private RunStatusListener statusListener;
+	@Nullable
+	private String statusToken;
 
 	/**
 	 * @param accounting
@@ -229,10 +234,13 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 		} catch (Exception e) {
 			throw new IOException(e);
 		}
-		return subprocess != null;
+		if (subprocess == null)
+			return false;
+		notifyStatus(Operating);
+		return true;
 	}
 
-	private void startExecutorSubprocess(@Nonnull ProcessBuilder pb,
+	void startExecutorSubprocess(@Nonnull ProcessBuilder pb,
 			@Nullable char[] password) throws IOException {
 		// Start the subprocess
 		out.println("starting " + pb.command() + " in directory "
@@ -248,6 +256,8 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 		new AsyncCopy(subprocess.getErrorStream(), stderr);
 		if (password != null)
 			new PasswordWriterThread(subprocess, password);
+		if (statusListener != null)
+			new ExitWatcher(this, subprocess);
 	}
 
 	/**
@@ -472,6 +482,15 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 	 */
 	@Override
 	public void killWorker() {
+		// Tell the server outside the lock; the call is remote
+		if (kill())
+			notifyStatus(Finished);
+	}
+
+	/**
+	 * @return Whether the subprocess was alive until now.
+	 */
+	private synchronized boolean kill() {
 		if (!finished && subprocess != null) {
 			final Holder<Integer> code = new Holder<>();
 			for (TimingOutTask tot : new TimingOutTask[] { new TimingOutTask() {
@@ -509,6 +528,30 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 			finished = true;
 			setExitCode(code.value);
 			readyToSendEmail = true;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Tell the server (if it asked) that the run has changed state. Must not
+	 * be called while holding the lock on this object, as it is a remote
+	 * call. Failures are not fatal; the server will find out eventually
+	 * anyway by polling.
+	 * 
+	 * @param status
+	 *            The state that the run has entered.
+	 */
+	private void notifyStatus(@Nonnull RemoteStatus status) {
+		RunStatusListener listener = statusListener;
+		if (listener == null || statusToken == null)
+			return;
+		try {
+			listener.statusChanged(statusToken, status);
+		} catch (Exception e) {
+			out.println("failed to notify server of " + status
+					+ " state of run " + statusToken);
+			e.printStackTrace(out);
 		}
 	}
 
@@ -638,6 +681,7 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 	public void startWorker() throws Exception {
 		signal("CONT");
 		stopped = false;
+		notifyStatus(Operating);
 	}
 
 	/**
@@ -650,6 +694,7 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 	public void stopWorker() throws Exception {
 		signal("STOP");
 		stopped = true;
+		notifyStatus(Stopped);
 	}
 
 	/**
@@ -658,24 +703,33 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 	 */
 	@Override
 	public RemoteStatus getWorkerStatus() {
-		if (subprocess == null)
-			return Initialized;
-		if (finished)
-			return Finished;
-		try {
-			setExitCode(subprocess.exitValue());
-		} catch (IllegalThreadStateException e) {
-			if (stopped)
-				return Stopped;
-			return Operating;
+		synchronized (this) {
+			if (subprocess == null)
+				return Initialized;
+			if (finished)
+				return Finished;
+			try {
+				setExitCode(subprocess.exitValue());
+			} catch (IllegalThreadStateException e) {
+				if (stopped)
+					return Stopped;
+				return Operating;
+			}
+			finished = true;
+			readyToSendEmail = true;
+			accounting.runCeased();
+			buildUR(exitCode.intValue() == 0 ? Completed : Failed, exitCode);
 		}
-		finished = true;
-		readyToSendEmail = true;
-		accounting.runCeased();
-		buildUR(exitCode.intValue() == 0 ? Completed : Failed, exitCode);
+		// Tell the server outside the lock; the call is remote
+		notifyStatus(Finished);
 		return Finished;
 	}
 
+	@Override
+	public synchronized Integer getExitCode() {
+		return exitCode;
+	}
+
 	@Override
 	public String getConfiguration() {
 		return "";
@@ -767,6 +821,13 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 		urreceiver = receiver;
 	}
 
+	@Override
+	public void setStatusListener(@Nullable RunStatusListener listener,
+			@Nullable String masterToken) {
+		statusListener = listener;
+		statusToken = masterToken;
+	}
+
 	@Override
 	public void deleteLocalResources() throws ImplementationException {
 		try {
@@ -862,6 +923,38 @@ class PasswordWriterThread extends Thread {
 	}
 }
 
+/**
+ * Waits for a workflow run subprocess to exit so that the server can be told
+ * promptly that the run has finished, instead of it having to poll.
+ * 
+ * @author Donal Fellows
+ */
+class ExitWatcher extends Thread {
+	@Nonnull
+	private final WorkerCore core;
+	@Nonnull
+	private final Process process;
+
+	ExitWatcher(@Nonnull WorkerCore core, @Nonnull Process process) {
+		super("ExitWatcher");
+		this.core = core;
+		this.process = process;
+		setDaemon(true);
+		start();
+	}
+
+	@Override
+	public void run() {
+		try {
+			process.waitFor();
+		} catch (InterruptedException e) {
+			return;
+		}
+		// Does the end-of-run bookkeeping, including the notification
+		core.getWorkerStatus();
+	}
+}
+
 enum Property {
 	STDOUT("stdout"), STDERR("stderr"), EXIT_CODE("exitcode"), READY_TO_NOTIFY(
 			"readyToNotify"), EMAIL("notificationAddress"), USAGE("usageRecord");
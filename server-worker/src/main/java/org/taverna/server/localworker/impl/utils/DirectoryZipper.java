@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.impl.utils;
+
+import static java.nio.file.Files.newDirectoryStream;
+import static java.nio.file.Files.readAttributes;
+import static java.util.Collections.sort;
+import static java.util.zip.Deflater.BEST_COMPRESSION;
+import static java.util.zip.Deflater.DEFAULT_COMPRESSION;
+import static java.util.zip.ZipEntry.STORED;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Writes the contents of a directory tree as a ZIP archive. Files whose
+ * contents are already compressed (archives, most image, audio and video
+ * formats) are stored as they are instead of being deflated again, which
+ * would cost time and gain nothing. Only files and directories are included;
+ * other kinds of entry are skipped.
+ * <p>
+ * Archives may be built by a single thread, or with the compression of each
+ * file spread over several threads (see {@link ParallelZipOutput}).
+ * 
+ * @author Donal Fellows
+ */
+public final class DirectoryZipper {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/**
+	 * The extensions of the files whose contents are already compressed.
+	 */
+	private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(
+			Arrays.asList("zip", "jar", "war", "gz", "tgz", "bz2", "tbz2",
+					"xz", "txz", "lz", "lzma", "z", "7z", "rar", "png", "jpg",
+					"jpeg", "gif", "webp", "mp3", "ogg", "mp4", "m4a", "avi",
+					"mov", "mkv", "pdf", "docx", "xlsx", "pptx", "odt", "ods"));
+
+	private DirectoryZipper() {
+	}
+
+	/**
+	 * @param name
+	 *            The name of a file.
+	 * @return Whether the file's contents are (probably) already compressed.
+	 */
+	public static boolean isCompressed(@Nonnull String name) {
+		int dot = name.lastIndexOf('.');
+		return dot >= 0
+				&& COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1)
+						.toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * Write a directory tree as a ZIP archive, using only the current thread
+	 * and the default level of compression. The names of the entries are
+	 * relative to the directory.
+	 * 
+	 * @param dir
+	 *            The directory to write.
+	 * @param out
+	 *            Where to write the archive. Closed by this method.
+	 * @throws IOException
+	 *             If reading the directory or writing the archive fails.
+	 */
+	public static void write(@Nonnull Path dir, @Nonnull OutputStream out)
+			throws IOException {
+		write(dir, out, DEFAULT_COMPRESSION, null, 1);
+	}
+
+	/**
+	 * Write a directory tree as a ZIP archive. The names of the entries are
+	 * relative to the directory.
+	 * 
+	 * @param dir
+	 *            The directory to write.
+	 * @param out
+	 *            Where to write the archive. Closed by this method. Should be
+	 *            buffered.
+	 * @param level
+	 *            The level of compression, from 0 (none) to 9 (best), or -1
+	 *            for the default.
+	 * @param compressors
+	 *            Where to compress the contents of files, or <tt>null</tt> to
+	 *            compress them in the current thread.
+	 * @param parallelism
+	 *            How many blocks of a file to compress at once. If 1 (or less)
+	 *            the archive is written by the current thread alone.
+	 * @throws IOException
+	 *             If reading the directory or writing the archive fails.
+	 */
+	public static void write(@Nonnull Path dir, @Nonnull OutputStream out,
+			int level, @Nullable ExecutorService compressors, int parallelism)
+			throws IOException {
+		if (level < DEFAULT_COMPRESSION || level > BEST_COMPRESSION)
+			level = DEFAULT_COMPRESSION;
+		Archiver archiver;
+		if (compressors == null || parallelism <= 1)
+			archiver = new SerialZipOutput(out, level);
+		else
+			archiver = new ParallelZipOutput(out, compressors, parallelism,
+					level);
+		try (Archiver a = archiver) {
+			write(dir, null, a, new byte[BUFFER_SIZE]);
+			a.finish();
+		}
+	}
+
+	private static void write(Path dir, String base, Archiver archiver,
+			byte[] buffer) throws IOException {
+		List<Path> children = new ArrayList<>();
+		try (DirectoryStream<Path> ds = newDirectoryStream(dir)) {
+			for (Path p : ds)
+				children.add(p);
+		}
+		sort(children);
+		for (Path p : children) {
+			String name = p.getFileName().toString();
+			if (base != null)
+				name = base + "/" + name;
+			BasicFileAttributes attrs;
+			try {
+				attrs = readAttributes(p, BasicFileAttributes.class);
+			} catch (NoSuchFileException e) {
+				// deleted while we were working; skip...
+				continue;
+			}
+			if (attrs.isDirectory())
+				write(p, name, archiver, buffer);
+			else if (attrs.isRegularFile())
+				writeFile(p, name, attrs, archiver, buffer);
+		}
+	}
+
+	private static void writeFile(Path file, String name,
+			BasicFileAttributes attrs, Archiver archiver, byte[] buffer)
+			throws IOException {
+		long time = attrs.lastModifiedTime().toMillis();
+		if (!isCompressed(name)) {
+			archiver.deflated(name, time, file);
+			return;
+		}
+		/*
+		 * A stored entry must be described before it is written, so the file
+		 * is read twice; that is still much cheaper than deflating.
+		 */
+		CRC32 crc = new CRC32();
+		long size = 0;
+		try (InputStream in = new FileInputStream(file.toFile())) {
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				crc.update(buffer, 0, n);
+				size += n;
+			}
+		}
+		archiver.stored(name, time, crc.getValue(), size, file);
+	}
+
+	/**
+	 * How entries get into an archive.
+	 */
+	abstract static class Archiver implements Closeable {
+		/**
+		 * Add a file without compressing it.
+		 * 
+		 * @param name
+		 *            The name of the entry.
+		 * @param time
+		 *            The modification time of the file.
+		 * @param crc
+		 *            The CRC-32 of the file's contents.
+		 * @param size
+		 *            The length of the file; no more than this is added.
+		 * @param file
+		 *            The file to add.
+		 */
+		abstract void stored(String name, long time, long crc, long size,
+				Path file) throws IOException;
+
+		/**
+		 * Add a file, compressing it.
+		 * 
+		 * @param name
+		 *            The name of the entry.
+		 * @param time
+		 *            The modification time of the file.
+		 * @param file
+		 *            The file to add.
+		 */
+		abstract void deflated(String name, long time, Path file)
+				throws IOException;
+
+		/**
+		 * Complete the archive. It is still necessary to close the archiver.
+		 */
+		abstract void finish() throws IOException;
+	}
+
+	/**
+	 * Writes an archive with a {@link ZipOutputStream}, in the current thread.
+	 */
+	private static class SerialZipOutput extends Archiver {
+		private final ZipOutputStream zos;
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+
+		SerialZipOutput(OutputStream out, int level) {
+			zos = new ZipOutputStream(out);
+			zos.setLevel(level);
+		}
+
+		@Override
+		void stored(String name, long time, long crc, long size, Path file)
+				throws IOException {
+			ZipEntry entry = new ZipEntry(name);
+			entry.setTime(time);
+			entry.setMethod(STORED);
+			entry.setSize(size);
+			entry.setCompressedSize(size);
+			entry.setCrc(crc);
+			zos.putNextEntry(entry);
+			copy(file, size);
+			zos.closeEntry();
+		}
+
+		@Override
+		void deflated(String name, long time, Path file) throws IOException {
+			ZipEntry entry = new ZipEntry(name);
+			entry.setTime(time);
+			zos.putNextEntry(entry);
+			copy(file, Long.MAX_VALUE);
+			zos.closeEntry();
+		}
+
+		/**
+		 * Copy at most the given number of bytes of a file, so that a stored
+		 * entry stays consistent with its description if the file grows
+		 * meanwhile.
+		 */
+		private void copy(Path file, long limit) throws IOException {
+			try (InputStream in = new FileInputStream(file.toFile())) {
+				int n;
+				while (limit > 0
+						&& (n = in.read(buffer, 0,
+								(int) Math.min(buffer.length, limit))) >= 0) {
+					zos.write(buffer, 0, n);
+					limit -= n;
+				}
+			}
+		}
+
+		@Override
+		void finish() throws IOException {
+			zos.finish();
+		}
+
+		@Override
+		public void close() throws IOException {
+			zos.close();
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.impl.utils;
+
+import static java.lang.System.currentTimeMillis;
+import static java.nio.file.Files.readAttributes;
+import static java.nio.file.StandardOpenOption.READ;
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A cache of channels open for reading files, so that reading a file in many
+ * small pieces does not have to open and close it for each piece. The number
+ * of open channels is capped, channels that have not been used for a while are
+ * closed, and a channel is reopened if its file has been replaced since it was
+ * opened.
+ * 
+ * @author Donal Fellows
+ */
+public class FileHandleCache {
+	private final int maxOpen;
+	private final long idleTime;
+	/** The open handles, least recently used first. */
+	private final Map<File, Handle> handles = new LinkedHashMap<>(16, 0.75f,
+			true);
+
+	/**
+	 * @param maxOpen
+	 *            The most files to keep open when they are not being read.
+	 * @param idleTime
+	 *            How long a file may be left unread before it is closed, in
+	 *            milliseconds.
+	 */
+	public FileHandleCache(int maxOpen, long idleTime) {
+		this.maxOpen = maxOpen;
+		this.idleTime = idleTime;
+		new Timer("file handle reaper", true).schedule(new TimerTask() {
+			@Override
+			public void run() {
+				closeIdle();
+			}
+		}, idleTime, idleTime);
+	}
+
+	/**
+	 * Read from a file into a buffer, filling it if the file is long enough.
+	 * 
+	 * @param file
+	 *            The file to read.
+	 * @param buffer
+	 *            Where to put the bytes read.
+	 * @param position
+	 *            Where in the file to start reading.
+	 * @return The number of bytes read, which is only less than the space in
+	 *         the buffer if the end of the file was reached.
+	 * @throws IOException
+	 *             If the file can't be opened or read.
+	 */
+	public int read(@Nonnull File file, @Nonnull ByteBuffer buffer,
+			long position) throws IOException {
+		Handle h = acquire(file);
+		try {
+			int total = 0;
+			while (buffer.hasRemaining()) {
+				int n = h.channel.read(buffer, position + total);
+				if (n < 0)
+					break;
+				total += n;
+			}
+			return total;
+		} finally {
+			release(h);
+		}
+	}
+
+	/**
+	 * Close the file if it is open, or any open files beneath it if it is a
+	 * directory; used when the file or directory is about to be deleted.
+	 * 
+	 * @param file
+	 *            The file or directory to close.
+	 */
+	public synchronized void forget(@Nonnull File file) {
+		Path prefix = file.toPath();
+		Iterator<Map.Entry<File, Handle>> it = handles.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<File, Handle> e = it.next();
+			if (e.getKey().toPath().startsWith(prefix)) {
+				it.remove();
+				retire(e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Get an open handle for the file. The file is looked at and opened
+	 * without holding the lock, so that slow filesystems only hold up the
+	 * reads of the file concerned.
+	 */
+	private Handle acquire(File file) throws IOException {
+		Path path = file.toPath();
+		Object key = readAttributes(path, BasicFileAttributes.class).fileKey();
+		Handle h = acquireOpen(file, key);
+		if (h != null)
+			return h;
+		FileChannel channel = FileChannel.open(path, READ);
+		synchronized (this) {
+			h = acquireOpen(file, key);
+			if (h != null) {
+				// Someone else opened it while we were doing so
+				closeQuietly(channel);
+				return h;
+			}
+			h = new Handle(channel, key);
+			handles.put(file, h);
+			Iterator<Handle> it = handles.values().iterator();
+			while (handles.size() > maxOpen && it.hasNext()) {
+				Handle old = it.next();
+				if (old == h)
+					break;
+				it.remove();
+				retire(old);
+			}
+			h.users++;
+			return h;
+		}
+	}
+
+	/**
+	 * @return The handle for the file if it is open and the file has not been
+	 *         replaced since, or <tt>null</tt> if it must be (re)opened.
+	 */
+	private synchronized Handle acquireOpen(File file, Object key) {
+		Handle h = handles.get(file);
+		if (h == null)
+			return null;
+		if (key != null && !key.equals(h.key)) {
+			// The file has been replaced since we opened it
+			handles.remove(file);
+			retire(h);
+			return null;
+		}
+		h.users++;
+		return h;
+	}
+
+	private synchronized void release(Handle h) {
+		h.users--;
+		h.lastUsed = currentTimeMillis();
+		if (h.retired && h.users == 0)
+			closeQuietly(h.channel);
+	}
+
+	/** Must be called with the lock held. */
+	private void retire(Handle h) {
+		h.retired = true;
+		if (h.users == 0)
+			closeQuietly(h.channel);
+	}
+
+	/** @return How many files are held open. */
+	synchronized int size() {
+		return handles.size();
+	}
+
+	synchronized void closeIdle() {
+		long limit = currentTimeMillis() - idleTime;
+		Iterator<Handle> it = handles.values().iterator();
+		while (it.hasNext()) {
+			Handle h = it.next();
+			if (h.users == 0 && h.lastUsed < limit) {
+				it.remove();
+				retire(h);
+			}
+		}
+	}
+
+	private static class Handle {
+		final FileChannel channel;
+		final Object key;
+		int users;
+		long lastUsed;
+		boolean retired;
+
+		Handle(FileChannel channel, Object key) {
+			this.channel = channel;
+			this.key = key;
+			this.lastUsed = currentTimeMillis();
+		}
+	}
+}
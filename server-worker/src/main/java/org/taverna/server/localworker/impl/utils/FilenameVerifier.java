@@ -7,6 +7,8 @@ package org.taverna.server.localworker.impl.utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -116,6 +118,48 @@ public abstract class FilenameVerifier {
 		return f;
 	}
 
+	/**
+	 * Construct a file handle for an existing file or directory in a
+	 * directory tree, given its path relative to the root of the tree. Only
+	 * names that could refer outside the tree are rejected, as the workflow
+	 * run itself may have made files whose names would not pass
+	 * {@link #getValidatedFile(File, String...)}.
+	 * 
+	 * @param dir
+	 *            The directory acting as a root, which is assumed to be
+	 *            correctly named.
+	 * @param names
+	 *            The names of the path fragments. Must have at least one
+	 *            value.
+	 * @return The file handle. Never <tt>null</tt>.
+	 * @throws NoSuchFileException
+	 *             If a name is illegal, or the file doesn't exist.
+	 * @throws NotDirectoryException
+	 *             If the path goes through something that isn't a directory.
+	 * @throws IOException
+	 *             If validation fails.
+	 */
+	public static File getValidatedExistingPath(File dir, String... names)
+			throws IOException {
+		if (names.length == 0)
+			throw new IOException("empty filename");
+		File f = dir;
+		for (String name : names) {
+			if (f != dir && !f.isDirectory()) {
+				if (!f.exists())
+					throw new NoSuchFileException(f.getName());
+				throw new NotDirectoryException(f.getName());
+			}
+			if (ILLEGAL_NAMES.contains(name.toLowerCase())
+					|| name.indexOf('/') >= 0 || name.indexOf('\0') >= 0)
+				throw new NoSuchFileException(name, null, "illegal filename");
+			f = new File(f, name);
+		}
+		if (!f.exists())
+			throw new NoSuchFileException(f.getName());
+		return f;
+	}
+
 	/**
 	 * Create a file handle where the underlying file must exist.
 	 * 
@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.impl.utils;
+
+import static java.util.Calendar.DAY_OF_MONTH;
+import static java.util.Calendar.HOUR_OF_DAY;
+import static java.util.Calendar.MINUTE;
+import static java.util.Calendar.MONTH;
+import static java.util.Calendar.SECOND;
+import static java.util.Calendar.YEAR;
+import static java.util.zip.Deflater.SYNC_FLUSH;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a ZIP archive whose deflated entries are compressed by several
+ * threads at once, in the manner of <i>pigz</i>. Each file is cut into blocks
+ * that are deflated separately, each primed with the end of the block before
+ * it, and ended with a sync flush so that they join up into a single deflate
+ * stream. The compressed blocks are written out in order as they become
+ * ready, with only a bounded number in flight, so memory use does not depend
+ * on the size of the files.
+ * <p>
+ * As the compressed size of an entry is not known until it has been written,
+ * deflated entries are followed by a data descriptor, just as with
+ * {@link java.util.zip.ZipOutputStream}. ZIP64 extensions are used where sizes
+ * or offsets need them.
+ * 
+ * @author Donal Fellows
+ */
+class ParallelZipOutput extends DirectoryZipper.Archiver {
+	/** How much of a file is compressed as one piece. */
+	static final int BLOCK_SIZE = 128 * 1024;
+	/** How much of the previous block primes the compression of a block. */
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	private static final int ZIP64_COUNT_MAGIC = 0xFFFF;
+	private static final int LOCAL_HEADER = 0x04034b50;
+	private static final int DATA_DESCRIPTOR = 0x08074b50;
+	private static final int CENTRAL_HEADER = 0x02014b50;
+	private static final int ZIP64_END = 0x06064b50;
+	private static final int ZIP64_LOCATOR = 0x07064b50;
+	private static final int END = 0x06054b50;
+	private static final int ZIP64_EXTRA = 0x0001;
+	/** Flags: names are in UTF-8. */
+	private static final int FLAG_UTF8 = 0x0800;
+	/** Flags: sizes and CRC follow the data. */
+	private static final int FLAG_DESCRIPTOR = 0x0008;
+	private static final int VERSION = 20;
+	private static final int VERSION_ZIP64 = 45;
+	private static final int METHOD_STORED = 0;
+	private static final int METHOD_DEFLATED = 8;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The deflaters of each compressing thread, one for each level of
+	 * compression, so that a deflater is never reused at a different level.
+	 */
+	private static final ThreadLocal<Deflater[]> deflaters = new ThreadLocal<Deflater[]>() {
+		@Override
+		protected Deflater[] initialValue() {
+			return new Deflater[11];
+		}
+	};
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BLOCK_SIZE / 2];
+		}
+	};
+
+	private final OutputStream out;
+	private final ExecutorService compressors;
+	private final int level;
+	/** How many pieces may be waiting to be written. */
+	private final int window;
+	private final ArrayDeque<Piece> pending = new ArrayDeque<>();
+	private final List<Entry> entries = new ArrayList<>();
+	private final byte[] readBuffer = new byte[BLOCK_SIZE];
+	private long written;
+
+	/**
+	 * @param out
+	 *            Where to write the archive; should be buffered.
+	 * @param compressors
+	 *            Where to compress blocks.
+	 * @param parallelism
+	 *            How many blocks to compress at once.
+	 * @param level
+	 *            The level of compression, as for {@link Deflater}.
+	 */
+	ParallelZipOutput(OutputStream out, ExecutorService compressors,
+			int parallelism, int level) {
+		this.out = out;
+		this.compressors = compressors;
+		this.level = level;
+		this.window = 2 * Math.max(1, parallelism) + 2;
+	}
+
+	private static final class Entry {
+		final byte[] name;
+		final int time;
+		final boolean stored;
+		long crc;
+		long size;
+		long compressedSize;
+		long offset;
+
+		Entry(String name, long time, boolean stored) {
+			this.name = name.getBytes(UTF8);
+			this.time = dosTime(time);
+			this.stored = stored;
+		}
+
+		int flags() {
+			return FLAG_UTF8 | (stored ? 0 : FLAG_DESCRIPTOR);
+		}
+
+		int method() {
+			return stored ? METHOD_STORED : METHOD_DEFLATED;
+		}
+	}
+
+	private enum Kind {
+		HEADER, DATA, END
+	}
+
+	/** Something to write, in order. */
+	private static final class Piece {
+		final Entry entry;
+		final Kind kind;
+		final byte[] data;
+		final Future<byte[]> compressed;
+
+		Piece(Entry entry, Kind kind, byte[] data, Future<byte[]> compressed) {
+			this.entry = entry;
+			this.kind = kind;
+			this.data = data;
+			this.compressed = compressed;
+		}
+	}
+
+	/** Deflates one block of a file. */
+	private static final class Compress implements Callable<byte[]> {
+		private final byte[] block;
+		private final byte[] previous;
+		private final boolean last;
+		private final int level;
+
+		Compress(byte[] block, byte[] previous, boolean last, int level) {
+			this.block = block;
+			this.previous = previous;
+			this.last = last;
+			this.level = level;
+		}
+
+		@Override
+		public byte[] call() {
+			Deflater[] ds = deflaters.get();
+			Deflater d = ds[level + 1];
+			if (d == null)
+				d = ds[level + 1] = new Deflater(level, true);
+			d.reset();
+			if (previous != null)
+				d.setDictionary(previous, previous.length - DICTIONARY_SIZE,
+						DICTIONARY_SIZE);
+			d.setInput(block);
+			ByteArrayOutputStream result = new ByteArrayOutputStream(
+					block.length / 2 + 64);
+			byte[] buffer = buffers.get();
+			int n;
+			if (last) {
+				d.finish();
+				while (!d.finished()) {
+					n = d.deflate(buffer);
+					result.write(buffer, 0, n);
+				}
+			} else {
+				do {
+					n = d.deflate(buffer, 0, buffer.length, SYNC_FLUSH);
+					result.write(buffer, 0, n);
+				} while (n == buffer.length);
+			}
+			return result.toByteArray();
+		}
+	}
+
+	@Override
+	void stored(String name, long time, long crc, long size, Path file)
+			throws IOException {
+		Entry e = new Entry(name, time, true);
+		e.crc = crc;
+		e.size = size;
+		add(new Piece(e, Kind.HEADER, null, null));
+		/*
+		 * The header already gives the size and CRC, so a file that changed
+		 * since they were worked out can only fail the archive.
+		 */
+		CRC32 check = new CRC32();
+		try (InputStream in = new FileInputStream(file.toFile())) {
+			long remaining = size;
+			while (remaining > 0) {
+				byte[] block = readBlock(in, (int) Math.min(BLOCK_SIZE,
+						remaining));
+				if (block.length == 0)
+					break;
+				check.update(block);
+				add(new Piece(e, Kind.DATA, block, null));
+				remaining -= block.length;
+			}
+			if (remaining > 0 || in.read() >= 0)
+				throw new ZipException("invalid entry size for " + name);
+		}
+		if (check.getValue() != crc)
+			throw new ZipException("invalid entry crc-32 for " + name);
+		add(new Piece(e, Kind.END, null, null));
+	}
+
+	@Override
+	void deflated(String name, long time, Path file) throws IOException {
+		Entry e = new Entry(name, time, false);
+		add(new Piece(e, Kind.HEADER, null, null));
+		CRC32 crc = new CRC32();
+		try (InputStream in = new FileInputStream(file.toFile())) {
+			byte[] previous = null;
+			byte[] block = readBlock(in, BLOCK_SIZE);
+			while (true) {
+				byte[] next = (block.length == BLOCK_SIZE ? readBlock(in,
+						BLOCK_SIZE) : null);
+				boolean last = (next == null || next.length == 0);
+				crc.update(block);
+				e.size += block.length;
+				add(new Piece(e, Kind.DATA, null,
+						compressors.submit(new Compress(block, previous, last,
+								level))));
+				if (last)
+					break;
+				previous = block;
+				block = next;
+			}
+		}
+		e.crc = crc.getValue();
+		add(new Piece(e, Kind.END, null, null));
+	}
+
+	/**
+	 * Read a block from a stream.
+	 * 
+	 * @return The block; shorter than asked for only at the end of the stream.
+	 */
+	private byte[] readBlock(InputStream in, int size) throws IOException {
+		int got = 0, n;
+		while (got < size && (n = in.read(readBuffer, got, size - got)) >= 0)
+			got += n;
+		return Arrays.copyOf(readBuffer, got);
+	}
+
+	private void add(Piece piece) throws IOException {
+		pending.add(piece);
+		while (pending.size() > window)
+			emit(pending.remove());
+	}
+
+	private void emit(Piece piece) throws IOException {
+		Entry e = piece.entry;
+		switch (piece.kind) {
+		case HEADER:
+			e.offset = written;
+			writeLocalHeader(e);
+			break;
+		case DATA:
+			byte[] data = piece.data;
+			if (data == null)
+				data = get(piece.compressed);
+			write(data);
+			e.compressedSize += data.length;
+			break;
+		case END:
+			if (!e.stored)
+				writeDataDescriptor(e);
+			entries.add(e);
+			break;
+		}
+	}
+
+	private static byte[] get(Future<byte[]> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while compressing");
+		} catch (ExecutionException e) {
+			throw new IOException("problem when compressing", e.getCause());
+		}
+	}
+
+	@Override
+	void finish() throws IOException {
+		while (!pending.isEmpty())
+			emit(pending.remove());
+		long start = written;
+		for (Entry e : entries)
+			writeCentralHeader(e);
+		writeEnd(start, written - start);
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Piece p : pending)
+			if (p.compressed != null)
+				p.compressed.cancel(false);
+		pending.clear();
+		out.close();
+	}
+
+	private void writeLocalHeader(Entry e) throws IOException {
+		boolean zip64 = e.stored && e.size >= ZIP64_MAGIC;
+		put32(LOCAL_HEADER);
+		put16(zip64 ? VERSION_ZIP64 : VERSION);
+		put16(e.flags());
+		put16(e.method());
+		put32(e.time);
+		if (!e.stored) {
+			// All described by the data descriptor
+			put32(0);
+			put32(0);
+			put32(0);
+		} else {
+			put32(e.crc);
+			put32(zip64 ? ZIP64_MAGIC : e.size);
+			put32(zip64 ? ZIP64_MAGIC : e.size);
+		}
+		put16(e.name.length);
+		put16(zip64 ? 20 : 0);
+		write(e.name);
+		if (zip64) {
+			put16(ZIP64_EXTRA);
+			put16(16);
+			put64(e.size);
+			put64(e.size);
+		}
+	}
+
+	private void writeDataDescriptor(Entry e) throws IOException {
+		put32(DATA_DESCRIPTOR);
+		put32(e.crc);
+		if (e.size >= ZIP64_MAGIC || e.compressedSize >= ZIP64_MAGIC) {
+			put64(e.compressedSize);
+			put64(e.size);
+		} else {
+			put32(e.compressedSize);
+			put32(e.size);
+		}
+	}
+
+	private void writeCentralHeader(Entry e) throws IOException {
+		boolean bigSize = e.size >= ZIP64_MAGIC;
+		boolean bigCompressed = e.compressedSize >= ZIP64_MAGIC;
+		boolean bigOffset = e.offset >= ZIP64_MAGIC;
+		int extra = (bigSize ? 8 : 0) + (bigCompressed ? 8 : 0)
+				+ (bigOffset ? 8 : 0);
+		int version = (extra > 0 ? VERSION_ZIP64 : VERSION);
+		put32(CENTRAL_HEADER);
+		put16(version);
+		put16(version);
+		put16(e.flags());
+		put16(e.method());
+		put32(e.time);
+		put32(e.crc);
+		put32(bigCompressed ? ZIP64_MAGIC : e.compressedSize);
+		put32(bigSize ? ZIP64_MAGIC : e.size);
+		put16(e.name.length);
+		put16(extra > 0 ? extra + 4 : 0);
+		put16(0); // comment length
+		put16(0); // disk number
+		put16(0); // internal attributes
+		put32(0); // external attributes
+		put32(bigOffset ? ZIP64_MAGIC : e.offset);
+		write(e.name);
+		if (extra > 0) {
+			put16(ZIP64_EXTRA);
+			put16(extra);
+			if (bigSize)
+				put64(e.size);
+			if (bigCompressed)
+				put64(e.compressedSize);
+			if (bigOffset)
+				put64(e.offset);
+		}
+	}
+
+	private void writeEnd(long start, long length) throws IOException {
+		int count = entries.size();
+		if (count >= ZIP64_COUNT_MAGIC || start >= ZIP64_MAGIC
+				|| length >= ZIP64_MAGIC) {
+			long end64 = written;
+			put32(ZIP64_END);
+			put64(44); // size of rest of record
+			put16(VERSION_ZIP64);
+			put16(VERSION_ZIP64);
+			put32(0); // this disk
+			put32(0); // disk with central directory
+			put64(count);
+			put64(count);
+			put64(length);
+			put64(start);
+			put32(ZIP64_LOCATOR);
+			put32(0); // disk with ZIP64 end record
+			put64(end64);
+			put32(1); // number of disks
+		}
+		put32(END);
+		put16(0); // this disk
+		put16(0); // disk with central directory
+		put16(Math.min(count, ZIP64_COUNT_MAGIC));
+		put16(Math.min(count, ZIP64_COUNT_MAGIC));
+		put32(Math.min(length, ZIP64_MAGIC));
+		put32(Math.min(start, ZIP64_MAGIC));
+		put16(0); // comment length
+	}
+
+	private void write(byte[] b) throws IOException {
+		out.write(b);
+		written += b.length;
+	}
+
+	private void put16(int v) throws IOException {
+		out.write(v & 0xFF);
+		out.write((v >>> 8) & 0xFF);
+		written += 2;
+	}
+
+	private void put32(long v) throws IOException {
+		put16((int) v);
+		put16((int) (v >>> 16));
+	}
+
+	private void put64(long v) throws IOException {
+		put32(v);
+		put32(v >>> 32);
+	}
+
+	/**
+	 * Convert a time to the MS-DOS format that ZIP archives use.
+	 */
+	private static int dosTime(long millis) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(millis);
+		int year = c.get(YEAR);
+		if (year < 1980)
+			return (1 << 21) | (1 << 16);
+		return (year - 1980) << 25 | (c.get(MONTH) + 1) << 21
+				| c.get(DAY_OF_MONTH) << 16 | c.get(HOUR_OF_DAY) << 11
+				| c.get(MINUTE) << 5 | c.get(SECOND) >> 1;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.impl;
+
+import static java.lang.String.format;
+import static java.lang.System.nanoTime;
+import static java.nio.file.Files.createTempDirectory;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import org.taverna.server.localworker.impl.utils.DirectoryZipper;
+
+/**
+ * Compares building a ZIP archive of a directory with a single thread against
+ * building it with the contents of the files compressed by several threads.
+ * The archive is thrown away as it is made, so only the cost of building it is
+ * measured. Not run as part of the test suite; run the {@link #main(String[])
+ * main} method directly. The optional arguments are the total size of the
+ * files to archive in megabytes (default 512), the number of threads (default
+ * the number of processors) and the level of compression (default -1, for
+ * zlib's default).
+ * 
+ * @author Donal Fellows
+ */
+public class ArchiveBenchmark {
+	private static final int FILES = 16;
+
+	/** Counts what is written to it, and otherwise discards it. */
+	private static class Sink extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	private static void report(String label, long bytes, long archived,
+			long elapsed) {
+		System.out.println(format("%-16s %10.1f MB/s %10.1f ms total %5.1f%%",
+				label, bytes / 1048576.0 / (elapsed / 1e9),
+				elapsed / 1000000.0, 100.0 * archived / bytes));
+	}
+
+	/** Write a file of text that compresses about as well as a typical log. */
+	private static void makeFile(File file, long size, Random random)
+			throws IOException {
+		try (Writer w = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file), "US-ASCII"))) {
+			for (long n = 0; n < size;) {
+				String line = format("%08d step %d of %s: value=%f%n", n,
+						random.nextInt(100), Long.toHexString(random.nextLong()),
+						random.nextGaussian());
+				w.write(line);
+				n += line.length();
+			}
+		}
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File c : children)
+				delete(c);
+		f.delete();
+	}
+
+	public static void main(String... args) throws Exception {
+		long size = (args.length > 0 ? Long.parseLong(args[0]) : 512) << 20;
+		int threads = (args.length > 1 ? Integer.parseInt(args[1]) : Runtime
+				.getRuntime().availableProcessors());
+		int level = (args.length > 2 ? Integer.parseInt(args[2]) : -1);
+		Path dir = createTempDirectory("zipbench");
+		ExecutorService compressors = newFixedThreadPool(threads);
+		try {
+			Random random = new Random(1);
+			for (int i = 0; i < FILES; i++)
+				makeFile(new File(dir.toFile(), "file" + i + ".txt"), size
+						/ FILES, random);
+
+			for (int round = 0; round < 2; round++) {
+				Sink sink = new Sink();
+				long start = nanoTime();
+				DirectoryZipper.write(dir, sink, level, null, 1);
+				report("single thread", size, sink.count, nanoTime() - start);
+
+				sink = new Sink();
+				start = nanoTime();
+				DirectoryZipper.write(dir, sink, level, compressors, threads);
+				report(threads + " threads", size, sink.count, nanoTime()
+						- start);
+			}
+		} finally {
+			compressors.shutdown();
+			delete(dir.toFile());
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.impl;
+
+import static java.lang.String.format;
+import static java.lang.System.nanoTime;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Random;
+
+import org.taverna.server.localworker.remote.RemoteStreamTicket;
+
+/**
+ * Compares ways of reading a file out of a worker: opening the file for each
+ * 64kB chunk (as was done before files were kept open), positional reads of
+ * chunks through the shared handle cache, and a single transfer over the
+ * streaming socket. RMI itself is not involved, so the figures understate the
+ * cost of the chunked reads. Not run as part of the test suite; run the
+ * {@link #main(String[]) main} method directly. The optional argument is the
+ * size of file to test with in megabytes; the default is 2048.
+ * 
+ * @author Donal Fellows
+ */
+public class FileReadBenchmark {
+	private static final int CHUNK = 64 * 1024;
+	private static final int RANDOM_READS = 20000;
+
+	private static void report(String label, long bytes, long elapsed) {
+		System.out.println(format("%-28s %10.1f MB/s %10.1f ms total", label,
+				bytes / 1048576.0 / (elapsed / 1e9), elapsed / 1000000.0));
+	}
+
+	/** How chunks were read before the handle cache. */
+	private static int reopenRead(File file, long offset, byte[] buffer)
+			throws IOException {
+		try (FileInputStream fis = new FileInputStream(file)) {
+			if (offset > 0 && fis.skip(offset) != offset)
+				throw new IOException("did not move to correct offset in file");
+			return fis.read(buffer);
+		}
+	}
+
+	private static long streamed(FileDelegate fd) throws IOException {
+		RemoteStreamTicket ticket = fd.openStream(0, -1);
+		byte[] buffer = new byte[CHUNK];
+		long total = 0;
+		try (Socket s = new Socket(ticket.getHost(), ticket.getPort())) {
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+			out.writeLong(ticket.getToken().getMostSignificantBits());
+			out.writeLong(ticket.getToken().getLeastSignificantBits());
+			out.flush();
+			InputStream in = s.getInputStream();
+			int n;
+			while ((n = in.read(buffer)) >= 0)
+				total += n;
+		}
+		return total;
+	}
+
+	public static void main(String... args) throws Exception {
+		long size = (args.length > 0 ? Long.parseLong(args[0]) : 2048) << 20;
+		File file = File.createTempFile("filebench", ".dat");
+		try {
+			Random random = new Random(1);
+			byte[] block = new byte[1 << 20];
+			random.nextBytes(block);
+			try (FileOutputStream fos = new FileOutputStream(file)) {
+				for (long i = 0; i < size; i += block.length)
+					fos.write(block);
+			}
+			FileDelegate fd = new FileDelegate(file, new DirectoryDelegate(
+					file.getParentFile(), null));
+			byte[] buffer = new byte[CHUNK];
+			long[] offsets = new long[RANDOM_READS];
+			for (int i = 0; i < offsets.length; i++)
+				offsets[i] = (long) (random.nextDouble() * (size - CHUNK));
+
+			long start = nanoTime(), total = 0;
+			for (long off = 0; off < size; off += CHUNK)
+				total += reopenRead(file, off, buffer);
+			report("reopen sequential", total, nanoTime() - start);
+
+			start = nanoTime();
+			total = 0;
+			for (long off = 0; off < size; off += CHUNK)
+				total += fd.getContents(off, CHUNK).length;
+			report("cached sequential", total, nanoTime() - start);
+
+			start = nanoTime();
+			total = 0;
+			for (long off : offsets)
+				total += reopenRead(file, off, buffer);
+			report("reopen random", total, nanoTime() - start);
+
+			start = nanoTime();
+			total = 0;
+			for (long off : offsets)
+				total += fd.getContents(off, CHUNK).length;
+			report("cached random", total, nanoTime() - start);
+
+			start = nanoTime();
+			total = streamed(fd);
+			report("streamed", total, nanoTime() - start);
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -5,6 +5,7 @@
  */
 package org.taverna.server.localworker.impl;
 
+import static java.nio.file.Files.write;
 import static java.util.UUID.randomUUID;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -12,9 +13,20 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.taverna.server.localworker.impl.LocalWorker.DO_MKDIR;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.net.Socket;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -22,7 +34,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
 import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import org.junit.After;
 import org.junit.Before;
@@ -32,9 +48,17 @@ import org.taverna.server.localworker.api.WorkerFactory;
 import org.taverna.server.localworker.remote.IllegalStateTransitionException;
 import org.taverna.server.localworker.remote.ImplementationException;
 import org.taverna.server.localworker.remote.RemoteDirectory;
+import org.taverna.server.localworker.remote.RemoteEntryAttributes;
+import org.taverna.server.localworker.remote.RemoteEntryAttributes.Type;
+import org.taverna.server.localworker.remote.RemoteFile;
+import org.taverna.server.localworker.remote.RemoteFilesystem;
 import org.taverna.server.localworker.remote.RemoteInput;
 import org.taverna.server.localworker.remote.RemoteListener;
+import org.taverna.server.localworker.remote.RemoteRunSnapshot;
 import org.taverna.server.localworker.remote.RemoteStatus;
+import org.taverna.server.localworker.remote.RemoteStreamTicket;
+import org.taverna.server.localworker.remote.RemoteUpload;
+import org.taverna.server.localworker.server.RunStatusListener;
 import org.taverna.server.localworker.server.UsageRecordReceiver;
 
 public class LocalWorkerTest {
@@ -88,6 +112,11 @@ public class LocalWorkerTest {
 			return returnThisStatus;
 		}
 
+		@Override
+		public Integer getExitCode() {
+			return null;
+		}
+
 		@Override
 		public boolean initWorker(LocalWorker local,
 				String executeWorkflowCommand, String workflow,
@@ -139,6 +168,12 @@ public class LocalWorkerTest {
 			// We just ignore this
 		}
 
+		@Override
+		public void setStatusListener(RunStatusListener listener,
+				String masterToken) {
+			// We just ignore this
+		}
+
 		@Override
 		public void deleteLocalResources() throws ImplementationException {
 			// Nothing to do here
@@ -269,6 +304,27 @@ public class LocalWorkerTest {
 		assertNull(lw.getInputs().get(0).getValue());
 	}
 
+	@Test
+	public void testGetSnapshot() throws Exception {
+		lw.makeInput("FOO").setValue("BAR");
+		lw.setOutputBaclavaFile("OBaclava");
+
+		RemoteRunSnapshot snap = lw.getSnapshot();
+		assertEquals(RemoteStatus.Initialized, snap.getStatus());
+		assertNull(snap.getStartTimestamp());
+		assertNull(snap.getInputBaclavaFile());
+		assertEquals("OBaclava", snap.getOutputBaclavaFile());
+		assertEquals(1, snap.getInputs().size());
+		assertEquals("FOO", snap.getInputs().get(0).getName());
+		assertEquals("BAR", snap.getInputs().get(0).getValue());
+		assertEquals(1, snap.getListeners().size());
+		assertEquals("RLNAME", snap.getListeners().get(0).getName());
+		assertEquals("RLCONFIG", snap.getListeners().get(0).getConfiguration());
+
+		lw.makeInput("FOO").setValue("BAZ");
+		assertEquals("BAR", snap.getInputs().get(0).getValue());
+	}
+
 	@Test
 	public void testGetListenerTypes() {
 		assertEquals("[]", lw.getListenerTypes().toString());
@@ -344,6 +400,297 @@ public class LocalWorkerTest {
 		assertEquals("", rd.getName());
 	}
 
+	@Test
+	public void testListWithAttributes() throws Exception {
+		RemoteDirectory rd = lw.getWorkingDirectory();
+		RemoteDirectory sub = rd.makeSubdirectory("foo");
+		sub.makeEmptyFile("bar");
+
+		boolean found = false;
+		for (RemoteEntryAttributes a : rd.listWithAttributes())
+			if (a.getName().equals("foo")) {
+				assertEquals("/foo", a.getFullName());
+				assertEquals(Type.DIRECTORY, a.getType());
+				assertSame(sub, a.getEntry());
+				found = true;
+			}
+		assertTrue(found);
+
+		List<RemoteEntryAttributes> contents = sub.listWithAttributes();
+		assertEquals(1, contents.size());
+		assertEquals("bar", contents.get(0).getName());
+		assertEquals("/foo/bar", contents.get(0).getFullName());
+		assertEquals(Type.FILE, contents.get(0).getType());
+		assertEquals(0, contents.get(0).getSize());
+	}
+
+	@Test
+	public void testResolve() throws Exception {
+		RemoteDirectory rd = lw.getWorkingDirectory();
+		RemoteDirectory sub = rd.makeSubdirectory("foo");
+		sub.makeEmptyFile("bar");
+
+		RemoteEntryAttributes a = rd.resolve("foo/bar");
+		assertEquals("bar", a.getName());
+		assertEquals("/foo/bar", a.getFullName());
+		assertEquals(Type.FILE, a.getType());
+		assertSame(sub, rd.resolve("foo").getEntry());
+	}
+
+	@Test(expected = NoSuchFileException.class)
+	public void testResolveMissing() throws Exception {
+		lw.getWorkingDirectory().resolve("foo/bar");
+	}
+
+	@Test(expected = NoSuchFileException.class)
+	public void testResolveOutside() throws Exception {
+		lw.getWorkingDirectory().resolve("../foo");
+	}
+
+	@Test(expected = NotDirectoryException.class)
+	public void testResolveThroughFile() throws Exception {
+		RemoteDirectory rd = lw.getWorkingDirectory();
+		rd.makeEmptyFile("foo");
+		rd.resolve("foo/bar");
+	}
+
+	@Test
+	public void testFilesystem() throws Exception {
+		RemoteFilesystem fs = lw.getFilesystem();
+		assertEquals("/foo", fs.makeDirectory("foo").getFullName());
+		RemoteEntryAttributes a = fs.makeEmptyFile("foo/bar");
+		assertEquals("bar", a.getName());
+		assertEquals("/foo/bar", a.getFullName());
+		assertEquals(Type.FILE, a.getType());
+		assertNull(a.getEntry());
+
+		fs.write("foo/bar", "abc".getBytes("UTF-8"), false);
+		fs.write("foo/bar", "def".getBytes("UTF-8"), true);
+		assertEquals("cde", new String(fs.read("foo/bar", 2, 3), "UTF-8"));
+		assertEquals(6, fs.stat("foo/bar").getSize());
+		List<RemoteEntryAttributes> contents = fs.list("foo");
+		assertEquals(1, contents.size());
+		assertEquals("/foo/bar", contents.get(0).getFullName());
+		assertEquals(Type.DIRECTORY, fs.stat("").getType());
+
+		fs.delete("foo");
+		for (RemoteEntryAttributes e : fs.list(""))
+			assertFalse(e.getName().equals("foo"));
+	}
+
+	@Test(expected = NoSuchFileException.class)
+	public void testFilesystemOutside() throws Exception {
+		lw.getFilesystem().stat("../foo");
+	}
+
+	@Test
+	public void testGetContentsInChunks() throws Exception {
+		RemoteFile rf = lw.getWorkingDirectory().makeEmptyFile("foo");
+		rf.setContents("abcdefgh".getBytes("UTF-8"));
+		assertEquals("abc", new String(rf.getContents(0, 3), "UTF-8"));
+		assertEquals("def", new String(rf.getContents(3, 3), "UTF-8"));
+		assertEquals("gh", new String(rf.getContents(6, 3), "UTF-8"));
+		assertEquals(0, rf.getContents(8, 3).length);
+
+		// Replacing the file must not leave us reading the old one
+		File f = new File(rf.getNativeName());
+		assertTrue(f.delete());
+		write(f.toPath(), "ijk".getBytes("UTF-8"));
+		assertEquals("ijk", new String(rf.getContents(0, -1), "UTF-8"));
+	}
+
+	@Test
+	public void testOpenStream() throws Exception {
+		RemoteFile rf = lw.getWorkingDirectory().makeEmptyFile("foo");
+		rf.setContents("abcdefgh".getBytes("UTF-8"));
+
+		RemoteStreamTicket ticket = rf.openStream(2, 4);
+		assertEquals(4, ticket.getLength());
+		try (Socket s = new Socket(ticket.getHost(), ticket.getPort())) {
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+			out.writeLong(ticket.getToken().getMostSignificantBits());
+			out.writeLong(ticket.getToken().getLeastSignificantBits());
+			out.flush();
+			byte[] data = new byte[4];
+			new DataInputStream(s.getInputStream()).readFully(data);
+			assertEquals("cdef", new String(data, "UTF-8"));
+			assertEquals(-1, s.getInputStream().read());
+		}
+	}
+
+	private void assertNoUploadsLeft() throws Exception {
+		for (RemoteEntryAttributes e : lw.getFilesystem().list(""))
+			assertFalse(e.getName().endsWith(".upload"));
+	}
+
+	@Test
+	public void testUpload() throws Exception {
+		RemoteFile rf = lw.getWorkingDirectory().makeEmptyFile("foo");
+		rf.setContents("old".getBytes("UTF-8"));
+
+		RemoteUpload up = rf.openUpload(false);
+		// Pieces may arrive in any order
+		up.write(3, "def".getBytes("UTF-8"));
+		up.write(0, "abc".getBytes("UTF-8"));
+		assertEquals("old", new String(rf.getContents(0, -1), "UTF-8"));
+		assertEquals(6, up.commit());
+		assertEquals("abcdef", new String(rf.getContents(0, -1), "UTF-8"));
+		assertNoUploadsLeft();
+		try {
+			up.write(6, "ghi".getBytes("UTF-8"));
+			fail("wrote to a committed upload");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testUploadAbort() throws Exception {
+		RemoteFilesystem fs = lw.getFilesystem();
+		fs.makeEmptyFile("foo");
+		fs.write("foo", "old".getBytes("UTF-8"), false);
+
+		RemoteUpload up = fs.openUpload("foo", false);
+		up.write(0, "abcdef".getBytes("UTF-8"));
+		up.abort();
+		assertEquals("old", new String(fs.read("foo", 0, -1), "UTF-8"));
+		assertNoUploadsLeft();
+	}
+
+	@Test
+	public void testUploadAppendAbort() throws Exception {
+		RemoteFilesystem fs = lw.getFilesystem();
+		fs.makeEmptyFile("foo");
+		fs.write("foo", "abc".getBytes("UTF-8"), false);
+
+		RemoteUpload up = fs.openUpload("foo", true);
+		up.write(0, "def".getBytes("UTF-8"));
+		up.abort();
+		assertEquals("abc", new String(fs.read("foo", 0, -1), "UTF-8"));
+
+		up = fs.openUpload("foo", true);
+		up.write(0, "ghi".getBytes("UTF-8"));
+		assertEquals(6, up.commit());
+		assertEquals("abcghi", new String(fs.read("foo", 0, -1), "UTF-8"));
+	}
+
+	@Test
+	public void testOpenZipStream() throws Exception {
+		RemoteFilesystem fs = lw.getFilesystem();
+		fs.makeDirectory("foo");
+		fs.makeEmptyFile("foo/a.txt");
+		fs.write("foo/a.txt", "abcabcabc".getBytes("UTF-8"), false);
+		fs.makeDirectory("foo/sub");
+		fs.makeEmptyFile("foo/sub/b.png");
+		fs.write("foo/sub/b.png", "defg".getBytes("UTF-8"), false);
+
+		RemoteStreamTicket ticket = fs.openZipStream("foo");
+		assertEquals(-1, ticket.getLength());
+		Map<String, ZipEntry> entries = new TreeMap<>();
+		Map<String, String> contents = unzip(fetch(ticket), entries);
+		assertEquals("[a.txt, sub/b.png]", entries.keySet().toString());
+		assertEquals("abcabcabc", contents.get("a.txt"));
+		assertEquals("defg", contents.get("sub/b.png"));
+		assertEquals(ZipEntry.DEFLATED, entries.get("a.txt").getMethod());
+		assertEquals(ZipEntry.STORED, entries.get("sub/b.png").getMethod());
+	}
+
+	@Test
+	public void testOpenZipStreamInParallel() throws Exception {
+		RemoteFilesystem fs = lw.getFilesystem();
+		StringBuilder sb = new StringBuilder();
+		Random random = new Random(1);
+		// Big enough to be compressed as several blocks
+		while (sb.length() < 400000)
+			sb.append(random.nextInt(1000)).append(' ');
+		String big = sb.toString();
+		fs.makeDirectory("foo");
+		fs.makeEmptyFile("foo/big.txt");
+		fs.write("foo/big.txt", big.getBytes("UTF-8"), false);
+		fs.makeEmptyFile("foo/empty.txt");
+		fs.makeEmptyFile("foo/c.gz");
+		fs.write("foo/c.gz", "hij".getBytes("UTF-8"), false);
+
+		FileTransferServer.setArchiveCompression(4, 6);
+		byte[] zip;
+		try {
+			zip = fetch(fs.openZipStream("foo"));
+		} finally {
+			FileTransferServer.setArchiveCompression(1, -1);
+		}
+		Map<String, ZipEntry> entries = new TreeMap<>();
+		Map<String, String> contents = unzip(zip, entries);
+		assertEquals("[big.txt, c.gz, empty.txt]", entries.keySet()
+				.toString());
+		assertEquals(big, contents.get("big.txt"));
+		assertEquals("", contents.get("empty.txt"));
+		assertEquals("hij", contents.get("c.gz"));
+		assertEquals(ZipEntry.STORED, entries.get("c.gz").getMethod());
+
+		// The central directory must agree with the entries
+		File f = File.createTempFile("ziptest", ".zip");
+		try {
+			write(f.toPath(), zip);
+			try (ZipFile zf = new ZipFile(f)) {
+				assertEquals(3, zf.size());
+				ZipEntry e = zf.getEntry("big.txt");
+				assertEquals(big.length(), e.getSize());
+				assertTrue(e.getCompressedSize() < e.getSize());
+				assertEquals(big, read(zf.getInputStream(e)));
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	/** Fetch an archive, skipping the bytes sent before it starts. */
+	private static byte[] fetch(RemoteStreamTicket ticket) throws IOException {
+		try (Socket s = new Socket(ticket.getHost(), ticket.getPort())) {
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+			out.writeLong(ticket.getToken().getMostSignificantBits());
+			out.writeLong(ticket.getToken().getLeastSignificantBits());
+			out.flush();
+			InputStream in = s.getInputStream();
+			int b;
+			while ((b = in.read()) == RemoteStreamTicket.ARCHIVE_WAITING)
+				continue;
+			assertEquals(RemoteStreamTicket.ARCHIVE_STARTING, b);
+			return readBytes(in);
+		}
+	}
+
+	private static Map<String, String> unzip(byte[] zip,
+			Map<String, ZipEntry> entries) throws IOException {
+		Map<String, String> contents = new HashMap<>();
+		ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip));
+		ZipEntry e;
+		while ((e = zis.getNextEntry()) != null) {
+			contents.put(e.getName(), read(zis));
+			entries.put(e.getName(), e);
+		}
+		return contents;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		return new String(readBytes(in), "UTF-8");
+	}
+
+	private static byte[] readBytes(InputStream in) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int n;
+		while ((n = in.read(buffer)) >= 0)
+			baos.write(buffer, 0, n);
+		return baos.toByteArray();
+	}
+
+	@Test(expected = NotDirectoryException.class)
+	public void testOpenZipStreamOfFile() throws Exception {
+		RemoteFilesystem fs = lw.getFilesystem();
+		fs.makeEmptyFile("foo");
+		fs.openZipStream("foo");
+	}
+
 	@Test
 	public void testValidateFilename() throws Exception {
 		lw.validateFilename("foobar");
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.impl;
+
+import static java.util.Arrays.asList;
+import static java.util.UUID.randomUUID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.taverna.server.localworker.remote.RemoteStatus.Initialized;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.taverna.server.localworker.remote.RemoteRunStatus;
+
+public class TavernaRunManagerTest {
+	private static final String WORKFLOW = "<container><workflow/></container>";
+	private TavernaRunManager manager;
+	private final List<LocalWorker> made = new ArrayList<>();
+
+	@Before
+	public void setUp() throws Exception {
+		manager = new TavernaRunManager("true");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (LocalWorker run : made)
+			run.destroy();
+	}
+
+	private LocalWorker make() throws Exception {
+		LocalWorker run = (LocalWorker) manager.make(WORKFLOW, "fred", null,
+				randomUUID());
+		made.add(run);
+		return run;
+	}
+
+	@Test
+	public void statusesOfLiveRunsAreReported() throws Exception {
+		LocalWorker a = make();
+		LocalWorker b = make();
+		Map<String, RemoteRunStatus> statuses = manager.getRunStatuses(asList(
+				a.getId(), b.getId(), "no-such-run"));
+		assertEquals(2, statuses.size());
+		RemoteRunStatus s = statuses.get(a.getId());
+		assertEquals(a.getId(), s.getId());
+		assertEquals(Initialized, s.getStatus());
+		assertNull(s.getStartTimestamp());
+		assertNull(s.getExitCode());
+		assertEquals(Initialized, statuses.get(b.getId()).getStatus());
+	}
+
+	@Test
+	public void destroyedRunIsNotReported() throws Exception {
+		LocalWorker a = make();
+		LocalWorker b = make();
+		a.destroy();
+		Map<String, RemoteRunStatus> statuses = manager.getRunStatuses(asList(
+				a.getId(), b.getId()));
+		assertEquals(asList(b.getId()), new ArrayList<>(statuses.keySet()));
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.impl;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.taverna.server.localworker.remote.RemoteStatus.Finished;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.taverna.server.localworker.api.RunAccounting;
+import org.taverna.server.localworker.remote.RemoteStatus;
+import org.taverna.server.localworker.server.RunStatusListener;
+
+public class WorkerCoreTest {
+	private WorkerCore core;
+	private final List<String> reports = new ArrayList<>();
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private volatile boolean calledUnderLock;
+
+	@Before
+	public void setUp() throws Exception {
+		core = new WorkerCore(new RunAccounting() {
+			@Override
+			public void runStarted() {
+			}
+
+			@Override
+			public void runCeased() {
+			}
+		});
+		core.setStatusListener(new RunStatusListener() {
+			@Override
+			public void statusChanged(String runId, RemoteStatus status) {
+				if (Thread.holdsLock(core))
+					calledUnderLock = true;
+				synchronized (reports) {
+					reports.add(runId + ":" + status);
+				}
+				if (status == Finished)
+					finished.countDown();
+			}
+		}, "run1");
+	}
+
+	@Test
+	public void finishIsReportedOnceWithoutHoldingTheLock() throws Exception {
+		core.startExecutorSubprocess(new ProcessBuilder("true"), null);
+		assertTrue("no report of run finishing", finished.await(10, SECONDS));
+		assertEquals(Finished, core.getWorkerStatus());
+		core.killWorker();
+		synchronized (reports) {
+			assertEquals("[run1:Finished]", reports.toString());
+		}
+		assertFalse("listener called while holding lock", calledUnderLock);
+	}
+}
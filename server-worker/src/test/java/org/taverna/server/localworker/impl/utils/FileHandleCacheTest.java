@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.impl.utils;
+
+import static java.nio.ByteBuffer.allocate;
+import static org.apache.commons.io.FileUtils.writeStringToFile;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileHandleCacheTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	private FileHandleCache cache;
+	private File dir;
+	private File a;
+	private File b;
+
+	@Before
+	public void setUp() throws IOException {
+		cache = new FileHandleCache(10, 60000);
+		dir = tmp.newFolder("run");
+		a = new File(dir, "a");
+		writeStringToFile(a, "abc");
+		b = tmp.newFile("b");
+		writeStringToFile(b, "def");
+	}
+
+	private String read(File f) throws IOException {
+		ByteBuffer buffer = allocate(10);
+		cache.read(f, buffer, 0);
+		return new String(buffer.array(), 0, buffer.position(), "UTF-8");
+	}
+
+	@Test
+	public void filesAreKeptOpen() throws IOException {
+		assertEquals("abc", read(a));
+		assertEquals("abc", read(a));
+		assertEquals("def", read(b));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void replacedFileIsReopened() throws IOException {
+		assertEquals("abc", read(a));
+		File c = new File(dir, "c");
+		writeStringToFile(c, "ghi");
+		if (!a.delete() || !c.renameTo(a))
+			throw new IOException("failed to replace file");
+		assertEquals("ghi", read(a));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void forgettingDirectoryClosesFilesBeneathIt() throws IOException {
+		read(a);
+		read(b);
+		cache.forget(dir);
+		assertEquals(1, cache.size());
+		assertEquals("abc", read(a));
+	}
+}
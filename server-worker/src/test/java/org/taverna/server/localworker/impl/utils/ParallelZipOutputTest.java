@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ * 
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.impl.utils;
+
+import static java.nio.file.Files.write;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ParallelZipOutputTest {
+	private static final byte[] CONTENT = "0123456789".getBytes();
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	private ExecutorService compressors;
+	private ByteArrayOutputStream out;
+	private Path file;
+	private long crc;
+
+	@Before
+	public void setUp() throws IOException {
+		compressors = newFixedThreadPool(2);
+		out = new ByteArrayOutputStream();
+		file = tmp.newFile("a.gz").toPath();
+		write(file, CONTENT);
+		CRC32 c = new CRC32();
+		c.update(CONTENT);
+		crc = c.getValue();
+	}
+
+	@After
+	public void tearDown() {
+		compressors.shutdownNow();
+	}
+
+	private void stored(long crc, long size) throws IOException {
+		try (ParallelZipOutput zip = new ParallelZipOutput(out, compressors,
+				2, -1)) {
+			zip.stored("a.gz", 0, crc, size, file);
+			zip.finish();
+		}
+	}
+
+	@Test
+	public void storedEntryIsWritten() throws IOException {
+		stored(crc, CONTENT.length);
+		ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(
+				out.toByteArray()));
+		assertEquals("a.gz", zis.getNextEntry().getName());
+		byte[] b = new byte[CONTENT.length];
+		assertEquals(CONTENT.length, zis.read(b));
+		assertEquals(-1, zis.read());
+	}
+
+	@Test(expected = ZipException.class)
+	public void fileThatShrankFails() throws IOException {
+		stored(crc, CONTENT.length + 1);
+	}
+
+	@Test(expected = ZipException.class)
+	public void fileThatGrewFails() throws IOException {
+		stored(crc, CONTENT.length - 1);
+	}
+
+	@Test(expected = ZipException.class)
+	public void fileThatChangedFails() throws IOException {
+		stored(crc + 1, CONTENT.length);
+	}
+}